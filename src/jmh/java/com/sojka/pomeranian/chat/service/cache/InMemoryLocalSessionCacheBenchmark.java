@@ -0,0 +1,87 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.sojka.pomeranian.chat.dto.StompSubscription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reconnect storm against the shared users of the {@link InMemoryLocalSessionCache}: the writers connect, subscribe
+ * and disconnect sessions of a few hot users while the readers check their presence and the rooms viewers.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InMemoryLocalSessionCacheBenchmark {
+
+    private static final int ROOMS = 16;
+
+    @Param({"16", "1024"})
+    int users;
+
+    private final AtomicLong sessionIds = new AtomicLong();
+    private InMemoryLocalSessionCache cache;
+    private UUID[] userIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = new InMemoryLocalSessionCache();
+        userIds = new UUID[users];
+        for (int i = 0; i < users; i++) {
+            userIds[i] = UUID.randomUUID();
+            String sessionId = "initial-" + i;
+            cache.create(userIds[i], sessionId);
+            cache.add(userIds[i], sessionId, room(i));
+        }
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(4)
+    public boolean reconnect() {
+        int user = ThreadLocalRandom.current().nextInt(users);
+        UUID userId = userIds[user];
+        String sessionId = Long.toString(sessionIds.incrementAndGet());
+        cache.create(userId, sessionId);
+        boolean added = cache.add(userId, sessionId, List.of(
+                room(user), new StompSubscription(StompSubscription.Type.CHAT_NOTIFICATIONS, null)
+        ));
+        cache.remove(userId, sessionId, room(user));
+        cache.remove(sessionId);
+        return added;
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(4)
+    public boolean isOnline() {
+        int user = ThreadLocalRandom.current().nextInt(users);
+        return cache.isOnline(userIds[user], room(user));
+    }
+
+    @Benchmark
+    @Group("storm")
+    @GroupThreads(1)
+    public Set<UUID> findSubscribers() {
+        return cache.findSubscribers(room(ThreadLocalRandom.current().nextInt(ROOMS)));
+    }
+
+    private static StompSubscription room(int user) {
+        return new StompSubscription(StompSubscription.Type.CHAT, "room-" + user % ROOMS);
+    }
+}
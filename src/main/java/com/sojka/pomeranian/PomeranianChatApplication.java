@@ -4,6 +4,7 @@ import com.sojka.pomeranian.pubsub.BlockUserSubscriber;
 import com.sojka.pomeranian.pubsub.CommentsSubscriber;
 import com.sojka.pomeranian.pubsub.DeleteAccountSubscriber;
 import com.sojka.pomeranian.pubsub.NotificationSubscriber;
+import com.sojka.pomeranian.pubsub.ProfileUpdateSubscriber;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.SpringApplication;
@@ -12,9 +13,11 @@ import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.event.EventListener;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @Slf4j
 @EnableCaching
+@EnableScheduling
 @SpringBootApplication
 @RequiredArgsConstructor
 @EnableJpaRepositories(
@@ -26,6 +29,7 @@ public class PomeranianChatApplication {
     private final CommentsSubscriber commentsSubscriber;
     private final DeleteAccountSubscriber deleteAccountSubscriber;
     private final BlockUserSubscriber blockUserSubscriber;
+    private final ProfileUpdateSubscriber profileUpdateSubscriber;
 
     public static void main(String[] args) {
         SpringApplication.run(PomeranianChatApplication.class, args);
@@ -38,6 +42,7 @@ public class PomeranianChatApplication {
         commentsSubscriber.subscribeAsync();
         deleteAccountSubscriber.subscribeAsync();
         blockUserSubscriber.subscribeAsync();
+        profileUpdateSubscriber.subscribeAsync();
         log.info("✅ Application is ready");
     }
 }
@@ -0,0 +1,72 @@
+package com.sojka.pomeranian.chat.config;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.util.Map;
+
+/**
+ * Admits the {@code /ws} handshakes through the {@link ConnectionAdmission}, the rejected ones get
+ * {@code 503 Service Unavailable} with the {@code Retry-After} header, so the clients back off instead of retrying
+ * right away.<br>
+ * The client IP is the servlet remote address, resolved by the Tomcat remote IP valve as the rightmost
+ * {@code X-Forwarded-For} hop not added by the {@code server.tomcat.remoteip.internal-proxies}, so the IP buckets are
+ * per client rather than per proxy and the clients can't pick their bucket with their own header entries.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class AdmissionHandshakeInterceptor implements HandshakeInterceptor {
+
+    private final ConnectionAdmission admission;
+
+    @Override
+    public boolean beforeHandshake(
+            ServerHttpRequest request,
+            ServerHttpResponse response,
+            WebSocketHandler wsHandler,
+            Map<String, Object> attributes
+    ) {
+        var ip = clientIp(request);
+        var rejection = admission.admitHandshake(ip);
+        if (rejection != null) {
+            log.debug("Handshake rejected: ip={}, reason={}", ip, rejection);
+            response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+            response.getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(admission.getRetryAfterSeconds()));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The remote address as sent, without resolving it into an {@link java.net.InetSocketAddress}.
+     */
+    private static String clientIp(ServerHttpRequest request) {
+        if (request instanceof ServletServerHttpRequest servletRequest) {
+            return servletRequest.getServletRequest().getRemoteAddr();
+        }
+        var address = request.getRemoteAddress();
+        return address == null ? "unknown" : address.getHostString();
+    }
+
+    /**
+     * Called only for the admitted handshakes.
+     */
+    @Override
+    public void afterHandshake(
+            ServerHttpRequest request,
+            ServerHttpResponse response,
+            WebSocketHandler wsHandler,
+            Exception exception
+    ) {
+        admission.releaseHandshake();
+    }
+}
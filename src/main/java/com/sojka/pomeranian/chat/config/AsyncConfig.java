@@ -0,0 +1,54 @@
+package com.sojka.pomeranian.chat.config;
+
+import com.sojka.pomeranian.chat.util.StripedExecutor;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class AsyncConfig {
+
+    public static final String MESSAGE_PIPELINE_EXECUTOR = "messagePipelineExecutor";
+    public static final String AUTH_REVALIDATION_EXECUTOR = "authRevalidationExecutor";
+
+    /**
+     * Executor of the message send pipeline stages that run after Astra acknowledges the write.<br>
+     * Keeps the websocket publishing and Postgres work away from the driver I/O threads.
+     */
+    @Bean(name = MESSAGE_PIPELINE_EXECUTOR)
+    public ThreadPoolTaskExecutor messagePipelineExecutor(ChatConfig config) {
+        var pipeline = config.getPipeline();
+        var executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("message-pipeline-");
+        executor.setCorePoolSize(pipeline.getPoolSize());
+        executor.setMaxPoolSize(pipeline.getPoolSize());
+        executor.setQueueCapacity(pipeline.getQueueCapacity());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(10);
+        return executor;
+    }
+
+    /**
+     * Executor of the {@link WebSocketSessionRegistry} token re-validations, off the shared scheduler thread and away
+     * from the message pipeline.
+     */
+    @Bean(name = AUTH_REVALIDATION_EXECUTOR)
+    public ThreadPoolTaskExecutor authRevalidationExecutor(ChatConfig config) {
+        var executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("auth-revalidation-");
+        executor.setCorePoolSize(config.getAuthRevalidationParallelism());
+        executor.setMaxPoolSize(config.getAuthRevalidationParallelism());
+        return executor;
+    }
+
+    /**
+     * Orders the message pipeline stages of the same room, so the messages are published in their send order.
+     */
+    @Bean
+    public StripedExecutor roomOrderedExecutor(
+            @Qualifier(MESSAGE_PIPELINE_EXECUTOR) ThreadPoolTaskExecutor executor, ChatConfig config
+    ) {
+        return new StripedExecutor(executor, config.getPipeline().getRoomStripes());
+    }
+}
@@ -14,6 +14,31 @@ public class ChatConfig {
     private Notification notification;
     private Cache cache;
     private Purge purge;
+    private Pipeline pipeline = new Pipeline();
+    private ConversationBuffer conversationBuffer = new ConversationBuffer();
+    private LoginBuffer loginBuffer = new LoginBuffer();
+    private Messages messages = new Messages();
+    private MessageCache messageCache = new MessageCache();
+    private UnreadCounters unreadCounters = new UnreadCounters();
+    private PresenceCache presenceCache = new PresenceCache();
+    private UserCache userCache = new UserCache();
+    private PresenceLease presenceLease = new PresenceLease();
+    private Admission admission = new Admission();
+    private int authRevalidationIntervalMs = 60_000;
+    /**
+     * The number of the tokens re-validated at once, each one loads its user.
+     */
+    private int authRevalidationParallelism = 4;
+    /**
+     * The transport between the instances, {@code pubsub} or {@code streams}.
+     */
+    private String relayMode = "pubsub";
+    /**
+     * The frame of the Pub/Sub relay, {@code json} (read by every version) or {@code binary} {@link
+     * com.sojka.pomeranian.chat.service.RelayEnvelope}s, to be switched once all the instances read them.
+     */
+    private String relayFormat = "json";
+    private RelayStream relayStream = new RelayStream();
 
     @Data
     public static class Cache {
@@ -31,6 +56,158 @@ public class ChatConfig {
         private int batchSize;
     }
 
+    /**
+     * The executor of the asynchronous message send pipeline.
+     */
+    @Data
+    public static class Pipeline {
+        private int poolSize = 8;
+        private int queueCapacity = 10_000;
+        private int roomStripes = 256;
+    }
+
+    /**
+     * The write-behind buffer of the conversations headers, a batch failing {@code maxFlushAttempts} times is written
+     * row by row and the failing rows are dropped.
+     */
+    @Data
+    public static class ConversationBuffer {
+        private boolean enabled;
+        private int flushIntervalMs = 1000;
+        private int batchSize = 500;
+        private int capacity = 50_000;
+        private int maxFlushAttempts = 5;
+    }
+
+    /**
+     * The write-behind buffer of the users login states, a batch failing {@code maxFlushAttempts} times is written row
+     * by row and the failing rows are dropped.
+     */
+    @Data
+    public static class LoginBuffer {
+        private boolean enabled;
+        private int flushIntervalMs = 1000;
+        private int batchSize = 500;
+        private int capacity = 50_000;
+        private int maxFlushAttempts = 5;
+    }
+
+    /**
+     * The rollout switches of the time-bucketed messages table.<br>
+     * Messages are always written to the bucketed table, {@code legacyWrites} additionally writes them to the
+     * room-partitioned one and {@code bucketedReads} selects the table the history is read from.<br>
+     * The defaults are the safe rollout state, reading the legacy table and writing both until the backfill is
+     * confirmed.<br>
+     * The {@code pageSize} is the number of messages of a room history page served by the API.
+     */
+    @Data
+    public static class Messages {
+        private boolean bucketedReads;
+        private boolean legacyWrites = true;
+        private int pageSize = 20;
+    }
+
+    /**
+     * The cache of the room first history page, requires the {@link Messages#bucketedReads}.<br>
+     * The {@code pageSize} is the number of the newest messages kept per room, it should be at least the
+     * {@link Messages#pageSize} for the cache to serve the first page.
+     */
+    @Data
+    public static class MessageCache {
+        private boolean enabled = true;
+        private int pageSize = 20;
+        private long maxBytes = 32 * 1024 * 1024;
+        private int ttlSeconds = 3600;
+    }
+
+    /**
+     * The Redis kept unread messages counters.<br>
+     * Users changed at least {@code reconcileGraceMs} ago are reconciled against Postgres every
+     * {@code reconcileIntervalMs}, the grace lets the buffered headers flush first. The changed users are tracked in
+     * {@code dirtyShards} sorted sets, so they spread over the Redis Cluster slots.
+     */
+    @Data
+    public static class UnreadCounters {
+        private int ttlSeconds = 3600;
+        private int reconcileIntervalMs = 60_000;
+        private int reconcileGraceMs = 5000;
+        private int reconcileBatchSize = 500;
+        private int dirtyShards = 16;
+    }
+
+    /**
+     * The in-process near cache of the Redis presence, invalidated through Redis Pub/Sub.<br>
+     * The {@code ttlMs} bounds the staleness when an invalidation is lost.
+     */
+    @Data
+    public static class PresenceCache {
+        private boolean enabled = true;
+        private int maxSize = 100_000;
+        private int ttlMs = 2000;
+    }
+
+    /**
+     * The in-process level 1 of the Redis user details cache, invalidated through Redis Pub/Sub.<br>
+     * The {@code ttlMs} bounds the staleness when an invalidation is lost.
+     */
+    @Data
+    public static class UserCache {
+        private boolean enabled = true;
+        private int maxSize = 10_000;
+        private int ttlMs = 30_000;
+    }
+
+    /**
+     * The lease of the instance owning the Redis presence sessions.<br>
+     * The instance renews its lease and the TTL of its users every {@code heartbeatIntervalMs}, the sessions of the
+     * instances not renewing for {@code leaseMs} are swept by the others. The {@code userTtlSeconds} expires the users
+     * left behind when no instance is sweeping.
+     */
+    @Data
+    public static class PresenceLease {
+        /**
+         * The id of the instance, stable across its restarts (the pod name) so it keeps its relay stream groups.
+         * A random id is generated when blank.
+         */
+        private String nodeId = "";
+        private int heartbeatIntervalMs = 10_000;
+        private int leaseMs = 30_000;
+        private int userTtlSeconds = 120;
+        private int sweepBatchSize = 500;
+    }
+
+    /**
+     * The admission control of the {@code /ws} endpoint.<br>
+     * At most {@code maxConcurrentHandshakes} handshakes and {@code maxConcurrentConnects} STOMP CONNECT
+     * authentications run at once, the others are rejected right away with the {@code retryAfterSeconds} hint. The connects are also rate limited by token buckets per client IP and per user.
+     */
+    @Data
+    public static class Admission {
+        private boolean enabled = true;
+        private int maxConcurrentHandshakes = 200;
+        private int maxConcurrentConnects = 50;
+        private int retryAfterSeconds = 5;
+        private double ipConnectsPerSecond = 5;
+        private int ipBurst = 20;
+        private double userConnectsPerSecond = 1;
+        private int userBurst = 10;
+    }
+
+    /**
+     * The Redis Streams relay, selected by {@code relayMode=streams}.<br>
+     * The instance streams are trimmed to about {@code nodeMaxLength} envelopes and read in batches of
+     * {@code batchSize}. The envelopes of every user destination are kept up to {@code replayMaxLength} and for
+     * {@code replayTtlSeconds} after the last one, the clients resubscribing within that window get the missed ones.
+     */
+    @Data
+    public static class RelayStream {
+        private int nodeMaxLength = 10_000;
+        private int batchSize = 100;
+        private int pollTimeoutMs = 2000;
+        private int replayMaxLength = 100;
+        private int replayTtlSeconds = 300;
+    }
+
     @Data
     public static class Notification {
         private Read read;
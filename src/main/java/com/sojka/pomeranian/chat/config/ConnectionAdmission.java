@@ -0,0 +1,190 @@
+package com.sojka.pomeranian.chat.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The admission control of the {@code /ws} connections, so a reconnect storm after a restart is spread over time
+ * instead of starving the already connected users.<br>
+ * The handshakes and the STOMP CONNECT authentications are bounded by semaphores, the ones over the limit are
+ * rejected right away with a retry-after instead of holding the request threads. The connects are rate limited per
+ * client IP and per user with token buckets. The idle buckets are dropped periodically.<br>
+ * Every decision is counted in {@code pomeranian.chat.admission{stage, result}}.
+ */
+@Slf4j
+@Component
+public class ConnectionAdmission {
+
+    static final String HANDSHAKE = "handshake";
+    static final String CONNECT = "connect";
+
+    private final boolean enabled;
+    private final int retryAfterSeconds;
+    private final Semaphore handshakes;
+    private final Semaphore connects;
+    private final Map<String, TokenBucket> ipBuckets = new ConcurrentHashMap<>();
+    private final Map<UUID, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private final double ipRate;
+    private final int ipBurst;
+    private final double userRate;
+    private final int userBurst;
+    private final MeterRegistry meterRegistry;
+
+    public ConnectionAdmission(ChatConfig config, MeterRegistry meterRegistry) {
+        var admission = config.getAdmission();
+        this.enabled = admission.isEnabled();
+        this.retryAfterSeconds = admission.getRetryAfterSeconds();
+        this.handshakes = new Semaphore(admission.getMaxConcurrentHandshakes());
+        this.connects = new Semaphore(admission.getMaxConcurrentConnects());
+        this.ipRate = admission.getIpConnectsPerSecond();
+        this.ipBurst = admission.getIpBurst();
+        this.userRate = admission.getUserConnectsPerSecond();
+        this.userBurst = admission.getUserBurst();
+        this.meterRegistry = meterRegistry;
+        Gauge.builder("pomeranian.chat.admission.in.flight", handshakes,
+                        semaphore -> admission.getMaxConcurrentHandshakes() - semaphore.availablePermits())
+                .description("Handshakes in progress")
+                .tag("stage", HANDSHAKE)
+                .register(meterRegistry);
+        Gauge.builder("pomeranian.chat.admission.in.flight", connects,
+                        semaphore -> admission.getMaxConcurrentConnects() - semaphore.availablePermits())
+                .description("STOMP CONNECT authentications in progress")
+                .tag("stage", CONNECT)
+                .register(meterRegistry);
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Admits the handshake of the client IP, the admitted one has to be {@link #releaseHandshake() released}.
+     *
+     * @return the rejection reason, null if admitted
+     */
+    public Rejection admitHandshake(String ip) {
+        if (!enabled) {
+            return null;
+        }
+        if (!ipBuckets.computeIfAbsent(ip, key -> new TokenBucket(ipRate, ipBurst)).tryConsume()) {
+            return reject(HANDSHAKE, Rejection.IP_RATE);
+        }
+        return acquire(handshakes, HANDSHAKE);
+    }
+
+    public void releaseHandshake() {
+        if (enabled) {
+            handshakes.release();
+        }
+    }
+
+    /**
+     * Admits the STOMP CONNECT authentication, the admitted one has to be {@link #releaseConnect() released}.
+     *
+     * @return the rejection reason, null if admitted
+     */
+    public Rejection admitConnect() {
+        if (!enabled) {
+            return null;
+        }
+        return acquire(connects, CONNECT);
+    }
+
+    public void releaseConnect() {
+        if (enabled) {
+            connects.release();
+        }
+    }
+
+    /**
+     * Consumes a connect of the authenticated user.
+     *
+     * @return the rejection reason, null if admitted
+     */
+    public Rejection admitUser(UUID userId) {
+        if (!enabled) {
+            return null;
+        }
+        if (!userBuckets.computeIfAbsent(userId, key -> new TokenBucket(userRate, userBurst)).tryConsume()) {
+            return reject(CONNECT, Rejection.USER_RATE);
+        }
+        return null;
+    }
+
+    /**
+     * Drops the buckets refilled to their burst, an idle client starts over with a new full bucket anyway.
+     */
+    @Scheduled(fixedDelay = 60_000)
+    public void evictIdleBuckets() {
+        long now = System.nanoTime();
+        ipBuckets.values().removeIf(bucket -> bucket.isFull(now));
+        userBuckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    private Rejection acquire(Semaphore semaphore, String stage) {
+        if (semaphore.tryAcquire()) {
+            meterRegistry.counter("pomeranian.chat.admission", "stage", stage, "result", "accepted").increment();
+            return null;
+        }
+        return reject(stage, Rejection.BUSY);
+    }
+
+    private Rejection reject(String stage, Rejection rejection) {
+        log.debug("Rejected {}: {}", stage, rejection);
+        meterRegistry.counter("pomeranian.chat.admission", "stage", stage, "result", rejection.name().toLowerCase())
+                .increment();
+        return rejection;
+    }
+
+    public enum Rejection {
+
+        BUSY, IP_RATE, USER_RATE
+    }
+
+    /**
+     * Refills {@code rate} tokens per second up to the {@code burst}.
+     */
+    static final class TokenBucket {
+
+        private final double ratePerNano;
+        private final int burst;
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double ratePerSecond, int burst) {
+            this.ratePerNano = ratePerSecond / 1_000_000_000d;
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilledAt = System.nanoTime();
+        }
+
+        synchronized boolean tryConsume() {
+            refill(System.nanoTime());
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            if (now - refilledAt > 0) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+                refilledAt = now;
+            }
+        }
+    }
+}
@@ -2,13 +2,15 @@ package com.sojka.pomeranian.chat.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sojka.pomeranian.chat.service.RedisPubSubReceiver;
+import com.sojka.pomeranian.chat.service.cache.PresenceNearCache;
+import com.sojka.pomeranian.chat.service.cache.PresenceNode;
+import com.sojka.pomeranian.chat.service.cache.TwoLevelCacheManager;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.listener.ChannelTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
-import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 
 @Configuration
@@ -26,17 +28,18 @@ public class RedisPubSubConfig {
         return new RedisPubSubReceiver(template, mapper);
     }
 
-    @Bean
-    public MessageListenerAdapter redisPubSubListenerAdapter(RedisPubSubReceiver receiver) {
-        return new MessageListenerAdapter(receiver, "receiveMessage");
-    }
-
     @Bean
     public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
-                                                                       MessageListenerAdapter listenerAdapter) {
+                                                                       RedisPubSubReceiver receiver,
+                                                                       PresenceNearCache presenceNearCache,
+                                                                       PresenceNode presenceNode,
+                                                                       TwoLevelCacheManager cacheManager) {
         RedisMessageListenerContainer container = new RedisMessageListenerContainer();
         container.setConnectionFactory(connectionFactory);
-        container.addMessageListener(listenerAdapter, new ChannelTopic(CHANNEL_NAME));
+        container.addMessageListener(receiver, new ChannelTopic(CHANNEL_NAME));
+        container.addMessageListener(receiver, new ChannelTopic(presenceNode.getChannel()));
+        container.addMessageListener(presenceNearCache, new ChannelTopic(PresenceNearCache.CHANNEL));
+        container.addMessageListener(cacheManager, new ChannelTopic(TwoLevelCacheManager.CHANNEL));
         return container;
     }
 }
\ No newline at end of file
@@ -11,17 +11,26 @@ import org.springframework.security.authentication.UsernamePasswordAuthenticatio
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.messaging.AbstractSubProtocolEvent;
 
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Authenticates the STOMP CONNECT and binds the {@link User} with its JWT to the WebSocket session attributes, the
+ * later frames and events of the session resolve the user from the attributes without parsing the JWT again.<br>
+ * The bound tokens are re-validated on a schedule by the {@link WebSocketSessionRegistry}.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class StompRequestAuthenticator {
 
+    public static final String USER_ATTRIBUTE = "pomeranian.user";
+    public static final String JWT_ATTRIBUTE = "pomeranian.jwt";
+
     private final JwtUtil jwtUtil;
     private final UserDetailsService userDetailsService;
     // TODO: allow auth if roles are ok
@@ -47,6 +56,9 @@ public class StompRequestAuthenticator {
     }
 
     public User getUser(AbstractSubProtocolEvent event, StompHeaderAccessor accessor) throws SecurityException {
+        if (getSessionUser(accessor) instanceof User user) {
+            return user;
+        }
         if (event.getUser() instanceof UsernamePasswordAuthenticationToken token) {
             return (User) token.getPrincipal();
         } else if (event.getUser() instanceof User user) {
@@ -56,6 +68,9 @@ public class StompRequestAuthenticator {
     }
 
     public User getUser(AbstractSubProtocolEvent event) throws SecurityException {
+        if (getSessionUser(StompHeaderAccessor.wrap(event.getMessage())) instanceof User user) {
+            return user;
+        }
         if (event.getUser() instanceof UsernamePasswordAuthenticationToken token) {
             return (User) token.getPrincipal();
         } else if (event.getUser() instanceof User user) {
@@ -65,7 +80,13 @@ public class StompRequestAuthenticator {
         return getUser(accessor);
     }
 
+    /**
+     * Returns the user bound to the session at CONNECT, falls back to the frame JWT for the unbound sessions.
+     */
     public User getUser(StompHeaderAccessor accessor) {
+        if (getSessionUser(accessor) instanceof User user) {
+            return user;
+        }
         try {
             String authJwt = getAuthJwt(accessor);
             var username = jwtUtil.extractUsername(authJwt);
@@ -101,6 +122,35 @@ public class StompRequestAuthenticator {
 
         // Also set on accessor for STOMP-specific access (good practice)
         accessor.setUser(authentication);
+        var sessionAttributes = accessor.getSessionAttributes();
+        if (sessionAttributes != null) {
+            sessionAttributes.put(USER_ATTRIBUTE, userDetails);
+            sessionAttributes.put(JWT_ATTRIBUTE, authJwt);
+        }
         return (User) userDetails;
     }
+
+    /**
+     * Re-validates the JWT bound to the session and reloads its user.
+     *
+     * @throws SecurityException if the token is no longer valid or its user doesn't exist
+     */
+    public User revalidate(String authJwt) throws SecurityException {
+        String username;
+        try {
+            username = jwtUtil.extractUsername(authJwt);
+        } catch (Exception e) {
+            throw new SecurityException(e);
+        }
+        try {
+            return (User) userDetailsService.loadUserByUsername(username);
+        } catch (UsernameNotFoundException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    private static Object getSessionUser(StompHeaderAccessor accessor) {
+        var sessionAttributes = accessor.getSessionAttributes();
+        return sessionAttributes == null ? null : sessionAttributes.get(USER_ATTRIBUTE);
+    }
 }
@@ -1,17 +1,21 @@
 package com.sojka.pomeranian.chat.config;
 
+import com.sojka.pomeranian.security.model.User;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
 import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.messaging.simp.stomp.StompCommand;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.messaging.support.ChannelInterceptor;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 
 @Slf4j
 @Configuration
@@ -20,11 +24,15 @@ import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerCo
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
     private final StompRequestAuthenticator requestAuthenticator;
+    private final ConnectionAdmission admission;
+    private final AdmissionHandshakeInterceptor admissionHandshakeInterceptor;
+    private final WebSocketSessionRegistry sessionRegistry;
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
         registry
                 .addEndpoint("/ws")
+                .addInterceptors(admissionHandshakeInterceptor)
                 .setAllowedOriginPatterns("*")
                 .withSockJS();
     }
@@ -37,19 +45,61 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
                 .enableSimpleBroker("/user", "/queue");
     }
 
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.addDecoratorFactory(sessionRegistry);
+    }
+
     @Override
     public void configureClientInboundChannel(ChannelRegistration registration) {
         registration.interceptors(new JwtStompInterceptor());
     }
 
+    /**
+     * Authenticates the STOMP CONNECT, admitted by the {@link ConnectionAdmission} both before the authentication
+     * and for the authenticated user.<br>
+     * A rejected CONNECT fails with the STOMP ERROR frame carrying the retry after hint.
+     */
     public class JwtStompInterceptor implements ChannelInterceptor {
 
         @Override
         public Message<?> preSend(Message<?> message, MessageChannel channel) {
             StompHeaderAccessor accessor = StompHeaderAccessor.wrap(message);
             log.trace("Stomp auth attempt, command={}", accessor.getCommand());
-            requestAuthenticator.authenticate(accessor);
+            if (!StompCommand.CONNECT.equals(accessor.getCommand())) {
+                requestAuthenticator.authenticate(accessor);
+                return message;
+            }
+            var rejection = admission.admitConnect();
+            if (rejection != null) {
+                throw rejected(message, rejection);
+            }
+            try {
+                User user = requestAuthenticator.authenticate(accessor);
+                rejection = admission.admitUser(user.getId());
+                if (rejection != null) {
+                    throw rejected(message, rejection);
+                }
+            } catch (RuntimeException e) {
+                admission.releaseConnect();
+                throw e;
+            }
             return message;
         }
+
+        /**
+         * Releases the CONNECT admitted in the {@link #preSend}.
+         */
+        @Override
+        public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+            if (StompCommand.CONNECT.equals(StompHeaderAccessor.wrap(message).getCommand())) {
+                admission.releaseConnect();
+            }
+        }
+
+        private MessageDeliveryException rejected(Message<?> message, ConnectionAdmission.Rejection rejection) {
+            return new MessageDeliveryException(message, "Connection rejected: %s, retry after %d seconds"
+                    .formatted(rejection, admission.getRetryAfterSeconds()));
+        }
     }
 }
\ No newline at end of file
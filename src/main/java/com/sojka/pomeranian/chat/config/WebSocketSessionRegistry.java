@@ -0,0 +1,156 @@
+package com.sojka.pomeranian.chat.config;
+
+import com.sojka.pomeranian.chat.service.cache.PresenceLeaseLostEvent;
+import com.sojka.pomeranian.security.model.Role;
+import com.sojka.pomeranian.security.model.User;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.sojka.pomeranian.chat.config.AsyncConfig.AUTH_REVALIDATION_EXECUTOR;
+import static com.sojka.pomeranian.chat.config.StompRequestAuthenticator.JWT_ATTRIBUTE;
+import static com.sojka.pomeranian.chat.config.StompRequestAuthenticator.USER_ATTRIBUTE;
+
+/**
+ * Tracks the open WebSocket sessions of this instance and re-validates the JWTs bound to them at CONNECT.<br>
+ * A session with an expired or invalid token, or of a banned or deactivated user, is closed. The others get their
+ * bound user reloaded, so the role changes reach the open sessions without parsing the token on every frame.<br>
+ * Each distinct token is validated once per run on the {@link AsyncConfig#AUTH_REVALIDATION_EXECUTOR}, a run still
+ * in progress skips the next one. A failure to load the user keeps the session open.<br>
+ * The sessions swept with a lost presence lease are closed, so the clients reconnect and become online again.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class WebSocketSessionRegistry implements WebSocketHandlerDecoratorFactory {
+
+    private static final Set<Role.PomeranianRole> CLOSED_ROLES = EnumSet.of(
+            Role.PomeranianRole.HARD_BAN, Role.PomeranianRole.DEACTIVATED
+    );
+
+    private final StompRequestAuthenticator authenticator;
+    @Qualifier(AUTH_REVALIDATION_EXECUTOR)
+    private final Executor executor;
+    private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                sessions.put(session.getId(), session);
+                super.afterConnectionEstablished(session);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                sessions.remove(session.getId());
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    @Scheduled(fixedDelayString = "${pomeranian.chat.auth-revalidation-interval-ms:60000}")
+    public void revalidate() {
+        Map<String, List<WebSocketSession>> byToken = new HashMap<>();
+        for (WebSocketSession session : sessions.values()) {
+            if (session.getAttributes().get(JWT_ATTRIBUTE) instanceof String authJwt) {
+                byToken.computeIfAbsent(authJwt, key -> new ArrayList<>()).add(session);
+            }
+        }
+        if (byToken.isEmpty() || !revalidating.compareAndSet(false, true)) {
+            return;
+        }
+        var remaining = new AtomicInteger(byToken.size());
+        var closed = new AtomicInteger();
+        byToken.forEach((authJwt, tokenSessions) -> {
+            try {
+                executor.execute(() -> {
+                    try {
+                        closed.addAndGet(revalidate(authJwt, tokenSessions));
+                    } finally {
+                        finish(remaining, closed);
+                    }
+                });
+            } catch (RuntimeException e) {
+                log.warn("Failed to submit the revalidation of {} sessions: {}", tokenSessions.size(), e.getMessage());
+                finish(remaining, closed);
+            }
+        });
+    }
+
+    /**
+     * @return the number of the closed sessions
+     */
+    private int revalidate(String authJwt, List<WebSocketSession> tokenSessions) {
+        User user;
+        try {
+            user = authenticator.revalidate(authJwt);
+        } catch (SecurityException e) {
+            tokenSessions.forEach(session -> close(session, CloseStatus.POLICY_VIOLATION.withReason("Token expired")));
+            return tokenSessions.size();
+        } catch (Exception e) {
+            log.warn("Failed to revalidate {} sessions, keeping them open: {}", tokenSessions.size(), e.getMessage());
+            return 0;
+        }
+        if (CLOSED_ROLES.contains(user.getRole())) {
+            tokenSessions.forEach(session -> close(session, CloseStatus.POLICY_VIOLATION.withReason("Account disabled")));
+            return tokenSessions.size();
+        }
+        tokenSessions.forEach(session -> session.getAttributes().put(USER_ATTRIBUTE, user));
+        return 0;
+    }
+
+    private void finish(AtomicInteger remaining, AtomicInteger closed) {
+        if (remaining.decrementAndGet() == 0) {
+            if (closed.get() > 0) {
+                log.info("Closed {} sessions with no longer valid tokens or disabled users", closed.get());
+            }
+            revalidating.set(false);
+        }
+    }
+
+    @EventListener
+    public void onPresenceLeaseLost(PresenceLeaseLostEvent event) {
+        for (String simpSessionId : event.simpSessionIds()) {
+            var session = sessions.get(simpSessionId);
+            if (session != null) {
+                close(session, CloseStatus.SERVICE_RESTARTED.withReason("Presence lease lost"));
+            }
+        }
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    private static void close(WebSocketSession session, CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            log.debug("Failed to close sessionId={}", session.getId(), e);
+        }
+    }
+}
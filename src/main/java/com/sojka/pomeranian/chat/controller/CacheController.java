@@ -1,7 +1,10 @@
 package com.sojka.pomeranian.chat.controller;
 
+import com.sojka.pomeranian.astra.dto.ResultsPage;
 import com.sojka.pomeranian.chat.model.ActiveUser;
 import com.sojka.pomeranian.chat.service.cache.SessionCache;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
@@ -9,9 +12,9 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.List;
 import java.util.UUID;
 
 @Slf4j
@@ -20,6 +23,8 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class CacheController {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private final SessionCache cache;
 
     @GetMapping("/{userId}")
@@ -31,7 +36,11 @@ public class CacheController {
 
     @GetMapping
     @PreAuthorize("hasRole('ADMIN')")
-    public ResponseEntity<List<ActiveUser>> getAll() {
-        return ResponseEntity.ok(cache.getAll());
+    public ResponseEntity<ResultsPage<ActiveUser>> getAll(
+            @RequestParam(required = false) String nextPageState,
+            @RequestParam(defaultValue = "100") @Min(1) @Max(MAX_PAGE_SIZE) int pageSize
+    ) {
+        log.trace("getAll input: nextPageState={}, pageSize={}", nextPageState, pageSize);
+        return ResponseEntity.ok(cache.getAll(nextPageState, pageSize));
     }
 }
@@ -5,6 +5,7 @@ import com.sojka.pomeranian.chat.dto.ChatMessage;
 import com.sojka.pomeranian.chat.dto.ChatRead;
 import com.sojka.pomeranian.chat.dto.ChatResponse;
 import com.sojka.pomeranian.chat.dto.MessageKey;
+import com.sojka.pomeranian.chat.dto.MessageType;
 import com.sojka.pomeranian.chat.dto.ReadMessageDto;
 import com.sojka.pomeranian.chat.dto.StompSubscription;
 import com.sojka.pomeranian.chat.service.ChatService;
@@ -23,6 +24,7 @@ import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Controller;
 
 import static com.sojka.pomeranian.chat.util.Constants.DM_DESTINATION;
+import static com.sojka.pomeranian.chat.util.Constants.ERROR_DESTINATION;
 import static com.sojka.pomeranian.chat.util.Constants.NOTIFY_DESTINATION;
 import static com.sojka.pomeranian.lib.util.CommonUtils.getRecipientIdFromRoomId;
 import static com.sojka.pomeranian.lib.util.DateTimeUtils.toDateString;
@@ -37,8 +39,12 @@ public class ChatController {
     private final SessionCache cache;
     private final StompRequestAuthenticator authenticator;
 
-    // TODO: if there is an error here then publish some feedback back to the client
-    // TODO: it sends back the message even before it finish updating conversations or notifications, so it might still break with properly saved message as well
+    /**
+     * Sends the message through the asynchronous pipeline, the inbound thread is released right after the Astra
+     * write is dispatched.<br>
+     * The unread message notification is published once the message is delivered to the room, a failure of the
+     * delivery is reported back to the sender at the {@link com.sojka.pomeranian.chat.util.Constants#ERROR_DESTINATION}.
+     */
     @MessageMapping("/chat.send")
     public void sendMessage(@Payload ChatMessage chatMessage, StompHeaderAccessor headerAccessor) {
         User user = authenticator.getUser(headerAccessor);
@@ -54,15 +60,32 @@ public class ChatController {
         boolean hasChatOpen = cache.isOnline(
                 chatMessage.getRecipient().getId(), new StompSubscription(StompSubscription.Type.CHAT, roomId)
         );
-        String createdAt = chatService.processMessage(chatMessage, roomId, hasChatOpen);
+        chatService.processMessageAsync(chatMessage, roomId, hasChatOpen)
+                .whenComplete((createdAt, e) -> {
+                    if (e != null) {
+                        log.error("Failed to send message to roomId={}", roomId, e);
+                        messagingTemplate.convertAndSendToUser(
+                                user.getId() + "", ERROR_DESTINATION, new ChatResponse<>(chatMessage, MessageType.ERROR)
+                        );
+                    } else if (!hasChatOpen) {
+                        publishNotification(chatMessage, createdAt);
+                    }
+                });
+    }
 
-        // Publish unread message notification
-        if (!hasChatOpen) {
+    /**
+     * Publishes the unread message notification of the already delivered message, its failure is only logged so the
+     * sender doesn't resend the message.
+     */
+    private void publishNotification(ChatMessage chatMessage, String createdAt) {
+        try {
             var notification = NotificationMapper.toNotification(chatMessage, createdAt);
             messagingTemplate.convertAndSendToUser(
                     chatMessage.getRecipient().getId() + "", NOTIFY_DESTINATION, notification
             );
             log.trace("Sent message notification: {}", notification);
+        } catch (Exception e) {
+            log.error("Failed to send the message notification to userId={}", chatMessage.getRecipient().getId(), e);
         }
     }
 
@@ -3,9 +3,10 @@ package com.sojka.pomeranian.chat.controller;
 import com.sojka.pomeranian.astra.dto.ResultsPage;
 import com.sojka.pomeranian.chat.dto.ChatMessagePersisted;
 import com.sojka.pomeranian.chat.dto.ConversationDto;
+import com.sojka.pomeranian.chat.dto.StompSubscription;
 import com.sojka.pomeranian.chat.service.ChatService;
+import com.sojka.pomeranian.chat.service.cache.SessionCache;
 import com.sojka.pomeranian.lib.dto.ConversationFlag;
-import com.sojka.pomeranian.lib.dto.Pagination;
 import com.sojka.pomeranian.security.model.User;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -20,6 +21,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 @Slf4j
@@ -28,7 +30,10 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class MessageController {
 
+    private static final int MAX_ONLINE_USER_IDS = 100;
+
     private final ChatService chatService;
+    private final SessionCache cache;
 
     @GetMapping
     @PreAuthorize("hasRole('SOFT_BAN')")
@@ -43,14 +48,14 @@ public class MessageController {
 
     @GetMapping("/headers")
     @PreAuthorize("hasRole('SOFT_BAN')")
-    public ResponseEntity<List<ConversationDto>> getConversations(
+    public ResponseEntity<ResultsPage<ConversationDto>> getConversations(
             @AuthenticationPrincipal User user,
-            @RequestParam int pageNumber,
-            @RequestParam int pageSize,
+            @RequestParam(required = false) String nextPageState,
+            @RequestParam(defaultValue = "10") int pageSize,
             @RequestParam ConversationFlag flag
     ) {
-        var conversations = chatService.getConversations(user.getId(), flag, new Pagination(pageNumber, pageSize));
-        return ResponseEntity.ok(conversations);
+        log.trace("getConversations input: userID={}, nextPageState={}, pageSize={}, flag={}", user.getId(), nextPageState, pageSize, flag);
+        return ResponseEntity.ok(chatService.getConversations(user.getId(), flag, nextPageState, pageSize));
     }
 
     // TODO: rename those "headers" to conversations everywhere
@@ -65,6 +70,24 @@ public class MessageController {
         return ResponseEntity.ok(chatService.updateConversationFlag(user.getId(), recipientId, flag));
     }
 
+    /**
+     * Returns the online flags of the conversation headers page recipients with a single presence lookup.<br>
+     * Only the users the caller has a conversation with are looked up, the others are left out of the result.
+     */
+    @GetMapping("/headers/online")
+    @PreAuthorize("hasRole('SOFT_BAN')")
+    public ResponseEntity<Map<UUID, Boolean>> getOnlineFlags(
+            @AuthenticationPrincipal User user,
+            @RequestParam List<UUID> userIds
+    ) {
+        log.trace("getOnlineFlags input: userID={}, userIds={}", user.getId(), userIds);
+        if (userIds.size() > MAX_ONLINE_USER_IDS) {
+            return ResponseEntity.badRequest().build();
+        }
+        var recipientIds = chatService.getConversationRecipients(user.getId(), userIds);
+        return ResponseEntity.ok(cache.isOnlineMany(recipientIds, StompSubscription.Type.CHAT_NOTIFICATIONS));
+    }
+
     @GetMapping("/headers/count")
     @PreAuthorize("hasRole('SOFT_BAN')")
     public ResponseEntity<Long> getConversationCount(
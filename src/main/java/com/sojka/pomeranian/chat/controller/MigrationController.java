@@ -0,0 +1,54 @@
+package com.sojka.pomeranian.chat.controller;
+
+import com.sojka.pomeranian.chat.service.ConversationProfileBackfill;
+import com.sojka.pomeranian.chat.service.MessageBucketMigration;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@Slf4j
+@RestController
+@RequestMapping("/api/migration")
+@RequiredArgsConstructor
+public class MigrationController {
+
+    private final MessageBucketMigration messageBucketMigration;
+    private final ConversationProfileBackfill conversationProfileBackfill;
+
+    /**
+     * Starts the messages backfill to the bucketed table, returns false if it's already running.
+     */
+    @PostMapping("/message-buckets")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Boolean> migrateMessageBuckets() {
+        log.info("Message bucket migration requested");
+        return ResponseEntity.accepted().body(messageBucketMigration.start());
+    }
+
+    @GetMapping("/message-buckets")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Boolean> isMessageBucketMigrationRunning() {
+        return ResponseEntity.ok(messageBucketMigration.isRunning());
+    }
+
+    /**
+     * Starts building the conversation recipient snapshots of all the profiles, returns false if it's already running.
+     */
+    @PostMapping("/conversation-profiles")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Boolean> backfillConversationProfiles() {
+        log.info("Conversation profile backfill requested");
+        return ResponseEntity.accepted().body(conversationProfileBackfill.start());
+    }
+
+    @GetMapping("/conversation-profiles")
+    @PreAuthorize("hasRole('ADMIN')")
+    public ResponseEntity<Boolean> isConversationProfileBackfillRunning() {
+        return ResponseEntity.ok(conversationProfileBackfill.isRunning());
+    }
+}
@@ -7,4 +7,5 @@ public enum MessageType {
     READ,
     UPDATE,
     REVALIDATE,
+    ERROR,
 }
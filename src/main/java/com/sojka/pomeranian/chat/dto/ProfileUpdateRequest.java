@@ -0,0 +1,10 @@
+package com.sojka.pomeranian.chat.dto;
+
+import java.util.UUID;
+
+/**
+ * Published by the main service whenever the profile display data (username, image, personal, city, roles or
+ * validation status) changes.
+ */
+public record ProfileUpdateRequest(UUID profileId) {
+}
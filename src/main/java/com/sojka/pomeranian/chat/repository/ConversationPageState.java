@@ -0,0 +1,83 @@
+package com.sojka.pomeranian.chat.repository;
+
+import com.sojka.pomeranian.chat.repository.projection.ConversationProjection;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The keyset page state of the conversation headers, points at the last header of the previous page.<br>
+ * Headers are ordered by {@code (last_message_at, recipient_id)} descending, the next page seeks right after the
+ * state instead of skipping the previous pages rows. Serialized as an opaque URL-safe Base64 token.<br>
+ * The headers without the last message time were backfilled with the {@link #NO_MESSAGE_AT}.
+ *
+ * @param lastMessageAt the last message time of the last returned header
+ * @param recipientId   the recipient of the last returned header
+ */
+public record ConversationPageState(Instant lastMessageAt, UUID recipientId) {
+
+    /**
+     * The state of the first page, sorts after every stored header.
+     */
+    public static final ConversationPageState FIRST = new ConversationPageState(
+            Instant.parse("9999-12-31T00:00:00Z"), new UUID(-1L, -1L)
+    );
+
+    /**
+     * The last message time of the headers without one.
+     */
+    public static final Instant NO_MESSAGE_AT = Instant.EPOCH;
+
+    private static final int TOKEN_BYTES = Long.BYTES + 2 * Long.BYTES;
+
+    public static ConversationPageState of(ConversationProjection header) {
+        var lastMessageAt = header.getLastMessageAt();
+        return new ConversationPageState(lastMessageAt == null ? NO_MESSAGE_AT : lastMessageAt, header.getRecipientId());
+    }
+
+    /**
+     * Returns the page state token if the page is full, otherwise there's no next page and it returns null.
+     */
+    public static String nextPageState(List<? extends ConversationProjection> headers, int pageSize) {
+        return headers.size() < pageSize ? null : of(headers.getLast()).encode();
+    }
+
+    public String encode() {
+        // Postgres timestamps have microseconds precision
+        var buffer = ByteBuffer.allocate(TOKEN_BYTES)
+                .putLong(ChronoUnit.MICROS.between(Instant.EPOCH, lastMessageAt))
+                .putLong(recipientId.getMostSignificantBits())
+                .putLong(recipientId.getLeastSignificantBits());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decodes the page state token.
+     *
+     * @return the page state, {@link #FIRST} for null or empty token
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static ConversationPageState decode(String pageState) {
+        if (pageState == null || pageState.isEmpty()) {
+            return FIRST;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(pageState);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid pageState: " + e.getMessage());
+        }
+        if (bytes.length != TOKEN_BYTES) {
+            throw new IllegalArgumentException("Invalid pageState: unexpected length " + bytes.length);
+        }
+        var buffer = ByteBuffer.wrap(bytes);
+        return new ConversationPageState(
+                Instant.EPOCH.plus(buffer.getLong(), ChronoUnit.MICROS),
+                new UUID(buffer.getLong(), buffer.getLong())
+        );
+    }
+}
@@ -0,0 +1,131 @@
+package com.sojka.pomeranian.chat.repository;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The {@code conversation_profiles} read model, the recipient display data of the conversation headers.<br>
+ * A snapshot row is rebuilt from {@code profiles}, {@code personal}, {@code user_roles} and {@code osmcities} whenever
+ * the profile changes, so the headers queries join a single table instead of aggregating per returned row.<br>
+ * Birthdates are kept instead of the age, so the snapshot doesn't get stale when nothing changes.<br>
+ * The profiles found removed are remembered for a while, so the headers of a deleted recipient don't rebuild its
+ * snapshot on every read.
+ */
+@Slf4j
+@Repository
+@RequiredArgsConstructor
+public class ConversationProfileRepository {
+
+    private static final String REFRESH = """
+            INSERT INTO conversation_profiles AS cp (
+                profile_id, username, image_192, genders, birthdates, city_name, country, role_id, validation_status,
+                refreshed_at
+            )
+            SELECT
+                p.id,
+                p.username,
+                p.image_192,
+                (SELECT ARRAY_AGG(pe.gender ORDER BY pe.pair_order)
+                    FROM personal pe
+                    WHERE pe.profile_id = p.id),
+                (SELECT ARRAY_AGG(pe.birthdate ORDER BY pe.pair_order)
+                    FROM personal pe
+                    WHERE pe.profile_id = p.id),
+                o.city_name,
+                o.country,
+                (SELECT MAX(ur.role_id)
+                    FROM user_roles ur
+                    WHERE ur.user_id = p.id),
+                p.validation_status,
+                NOW()
+            FROM profiles p
+            LEFT JOIN osmcities o ON o.id = p.city_id
+            WHERE p.id = ANY (?)
+            ON CONFLICT (profile_id) DO UPDATE SET
+                username = EXCLUDED.username,
+                image_192 = EXCLUDED.image_192,
+                genders = EXCLUDED.genders,
+                birthdates = EXCLUDED.birthdates,
+                city_name = EXCLUDED.city_name,
+                country = EXCLUDED.country,
+                role_id = EXCLUDED.role_id,
+                validation_status = EXCLUDED.validation_status,
+                refreshed_at = EXCLUDED.refreshed_at
+            RETURNING cp.profile_id""";
+
+    private static final String DELETE_REMOVED = """
+            DELETE FROM conversation_profiles cp
+            WHERE cp.profile_id = ANY (?)
+              AND NOT EXISTS (SELECT 1 FROM profiles p WHERE p.id = cp.profile_id)""";
+
+    private static final String FIND_PROFILE_IDS = """
+            SELECT id FROM profiles
+            WHERE id > ?
+            ORDER BY id
+            LIMIT ?""";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Cache<UUID, Boolean> removedProfiles = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(Duration.ofMinutes(10))
+            .build();
+
+    /**
+     * Rebuilds the snapshots of the profiles, the snapshots of already removed profiles are deleted.<br>
+     * The profiles recently found removed are skipped.
+     *
+     * @return number of refreshed snapshots
+     */
+    public int refresh(Collection<UUID> profileIds) {
+        log.trace("refresh input: {}", profileIds);
+        UUID[] ids = profileIds.stream()
+                .filter(id -> removedProfiles.getIfPresent(id) == null)
+                .toArray(UUID[]::new);
+        if (ids.length == 0) {
+            return 0;
+        }
+        var refreshed = new HashSet<>(jdbcTemplate.query(
+                REFRESH,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("uuid", ids)),
+                (rs, rowNum) -> rs.getObject(1, UUID.class)
+        ));
+        if (refreshed.size() < ids.length) {
+            jdbcTemplate.update(DELETE_REMOVED, ps -> ps.setArray(1, ps.getConnection().createArrayOf("uuid", ids)));
+            for (UUID id : ids) {
+                if (!refreshed.contains(id)) {
+                    removedProfiles.put(id, Boolean.TRUE);
+                }
+            }
+        }
+        return refreshed.size();
+    }
+
+    /**
+     * Rebuilds the snapshot of the changed profile, even if it was recently found removed.
+     *
+     * @return whether the snapshot was refreshed
+     */
+    public boolean refreshChanged(UUID profileId) {
+        removedProfiles.invalidate(profileId);
+        return refresh(List.of(profileId)) > 0;
+    }
+
+    /**
+     * Returns the profile ids ordered ascending, starting after the given one.
+     *
+     * @param after the last id of the previous page, {@code null} for the first page
+     */
+    public List<UUID> findProfileIds(UUID after, int limit) {
+        return jdbcTemplate.queryForList(FIND_PROFILE_IDS, UUID.class, after == null ? new UUID(0, 0) : after, limit);
+    }
+}
@@ -0,0 +1,110 @@
+package com.sojka.pomeranian.chat.repository;
+
+import com.sojka.pomeranian.chat.model.Conversation;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Types;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * JDBC batch writes of the conversations headers, complements the {@link ConversationsRepository}.
+ */
+@Slf4j
+@Repository
+@RequiredArgsConstructor
+public class ConversationsBatchRepository {
+
+    private static final String UPSERT = """
+            INSERT INTO conversations AS c (
+                user_id, recipient_id, flag, last_message_at, content, content_type, unread_count, is_last_message_from_user
+            ) VALUES (?, ?, 'NORMAL', ?, ?, ?, ?, ?)
+            ON CONFLICT (user_id, recipient_id) DO UPDATE SET
+                unread_count = CASE
+                    WHEN ? THEN EXCLUDED.unread_count
+                    ELSE COALESCE(c.unread_count, 0) + EXCLUDED.unread_count
+                    END,
+                last_message_at = GREATEST(c.last_message_at, EXCLUDED.last_message_at),
+                content = CASE
+                    WHEN c.last_message_at > EXCLUDED.last_message_at THEN c.content
+                    ELSE EXCLUDED.content
+                    END,
+                content_type = CASE
+                    WHEN c.last_message_at > EXCLUDED.last_message_at THEN c.content_type
+                    ELSE EXCLUDED.content_type
+                    END,
+                is_last_message_from_user = CASE
+                    WHEN c.last_message_at > EXCLUDED.last_message_at THEN c.is_last_message_from_user
+                    ELSE EXCLUDED.is_last_message_from_user
+                    END""";
+
+    private static final String RESET_UNREAD = """
+            UPDATE conversations
+            SET unread_count = 0
+            WHERE user_id = ? AND recipient_id = ?""";
+
+    private static final Comparator<HeaderUpdate> HEADER_ORDER = Comparator
+            .comparing((HeaderUpdate update) -> update.id().getUserId())
+            .thenComparing(update -> update.id().getRecipientId());
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Upserts the headers in a single JDBC batch.<br>
+     * A header with {@link HeaderUpdate#resetUnread()} sets the unread count to its increment, otherwise the
+     * increment is added to the stored count.<br>
+     * The rows are written in the order of their ids, so the concurrent batches lock them in the same order.
+     */
+    public void upsertAll(List<HeaderUpdate> updates) {
+        log.trace("upsertAll input: {} headers", updates.size());
+        var ordered = updates.stream().sorted(HEADER_ORDER).toList();
+        jdbcTemplate.batchUpdate(UPSERT, ordered, ordered.size(), (ps, update) -> {
+            ps.setObject(1, update.id().getUserId());
+            ps.setObject(2, update.id().getRecipientId());
+            ps.setObject(3, toTimestamp(update.lastMessageAt()), Types.TIMESTAMP_WITH_TIMEZONE);
+            ps.setString(4, update.content());
+            ps.setString(5, update.contentType());
+            ps.setInt(6, update.unreadIncrement());
+            ps.setBoolean(7, update.isLastMessageFromUser());
+            ps.setBoolean(8, update.resetUnread());
+        });
+    }
+
+    /**
+     * Resets the unread count of the headers in a single JDBC batch.
+     */
+    public void resetUnreadAll(List<Conversation.Id> ids) {
+        log.trace("resetUnreadAll input: {} headers", ids.size());
+        jdbcTemplate.batchUpdate(RESET_UNREAD, ids, ids.size(), (ps, id) -> {
+            ps.setObject(1, id.getUserId());
+            ps.setObject(2, id.getRecipientId());
+        });
+    }
+
+    private static OffsetDateTime toTimestamp(Instant instant) {
+        return instant == null ? null : OffsetDateTime.ofInstant(instant, ZoneOffset.UTC);
+    }
+
+    /**
+     * The coalesced state of a single conversation header.
+     *
+     * @param resetUnread     whether the stored unread count is replaced instead of incremented
+     * @param unreadIncrement unread messages to add (or to set if {@code resetUnread})
+     */
+    public record HeaderUpdate(
+            Conversation.Id id,
+            Instant lastMessageAt,
+            String content,
+            String contentType,
+            boolean isLastMessageFromUser,
+            boolean resetUnread,
+            int unreadIncrement
+    ) {
+    }
+}
@@ -2,6 +2,7 @@ package com.sojka.pomeranian.chat.repository;
 
 import com.sojka.pomeranian.chat.model.Conversation;
 import com.sojka.pomeranian.chat.repository.projection.ConversationProjection;
+import com.sojka.pomeranian.chat.repository.projection.UnreadCountProjection;
 import com.sojka.pomeranian.lib.dto.ConversationFlag;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Modifying;
@@ -10,6 +11,8 @@ import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
@@ -25,6 +28,12 @@ public interface ConversationsRepository extends CrudRepository<Conversation, Co
 
     void deleteAllByIdUserId(UUID userId);
 
+    @Query(value = """
+            SELECT c.recipient_id FROM conversations c
+            WHERE c.user_id = :userId
+              AND c.recipient_id IN (:recipientIds)""", nativeQuery = true)
+    List<UUID> findRecipientIds(UUID userId, Collection<UUID> recipientIds);
+
     @Query(value = """
             SELECT COUNT(*) FROM conversations c
             WHERE c.user_id = :userId
@@ -38,102 +47,107 @@ public interface ConversationsRepository extends CrudRepository<Conversation, Co
               OR c.flag = ?#{#flag2.name()})""", nativeQuery = true)
     Long countAllByIdUserIdAndFlagOrFlag(UUID userId, ConversationFlag flag1, ConversationFlag flag2);
 
+    /**
+     * Recipient display data comes from the {@code conversation_profiles} snapshot, a recipient without the snapshot
+     * yet has {@code null} username, see {@link ConversationProfileRepository#refresh}.<br>
+     * The last login is live data and the block status depends on the user, so they're not part of the snapshot.<br>
+     * Pages are seeked by the {@code (lastMessageAt, recipientId)} of the previous page last header, see
+     * {@link ConversationPageState}, served by the {@code (user_id, last_message_at DESC, recipient_id DESC)} index of
+     * the {@link com.sojka.pomeranian.chat.service.ConversationsSchemaMigration}. The {@code last_message_at} is
+     * NOT NULL, so the row-value comparison doesn't skip any header.
+     */
     @Query(value = """
             SELECT
-                p.id AS recipient_id,
-                p.username AS recipient_username,
-                p.image_192 AS recipient_image192,
+                c.recipient_id,
+                cp.username AS recipient_username,
+                cp.image_192 AS recipient_image192,
                 c.flag,
                 c.last_message_at,
                 c.content,
                 c.content_type,
                 c.unread_count,
                 c.is_last_message_from_user,
-                (SELECT ARRAY_AGG(pe.gender ORDER BY pe.pair_order)
-                    FROM personal pe
-                    WHERE pe.profile_id = p.id
-                ) AS gender,
-                (SELECT ARRAY_AGG(EXTRACT(YEAR FROM AGE(CURRENT_DATE, pe.birthdate))::INTEGER ORDER BY pe.pair_order)
-                    FROM personal pe
-                    WHERE pe.profile_id = p.id
+                cp.genders AS gender,
+                (SELECT ARRAY_AGG(EXTRACT(YEAR FROM AGE(CURRENT_DATE, bd.birthdate))::INTEGER ORDER BY bd.pair_order)
+                    FROM UNNEST(cp.birthdates) WITH ORDINALITY AS bd(birthdate, pair_order)
                 ) AS age,
                 p.last_login_at,
-                o.city_name,
-                o.country,
-                ro.role_id,
+                cp.city_name,
+                cp.country,
+                cp.role_id,
                 CASE
                     WHEN EXISTS (
                         SELECT 1
                         FROM settings_blocked_users b
                         WHERE b.profile_id = :userId
-                          AND b.blocked_user_id = p.id
+                          AND b.blocked_user_id = c.recipient_id
                     ) THEN 1
                     WHEN EXISTS (
                         SELECT 1
                         FROM settings_blocked_users b
-                        WHERE b.profile_id = p.id
+                        WHERE b.profile_id = c.recipient_id
                           AND b.blocked_user_id = :userId
                     ) THEN -1
                     ELSE 0
                     END AS block_status_code,
-                p.validation_status
+                cp.validation_status
             FROM conversations c
-            JOIN profiles p ON c.recipient_id = p.id
-            JOIN user_roles ro ON ro.user_id = p.id
-            LEFT JOIN osmcities o ON o.id = p.city_id
+            JOIN profiles p ON p.id = c.recipient_id
+            LEFT JOIN conversation_profiles cp ON cp.profile_id = c.recipient_id
             WHERE c.user_id = :userId
               AND (c.flag = ?#{#flag1.name()}
               OR c.flag = ?#{#flag2.name()})
-            ORDER BY last_message_at DESC""", nativeQuery = true)
-    List<ConversationProjection> findByUserIdAndFlags(UUID userId, ConversationFlag flag1, ConversationFlag flag2, Pageable pageable);
+              AND (c.last_message_at, c.recipient_id) < (:lastMessageAt, :recipientId)
+            ORDER BY c.last_message_at DESC, c.recipient_id DESC
+            LIMIT :limit""", nativeQuery = true)
+    List<ConversationProjection> findByUserIdAndFlags(UUID userId, ConversationFlag flag1, ConversationFlag flag2,
+                                                      Instant lastMessageAt, UUID recipientId, int limit);
 
     @Query(value = """
             SELECT
-                p.id AS recipient_id,
-                p.username AS recipient_username,
-                p.image_192 AS recipient_image192,
+                c.recipient_id,
+                cp.username AS recipient_username,
+                cp.image_192 AS recipient_image192,
                 c.flag,
                 c.last_message_at,
                 c.content,
                 c.content_type,
                 c.unread_count,
                 c.is_last_message_from_user,
-                (SELECT ARRAY_AGG(pe.gender ORDER BY pe.pair_order)
-                    FROM personal pe
-                    WHERE pe.profile_id = p.id
-                ) AS gender,
-                (SELECT ARRAY_AGG(EXTRACT(YEAR FROM AGE(CURRENT_DATE, pe.birthdate))::INTEGER ORDER BY pe.pair_order)
-                    FROM personal pe
-                    WHERE pe.profile_id = p.id
+                cp.genders AS gender,
+                (SELECT ARRAY_AGG(EXTRACT(YEAR FROM AGE(CURRENT_DATE, bd.birthdate))::INTEGER ORDER BY bd.pair_order)
+                    FROM UNNEST(cp.birthdates) WITH ORDINALITY AS bd(birthdate, pair_order)
                 ) AS age,
                 p.last_login_at,
-                o.city_name,
-                o.country,
-                ro.role_id,
+                cp.city_name,
+                cp.country,
+                cp.role_id,
                 CASE
                     WHEN EXISTS (
                         SELECT 1
                         FROM settings_blocked_users b
                         WHERE b.profile_id = :userId
-                          AND b.blocked_user_id = p.id
+                          AND b.blocked_user_id = c.recipient_id
                     ) THEN 1
                     WHEN EXISTS (
                         SELECT 1
                         FROM settings_blocked_users b
-                        WHERE b.profile_id = p.id
+                        WHERE b.profile_id = c.recipient_id
                           AND b.blocked_user_id = :userId
                     ) THEN -1
                     ELSE 0
                     END AS block_status_code,
-                p.validation_status
+                cp.validation_status
             FROM conversations c
-            JOIN profiles p ON c.recipient_id = p.id
-            JOIN user_roles ro ON ro.user_id = p.id
-            LEFT JOIN osmcities o ON o.id = p.city_id
+            JOIN profiles p ON p.id = c.recipient_id
+            LEFT JOIN conversation_profiles cp ON cp.profile_id = c.recipient_id
             WHERE c.user_id = :userId
               AND c.flag = ?#{#flag.name()}
-            ORDER BY last_message_at DESC""", nativeQuery = true)
-    List<ConversationProjection> findByUserIdAndFlag(UUID userId, ConversationFlag flag, Pageable pageable);
+              AND (c.last_message_at, c.recipient_id) < (:lastMessageAt, :recipientId)
+            ORDER BY c.last_message_at DESC, c.recipient_id DESC
+            LIMIT :limit""", nativeQuery = true)
+    List<ConversationProjection> findByUserIdAndFlag(UUID userId, ConversationFlag flag,
+                                                     Instant lastMessageAt, UUID recipientId, int limit);
 
     @Modifying
     @Transactional
@@ -143,9 +157,69 @@ public interface ConversationsRepository extends CrudRepository<Conversation, Co
             WHERE user_id = :userId AND recipient_id = :recipientId""", nativeQuery = true)
     void updateUnreadCount(UUID userId, UUID recipientId, int unreadCount);
 
+    /**
+     * Upserts both sides of the conversation with a single statement.<br>
+     * The sender row always gets zero unread count, the recipient row is incremented by the
+     * {@code recipientUnreadIncrement} on the server side, or reset if the increment is zero (the recipient has the
+     * chat open). The header content is only replaced by a message newer than the stored one, so out of order
+     * updates don't move the header back.<br>
+     * The rows are always written in the order of the user ids, so the messages the two users send each other at
+     * the same time lock the rows in the same order instead of deadlocking.
+     *
+     * @return number of inserted or updated rows
+     */
+    default int upsertConversations(UUID senderId, UUID recipientId, Instant lastMessageAt, String content,
+                                    String contentType, int recipientUnreadIncrement) {
+        if (senderId.compareTo(recipientId) <= 0) {
+            return upsertConversationRows(senderId, recipientId, lastMessageAt, content, contentType,
+                    0, true, recipientUnreadIncrement);
+        }
+        return upsertConversationRows(recipientId, senderId, lastMessageAt, content, contentType,
+                recipientUnreadIncrement, false, 0);
+    }
+
+    /**
+     * Upserts the {@code firstId} row and then the {@code secondId} row of the conversation.
+     *
+     * @param isFirstSender whether the {@code firstId} user sent the last message
+     */
+    @Modifying
+    @Transactional
+    @Query(value = """
+            INSERT INTO conversations AS c (
+                user_id, recipient_id, flag, last_message_at, content, content_type, unread_count, is_last_message_from_user
+            ) VALUES
+                (:firstId, :secondId, 'NORMAL', :lastMessageAt, :content, :contentType, :firstUnreadCount, :isFirstSender),
+                (:secondId, :firstId, 'NORMAL', :lastMessageAt, :content, :contentType, :secondUnreadCount, NOT :isFirstSender)
+            ON CONFLICT (user_id, recipient_id) DO UPDATE SET
+                unread_count = CASE
+                    WHEN EXCLUDED.unread_count = 0 THEN 0
+                    ELSE COALESCE(c.unread_count, 0) + EXCLUDED.unread_count
+                    END,
+                last_message_at = GREATEST(c.last_message_at, EXCLUDED.last_message_at),
+                content = CASE
+                    WHEN c.last_message_at > EXCLUDED.last_message_at THEN c.content
+                    ELSE EXCLUDED.content
+                    END,
+                content_type = CASE
+                    WHEN c.last_message_at > EXCLUDED.last_message_at THEN c.content_type
+                    ELSE EXCLUDED.content_type
+                    END,
+                is_last_message_from_user = CASE
+                    WHEN c.last_message_at > EXCLUDED.last_message_at THEN c.is_last_message_from_user
+                    ELSE EXCLUDED.is_last_message_from_user
+                    END""", nativeQuery = true)
+    int upsertConversationRows(UUID firstId, UUID secondId, Instant lastMessageAt, String content, String contentType,
+                               int firstUnreadCount, boolean isFirstSender, int secondUnreadCount);
+
     @Query(value = "SELECT SUM(unread_count) FROM conversations WHERE user_id = :userId", nativeQuery = true)
     Long sumUnreadCountByUserId(UUID userId);
 
+    @Query(value = """
+            SELECT recipient_id, unread_count FROM conversations
+            WHERE user_id = :userId AND unread_count > 0""", nativeQuery = true)
+    List<UnreadCountProjection> findUnreadCountsByUserId(UUID userId);
+
     @Query(value = """
             SELECT unread_count FROM conversations
             WHERE user_id = :userId AND recipient_id = :recipientId""", nativeQuery = true)
@@ -153,32 +227,24 @@ public interface ConversationsRepository extends CrudRepository<Conversation, Co
 
     @Query(value = """
             SELECT
-                p.id AS recipient_id,
-                p.username AS recipient_username,
-                p.image_192 AS recipient_image192,
+                c.recipient_id,
+                cp.username AS recipient_username,
+                cp.image_192 AS recipient_image192,
                 c.flag,
                 c.last_message_at,
                 c.content,
                 c.content_type,
                 c.unread_count,
                 c.is_last_message_from_user,
-                (SELECT ARRAY_AGG(pe.gender ORDER BY pe.pair_order)
-                    FROM personal pe
-                    WHERE pe.profile_id = p.id
-                ) AS gender,
-                COALESCE(
-                    (SELECT ur.role_id
-                     FROM user_roles ur
-                     WHERE ur.user_id = p.id
-                     ORDER BY ur.role_id DESC
-                     LIMIT 1),
-                    NULL
-                ) AS role_id
+                cp.genders AS gender,
+                cp.role_id
             FROM conversations c
-            LEFT JOIN profiles p ON p.id = c.recipient_id
+            LEFT JOIN conversation_profiles cp ON cp.profile_id = c.recipient_id
             WHERE c.user_id = :userId
               AND c.unread_count > 0
-            ORDER BY c.last_message_at DESC""", nativeQuery = true)
-    List<ConversationProjection> findNotifications(UUID userId, Pageable pageable);
+              AND (c.last_message_at, c.recipient_id) < (:lastMessageAt, :recipientId)
+            ORDER BY c.last_message_at DESC, c.recipient_id DESC
+            LIMIT :limit""", nativeQuery = true)
+    List<ConversationProjection> findNotifications(UUID userId, Instant lastMessageAt, UUID recipientId, int limit);
 
 }
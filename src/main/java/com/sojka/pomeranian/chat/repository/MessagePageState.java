@@ -0,0 +1,70 @@
+package com.sojka.pomeranian.chat.repository;
+
+import com.sojka.pomeranian.chat.model.Message;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * The keyset page state of the bucketed messages, points at the last message of the previous page.<br>
+ * Serialized as an opaque URL-safe Base64 token, so clients keep passing it back as the {@code pageState}.
+ *
+ * @param bucket    the bucket of the last returned message
+ * @param createdAt the creation time of the last returned message
+ * @param profileId the sender of the last returned message
+ */
+public record MessagePageState(int bucket, Instant createdAt, UUID profileId) {
+
+    private static final int TOKEN_BYTES = Integer.BYTES + Long.BYTES + 2 * Long.BYTES;
+
+    public static MessagePageState of(Message message) {
+        return new MessagePageState(bucketOf(message.getCreatedAt()), message.getCreatedAt(), message.getProfileId());
+    }
+
+    /**
+     * Returns the time bucket of the message, that is the UTC month of its creation as {@code yyyyMM} number.
+     */
+    public static int bucketOf(Instant createdAt) {
+        var date = createdAt.atOffset(ZoneOffset.UTC);
+        return date.getYear() * 100 + date.getMonthValue();
+    }
+
+    public String encode() {
+        var buffer = ByteBuffer.allocate(TOKEN_BYTES)
+                .putInt(bucket)
+                .putLong(createdAt.toEpochMilli())
+                .putLong(profileId.getMostSignificantBits())
+                .putLong(profileId.getLeastSignificantBits());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decodes the page state token.
+     *
+     * @return the page state or null for the first page
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static MessagePageState decode(String pageState) {
+        if (pageState == null || pageState.isEmpty()) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(pageState);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid pageState: " + e.getMessage());
+        }
+        if (bytes.length != TOKEN_BYTES) {
+            throw new IllegalArgumentException("Invalid pageState: unexpected length " + bytes.length);
+        }
+        var buffer = ByteBuffer.wrap(bytes);
+        return new MessagePageState(
+                buffer.getInt(),
+                Instant.ofEpochMilli(buffer.getLong()),
+                new UUID(buffer.getLong(), buffer.getLong())
+        );
+    }
+}
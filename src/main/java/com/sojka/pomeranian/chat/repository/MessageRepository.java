@@ -1,15 +1,18 @@
 package com.sojka.pomeranian.chat.repository;
 
-import com.datastax.oss.driver.api.core.cql.BatchStatement;
-import com.datastax.oss.driver.api.core.cql.BatchType;
-import com.datastax.oss.driver.api.core.cql.SimpleStatementBuilder;
-import com.datastax.oss.driver.api.querybuilder.QueryBuilder;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
 import com.sojka.pomeranian.astra.connection.Connector;
 import com.sojka.pomeranian.astra.dto.ResultsPage;
+import com.sojka.pomeranian.astra.exception.AstraException;
 import com.sojka.pomeranian.astra.repository.AstraPageableRepository;
+import com.sojka.pomeranian.chat.config.ChatConfig;
 import com.sojka.pomeranian.chat.dto.MessageKey;
 import com.sojka.pomeranian.chat.model.Message;
 import com.sojka.pomeranian.chat.util.mapper.MessageMapper;
+import jakarta.annotation.PostConstruct;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -19,13 +22,24 @@ import org.springframework.util.StringUtils;
 
 import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
-import static com.datastax.oss.driver.api.querybuilder.QueryBuilder.literal;
 import static com.sojka.pomeranian.chat.util.Constants.MESSAGES_KEYSPACE;
+import static com.sojka.pomeranian.lib.util.CommonUtils.getRecipientIdFromRoomId;
 import static com.sojka.pomeranian.lib.util.DateTimeUtils.getCurrentInstant;
 import static com.sojka.pomeranian.lib.util.DateTimeUtils.toInstant;
 
@@ -35,35 +49,126 @@ import static com.sojka.pomeranian.lib.util.DateTimeUtils.toInstant;
 public class MessageRepository extends AstraPageableRepository {
 
     private static final String MESSAGES_TABLE = "messages";
+    private static final String ROOM_MESSAGES_TABLE = "room_messages";
+    private static final String ROOM_BUCKETS_TABLE = "room_buckets";
+    private static final String READ_WATERMARKS_TABLE = "read_watermarks";
+    private static final int MAX_KNOWN_ROOMS = 100_000;
+
+    // legacy, room partitioned table
     private static final String deleteAllRoomMessages = "DELETE FROM %s.%s WHERE room_id = ?"
             .formatted(MESSAGES_KEYSPACE, MESSAGES_TABLE);
     private static final String DELETE_MESSAGE = "DELETE FROM %s.%s WHERE room_id = ? and created_at = ? and profile_id = ?"
             .formatted(MESSAGES_KEYSPACE, MESSAGES_TABLE);
     private static final String FIND_MESSAGE = "SELECT * FROM %s.%s WHERE room_id = ? and created_at = ? and profile_id = ?"
             .formatted(MESSAGES_KEYSPACE, MESSAGES_TABLE);
+    private static final String FIND_BY_ROOM_ID = "SELECT * FROM %s.%s WHERE room_id = ?"
+            .formatted(MESSAGES_KEYSPACE, MESSAGES_TABLE);
+    private static final String FIND_ROOM_IDS = "SELECT DISTINCT room_id FROM %s.%s"
+            .formatted(MESSAGES_KEYSPACE, MESSAGES_TABLE);
+    private static final String FIND_FOR_MIGRATION = """
+            SELECT room_id, created_at, profile_id, username, recipient_profile_id, recipient_username, content, \
+            resource_id, resource_type, resource_height, resource_width, thumbnail_id, edited_at, read_at, metadata, \
+            WRITETIME(username) AS username_written, WRITETIME(content) AS content_written, \
+            WRITETIME(edited_at) AS edited_written, WRITETIME(read_at) AS read_written \
+            FROM %s.%s WHERE room_id = ?""".formatted(MESSAGES_KEYSPACE, MESSAGES_TABLE);
+    private static final String INSERT = """
+            INSERT INTO %s.%s (
+               room_id, created_at, profile_id, username, recipient_profile_id, recipient_username, content,
+               resource_id, resource_type, resource_height, resource_width, thumbnail_id, edited_at, read_at, metadata
+            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)""".formatted(MESSAGES_KEYSPACE, MESSAGES_TABLE);
+    private static final String UPDATE = """
+            UPDATE %s.%s SET \
+            username = ?, recipient_profile_id = ?, recipient_username = ?, content = ?, \
+            resource_id = ?, resource_type = ?, resource_height = ?, resource_width = ?, \
+            edited_at = ?, metadata = ? \
+            WHERE room_id = ? AND created_at = ? AND profile_id = ? \
+            IF EXISTS""".formatted(MESSAGES_KEYSPACE, MESSAGES_TABLE);
+
+    // bucketed table
+    static final String BUCKET_INSERT = """
+            INSERT INTO %s.%s (
+               room_id, bucket, created_at, profile_id, username, recipient_profile_id, recipient_username, content,
+               resource_id, resource_type, resource_height, resource_width, thumbnail_id, edited_at, read_at, metadata
+            ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)""".formatted(MESSAGES_KEYSPACE, ROOM_MESSAGES_TABLE);
+    private static final String BUCKET_MIGRATE = BUCKET_INSERT + " USING TIMESTAMP ?";
+    private static final String BUCKET_FIND_MESSAGE = """
+            SELECT * FROM %s.%s \
+            WHERE room_id = ? AND bucket = ? AND created_at = ? AND profile_id = ?""".formatted(MESSAGES_KEYSPACE, ROOM_MESSAGES_TABLE);
+    private static final String BUCKET_FIND_PAGE = "SELECT * FROM %s.%s WHERE room_id = ? AND bucket = ? LIMIT ?"
+            .formatted(MESSAGES_KEYSPACE, ROOM_MESSAGES_TABLE);
+    private static final String BUCKET_FIND_PAGE_BEFORE = """
+            SELECT * FROM %s.%s \
+            WHERE room_id = ? AND bucket = ? AND created_at < ? LIMIT ?""".formatted(MESSAGES_KEYSPACE, ROOM_MESSAGES_TABLE);
+    private static final String BUCKET_FIND_PAGE_SAME_TIME = """
+            SELECT * FROM %s.%s \
+            WHERE room_id = ? AND bucket = ? AND created_at = ? AND profile_id > ? LIMIT ?""".formatted(MESSAGES_KEYSPACE, ROOM_MESSAGES_TABLE);
+    private static final String BUCKET_UPDATE = """
+            UPDATE %s.%s SET \
+            username = ?, recipient_profile_id = ?, recipient_username = ?, content = ?, \
+            resource_id = ?, resource_type = ?, resource_height = ?, resource_width = ?, \
+            edited_at = ?, metadata = ? \
+            WHERE room_id = ? AND bucket = ? AND created_at = ? AND profile_id = ? \
+            IF EXISTS""".formatted(MESSAGES_KEYSPACE, ROOM_MESSAGES_TABLE);
+    private static final String BUCKET_DELETE_MESSAGE = """
+            DELETE FROM %s.%s \
+            WHERE room_id = ? AND bucket = ? AND created_at = ? AND profile_id = ?""".formatted(MESSAGES_KEYSPACE, ROOM_MESSAGES_TABLE);
+    private static final String BUCKET_DELETE_ALL = "DELETE FROM %s.%s WHERE room_id = ? AND bucket = ?"
+            .formatted(MESSAGES_KEYSPACE, ROOM_MESSAGES_TABLE);
+    static final String INSERT_ROOM_BUCKET = "INSERT INTO %s.%s (room_id, bucket) VALUES (?, ?)"
+            .formatted(MESSAGES_KEYSPACE, ROOM_BUCKETS_TABLE);
+    private static final String FIND_LATEST_BUCKET = "SELECT bucket FROM %s.%s WHERE room_id = ? LIMIT 1"
+            .formatted(MESSAGES_KEYSPACE, ROOM_BUCKETS_TABLE);
+    private static final String FIND_PREVIOUS_BUCKET = "SELECT bucket FROM %s.%s WHERE room_id = ? AND bucket < ? LIMIT 1"
+            .formatted(MESSAGES_KEYSPACE, ROOM_BUCKETS_TABLE);
+    private static final String FIND_ROOM_BUCKETS = "SELECT bucket FROM %s.%s WHERE room_id = ?"
+            .formatted(MESSAGES_KEYSPACE, ROOM_BUCKETS_TABLE);
+    private static final String DELETE_ROOM_BUCKETS = "DELETE FROM %s.%s WHERE room_id = ?"
+            .formatted(MESSAGES_KEYSPACE, ROOM_BUCKETS_TABLE);
+
+    // read watermarks, written with the read_up_to as the write time, so an older watermark never overrides a newer
+    private static final String UPSERT_READ_WATERMARK = """
+            INSERT INTO %s.%s (room_id, reader_id, read_up_to, read_at) VALUES (?, ?, ?, ?) \
+            USING TIMESTAMP ?""".formatted(MESSAGES_KEYSPACE, READ_WATERMARKS_TABLE);
+    private static final String FIND_READ_WATERMARKS = "SELECT reader_id, read_up_to, read_at FROM %s.%s WHERE room_id = ?"
+            .formatted(MESSAGES_KEYSPACE, READ_WATERMARKS_TABLE);
+    private static final String DELETE_READ_WATERMARKS = "DELETE FROM %s.%s WHERE room_id = ?"
+            .formatted(MESSAGES_KEYSPACE, READ_WATERMARKS_TABLE);
 
     private final Connector connector;
+    private final PreparedStatementRegistry statements;
+    private final ChatConfig config;
+    /**
+     * The latest bucket registered per room by this instance, saves the {@code room_buckets} write for every message.
+     */
+    private final Map<String, Integer> knownBuckets = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void registerStatements() {
+        statements.register(FIND_BY_ROOM_ID, FIND_ROOM_IDS, FIND_FOR_MIGRATION, INSERT, UPDATE, deleteAllRoomMessages, DELETE_MESSAGE, FIND_MESSAGE);
+        statements.register(BUCKET_INSERT, BUCKET_FIND_MESSAGE, BUCKET_FIND_PAGE, BUCKET_FIND_PAGE_BEFORE,
+                BUCKET_FIND_PAGE_SAME_TIME, BUCKET_UPDATE, BUCKET_DELETE_MESSAGE, BUCKET_DELETE_ALL, BUCKET_MIGRATE,
+                INSERT_ROOM_BUCKET, FIND_LATEST_BUCKET, FIND_PREVIOUS_BUCKET, FIND_ROOM_BUCKETS, DELETE_ROOM_BUCKETS);
+        statements.register(UPSERT_READ_WATERMARK, FIND_READ_WATERMARKS, DELETE_READ_WATERMARKS);
+    }
 
     @Override
     public Logger getLogger() {
         return log;
     }
 
+    /**
+     * Returns the room messages, the latest first.<br>
+     * With the bucketed reads the page state is a keyset token of the last returned message and the pages continue
+     * transparently to the older buckets. The tokens of the legacy and bucketed reads are not interchangeable.
+     */
     public ResultsPage<Message> findByRoomId(String roomId, String pageState, int pageSize) {
         var id = new RoomIdState(roomId, pageState, pageSize);
         log.trace("findByRoomId input: {}", id);
         return handle(() -> {
-            var select = QueryBuilder.selectFrom(MESSAGES_KEYSPACE, MESSAGES_TABLE)
-                    .all()
-                    .whereColumn("room_id")
-                    .isEqualTo(literal(roomId));
-
-            ByteBuffer pagingStateBuffer = decodePageState(pageState);
-            var statement = select.build().setPageSize(pageSize).setPagingState(pagingStateBuffer);
-
-            var resultSet = connector.getSession().execute(statement);
-
-            var result = resultsPage(resultSet, pageSize, MessageMapper::fromAstraRow);
+            var result = config.getMessages().isBucketedReads()
+                    ? findBucketed(roomId, MessagePageState.decode(pageState), pageSize)
+                    : findLegacy(roomId, pageState, pageSize);
+            applyReadWatermarks(roomId, result.getResults());
 
             log.trace(String.format("Fetched %d messages for room_id=%s", result.getResults().size(), roomId));
 
@@ -71,79 +176,270 @@ public class MessageRepository extends AstraPageableRepository {
         }, "findByRoomId", id);
     }
 
+    private ResultsPage<Message> findLegacy(String roomId, String pageState, int pageSize) {
+        ByteBuffer pagingStateBuffer = decodePageState(pageState);
+        var statement = statements.bind(FIND_BY_ROOM_ID, roomId)
+                .setPageSize(pageSize)
+                .setPagingState(pagingStateBuffer);
+
+        var resultSet = connector.getSession().execute(statement);
+
+        return resultsPage(resultSet, pageSize, MessageMapper::fromAstraRow);
+    }
+
+    private ResultsPage<Message> findBucketed(String roomId, MessagePageState state, int pageSize) {
+        var session = connector.getSession();
+        List<Message> results = new ArrayList<>(pageSize);
+
+        Integer bucket;
+        if (state == null) {
+            bucket = findBucket(session.execute(statements.bind(FIND_LATEST_BUCKET, roomId)));
+        } else {
+            bucket = state.bucket();
+            var sameTime = statements.bind(BUCKET_FIND_PAGE_SAME_TIME,
+                    roomId, bucket, state.createdAt(), state.profileId(), pageSize);
+            session.execute(sameTime).forEach(row -> results.add(MessageMapper.fromAstraRow(row)));
+            if (results.size() < pageSize) {
+                var before = statements.bind(BUCKET_FIND_PAGE_BEFORE,
+                        roomId, bucket, state.createdAt(), pageSize - results.size());
+                session.execute(before).forEach(row -> results.add(MessageMapper.fromAstraRow(row)));
+            }
+            if (results.size() < pageSize) {
+                bucket = findBucket(session.execute(statements.bind(FIND_PREVIOUS_BUCKET, roomId, bucket)));
+            }
+        }
+
+        while (bucket != null && results.size() < pageSize) {
+            var page = statements.bind(BUCKET_FIND_PAGE, roomId, bucket, pageSize - results.size());
+            session.execute(page).forEach(row -> results.add(MessageMapper.fromAstraRow(row)));
+            if (results.size() < pageSize) {
+                bucket = findBucket(session.execute(statements.bind(FIND_PREVIOUS_BUCKET, roomId, bucket)));
+            }
+        }
+
+        var nextPageState = results.size() == pageSize ? MessagePageState.of(results.getLast()).encode() : null;
+        return new ResultsPage<>(results, nextPageState);
+    }
+
+    /**
+     * Sets the {@code read_at} of the unread messages covered by the read watermark of their recipient.
+     */
+    private void applyReadWatermarks(String roomId, List<Message> messages) {
+        if (messages.stream().allMatch(message -> message.getReadAt() != null)) {
+            return;
+        }
+        Map<UUID, ReadWatermark> watermarks = new HashMap<>(2);
+        for (Row row : connector.getSession().execute(statements.bind(FIND_READ_WATERMARKS, roomId))) {
+            watermarks.put(row.getUuid("reader_id"),
+                    new ReadWatermark(row.getInstant("read_up_to"), row.getInstant("read_at")));
+        }
+        for (Message message : messages) {
+            var watermark = watermarks.get(message.getRecipientProfileId());
+            if (message.getReadAt() == null && watermark != null && !message.getCreatedAt().isAfter(watermark.readUpTo())) {
+                message.setReadAt(watermark.readAt());
+            }
+        }
+    }
+
+    private record ReadWatermark(Instant readUpTo, Instant readAt) {
+    }
+
+    private static Integer findBucket(ResultSet resultSet) {
+        var row = resultSet.one();
+        return row == null ? null : row.getInt("bucket");
+    }
+
     public record RoomIdState(String roomId, String pageState, int pageSize) {
     }
 
     /**
-     * Saves the message and updates conversation rows for both users.
+     * Saves the message to its bucket, registering the bucket of the room if it's new.
      */
     public Message save(@Valid Message message) {
         log.trace("save input: {}", message);
-
-        if (!StringUtils.hasText(message.getContent()) && message.getResourceId() == null) {
-            throw new IllegalArgumentException("No content or resource in the message: " + message);
-        }
+        validateContent(message);
 
         return handle(() -> {
-            // Insert into messages.messages todo: refactor to plain text query
-            var messageInsert = QueryBuilder.insertInto(MESSAGES_KEYSPACE, MESSAGES_TABLE)
-                    .value("room_id", literal(message.getRoomId()))
-                    .value("created_at", literal(message.getCreatedAt()))
-                    .value("profile_id", literal(message.getProfileId()))
-                    .value("username", literal(message.getUsername()))
-                    .value("recipient_profile_id", literal(message.getRecipientProfileId()))
-                    .value("recipient_username", literal(message.getRecipientUsername()))
-                    .value("content", literal(message.getContent()))
-                    .value("resource_id", literal(message.getResourceId()))
-                    .value("resource_type", literal(message.getResourceType()))
-                    .value("resource_height", literal(message.getResourceHeight()))
-                    .value("resource_width", literal(message.getResourceWidth()))
-                    .value("edited_at", literal(message.getEditedAt()))
-                    .value("read_at", literal(message.getReadAt()))
-                    .value("metadata", literal(message.getMetadata()));
-
             var session = connector.getSession();
-            session.execute(messageInsert.build());
+            int bucket = MessagePageState.bucketOf(message.getCreatedAt());
+            boolean newBucket = isNewBucket(message.getRoomId(), bucket);
+            if (newBucket) {
+                session.execute(statements.bind(INSERT_ROOM_BUCKET, message.getRoomId(), bucket));
+            }
+            session.execute(bindInsert(BUCKET_INSERT, message, bucket));
+            if (config.getMessages().isLegacyWrites()) {
+                session.execute(bindInsert(INSERT, message, null));
+            }
+            if (newBucket) {
+                rememberBucket(message.getRoomId(), bucket);
+            }
             log.trace("Saved message: {}", new MessageKey(message));
             return message;
         }, "save", message);
     }
 
+    /**
+     * Non-blocking variant of the {@link #save(Message)}.<br>
+     * The returned stage completes on the driver I/O thread once Astra acknowledges the write, so dependent stages
+     * doing any blocking work should run on their own executor.
+     */
+    public CompletionStage<Message> saveAsync(@Valid Message message) {
+        log.trace("saveAsync input: {}", message);
+        validateContent(message);
+
+        try {
+            var session = connector.getSession();
+            int bucket = MessagePageState.bucketOf(message.getCreatedAt());
+            boolean newBucket = isNewBucket(message.getRoomId(), bucket);
+
+            List<CompletableFuture<AsyncResultSet>> writes = new ArrayList<>(3);
+            if (newBucket) {
+                writes.add(session.executeAsync(statements.bind(INSERT_ROOM_BUCKET, message.getRoomId(), bucket))
+                        .toCompletableFuture());
+            }
+            writes.add(session.executeAsync(bindInsert(BUCKET_INSERT, message, bucket)).toCompletableFuture());
+            if (config.getMessages().isLegacyWrites()) {
+                writes.add(session.executeAsync(bindInsert(INSERT, message, null)).toCompletableFuture());
+            }
+
+            return CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new))
+                    .handle((ignored, e) -> {
+                        if (e != null) {
+                            throw new AstraException("Failed to execute saveAsync, for: " + message, e);
+                        }
+                        if (newBucket) {
+                            rememberBucket(message.getRoomId(), bucket);
+                        }
+                        log.trace("Saved message: {}", new MessageKey(message));
+                        return message;
+                    });
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(new AstraException("Failed to execute saveAsync, for: " + message, e));
+        }
+    }
+
+    /**
+     * Returns a page of the room ids stored in the legacy, room partitioned table.
+     */
+    public ResultsPage<String> findLegacyRoomIds(String pageState, int pageSize) {
+        log.trace("findLegacyRoomIds input: pageState={}, pageSize={}", pageState, pageSize);
+        return handle(() -> {
+            var statement = statements.bind(FIND_ROOM_IDS)
+                    .setPageSize(pageSize)
+                    .setPagingState(decodePageState(pageState));
+
+            var resultSet = connector.getSession().execute(statement);
+
+            return resultsPage(resultSet, pageSize, row -> row.getString("room_id"));
+        }, "findLegacyRoomIds", pageState);
+    }
+
+    /**
+     * Copies the room messages from the legacy table to the bucketed one.<br>
+     * The copies keep the latest write time of the source row, so they never override the changes written to the
+     * bucketed table in the meantime, and running the migration again is idempotent.
+     *
+     * @return the number of copied messages
+     */
+    public int migrateRoom(String roomId) {
+        log.trace("migrateRoom input: roomId={}", roomId);
+        return handle(() -> {
+            var session = connector.getSession();
+            Set<Integer> buckets = new HashSet<>();
+            int migrated = 0;
+            for (Row row : session.execute(statements.bind(FIND_FOR_MIGRATION, roomId))) {
+                var message = MessageMapper.fromAstraRow(row);
+                int bucket = MessagePageState.bucketOf(message.getCreatedAt());
+                if (buckets.add(bucket)) {
+                    session.execute(statements.bind(INSERT_ROOM_BUCKET, roomId, bucket));
+                }
+                var values = new ArrayList<>(insertValues(message, bucket));
+                values.add(Stream.of("username_written", "content_written", "edited_written", "read_written")
+                        .filter(column -> !row.isNull(column))
+                        .mapToLong(row::getLong)
+                        .max()
+                        .orElseThrow());
+                session.execute(statements.bind(BUCKET_MIGRATE, values.toArray()));
+                migrated++;
+            }
+            log.debug("Migrated {} messages of room_id={} to {} buckets", migrated, roomId, buckets.size());
+            return migrated;
+        }, "migrateRoom", roomId);
+    }
+
+    private boolean isNewBucket(String roomId, int bucket) {
+        return !Integer.valueOf(bucket).equals(knownBuckets.get(roomId));
+    }
+
+    private void rememberBucket(String roomId, int bucket) {
+        if (knownBuckets.size() >= MAX_KNOWN_ROOMS) {
+            knownBuckets.clear();
+        }
+        knownBuckets.put(roomId, bucket);
+    }
+
+    private void validateContent(Message message) {
+        if (!StringUtils.hasText(message.getContent()) && message.getResourceId() == null) {
+            throw new IllegalArgumentException("No content or resource in the message: " + message);
+        }
+    }
+
+    private BoundStatement bindInsert(String query, Message message, Integer bucket) {
+        return statements.bind(query, insertValues(message, bucket).toArray());
+    }
+
+    /**
+     * Returns the message insert values, the {@code bucket} is skipped for the legacy table.
+     */
+    private static List<Object> insertValues(Message message, Integer bucket) {
+        List<Object> values = new ArrayList<>(17);
+        values.add(message.getRoomId());
+        if (bucket != null) {
+            values.add(bucket);
+        }
+        values.addAll(Arrays.asList(
+                message.getCreatedAt(), message.getProfileId(), message.getUsername(),
+                message.getRecipientProfileId(), message.getRecipientUsername(), message.getContent(),
+                message.getResourceId(), message.getResourceType(), message.getResourceHeight(),
+                message.getResourceWidth(), message.getThumbnailId(), message.getEditedAt(), message.getReadAt(),
+                message.getMetadata()));
+        return values;
+    }
+
+    /**
+     * Moves the read watermark of the room recipient up to the latest of the key messages, all the recipient messages
+     * up to it are read since then.<br>
+     * The watermark is a single write without a read-before-write, it's monotonic thanks to its write time.
+     */
     public Instant markRead(MessageKey key) {
         log.trace("markRead input: {}", key);
         return handle(() -> {
             var readTime = getCurrentInstant();
-            var update = key.createdAt().stream()
-                    // todo: to plain text query
-                    .map(k -> QueryBuilder.update(MESSAGES_KEYSPACE, MESSAGES_TABLE)
-                            .setColumn("read_at", literal(readTime))
-                            .whereColumn("room_id").isEqualTo(literal(key.roomId()))
-                            .whereColumn("created_at").isEqualTo(literal(k))
-                            .whereColumn("profile_id").isEqualTo(literal(key.profileId()))
-                            .ifExists()
-                            .build())
-                    .toList();
-
-            var statement = BatchStatement.builder(BatchType.LOGGED)
-                    .addStatements(new ArrayList<>(update))
-                    .build();
+            var readUpTo = Collections.max(key.createdAt());
+            var readerId = getRecipientIdFromRoomId(key.roomId(), key.profileId());
 
-            var session = connector.getSession();
-            var result = session.execute(statement);
-            if (!result.wasApplied()) {
-                log.warn("The mark-read not applied for {}", key);
-            }
+            connector.getSession().execute(statements.bind(UPSERT_READ_WATERMARK,
+                    key.roomId(), readerId, readUpTo, readTime, ChronoUnit.MICROS.between(Instant.EPOCH, readUpTo)));
             log.trace("Marked messages as read: {}, read_at={}", key, readTime);
 
             return readTime;
         }, "markRead", key);
     }
 
+    /**
+     * Deletes all the room messages, from every bucket and the legacy table.
+     */
     public boolean deleteRoom(String roomId) {
         log.trace("deleteRoom input: roomId={}", roomId);
         return handle(() -> {
-            var statement = new SimpleStatementBuilder(deleteAllRoomMessages).addPositionalValue(roomId).build();
-            connector.getSession().execute(statement);
+            var session = connector.getSession();
+            for (Row row : session.execute(statements.bind(FIND_ROOM_BUCKETS, roomId))) {
+                session.execute(statements.bind(BUCKET_DELETE_ALL, roomId, row.getInt("bucket")));
+            }
+            session.execute(statements.bind(DELETE_ROOM_BUCKETS, roomId));
+            session.execute(statements.bind(DELETE_READ_WATERMARKS, roomId));
+            session.execute(statements.bind(deleteAllRoomMessages, roomId));
+            knownBuckets.remove(roomId);
             return true;
         }, "purgeMessages", roomId);
     }
@@ -151,12 +447,13 @@ public class MessageRepository extends AstraPageableRepository {
     public void delete(String roomId, String createdAt, UUID profileId) {
         log.trace("delete input: roomId={}, createdAt={}, profileId={}", roomId, createdAt, profileId);
         handle(() -> {
-            var statement = new SimpleStatementBuilder(DELETE_MESSAGE)
-                    .addPositionalValue(roomId)
-                    .addPositionalValue(toInstant(createdAt))
-                    .addPositionalValue(profileId)
-                    .build();
-            connector.getSession().execute(statement);
+            var session = connector.getSession();
+            var created = toInstant(createdAt);
+            session.execute(statements.bind(BUCKET_DELETE_MESSAGE,
+                    roomId, MessagePageState.bucketOf(created), created, profileId));
+            if (config.getMessages().isLegacyWrites()) {
+                session.execute(statements.bind(DELETE_MESSAGE, roomId, created, profileId));
+            }
             return true;
         }, "delete", List.of(roomId, createdAt, profileId));
     }
@@ -165,15 +462,16 @@ public class MessageRepository extends AstraPageableRepository {
         var id = new IdState(roomId, createdAt, profileId);
         log.trace("findById input: {}", id);
         return handle(() -> {
-            var statement = new SimpleStatementBuilder(FIND_MESSAGE)
-                    .addPositionalValue(roomId)
-                    .addPositionalValue(toInstant(createdAt))
-                    .addPositionalValue(profileId)
-                    .build();
+            var created = toInstant(createdAt);
+            var statement = config.getMessages().isBucketedReads()
+                    ? statements.bind(BUCKET_FIND_MESSAGE, roomId, MessagePageState.bucketOf(created), created, profileId)
+                    : statements.bind(FIND_MESSAGE, roomId, created, profileId);
 
             var resultSet = connector.getSession().execute(statement);
 
-            return Optional.ofNullable(resultSet.one()).map(MessageMapper::fromAstraRow);
+            var message = Optional.ofNullable(resultSet.one()).map(MessageMapper::fromAstraRow);
+            message.ifPresent(m -> applyReadWatermarks(roomId, List.of(m)));
+            return message;
         }, "findById", id);
     }
 
@@ -181,32 +479,26 @@ public class MessageRepository extends AstraPageableRepository {
     }
 
     /**
-     * Saves the message and updates conversation rows for both users.
+     * Updates the message content.
      */
     public Message update(@Valid Message message) {
         log.trace("update input: {}", message);
 
         return handle(() -> {
-            // Insert into messages.messages todo: refactor to plain text query
-            var messageUpdate = QueryBuilder.update(MESSAGES_KEYSPACE, MESSAGES_TABLE)
-                    .setColumn("username", literal(message.getUsername()))
-                    .setColumn("recipient_profile_id", literal(message.getRecipientProfileId()))
-                    .setColumn("recipient_username", literal(message.getRecipientUsername()))
-                    .setColumn("content", literal(message.getContent()))
-                    .setColumn("resource_id", literal(message.getResourceId()))
-                    .setColumn("resource_type", literal(message.getResourceType()))
-                    .setColumn("resource_height", literal(message.getResourceHeight()))
-                    .setColumn("resource_width", literal(message.getResourceWidth()))
-                    .setColumn("edited_at", literal(message.getEditedAt()))
-                    //.setColumn("read_at", literal(message.getReadAt()))
-                    .setColumn("metadata", literal(message.getMetadata()))
-                    .whereColumn("room_id").isEqualTo(literal(message.getRoomId()))
-                    .whereColumn("created_at").isEqualTo(literal(message.getCreatedAt()))
-                    .whereColumn("profile_id").isEqualTo(literal(message.getProfileId()))
-                    .ifExists();
-
             var session = connector.getSession();
-            session.execute(messageUpdate.build());
+            session.execute(statements.bind(BUCKET_UPDATE,
+                    message.getUsername(), message.getRecipientProfileId(), message.getRecipientUsername(),
+                    message.getContent(), message.getResourceId(), message.getResourceType(),
+                    message.getResourceHeight(), message.getResourceWidth(), message.getEditedAt(),
+                    message.getMetadata(), message.getRoomId(), MessagePageState.bucketOf(message.getCreatedAt()),
+                    message.getCreatedAt(), message.getProfileId()));
+            if (config.getMessages().isLegacyWrites()) {
+                session.execute(statements.bind(UPDATE,
+                        message.getUsername(), message.getRecipientProfileId(), message.getRecipientUsername(),
+                        message.getContent(), message.getResourceId(), message.getResourceType(),
+                        message.getResourceHeight(), message.getResourceWidth(), message.getEditedAt(),
+                        message.getMetadata(), message.getRoomId(), message.getCreatedAt(), message.getProfileId()));
+            }
             log.trace("Updated message: {}", new MessageKey(message));
             return message;
         }, "update", message);
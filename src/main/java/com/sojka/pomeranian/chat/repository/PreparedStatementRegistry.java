@@ -0,0 +1,106 @@
+package com.sojka.pomeranian.chat.repository;
+
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.sojka.pomeranian.astra.connection.Connector;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared registry of the CQL prepared statements used by the Astra repositories.<br>
+ * Repositories register their queries on construction and the registry prepares all of them once the application
+ * is ready, so the hot paths only bind values into an already prepared statement instead of sending the query text
+ * to be parsed on every call.<br>
+ * A query registered after the startup is prepared on its first use.
+ */
+@Slf4j
+@Component
+public class PreparedStatementRegistry {
+
+    private final Connector connector;
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    private final Map<String, PreparedStatement> statements = new ConcurrentHashMap<>();
+    private final Counter preparedCounter;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    public PreparedStatementRegistry(Connector connector, MeterRegistry meterRegistry) {
+        this.connector = connector;
+        this.preparedCounter = Counter.builder("pomeranian.astra.statements.prepared")
+                .description("Number of CQL statements prepared on the Astra session")
+                .register(meterRegistry);
+        this.hitCounter = Counter.builder("pomeranian.astra.statements.cache")
+                .description("Prepared statement lookups")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("pomeranian.astra.statements.cache")
+                .description("Prepared statement lookups")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("pomeranian.astra.statements.size", statements, Map::size)
+                .description("Number of cached prepared statements")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Registers queries to be prepared at the application startup.
+     */
+    public void register(String... queries) {
+        registered.addAll(List.of(queries));
+    }
+
+    /**
+     * Prepares every registered query, each on its own so one failure doesn't skip the rest.<br>
+     * Fails the startup once all the queries were attempted if any of them couldn't be prepared.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void prepareAll() {
+        int failed = 0;
+        for (String query : registered) {
+            try {
+                statements.computeIfAbsent(query, this::prepare);
+            } catch (Exception e) {
+                failed++;
+                log.error("Failed to prepare statement: {}", query, e);
+            }
+        }
+        if (failed > 0) {
+            throw new IllegalStateException("Failed to prepare %d of %d CQL statements".formatted(failed, registered.size()));
+        }
+        log.info("Prepared {} CQL statements", statements.size());
+    }
+
+    /**
+     * Returns the prepared statement of the query, preparing it if it's not cached yet.
+     */
+    public PreparedStatement get(String query) {
+        var statement = statements.get(query);
+        if (statement != null) {
+            hitCounter.increment();
+            return statement;
+        }
+        missCounter.increment();
+        return statements.computeIfAbsent(query, this::prepare);
+    }
+
+    public BoundStatement bind(String query, Object... values) {
+        return get(query).bind(values);
+    }
+
+    private PreparedStatement prepare(String query) {
+        var statement = connector.getSession().prepare(query);
+        preparedCounter.increment();
+        log.debug("Prepared statement: {}", query);
+        return statement;
+    }
+}
@@ -0,0 +1,57 @@
+package com.sojka.pomeranian.chat.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Types;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JDBC batch writes of the {@code profiles} login state, complements the
+ * {@link com.sojka.pomeranian.security.repository.UserRepository#updateLastLoginAtAndIsOnline}.
+ */
+@Slf4j
+@Repository
+@RequiredArgsConstructor
+public class ProfilesBatchRepository {
+
+    private static final String UPDATE_LOGIN = """
+            UPDATE profiles
+            SET last_login_at = ?, is_online = ?
+            WHERE id = ?
+              AND (last_login_at IS NULL OR last_login_at <= ?)""";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Updates the login state of the users in a single JDBC batch.<br>
+     * A state older than the stored {@code last_login_at} is skipped, so a late flush of another instance can't
+     * overwrite a newer one.
+     */
+    public void updateLoginAll(List<LoginUpdate> updates) {
+        log.trace("updateLoginAll input: {} users", updates.size());
+        jdbcTemplate.batchUpdate(UPDATE_LOGIN, updates, updates.size(), (ps, update) -> {
+            var lastLoginAt = OffsetDateTime.ofInstant(update.lastLoginAt(), ZoneOffset.UTC);
+            ps.setObject(1, lastLoginAt, Types.TIMESTAMP_WITH_TIMEZONE);
+            ps.setBoolean(2, update.isOnline());
+            ps.setObject(3, update.userId());
+            ps.setObject(4, lastLoginAt, Types.TIMESTAMP_WITH_TIMEZONE);
+        });
+    }
+
+    /**
+     * The latest login state of a single user.
+     */
+    public record LoginUpdate(
+            UUID userId,
+            Instant lastLoginAt,
+            boolean isOnline
+    ) {
+    }
+}
@@ -0,0 +1,10 @@
+package com.sojka.pomeranian.chat.repository.projection;
+
+import java.util.UUID;
+
+public interface UnreadCountProjection {
+
+    UUID getRecipientId();
+
+    Integer getUnreadCount();
+}
@@ -1,6 +1,7 @@
 package com.sojka.pomeranian.chat.service;
 
 import com.sojka.pomeranian.astra.dto.ResultsPage;
+import com.sojka.pomeranian.chat.config.ChatConfig;
 import com.sojka.pomeranian.chat.dto.ChatMessage;
 import com.sojka.pomeranian.chat.dto.ChatMessagePersisted;
 import com.sojka.pomeranian.chat.dto.ChatResponse;
@@ -9,9 +10,16 @@ import com.sojka.pomeranian.chat.dto.MessageKey;
 import com.sojka.pomeranian.chat.dto.MessageType;
 import com.sojka.pomeranian.chat.model.Conversation;
 import com.sojka.pomeranian.chat.model.Message;
+import com.sojka.pomeranian.chat.repository.ConversationPageState;
+import com.sojka.pomeranian.chat.repository.ConversationProfileRepository;
+import com.sojka.pomeranian.chat.repository.ConversationsBatchRepository.HeaderUpdate;
 import com.sojka.pomeranian.chat.repository.ConversationsRepository;
+import com.sojka.pomeranian.chat.repository.MessagePageState;
 import com.sojka.pomeranian.chat.repository.MessageRepository;
 import com.sojka.pomeranian.chat.repository.projection.ConversationProjection;
+import com.sojka.pomeranian.chat.service.cache.RoomMessageCache;
+import com.sojka.pomeranian.chat.service.cache.UnreadCounter;
+import com.sojka.pomeranian.chat.util.StripedExecutor;
 import com.sojka.pomeranian.chat.util.mapper.MessageMapper;
 import com.sojka.pomeranian.chat.util.mapper.NotificationMapper;
 import com.sojka.pomeranian.lib.dto.ConversationFlag;
@@ -24,6 +32,7 @@ import com.sojka.pomeranian.security.repository.UserRepository;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
@@ -32,17 +41,24 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
+import static com.sojka.pomeranian.chat.config.AsyncConfig.MESSAGE_PIPELINE_EXECUTOR;
 import static com.sojka.pomeranian.chat.dto.MessageType.REVALIDATE;
 import static com.sojka.pomeranian.chat.util.Constants.DM_DESTINATION;
 import static com.sojka.pomeranian.lib.dto.ConversationFlag.NORMAL;
 import static com.sojka.pomeranian.lib.dto.ConversationFlag.STARRED;
 import static com.sojka.pomeranian.lib.util.CommonUtils.generateRoomId;
+import static com.sojka.pomeranian.lib.util.CommonUtils.getNameOrNull;
 import static com.sojka.pomeranian.lib.util.CommonUtils.getRecipientIdFromRoomId;
 import static com.sojka.pomeranian.lib.util.CommonUtils.noSuchElementException;
 import static com.sojka.pomeranian.lib.util.DateTimeUtils.getCurrentInstant;
@@ -55,99 +71,122 @@ import static com.sojka.pomeranian.lib.util.PaginationUtils.pageStateToPaginatio
 @RequiredArgsConstructor
 public class ChatService {
 
+    private static final int NOTIFICATIONS_PAGE_SIZE = 10;
+
     @Value("${pomeranian.chat.purge.batch-size}")
     private int purgeBatchSize;
 
     private final UserRepository userRepository;
     private final MessageRepository messageRepository;
     private final ConversationsRepository conversationsRepository;
+    private final ConversationProfileRepository conversationProfileRepository;
+    private final ConversationHeaderBuffer headerBuffer;
+    private final RoomMessageCache messageCache;
+    private final UnreadCounter unreadCounter;
     private final R2BucketDeletePublisher deletePublisher;
     private final SimpMessagingTemplate messagingTemplate;
+    @Qualifier(MESSAGE_PIPELINE_EXECUTOR)
+    private final Executor pipelineExecutor;
+    private final StripedExecutor roomExecutor;
+    private final ChatConfig config;
 
     /**
      * Saves message to AstraDB and publish it back to the websocket.<br>
      * Also, saves sender and recipient conversations to Postgres to allow to fetch conversations headers.<br>
      * The recipient conversation updates its unread count if recipient has no this chat online to serve as a
-     * message notification.
+     * message notification.<br>
+     * The message is published to the room as soon as Astra acknowledges the write, in the send order of the room
+     * messages. The conversations headers are updated afterwards on the pipeline executor, so the Postgres work
+     * doesn't delay the delivery and its failure doesn't fail the returned stage.<br>
+     * An invalid message fails the returned stage instead of throwing.
      *
      * @param chatMessage The message got from the user chat
-     * @return createdAt in string
+     * @return stage completed with createdAt in string once the message is published to the room
      */
-    public String processMessage(ChatMessage chatMessage, String roomId, boolean isRecipientOnline) {
-        log.trace("saveMessage input: message={}, roomId={}, isOnline={}", chatMessage, roomId, isRecipientOnline);
+    public CompletionStage<String> processMessageAsync(ChatMessage chatMessage, String roomId, boolean isRecipientOnline) {
+        log.trace("processMessageAsync input: message={}, roomId={}, isOnline={}", chatMessage, roomId, isRecipientOnline);
+        CompletionStage<Message> saveStage;
+        try {
+            saveStage = messageRepository.saveAsync(createMessage(chatMessage, roomId, isRecipientOnline));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return roomExecutor.thenApplyInOrder(roomId, saveStage, saved -> {
+            var savedMessage = publishMessage(chatMessage, saved);
+            messageCache.add(saved);
+            CompletableFuture.runAsync(() -> updateConversations(chatMessage, saved, isRecipientOnline), pipelineExecutor)
+                    .exceptionally(e -> {
+                        log.error("Conversations update failed for {}", new MessageKey(saved), e);
+                        return null;
+                    });
+            return savedMessage.getCreatedAt();
+        });
+    }
+
+    private Message createMessage(ChatMessage chatMessage, String roomId, boolean isRecipientOnline) {
         var now = getCurrentInstant();
-        var recipientId = chatMessage.getRecipient().getId();
-        var senderId = chatMessage.getSender().getId();
-        var message = Message.builder()
+        var resource = chatMessage.getResource();
+        return Message.builder()
                 .roomId(roomId)
                 .createdAt(now)
-                .profileId(senderId)
+                .profileId(chatMessage.getSender().getId())
                 .username(chatMessage.getSender().getUsername())
-                .recipientProfileId(recipientId)
-                .resourceId(chatMessage.getResource() != null ? chatMessage.getResource().getId() : null)
-                .resourceType(chatMessage.getResource() != null ? chatMessage.getResource().getType() : null)
-                .resourceHeight(chatMessage.getResource() != null ? chatMessage.getResource().getHeight() : null)
-                .resourceWidth(chatMessage.getResource() != null ? chatMessage.getResource().getWidth() : null)
-                .thumbnailId(chatMessage.getResource() != null ? chatMessage.getResource().getThumbnailId() : null)
+                .recipientProfileId(chatMessage.getRecipient().getId())
+                .resourceId(resource != null ? resource.getId() : null)
+                .resourceType(resource != null ? resource.getType() : null)
+                .resourceHeight(resource != null ? resource.getHeight() : null)
+                .resourceWidth(resource != null ? resource.getWidth() : null)
+                .thumbnailId(resource != null ? resource.getThumbnailId() : null)
                 .recipientUsername(chatMessage.getRecipient().getUsername())
                 .content(chatMessage.getContent())
                 .readAt(isRecipientOnline ? now : null)
                 .build();
+    }
 
-        var savedMessage = MessageMapper.toDto(messageRepository.save(message));
+    private ChatMessagePersisted publishMessage(ChatMessage chatMessage, Message message) {
+        var savedMessage = MessageMapper.toDto(message);
         savedMessage.addMetadata("senderImage192", chatMessage.getSender().getImage192() + "");
 
         // Update both users chat
-        messagingTemplate.convertAndSendToUser(roomId, DM_DESTINATION, new ChatResponse<>(savedMessage));
+        messagingTemplate.convertAndSendToUser(message.getRoomId(), DM_DESTINATION, new ChatResponse<>(savedMessage));
 
-        log.trace("savedMessage: isRecipientOnline={}, messageContent={}", isRecipientOnline, chatMessage.getContent());
+        log.trace("savedMessage: messageContent={}", chatMessage.getContent());
+        return savedMessage;
+    }
 
+    private void updateConversations(ChatMessage chatMessage, Message message, boolean isRecipientOnline) {
+        var senderId = message.getProfileId();
+        var recipientId = message.getRecipientProfileId();
         var contentType = Conversation.ContentType.getTypeByMessageData(message);
         String contentSlice = chatMessage.getContent().length() > 96
                 ? chatMessage.getContent().substring(0, 97) + "..."
                 : chatMessage.getContent();
 
-        var senderConversation = getExistingOrNewConversation(senderId, recipientId, now, contentSlice, contentType, true);
-        senderConversation.setUnreadCount(0); // for extra safety, no unread if user is actively writing in the chat
-        conversationsRepository.save(senderConversation);
-        log.trace("Updated sender conversation: {}", senderConversation);
-
-        var recipientConversation = getExistingOrNewConversation(recipientId, senderId, now, contentSlice, contentType, false);
-        recipientConversation.setUnreadCount(isRecipientOnline ? 0 : recipientConversation.getUnreadCount() + 1);
-        conversationsRepository.save(recipientConversation);
-        log.trace("Updated recipient conversation: {}", recipientConversation);
-
-        return savedMessage.getCreatedAt();
+        if (headerBuffer.isEnabled()) {
+            headerBuffer.add(new HeaderUpdate(new Conversation.Id(senderId, recipientId), message.getCreatedAt(),
+                    contentSlice, getNameOrNull(contentType), true, true, 0));
+            headerBuffer.add(new HeaderUpdate(new Conversation.Id(recipientId, senderId), message.getCreatedAt(),
+                    contentSlice, getNameOrNull(contentType), false, isRecipientOnline, isRecipientOnline ? 0 : 1));
+        } else {
+            conversationsRepository.upsertConversations(senderId, recipientId, message.getCreatedAt(), contentSlice,
+                    getNameOrNull(contentType), isRecipientOnline ? 0 : 1);
+        }
+        unreadCounter.message(senderId, recipientId, isRecipientOnline);
+        log.trace("Updated conversations: senderId={}, recipientId={}, isRecipientOnline={}",
+                senderId, recipientId, isRecipientOnline);
     }
 
     public void processRefreshRequest(String roomId) {
         messagingTemplate.convertAndSendToUser(roomId, DM_DESTINATION, new ChatResponse<>(REVALIDATE));
     }
 
-    private Conversation getExistingOrNewConversation(
-            UUID userId,
-            UUID recipientId,
-            Instant lastMessageAt,
-            String content,
-            Conversation.ContentType contentType,
-            boolean isUserConversation
-    ) {
-        Conversation.Id conversationId = new Conversation.Id(userId, recipientId);
-        var conversation = conversationsRepository.findById(conversationId)
-                .orElse(Conversation.builder().id(conversationId)
-                        .unreadCount(0)
-                        .flag(NORMAL)
-                        .build());
-        conversation.setLastMessageAt(lastMessageAt);
-        conversation.setContent(content);
-        conversation.setContentType(contentType);
-        conversation.setIsLastMessageFromUser(isUserConversation);
-        return conversation;
-    }
-
     public Instant markRead(MessageKey keys) {
         var readAt = messageRepository.markRead(keys);
+        messageCache.markRead(keys, readAt);
         UUID senderId = getRecipientIdFromRoomId(keys.roomId(), keys.profileId());
+        headerBuffer.resetUnread(new Conversation.Id(senderId, keys.profileId()));
+        unreadCounter.reset(senderId, keys.profileId());
         try {
             conversationsRepository.updateUnreadCount(senderId, keys.profileId(), 0);
         } catch (Exception e) {
@@ -157,9 +196,14 @@ public class ChatService {
         return readAt;
     }
 
+    /**
+     * Returns the room messages page, the first page is served from the {@link RoomMessageCache} if cached.
+     */
     public ResultsPage<ChatMessagePersisted> getConversationMessages(UUID userId, UUID otherProfileId, String pageState) {
         String roomId = generateRoomId(userId, otherProfileId);
-        var page = messageRepository.findByRoomId(roomId, pageState, 20);
+        var page = pageState == null
+                ? getFirstMessagesPage(roomId)
+                : messageRepository.findByRoomId(roomId, pageState, config.getMessages().getPageSize());
         return new ResultsPage<>(
                 page.getResults().stream()
                         .sorted(Comparator.comparing(Message::getCreatedAt))
@@ -169,22 +213,98 @@ public class ChatService {
         );
     }
 
-    public List<ConversationDto> getConversations(
-            UUID userId, @NonNull ConversationFlag flag, Pagination pagination
+    /**
+     * Serves the first page from the cache if it holds a full page, or fewer messages than it keeps per room, which
+     * means the room has no older messages.<br>
+     * On a miss the room is loaded with the larger of the API and cache page sizes, so the cache gets filled up.<br>
+     * The cache and its keyset page state require the bucketed reads, the legacy reads return the repository page
+     * with its driver paging state as is.
+     */
+    private ResultsPage<Message> getFirstMessagesPage(String roomId) {
+        int pageSize = config.getMessages().getPageSize();
+        if (!config.getMessages().isBucketedReads()) {
+            return messageRepository.findByRoomId(roomId, null, pageSize);
+        }
+        int cachedPageSize = config.getMessageCache().getPageSize();
+        var cached = messageCache.get(roomId);
+        if (cached.isPresent() && (cached.get().size() >= pageSize || cached.get().size() < cachedPageSize)) {
+            return firstPage(cached.get(), pageSize);
+        }
+        long version = messageCache.version(roomId);
+        if (cachedPageSize <= pageSize) {
+            var page = messageRepository.findByRoomId(roomId, null, pageSize);
+            messageCache.populate(roomId, page.getResults(), version);
+            return page;
+        }
+        var page = messageRepository.findByRoomId(roomId, null, cachedPageSize);
+        messageCache.populate(roomId, page.getResults(), version);
+        return firstPage(page.getResults(), pageSize);
+    }
+
+    /**
+     * Returns up to the page size of the messages, the latest first, continuing after the last returned message.
+     */
+    private static ResultsPage<Message> firstPage(List<Message> messages, int pageSize) {
+        var page = messages.size() > pageSize ? messages.subList(0, pageSize) : messages;
+        var nextPageState = messages.size() >= pageSize
+                ? MessagePageState.of(page.getLast()).encode()
+                : null;
+        return new ResultsPage<>(page, nextPageState);
+    }
+
+    public ResultsPage<ConversationDto> getConversations(
+            UUID userId, @NonNull ConversationFlag flag, String pageState, int pageSize
     ) {
-        log.trace("getConversations input: userId={}, flag={}, pagination={}", userId, flag, pagination);
-        Sort sortBy = Sort.by("last_message_at").descending();
-        PageRequest pageRequest = pagination == null
-                ? PageRequest.of(0, 10, sortBy)
-                : PageRequest.of(pagination.pageNumber(), pagination.pageSize(), sortBy);
+        log.trace("getConversations input: userId={}, flag={}, pageState={}, pageSize={}", userId, flag, pageState, pageSize);
+        var after = ConversationPageState.decode(pageState);
         List<ConversationProjection> conversations;
         if (flag == NORMAL) {
-            conversations = conversationsRepository.findByUserIdAndFlags(userId, NORMAL, STARRED, pageRequest);
+            conversations = withRecipientProfiles(() -> conversationsRepository.findByUserIdAndFlags(
+                    userId, NORMAL, STARRED, after.lastMessageAt(), after.recipientId(), pageSize
+            ));
         } else {
-            conversations = conversationsRepository.findByUserIdAndFlag(userId, flag, pageRequest);
+            conversations = withRecipientProfiles(() -> conversationsRepository.findByUserIdAndFlag(
+                    userId, flag, after.lastMessageAt(), after.recipientId(), pageSize
+            ));
+        }
+
+        var results = conversations.stream().map(ConversationMapper::toDto).toList();
+        return new ResultsPage<>(results, ConversationPageState.nextPageState(conversations, pageSize));
+    }
+
+    /**
+     * Refreshes the recipient snapshot of the profile, so the conversation headers show its latest display data.
+     */
+    public void refreshConversationProfile(UUID profileId) {
+        boolean refreshed = conversationProfileRepository.refreshChanged(profileId);
+        log.trace("Refreshed conversation profile snapshot: {}, profileId={}", refreshed, profileId);
+    }
+
+    /**
+     * Runs the headers query, if some recipients have no profile snapshot yet (e.g. first conversation with the
+     * profile) the snapshots are built and the query is repeated once.
+     */
+    private List<ConversationProjection> withRecipientProfiles(Supplier<List<ConversationProjection>> headersQuery) {
+        var headers = headersQuery.get();
+        var missing = headers.stream()
+                .filter(header -> header.getRecipientUsername() == null)
+                .map(ConversationProjection::getRecipientId)
+                .toList();
+        if (missing.isEmpty()) {
+            return headers;
         }
+        log.debug("Building {} missing conversation profile snapshots", missing.size());
+        return conversationProfileRepository.refresh(missing) > 0 ? headersQuery.get() : headers;
+    }
 
-        return conversations.stream().map(ConversationMapper::toDto).toList();
+    /**
+     * Returns the ones of the users the user has a conversation with.
+     */
+    public Set<UUID> getConversationRecipients(UUID userId, Collection<UUID> recipientIds) {
+        if (recipientIds.isEmpty()) {
+            return Set.of();
+        }
+        return new HashSet<>(conversationsRepository.findRecipientIds(userId, recipientIds));
     }
 
     public Long getConversationsCount(UUID userId, ConversationFlag flag) {
@@ -207,24 +327,23 @@ public class ChatService {
     }
 
     public Long countNotifications(UUID userId) {
-        var count = conversationsRepository.sumUnreadCountByUserId(userId);
+        var count = unreadCounter.total(userId);
         log.trace("Fetched {} unread message count", count);
         return count;
     }
 
     public ResultsPage<Notification<Object>> getMessageNotifications(UUID userId, String pageState) {
-        Pagination pagination = pageStateToPagination(pageState, 10);
+        var after = ConversationPageState.decode(pageState);
 
-        var headers = conversationsRepository.findNotifications(userId, PageRequest.of(
-                pagination.pageNumber(), pagination.pageSize(), Sort.by(Sort.Direction.DESC, "last_message_at")
+        var headers = withRecipientProfiles(() -> conversationsRepository.findNotifications(
+                userId, after.lastMessageAt(), after.recipientId(), NOTIFICATIONS_PAGE_SIZE
         ));
 
-        pageState = createPageState(headers.size(), pagination);
         var results = headers.stream()
                 .map(NotificationMapper::toNotification)
                 .toList();
 
-        return new ResultsPage<>(results, pageState);
+        return new ResultsPage<>(results, ConversationPageState.nextPageState(headers, NOTIFICATIONS_PAGE_SIZE));
     }
 
     public Set<String> deleteUserInactiveRooms(UUID userId) {
@@ -246,7 +365,10 @@ public class ChatService {
                     .toList();
 
             removedRoomIds.addAll(deadConversations);
-            deadConversations.forEach(messageRepository::deleteRoom);
+            deadConversations.forEach(roomId -> {
+                messageRepository.deleteRoom(roomId);
+                messageCache.evict(roomId);
+            });
             pageState = createPageState(conversations.size(), pagination);
         } while (conversations.size() == purgeBatchSize);
         log.info("Removed {} conversation rooms of userID={}", removedRoomIds.size(), userId);
@@ -256,6 +378,7 @@ public class ChatService {
     @Transactional
     public void deleteUserConversations(UUID userId) {
         conversationsRepository.deleteAllByIdUserId(userId);
+        unreadCounter.evict(userId);
         log.info("Removed all conversations of userID={}", userId);
     }
 
@@ -264,7 +387,7 @@ public class ChatService {
             throw new IllegalArgumentException(roomId);
         }
         UUID recipientId = getRecipientIdFromRoomId(roomId, userId);
-        return conversationsRepository.findUnreadCountByIdUserIdAndIdRecipientId(userId, recipientId);
+        return unreadCounter.room(userId, recipientId);
     }
 
     public boolean deleteMessageResource(String roomId, String createdAt, UUID userId) {
@@ -284,6 +407,7 @@ public class ChatService {
         message.getMetadata().put("resource-deleted", now);
 
         var saved = MessageMapper.toDto(messageRepository.update(message));
+        messageCache.update(message);
 
         // Update both users chat
         messagingTemplate.convertAndSendToUser(
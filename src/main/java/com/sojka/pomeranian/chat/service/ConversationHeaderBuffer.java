@@ -0,0 +1,286 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.model.Conversation;
+import com.sojka.pomeranian.chat.repository.ConversationsBatchRepository;
+import com.sojka.pomeranian.chat.repository.ConversationsBatchRepository.HeaderUpdate;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sojka.pomeranian.chat.config.AsyncConfig.MESSAGE_PIPELINE_EXECUTOR;
+
+/**
+ * Write-behind buffer of the conversations headers.<br>
+ * Keeps only the latest header state per {@link Conversation.Id} and sums the unread increments in between, so a
+ * burst of messages between two users ends up as a single row update per side. The buffer is flushed in JDBC batches
+ * every {@code pomeranian.chat.conversation-buffer.flush-interval-ms}, as soon as it holds {@code batch-size}
+ * headers and on shutdown.<br>
+ * When the buffer reaches its {@code capacity}, new headers are written through.<br>
+ * A batch failing {@code max-flush-attempts} times is written row by row, so a single failing header doesn't stop
+ * the flushes of all the others.
+ */
+@Slf4j
+@Component
+public class ConversationHeaderBuffer {
+
+    private final ConversationsBatchRepository repository;
+    private final Executor executor;
+    private final boolean enabled;
+    private final int batchSize;
+    private final int capacity;
+    private final int maxFlushAttempts;
+    private final Map<Conversation.Id, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Conversation.Id, Long> resets = new ConcurrentHashMap<>();
+    private final AtomicLong resetSequence = new AtomicLong();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Counter updatesCounter;
+    private final Counter flushedCounter;
+    private final Counter droppedCounter;
+    private final Timer flushTimer;
+
+    public ConversationHeaderBuffer(
+            ConversationsBatchRepository repository,
+            @Qualifier(MESSAGE_PIPELINE_EXECUTOR) Executor executor,
+            ChatConfig config,
+            MeterRegistry meterRegistry
+    ) {
+        this.repository = repository;
+        this.executor = executor;
+        this.enabled = config.getConversationBuffer().isEnabled();
+        this.batchSize = config.getConversationBuffer().getBatchSize();
+        this.capacity = config.getConversationBuffer().getCapacity();
+        this.maxFlushAttempts = config.getConversationBuffer().getMaxFlushAttempts();
+        this.updatesCounter = Counter.builder("pomeranian.chat.conversations.buffer.updates")
+                .description("Header updates submitted to the buffer")
+                .register(meterRegistry);
+        this.flushedCounter = Counter.builder("pomeranian.chat.conversations.buffer.flushed")
+                .description("Header rows written to Postgres")
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("pomeranian.chat.conversations.buffer.dropped")
+                .description("Header rows dropped after failing every flush attempt")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("pomeranian.chat.conversations.buffer.flush")
+                .description("Header batch flush latency")
+                .register(meterRegistry);
+        Gauge.builder("pomeranian.chat.conversations.buffer.pending", pending, Map::size)
+                .description("Headers waiting for the flush")
+                .register(meterRegistry);
+        Gauge.builder("pomeranian.chat.conversations.buffer.coalescing.ratio", this, ConversationHeaderBuffer::coalescingRatio)
+                .description("Share of the header updates absorbed by the buffer")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds the header update to the buffer, merging it with the pending update of the same conversation.
+     */
+    public void add(HeaderUpdate update) {
+        log.trace("add input: {}", update);
+        updatesCounter.increment();
+        if (pending.size() >= capacity && !pending.containsKey(update.id())) {
+            log.warn("Conversation header buffer is full, writing through: {}", update.id());
+            repository.upsertAll(List.of(update));
+            flushedCounter.increment();
+            return;
+        }
+        pending.merge(update.id(), new Pending(update, 0), ConversationHeaderBuffer::merge);
+
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    flush();
+                } finally {
+                    flushRequested.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Resets the unread count of the pending update, so its flush won't restore the already read messages.<br>
+     * The reset is also remembered for the batch being written at the moment, which is followed by the reset once
+     * written or gets reset itself if it fails.
+     */
+    public void resetUnread(Conversation.Id id) {
+        if (!enabled) {
+            return;
+        }
+        resets.put(id, resetSequence.incrementAndGet());
+        pending.computeIfPresent(id, (key, update) -> new Pending(reset(update.update()), update.attempts()));
+    }
+
+    @Scheduled(fixedDelayString = "${pomeranian.chat.conversation-buffer.flush-interval-ms:1000}")
+    public void scheduledFlush() {
+        flush();
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        log.info("Flushing {} buffered conversation headers", pending.size());
+        flush();
+    }
+
+    /**
+     * Writes all the pending headers in batches of the {@code batch-size}.<br>
+     * A failed batch is merged back to the buffer and retried with the next flush, after {@code max-flush-attempts}
+     * failures its headers are written one by one and the ones still failing are dropped.
+     */
+    public synchronized void flush() {
+        long batchSequence = resetSequence.get();
+        while (!pending.isEmpty()) {
+            batchSequence = resetSequence.get();
+            List<Pending> batch = new ArrayList<>(Math.min(pending.size(), batchSize));
+            var iterator = pending.keySet().iterator();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                var update = pending.remove(iterator.next());
+                if (update != null) {
+                    batch.add(update);
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            var sample = Timer.start();
+            try {
+                repository.upsertAll(batch.stream().map(Pending::update).toList());
+                flushedCounter.increment(batch.size());
+                log.trace("Flushed {} conversation headers", batch.size());
+                var resetDuringFlush = resetSince(batch, batchSequence);
+                if (!resetDuringFlush.isEmpty()) {
+                    repository.resetUnreadAll(resetDuringFlush);
+                }
+            } catch (Exception e) {
+                int attempts = batch.stream().mapToInt(Pending::attempts).max().orElse(0) + 1;
+                var resetDuringFlush = resetSince(batch, batchSequence);
+                var failed = batch.stream()
+                        .map(update -> resetDuringFlush.contains(update.update().id())
+                                ? new Pending(reset(update.update()), attempts)
+                                : new Pending(update.update(), attempts))
+                        .toList();
+                if (attempts >= maxFlushAttempts) {
+                    log.error("Failed to flush {} conversation headers {} times, writing them one by one",
+                            batch.size(), attempts, e);
+                    writeOneByOne(failed);
+                    resetWrittenOneByOne(batch, batchSequence, resetDuringFlush);
+                    continue;
+                }
+                log.error("Failed to flush {} conversation headers, retrying with the next flush", batch.size(), e);
+                failed.forEach(update -> pending.merge(
+                        update.update().id(), update, (newer, older) -> merge(older, newer)
+                ));
+                break;
+            } finally {
+                sample.stop(flushTimer);
+            }
+        }
+        // No batch is in flight until the next flush, the earlier resets were already applied
+        long appliedSequence = batchSequence;
+        resets.values().removeIf(sequence -> sequence <= appliedSequence);
+    }
+
+    /**
+     * Writes the headers of a repeatedly failing batch one by one, dropping the ones still failing.<br>
+     * The headers reset during the failed flush are already written as reset.
+     */
+    private void writeOneByOne(List<Pending> batch) {
+        for (Pending failed : batch) {
+            var update = failed.update();
+            try {
+                repository.upsertAll(List.of(update));
+                flushedCounter.increment();
+            } catch (Exception e) {
+                log.error("Dropping the conversation header {}: {}", update.id(), e.getMessage());
+                droppedCounter.increment();
+            }
+        }
+    }
+
+    /**
+     * Resets the headers reset while they were written one by one, the earlier resets were written with them.
+     */
+    private void resetWrittenOneByOne(List<Pending> batch, long batchSequence, List<Conversation.Id> alreadyReset) {
+        var resetDuringWrites = resetSince(batch, batchSequence).stream()
+                .filter(id -> !alreadyReset.contains(id))
+                .toList();
+        if (resetDuringWrites.isEmpty()) {
+            return;
+        }
+        try {
+            repository.resetUnreadAll(resetDuringWrites);
+        } catch (Exception e) {
+            log.error("Failed to reset {} conversation headers: {}", resetDuringWrites.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the ids of the batch reset after the batch was taken from the buffer.
+     */
+    private List<Conversation.Id> resetSince(List<Pending> batch, long batchSequence) {
+        return batch.stream()
+                .map(update -> update.update().id())
+                .filter(id -> resets.getOrDefault(id, 0L) > batchSequence)
+                .toList();
+    }
+
+    private static HeaderUpdate reset(HeaderUpdate update) {
+        return new HeaderUpdate(
+                update.id(), update.lastMessageAt(), update.content(), update.contentType(),
+                update.isLastMessageFromUser(), true, 0
+        );
+    }
+
+    double coalescingRatio() {
+        double updates = updatesCounter.count();
+        return updates == 0 ? 0 : 1 - flushedCounter.count() / updates;
+    }
+
+    /**
+     * Merges two pending updates of the same conversation, keeping the most failed flush attempts.
+     */
+    static Pending merge(Pending older, Pending newer) {
+        return new Pending(merge(older.update(), newer.update()), Math.max(older.attempts(), newer.attempts()));
+    }
+
+    /**
+     * Merges two updates of the same conversation, the {@code newer} one is the later submitted.
+     */
+    static HeaderUpdate merge(HeaderUpdate older, HeaderUpdate newer) {
+        var latest = older.lastMessageAt() != null && newer.lastMessageAt() != null
+                && older.lastMessageAt().isAfter(newer.lastMessageAt())
+                ? older
+                : newer;
+        boolean resetUnread = newer.resetUnread() || older.resetUnread();
+        int unreadIncrement = newer.resetUnread()
+                ? newer.unreadIncrement()
+                : older.unreadIncrement() + newer.unreadIncrement();
+        return new HeaderUpdate(
+                older.id(), latest.lastMessageAt(), latest.content(), latest.contentType(),
+                latest.isLastMessageFromUser(), resetUnread, unreadIncrement
+        );
+    }
+
+    /**
+     * @param attempts the failed flush attempts of the update
+     */
+    record Pending(HeaderUpdate update, int attempts) {
+    }
+}
@@ -0,0 +1,69 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.repository.ConversationProfileRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds the recipient snapshots of all the existing profiles.<br>
+ * Profiles are refreshed in id ordered batches, the backfill can be safely repeated while the profile update events
+ * keep coming.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ConversationProfileBackfill {
+
+    private static final int PROFILES_PAGE_SIZE = 1000;
+
+    private final ConversationProfileRepository conversationProfileRepository;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Starts the backfill in the background.
+     *
+     * @return false if the backfill is already running
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread.ofVirtual().name("conversation-profile-backfill").start(() -> {
+            try {
+                backfill();
+            } catch (Exception e) {
+                log.error("Conversation profile backfill failed", e);
+            } finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public long backfill() {
+        log.info("Conversation profile backfill started");
+        long profiles = 0;
+        UUID after = null;
+        List<UUID> ids;
+        do {
+            ids = conversationProfileRepository.findProfileIds(after, PROFILES_PAGE_SIZE);
+            if (ids.isEmpty()) {
+                break;
+            }
+            profiles += conversationProfileRepository.refresh(ids);
+            after = ids.getLast();
+            log.info("Conversation profile backfill progress: profiles={}", profiles);
+        } while (ids.size() == PROFILES_PAGE_SIZE);
+        log.info("Conversation profile backfill finished: profiles={}", profiles);
+        return profiles;
+    }
+}
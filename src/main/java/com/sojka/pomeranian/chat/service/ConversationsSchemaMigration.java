@@ -0,0 +1,105 @@
+package com.sojka.pomeranian.chat.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Prepares the {@code conversations} table for the keyset pages of the headers:<pre>
+ * 1. backfills the NULL last_message_at with the epoch, in batches
+ * 2. makes last_message_at NOT NULL
+ * 3. builds the (user_id, last_message_at DESC, recipient_id DESC) index, concurrently
+ * </pre>
+ * Runs on every startup in the background, the steps already applied are skipped. A Postgres advisory lock keeps the
+ * instances starting at the same time from running it twice, an index left invalid by a failed build is rebuilt.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ConversationsSchemaMigration {
+
+    static final String INDEX_NAME = "idx_conversations_user_last_message";
+    private static final long LOCK_ID = 0x636F6E76L;
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+
+    private static final String BACKFILL = """
+            UPDATE conversations SET last_message_at = 'epoch'
+            WHERE ctid IN (SELECT ctid FROM conversations WHERE last_message_at IS NULL LIMIT %d)"""
+            .formatted(BACKFILL_BATCH_SIZE);
+    private static final String IS_NULLABLE = """
+            SELECT is_nullable = 'YES' FROM information_schema.columns
+            WHERE table_schema = current_schema() AND table_name = 'conversations' AND column_name = 'last_message_at'""";
+    private static final String IS_INDEX_INVALID = """
+            SELECT NOT i.indisvalid FROM pg_index i
+            JOIN pg_class c ON c.oid = i.indexrelid
+            WHERE c.relname = '%s'""".formatted(INDEX_NAME);
+    private static final String CREATE_INDEX = """
+            CREATE INDEX CONCURRENTLY IF NOT EXISTS %s
+            ON conversations (user_id, last_message_at DESC, recipient_id DESC)""".formatted(INDEX_NAME);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        Thread.ofVirtual().name("conversations-schema-migration").start(() -> {
+            try {
+                migrate();
+            } catch (Exception e) {
+                log.error("Conversations schema migration failed, retrying on the next startup", e);
+            }
+        });
+    }
+
+    /**
+     * Applies the missing steps on a single connection, holding the advisory lock.
+     *
+     * @return false if another instance holds the lock
+     */
+    public boolean migrate() {
+        Boolean migrated = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            if (!queryBoolean(connection, "SELECT pg_try_advisory_lock(" + LOCK_ID + ")")) {
+                log.info("Conversations schema migration is running on another instance");
+                return false;
+            }
+            try (var statement = connection.createStatement()) {
+                migrate(connection, statement);
+                return true;
+            } finally {
+                queryBoolean(connection, "SELECT pg_advisory_unlock(" + LOCK_ID + ")");
+            }
+        });
+        return Boolean.TRUE.equals(migrated);
+    }
+
+    private static void migrate(Connection connection, Statement statement) throws SQLException {
+        if (queryBoolean(connection, IS_NULLABLE)) {
+            long backfilled = 0;
+            int updated;
+            do {
+                updated = statement.executeUpdate(BACKFILL);
+                backfilled += updated;
+            } while (updated > 0);
+            statement.execute("ALTER TABLE conversations ALTER COLUMN last_message_at SET NOT NULL");
+            log.info("Backfilled {} conversations without last_message_at, the column is NOT NULL", backfilled);
+        }
+        if (queryBoolean(connection, IS_INDEX_INVALID)) {
+            log.warn("Dropping the invalid index {}", INDEX_NAME);
+            statement.execute("DROP INDEX CONCURRENTLY IF EXISTS " + INDEX_NAME);
+        }
+        statement.execute(CREATE_INDEX);
+    }
+
+    private static boolean queryBoolean(Connection connection, String sql) throws SQLException {
+        try (var statement = connection.createStatement(); var resultSet = statement.executeQuery(sql)) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+}
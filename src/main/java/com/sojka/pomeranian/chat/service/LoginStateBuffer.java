@@ -0,0 +1,211 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.repository.ProfilesBatchRepository;
+import com.sojka.pomeranian.chat.repository.ProfilesBatchRepository.LoginUpdate;
+import com.sojka.pomeranian.security.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind buffer of the users {@code last_login_at} and {@code is_online}.<br>
+ * Keeps only the latest login state per user, so a reconnect storm ends up as a single row update per user. The
+ * buffer is flushed in JDBC batches every {@code pomeranian.chat.login-buffer.flush-interval-ms}, as soon as it
+ * holds {@code batch-size} users and on shutdown.<br>
+ * The flushes run on the buffer own flusher thread, reaching the {@code batch-size} only queues a flush there, so the
+ * callers never wait for a running flush.<br>
+ * When the buffer reaches its {@code capacity} or is disabled, new states are written through.
+ */
+@Slf4j
+@Component
+public class LoginStateBuffer {
+
+    private final ProfilesBatchRepository repository;
+    private final UserRepository userRepository;
+    private final boolean enabled;
+    private final int flushIntervalMs;
+    private final int batchSize;
+    private final int capacity;
+    private final int maxFlushAttempts;
+    private final ThreadPoolTaskScheduler flusher = new ThreadPoolTaskScheduler();
+    private final ConcurrentHashMap<UUID, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Counter updatesCounter;
+    private final Counter flushedCounter;
+    private final Counter droppedCounter;
+    private final Timer flushTimer;
+
+    public LoginStateBuffer(
+            ProfilesBatchRepository repository,
+            UserRepository userRepository,
+            ChatConfig config,
+            MeterRegistry meterRegistry
+    ) {
+        this.repository = repository;
+        this.userRepository = userRepository;
+        this.enabled = config.getLoginBuffer().isEnabled();
+        this.flushIntervalMs = config.getLoginBuffer().getFlushIntervalMs();
+        this.batchSize = config.getLoginBuffer().getBatchSize();
+        this.capacity = config.getLoginBuffer().getCapacity();
+        this.maxFlushAttempts = config.getLoginBuffer().getMaxFlushAttempts();
+        this.flusher.setThreadNamePrefix("login-buffer-");
+        this.updatesCounter = Counter.builder("pomeranian.chat.login.buffer.updates")
+                .description("Login state changes submitted to the buffer")
+                .register(meterRegistry);
+        this.flushedCounter = Counter.builder("pomeranian.chat.login.buffer.flushed")
+                .description("Login state rows written to Postgres")
+                .register(meterRegistry);
+        this.droppedCounter = Counter.builder("pomeranian.chat.login.buffer.dropped")
+                .description("Login state rows dropped after failing every flush attempt")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("pomeranian.chat.login.buffer.flush")
+                .description("Login state batch flush latency")
+                .register(meterRegistry);
+        Gauge.builder("pomeranian.chat.login.buffer.pending", pending, ConcurrentHashMap::size)
+                .description("Users waiting for the flush")
+                .register(meterRegistry);
+        Gauge.builder("pomeranian.chat.login.buffer.lag", this, LoginStateBuffer::lagMs)
+                .description("Age of the oldest login state waiting for the flush, in milliseconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Adds the user login state to the buffer, replacing the pending older state of the user.
+     */
+    public void add(UUID userId, Instant lastLoginAt, boolean isOnline) {
+        log.trace("add input: userId={}, lastLoginAt={}, isOnline={}", userId, lastLoginAt, isOnline);
+        updatesCounter.increment();
+        if (!enabled || pending.size() >= capacity && !pending.containsKey(userId)) {
+            if (enabled) {
+                log.warn("Login state buffer is full, writing through: {}", userId);
+            }
+            userRepository.updateLastLoginAtAndIsOnline(userId, lastLoginAt, isOnline);
+            flushedCounter.increment();
+            return;
+        }
+        var update = new Pending(new LoginUpdate(userId, lastLoginAt, isOnline), System.nanoTime(), 0);
+        pending.merge(userId, update, LoginStateBuffer::merge);
+
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::scheduledFlush);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        flusher.initialize();
+        var interval = Duration.ofMillis(flushIntervalMs);
+        flusher.scheduleWithFixedDelay(this::scheduledFlush, Instant.now().plus(interval), interval);
+    }
+
+    public void scheduledFlush() {
+        flushRequested.set(false);
+        flush();
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flusher.shutdown();
+        log.info("Flushing {} buffered login states", pending.size());
+        flush();
+    }
+
+    /**
+     * Writes all the pending states in batches of the {@code batch-size}.<br>
+     * A failed batch is merged back to the buffer and retried with the next flush, after {@code max-flush-attempts}
+     * failures its states are written one by one and the ones still failing are dropped.
+     */
+    public synchronized void flush() {
+        while (!pending.isEmpty()) {
+            List<Pending> batch = new ArrayList<>(Math.min(pending.size(), batchSize));
+            var iterator = pending.keySet().iterator();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                var update = pending.remove(iterator.next());
+                if (update != null) {
+                    batch.add(update);
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            var sample = Timer.start();
+            try {
+                repository.updateLoginAll(batch.stream().map(Pending::update).toList());
+                flushedCounter.increment(batch.size());
+                log.trace("Flushed {} login states", batch.size());
+            } catch (Exception e) {
+                int attempts = batch.stream().mapToInt(Pending::attempts).max().orElse(0) + 1;
+                if (attempts >= maxFlushAttempts) {
+                    log.error("Failed to flush {} login states {} times, writing them one by one", batch.size(), attempts, e);
+                    writeOneByOne(batch);
+                    continue;
+                }
+                log.error("Failed to flush {} login states, retrying with the next flush", batch.size(), e);
+                batch.forEach(failed -> pending.merge(
+                        failed.update().userId(), failed.withAttempts(attempts), (newer, older) -> merge(older, newer)
+                ));
+                return;
+            } finally {
+                sample.stop(flushTimer);
+            }
+        }
+    }
+
+    private void writeOneByOne(List<Pending> batch) {
+        for (Pending failed : batch) {
+            var update = failed.update();
+            try {
+                userRepository.updateLastLoginAtAndIsOnline(update.userId(), update.lastLoginAt(), update.isOnline());
+                flushedCounter.increment();
+            } catch (Exception e) {
+                log.error("Dropping the login state of userId={}: {}", update.userId(), e.getMessage());
+                droppedCounter.increment();
+            }
+        }
+    }
+
+    double lagMs() {
+        long oldest = pending.reduceValuesToLong(Long.MAX_VALUE, Pending::queuedAt, Long.MAX_VALUE, Math::min);
+        return oldest == Long.MAX_VALUE ? 0 : (System.nanoTime() - oldest) / 1_000_000d;
+    }
+
+    /**
+     * Merges two states of the same user, the {@code newer} one is the later submitted and wins unless its
+     * timestamp is older. The queue time of the first pending state and the most failed flush attempts are kept.
+     */
+    static Pending merge(Pending older, Pending newer) {
+        var latest = older.update().lastLoginAt().isAfter(newer.update().lastLoginAt()) ? older : newer;
+        return new Pending(
+                latest.update(),
+                Math.min(older.queuedAt(), newer.queuedAt()),
+                Math.max(older.attempts(), newer.attempts())
+        );
+    }
+
+    /**
+     * @param queuedAt the {@link System#nanoTime()} the state was buffered at
+     * @param attempts the failed flush attempts of the state
+     */
+    record Pending(LoginUpdate update, long queuedAt, int attempts) {
+
+        Pending withAttempts(int attempts) {
+            return new Pending(update, queuedAt, attempts);
+        }
+    }
+}
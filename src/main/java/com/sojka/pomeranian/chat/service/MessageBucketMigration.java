@@ -0,0 +1,72 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.repository.MessageRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Backfills the time-bucketed messages table from the legacy, room partitioned one.<br>
+ * Meant to run while the legacy writes are still on, the rooms are migrated one by one and the migration can be
+ * safely repeated.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MessageBucketMigration {
+
+    private static final int ROOMS_PAGE_SIZE = 100;
+
+    private final MessageRepository messageRepository;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Starts the migration in the background.
+     *
+     * @return false if the migration is already running
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread.ofVirtual().name("message-bucket-migration").start(() -> {
+            try {
+                migrate();
+            } catch (Exception e) {
+                log.error("Message bucket migration failed", e);
+            } finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public MigrationResult migrate() {
+        log.info("Message bucket migration started");
+        int rooms = 0;
+        long messages = 0;
+        String pageState = null;
+        do {
+            var page = messageRepository.findLegacyRoomIds(pageState, ROOMS_PAGE_SIZE);
+            for (String roomId : page.getResults()) {
+                messages += messageRepository.migrateRoom(roomId);
+                rooms++;
+            }
+            pageState = page.getNextPageState();
+            log.info("Message bucket migration progress: rooms={}, messages={}", rooms, messages);
+        } while (pageState != null);
+
+        var result = new MigrationResult(rooms, messages);
+        log.info("Message bucket migration finished: {}", result);
+        return result;
+    }
+
+    public record MigrationResult(int rooms, long messages) {
+    }
+}
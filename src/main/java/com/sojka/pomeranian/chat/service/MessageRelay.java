@@ -0,0 +1,27 @@
+package com.sojka.pomeranian.chat.service;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * The transport of the {@link RelayEnvelope}s between the instances, selected by {@code pomeranian.chat.relay-mode}:
+ * {@code pubsub} (default) or {@code streams}.
+ */
+public interface MessageRelay {
+
+    /**
+     * Relays the envelope to the other instances holding the users sessions.
+     *
+     * @return whether this instance holds any of the users sessions, the number of the other instances and the relay
+     * id of the envelope, null if the transport doesn't keep the envelopes
+     */
+    Route route(Collection<UUID> userIds, RelayEnvelope envelope);
+
+    /**
+     * Relays the envelope to every instance, including this one.
+     */
+    void broadcast(RelayEnvelope envelope);
+
+    record Route(boolean local, int remoteNodes, String relayId) {
+    }
+}
@@ -0,0 +1,65 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.config.RedisPubSubConfig;
+import com.sojka.pomeranian.chat.service.cache.PresenceNode;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Redis Pub/Sub implementation of {@link MessageRelay}, the envelopes are published on the channels of the instances
+ * and received by the {@link RedisPubSubReceiver}.<br>
+ * Fire-and-forget, an instance not subscribed at the moment misses the envelope.<br>
+ * The envelopes are published as the JSON of the previous versions until {@code pomeranian.chat.relay-format} is
+ * switched to {@code binary}, which every instance has to read first.
+ */
+@Component
+@ConditionalOnExpression("${pomeranian.chat.redis-enabled:false} and '${pomeranian.chat.relay-mode:pubsub}' == 'pubsub'")
+public class PubSubMessageRelay implements MessageRelay {
+
+    private static final byte[] BROADCAST_CHANNEL = RedisPubSubConfig.CHANNEL_NAME.getBytes(StandardCharsets.UTF_8);
+
+    private final StringRedisTemplate redisTemplate;
+    private final PresenceNode node;
+    private final ObjectMapper mapper;
+    private final boolean binary;
+
+    public PubSubMessageRelay(
+            StringRedisTemplate redisTemplate, PresenceNode node, ObjectMapper mapper, ChatConfig config
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.node = node;
+        this.mapper = mapper;
+        this.binary = "binary".equals(config.getRelayFormat());
+    }
+
+    @Override
+    public Route route(Collection<UUID> userIds, RelayEnvelope envelope) {
+        return node.route(userIds, frame(envelope));
+    }
+
+    @Override
+    public void broadcast(RelayEnvelope envelope) {
+        byte[] frame = frame(envelope);
+        redisTemplate.execute((RedisCallback<Long>) connection -> connection.publish(BROADCAST_CHANNEL, frame));
+    }
+
+    private byte[] frame(RelayEnvelope envelope) {
+        if (binary) {
+            return envelope.encode();
+        }
+        try {
+            return envelope.encodeJson(mapper);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to encode the relay envelope of " + envelope.destination(), e);
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package com.sojka.pomeranian.chat.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Component;
 
+/**
+ * Forwards the messages relayed by the {@link RedisWebSocketService} to the local sessions.<br>
+ * The {@link RelayEnvelope} body is sent as is, the JSON messages of the instances not upgraded yet are converted
+ * again.
+ */
+@Slf4j
 @Component
 @ConditionalOnProperty(
         prefix = "pomeranian.chat",
@@ -12,7 +21,7 @@ import org.springframework.stereotype.Component;
         havingValue = "true",
         matchIfMissing = false
 )
-public class RedisPubSubReceiver {
+public class RedisPubSubReceiver implements MessageListener {
 
     private final SimpMessagingTemplate template;
     private final ObjectMapper mapper;
@@ -22,13 +31,19 @@ public class RedisPubSubReceiver {
         this.mapper = mapper;
     }
 
-    public void receiveMessage(String message) {
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        byte[] frame = message.getBody();
         try {
-            var data = mapper.readValue(message, WebSocketMessage.class);
-            template.convertAndSend(data.destination(), data.payload());
+            if (RelayEnvelope.isEnvelope(frame)) {
+                var envelope = RelayEnvelope.decode(frame);
+                template.send(envelope.destination(), envelope.toMessage(null));
+            } else {
+                var data = mapper.readValue(frame, WebSocketMessage.class);
+                template.convertAndSend(data.destination(), data.payload());
+            }
         } catch (Exception e) {
-            // Log error in production
-            throw new RuntimeException("Failed to forward from Redis", e);
+            log.error("Failed to forward from Redis, frame of {} bytes", frame.length, e);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,18 +1,39 @@
 package com.sojka.pomeranian.chat.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.sojka.pomeranian.chat.config.RedisPubSubConfig;
+import com.sojka.pomeranian.chat.dto.StompSubscription;
+import com.sojka.pomeranian.chat.service.cache.SessionCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Primary;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.converter.MessageConversionException;
 import org.springframework.messaging.core.MessagePostProcessor;
 import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Relays the messages to the sessions held by the other instances through the {@link MessageRelay}.<br>
+ * The user destinations are routed by the users ids in the user (the user id or the room id of both users):
+ * the message is relayed only to the instances holding the users sessions and delivered to the local sessions
+ * directly. The other destinations are fan-out topics broadcast to every instance.<br>
+ * The payload is converted once by the broker message converter and relayed in a {@link RelayEnvelope}, the
+ * receiving instances forward its bytes as is.<br>
+ * A message for the online users without any instance in their nodes registry (e.g. the sessions created before the
+ * registry existed) is broadcast instead of dropped.
+ */
+@Slf4j
 @Service
 @Primary
 @ConditionalOnProperty(
@@ -22,28 +43,77 @@ import java.util.Map;
 )
 public class RedisWebSocketService implements SimpMessageSendingOperations {
 
-    private final StringRedisTemplate redisTemplate;
-    private final ObjectMapper mapper;
-
-    public RedisWebSocketService(StringRedisTemplate redisTemplate, ObjectMapper mapper) {
-        this.redisTemplate = redisTemplate;
-        this.mapper = mapper;
+    private static final Pattern UUID_PATTERN =
+            Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private final MessageRelay relay;
+    private final SimpMessagingTemplate localTemplate;
+    private final SessionCache cache;
+    private final Counter broadcastCounter;
+    private final Counter routedCounter;
+    private final Counter localCounter;
+    private final Counter unroutedCounter;
+    private final Counter fallbackCounter;
+
+    public RedisWebSocketService(
+            MessageRelay relay,
+            SimpMessagingTemplate localTemplate,
+            SessionCache cache,
+            MeterRegistry meterRegistry
+    ) {
+        this.relay = relay;
+        this.localTemplate = localTemplate;
+        this.cache = cache;
+        this.broadcastCounter = counter(meterRegistry, "broadcast");
+        this.routedCounter = counter(meterRegistry, "routed");
+        this.localCounter = counter(meterRegistry, "local");
+        this.unroutedCounter = counter(meterRegistry, "unrouted");
+        this.fallbackCounter = counter(meterRegistry, "fallback_broadcast");
     }
 
+    /**
+     * Relays the message to the instances holding the sessions of the users in the {@code user}, the message for
+     * the users without sessions is only kept by the relays keeping the envelopes.<br>
+     * A {@code user} without any user id is broadcast.
+     */
     public void convertAndSendToUser(String user, String destination, Object payload) {
         String userDestination = "/user/" + user + destination;
-        convertAndSend(userDestination, payload);
+        var userIds = userIds(user);
+        if (userIds.isEmpty()) {
+            convertAndSend(userDestination, payload);
+            return;
+        }
+        try {
+            var envelope = toEnvelope(userDestination, payload);
+            var route = relay.route(userIds, envelope);
+            log.trace("convertAndSendToUser output: destination={}, route={}", userDestination, route);
+            if (route.remoteNodes() > 0) {
+                routedCounter.increment(route.remoteNodes());
+            }
+            if (route.local()) {
+                localCounter.increment();
+                localTemplate.send(userDestination, envelope.toMessage(route.relayId()));
+            }
+            if (!route.local() && route.remoteNodes() == 0) {
+                if (cache.isOnlineMany(userIds, StompSubscription.Type.CHAT_NOTIFICATIONS).containsValue(true)) {
+                    fallbackCounter.increment();
+                    relay.broadcast(envelope);
+                } else {
+                    unroutedCounter.increment();
+                }
+            }
+        } catch (Exception e) {
+            throw new MessagingException("Failed to relay to Redis: " + userDestination, e);
+        }
     }
 
     @Override
     public void convertAndSend(String destination, Object payload) throws MessagingException {
         try {
-            var message = new WebSocketMessage<Object>(destination, payload);
-            String json = mapper.writeValueAsString(message);
-            redisTemplate.convertAndSend(RedisPubSubConfig.CHANNEL_NAME, json);
+            relay.broadcast(toEnvelope(destination, payload));
+            broadcastCounter.increment();
         } catch (Exception e) {
-            // TODO: proper logging
-            throw new RuntimeException("Failed to publish to Redis", e);
+            throw new MessagingException("Failed to publish to Redis: " + destination, e);
         }
     }
 
@@ -96,4 +166,38 @@ public class RedisWebSocketService implements SimpMessageSendingOperations {
     public void convertAndSend(String destination, Object payload, Map<String, Object> headers, MessagePostProcessor postProcessor) throws MessagingException {
         throw new MessagingException("not implemented");
     }
-}
\ No newline at end of file
+
+    /**
+     * Converts the payload the same way as the local {@link SimpMessagingTemplate#convertAndSend} would.
+     */
+    private RelayEnvelope toEnvelope(String destination, Object payload) {
+        Message<?> message = localTemplate.getMessageConverter().toMessage(payload, null);
+        if (message == null) {
+            throw new MessageConversionException("Unable to convert payload of type " + payload.getClass().getName());
+        }
+        var contentType = message.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+        byte[] body = message.getPayload() instanceof String text
+                ? text.getBytes(StandardCharsets.UTF_8)
+                : (byte[]) message.getPayload();
+        return new RelayEnvelope(destination, contentType == null ? null : contentType.toString(), body);
+    }
+
+    /**
+     * The ids of the users of the user destination part, the user id or both ids of the room id.
+     */
+    static Set<UUID> userIds(String user) {
+        Set<UUID> userIds = new LinkedHashSet<>(2);
+        var matcher = UUID_PATTERN.matcher(user);
+        while (matcher.find()) {
+            userIds.add(UUID.fromString(matcher.group()));
+        }
+        return userIds;
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String route) {
+        return Counter.builder("pomeranian.chat.relay")
+                .description("Messages relayed to the WebSocket sessions")
+                .tag("route", route)
+                .register(meterRegistry);
+    }
+}
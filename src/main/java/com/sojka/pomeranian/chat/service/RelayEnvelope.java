@@ -0,0 +1,136 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.RawValue;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The binary frame of a message relayed through Redis Pub/Sub, carrying the already converted STOMP payload:<pre>
+ * MAGIC, VERSION, destination length varint, destination, content type length + 1 varint (0 for null),
+ * content type, body
+ * </pre>
+ * The user of the user destinations is part of the {@code destination}.<br>
+ * The body is forwarded to the local sessions as is, without decoding it.
+ */
+public record RelayEnvelope(String destination, String contentType, byte[] body) {
+
+    /**
+     * The STOMP header of the kept envelopes id, the clients resubscribe with it in the {@code relay-since} header.
+     */
+    public static final String RELAY_ID_HEADER = "relay-id";
+    static final byte MAGIC = (byte) 0xB7;
+    static final byte VERSION = 1;
+
+    public byte[] encode() {
+        byte[] destinationBytes = destination.getBytes(StandardCharsets.UTF_8);
+        byte[] contentTypeBytes = contentType == null ? null : contentType.getBytes(StandardCharsets.UTF_8);
+        int contentTypeLength = contentTypeBytes == null ? 0 : contentTypeBytes.length;
+        byte[] frame = new byte[2
+                + varintSize(destinationBytes.length) + destinationBytes.length
+                + varintSize(contentTypeLength + 1) + contentTypeLength
+                + body.length];
+        frame[0] = MAGIC;
+        frame[1] = VERSION;
+        int position = writeVarint(frame, 2, destinationBytes.length);
+        System.arraycopy(destinationBytes, 0, frame, position, destinationBytes.length);
+        position += destinationBytes.length;
+        position = writeVarint(frame, position, contentTypeBytes == null ? 0 : contentTypeLength + 1);
+        if (contentTypeBytes != null) {
+            System.arraycopy(contentTypeBytes, 0, frame, position, contentTypeLength);
+            position += contentTypeLength;
+        }
+        System.arraycopy(body, 0, frame, position, body.length);
+        return frame;
+    }
+
+    /**
+     * Encodes the envelope as the {@link WebSocketMessage} JSON of the previous versions, the JSON body is embedded
+     * as is and the other bodies as a string.
+     */
+    public byte[] encodeJson(ObjectMapper mapper) throws JsonProcessingException {
+        var text = new String(body, StandardCharsets.UTF_8);
+        Object payload = contentType != null && contentType.contains("json") ? new RawValue(text) : text;
+        return mapper.writeValueAsBytes(new WebSocketMessage<>(destination, payload));
+    }
+
+    /**
+     * The message of the already converted body, to be sent to the {@link #destination} by the broker template.
+     *
+     * @param relayId the {@link #RELAY_ID_HEADER} value, null if the relay doesn't keep the envelopes
+     */
+    public Message<byte[]> toMessage(String relayId) {
+        var accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        if (contentType != null) {
+            accessor.setContentType(MimeTypeUtils.parseMimeType(contentType));
+        }
+        if (relayId != null) {
+            accessor.setNativeHeader(RELAY_ID_HEADER, relayId);
+        }
+        accessor.setLeaveMutable(true);
+        return MessageBuilder.createMessage(body, accessor.getMessageHeaders());
+    }
+
+    /**
+     * Whether the frame is an envelope, the messages of the previous versions are JSON documents.
+     */
+    public static boolean isEnvelope(byte[] frame) {
+        return frame.length >= 2 && frame[0] == MAGIC;
+    }
+
+    public static RelayEnvelope decode(byte[] frame) {
+        if (!isEnvelope(frame) || frame[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported relay envelope");
+        }
+        int[] position = {2};
+        int destinationLength = readVarint(frame, position);
+        var destination = new String(frame, position[0], destinationLength, StandardCharsets.UTF_8);
+        position[0] += destinationLength;
+        int contentTypeLength = readVarint(frame, position);
+        String contentType = null;
+        if (contentTypeLength > 0) {
+            contentType = new String(frame, position[0], contentTypeLength - 1, StandardCharsets.UTF_8);
+            position[0] += contentTypeLength - 1;
+        }
+        return new RelayEnvelope(destination, contentType, Arrays.copyOfRange(frame, position[0], frame.length));
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] frame, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            frame[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        frame[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readVarint(byte[] frame, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= frame.length) {
+                throw new IllegalArgumentException("Truncated relay envelope");
+            }
+            byte b = frame[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed relay envelope varint");
+    }
+}
@@ -6,7 +6,6 @@ import com.sojka.pomeranian.chat.service.cache.SessionCache;
 import com.sojka.pomeranian.lib.util.DateTimeUtils;
 import com.sojka.pomeranian.security.model.Role;
 import com.sojka.pomeranian.security.model.User;
-import com.sojka.pomeranian.security.repository.UserRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.event.EventListener;
@@ -30,7 +29,7 @@ public class SessionTracker {
     private final SessionCache cache;
     private final StompRequestAuthenticator requestAuthenticator;
     private final StompRequestAuthenticator authenticator;
-    private final UserRepository userRepository;
+    private final LoginStateBuffer loginStateBuffer;
 
     @EventListener
     public void handleSessionConnected(SessionConnectedEvent event) {
@@ -40,7 +39,7 @@ public class SessionTracker {
             User user = requestAuthenticator.getUser(event);
             boolean isCreated = cache.create(user.getId(), simpSessionId);
             if (isCreated) {
-                userRepository.updateLastLoginAtAndIsOnline(user.getId(), DateTimeUtils.getCurrentInstant(), true);
+                loginStateBuffer.add(user.getId(), DateTimeUtils.getCurrentInstant(), true);
                 log.debug("Online: userId={}", user.getId());
             } else {
                 log.debug("Already online: userId={}", user.getId());
@@ -56,7 +55,7 @@ public class SessionTracker {
         try {
             var userId = cache.remove(event.getSessionId());
             if (userId != null) {
-                userRepository.updateLastLoginAtAndIsOnline(userId, DateTimeUtils.getCurrentInstant(), false);
+                loginStateBuffer.add(userId, DateTimeUtils.getCurrentInstant(), false);
                 log.debug("Offline: userId={}", userId);
             } else {
                 log.debug("SessionId={} already online", event.getSessionId());
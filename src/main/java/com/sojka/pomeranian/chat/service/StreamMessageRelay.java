@@ -0,0 +1,343 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.config.StompRequestAuthenticator;
+import com.sojka.pomeranian.chat.service.cache.PresenceNode;
+import com.sojka.pomeranian.chat.service.cache.RedisSessionCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.stream.StreamMessageListenerContainer;
+import org.springframework.data.redis.stream.StreamMessageListenerContainer.StreamMessageListenerContainerOptions;
+import org.springframework.data.redis.stream.StreamMessageListenerContainer.StreamReadRequest;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+import static com.sojka.pomeranian.chat.config.AsyncConfig.MESSAGE_PIPELINE_EXECUTOR;
+import static com.sojka.pomeranian.chat.service.RelayEnvelope.RELAY_ID_HEADER;
+import static com.sojka.pomeranian.chat.service.cache.PresenceNode.BROADCAST_STREAM_KEY;
+import static com.sojka.pomeranian.chat.service.cache.PresenceNode.RELAY_PREFIX;
+
+/**
+ * Redis Streams implementation of {@link MessageRelay}:<pre>
+ * relay:node:{nodeId}       stream of the envelopes routed to the instance sessions, read by its own group
+ * relay:broadcast           stream of the broadcast envelopes, read by a group of every instance
+ * relay:d:{destination}     stream of the envelopes of the user destination, kept for the replay
+ * </pre>
+ * The groups keep the read offsets in Redis, so an instance briefly disconnected from Redis reads the envelopes
+ * appended in the meantime instead of missing them. The groups are named by the node id, an instance restarted
+ * with a stable {@code node-id} keeps them and resumes reading where its previous run stopped, a new group starts
+ * at the latest envelope. The sessions of the previous run are gone though, their clients reconnect and get the
+ * envelopes they missed only by the {@code relay-since} replay, the same as after a restart longer than the lease,
+ * which sweeps the instance stream and its broadcast group.<br>
+ * Every user destination envelope is kept with its stream id sent in the {@code relay-id} header. A client
+ * subscribing with the last id it received in the {@code relay-since} header gets the newer kept envelopes of the
+ * destination, so a reconnect within the {@code replay-ttl-seconds} window doesn't require reloading the whole
+ * conversation. The live and the replayed envelopes might overlap, the clients drop the ids they already have.<br>
+ * Only the destinations of the subscribing user are replayed, read on the message pipeline executor instead of the
+ * inbound channel thread.
+ */
+@Slf4j
+@Component
+@ConditionalOnExpression("${pomeranian.chat.redis-enabled:false} and '${pomeranian.chat.relay-mode:pubsub}' == 'streams'")
+public class StreamMessageRelay implements MessageRelay {
+
+    public static final String RELAY_SINCE_HEADER = "relay-since";
+    private static final Pattern RELAY_ID = Pattern.compile("\\d+-\\d+");
+    private static final String FRAME_FIELD = "f";
+    private static final String ID_FIELD = "id";
+    private static final String BUSY_GROUP = "BUSYGROUP";
+    private static final byte[] FRAME_FIELD_BYTES = FRAME_FIELD.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NODE_STREAM_PREFIX = (RELAY_PREFIX + "node:{").getBytes(StandardCharsets.UTF_8);
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ROUTE = RedisScript.of("""
+            local replay = KEYS[#KEYS]
+            local relayId = redis.call('XADD', replay, 'MAXLEN', '~', ARGV[5], '*', 'f', ARGV[1])
+            redis.call('EXPIRE', replay, ARGV[6])
+            local routed = {}
+            local result = {0, 0, relayId}
+            for i = 1, #KEYS - 1 do
+                for _, nodeId in ipairs(redis.call('HKEYS', KEYS[i])) do
+                    if not routed[nodeId] then
+                        routed[nodeId] = true
+                        if nodeId == ARGV[2] then
+                            result[1] = 1
+                        else
+                            redis.call('XADD', ARGV[3] .. nodeId .. '}', 'MAXLEN', '~', ARGV[4], '*',
+                                    'f', ARGV[1], 'id', relayId)
+                            result[2] = result[2] + 1
+                        end
+                    end
+                end
+            end
+            return result""", List.class);
+    private static final RedisScript<String> BROADCAST = RedisScript.of("""
+            return redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[2], '*', 'f', ARGV[1])""", String.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisConnectionFactory connectionFactory;
+    private final PresenceNode node;
+    private final SimpMessagingTemplate template;
+    private final MessageChannel clientOutboundChannel;
+    private final StompRequestAuthenticator authenticator;
+    private final Executor replayExecutor;
+    private final ChatConfig.RelayStream config;
+    private final byte[] nodeIdBytes;
+    private final byte[] nodeMaxLength;
+    private final byte[] replayMaxLength;
+    private final byte[] replayTtlSeconds;
+    private final Counter replayedCounter;
+    private StreamMessageListenerContainer<String, MapRecord<String, String, byte[]>> container;
+
+    public StreamMessageRelay(
+            StringRedisTemplate redisTemplate,
+            RedisConnectionFactory connectionFactory,
+            PresenceNode node,
+            SimpMessagingTemplate template,
+            @Qualifier("clientOutboundChannel") MessageChannel clientOutboundChannel,
+            StompRequestAuthenticator authenticator,
+            @Qualifier(MESSAGE_PIPELINE_EXECUTOR) Executor replayExecutor,
+            ChatConfig config,
+            MeterRegistry meterRegistry
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.connectionFactory = connectionFactory;
+        this.node = node;
+        this.template = template;
+        this.clientOutboundChannel = clientOutboundChannel;
+        this.authenticator = authenticator;
+        this.replayExecutor = replayExecutor;
+        this.config = config.getRelayStream();
+        this.nodeIdBytes = node.getNodeId().getBytes(StandardCharsets.UTF_8);
+        this.nodeMaxLength = bytes(this.config.getNodeMaxLength());
+        this.replayMaxLength = bytes(this.config.getReplayMaxLength());
+        this.replayTtlSeconds = bytes(this.config.getReplayTtlSeconds());
+        this.replayedCounter = Counter.builder("pomeranian.chat.relay.replayed")
+                .description("Envelopes replayed to the resubscribing sessions")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Creates the missing groups of this instance and starts reading its stream and the broadcast stream.
+     */
+    @PostConstruct
+    public void start() {
+        createGroup(node.getStreamKey());
+        createGroup(BROADCAST_STREAM_KEY);
+        StreamMessageListenerContainerOptions<String, MapRecord<String, String, byte[]>> options =
+                StreamMessageListenerContainerOptions.builder()
+                        .pollTimeout(Duration.ofMillis(config.getPollTimeoutMs()))
+                        .batchSize(config.getBatchSize())
+                        .<String, byte[]>hashValueSerializer(RedisSerializer.byteArray())
+                        .build();
+        container = StreamMessageListenerContainer.create(connectionFactory, options);
+        container.register(readRequest(node.getStreamKey()), this::forward);
+        container.register(readRequest(BROADCAST_STREAM_KEY), this::forward);
+        container.start();
+        log.info("Started the streams relay of nodeId={}", node.getNodeId());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (container != null) {
+            container.stop();
+        }
+    }
+
+    @Override
+    public Route route(Collection<UUID> userIds, RelayEnvelope envelope) {
+        List<String> keys = new ArrayList<>(userIds.size() + 1);
+        userIds.forEach(userId -> keys.add(RedisSessionCache.nodesKey(userId)));
+        keys.add(replayKey(envelope.destination()));
+        List<?> result = redisTemplate.execute(
+                ROUTE,
+                RedisSerializer.byteArray(),
+                null,
+                keys,
+                envelope.encode(), nodeIdBytes, NODE_STREAM_PREFIX, nodeMaxLength, replayMaxLength, replayTtlSeconds
+        );
+        if (result == null || result.size() < 3) {
+            return new Route(false, 0, null);
+        }
+        return new Route(
+                (Long) result.get(0) == 1,
+                ((Long) result.get(1)).intValue(),
+                new String((byte[]) result.get(2), StandardCharsets.UTF_8)
+        );
+    }
+
+    @Override
+    public void broadcast(RelayEnvelope envelope) {
+        redisTemplate.execute(
+                BROADCAST, RedisSerializer.byteArray(), null, List.of(BROADCAST_STREAM_KEY),
+                envelope.encode(), nodeMaxLength
+        );
+    }
+
+    /**
+     * Replays the kept envelopes of the destination newer than the {@code relay-since} header to the subscribing
+     * session only, if the session user is one of the destination users.
+     */
+    @EventListener
+    public void handleSessionSubscribe(SessionSubscribeEvent event) {
+        var accessor = StompHeaderAccessor.wrap(event.getMessage());
+        String since = accessor.getFirstNativeHeader(RELAY_SINCE_HEADER);
+        String destination = accessor.getDestination();
+        if (since == null || destination == null) {
+            return;
+        }
+        if (!RELAY_ID.matcher(since).matches()) {
+            log.debug("Invalid {} header: {}", RELAY_SINCE_HEADER, since);
+            return;
+        }
+        if (!isDestinationUser(event, accessor, destination)) {
+            log.warn("Rejected the replay of a foreign destination={}, simpSessionId={}",
+                    destination, accessor.getSessionId());
+            return;
+        }
+        try {
+            replayExecutor.execute(() -> replay(accessor, destination, since));
+        } catch (Exception e) {
+            log.warn("Failed to schedule the replay of destination={} since={}: {}", destination, since, e.getMessage());
+        }
+    }
+
+    private boolean isDestinationUser(SessionSubscribeEvent event, StompHeaderAccessor accessor, String destination) {
+        try {
+            var user = authenticator.getUser(event, accessor);
+            return user != null && RedisWebSocketService.userIds(destination).contains(user.getId());
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    private void replay(StompHeaderAccessor accessor, String destination, String since) {
+        try {
+            byte[] key = replayKey(destination).getBytes(StandardCharsets.UTF_8);
+            List<ByteRecord> records = redisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xRange(
+                            key,
+                            Range.rightUnbounded(Range.Bound.exclusive(since)),
+                            Limit.limit().count(config.getReplayMaxLength())
+                    ));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            for (ByteRecord record : records) {
+                replay(accessor, destination, record);
+            }
+            replayedCounter.increment(records.size());
+            log.debug("Replayed {} envelopes: destination={}, simpSessionId={}, since={}",
+                    records.size(), destination, accessor.getSessionId(), since);
+        } catch (Exception e) {
+            log.warn("Failed to replay destination={} since={}", destination, since, e);
+        }
+    }
+
+    private void replay(StompHeaderAccessor subscribe, String destination, ByteRecord record) {
+        byte[] frame = record.getValue().entrySet().stream()
+                .filter(field -> Arrays.equals(field.getKey(), FRAME_FIELD_BYTES))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse(null);
+        if (frame == null) {
+            return;
+        }
+        var envelope = RelayEnvelope.decode(frame);
+        var accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(subscribe.getSessionId());
+        accessor.setSubscriptionId(subscribe.getSubscriptionId());
+        accessor.setDestination(destination);
+        if (envelope.contentType() != null) {
+            accessor.setContentType(MimeTypeUtils.parseMimeType(envelope.contentType()));
+        }
+        accessor.setNativeHeader(RELAY_ID_HEADER, record.getId().getValue());
+        accessor.setLeaveMutable(true);
+        clientOutboundChannel.send(MessageBuilder.createMessage(envelope.body(), accessor.getMessageHeaders()));
+    }
+
+    private void forward(MapRecord<String, String, byte[]> record) {
+        try {
+            var envelope = RelayEnvelope.decode(record.getValue().get(FRAME_FIELD));
+            byte[] relayId = record.getValue().get(ID_FIELD);
+            template.send(envelope.destination(),
+                    envelope.toMessage(relayId == null ? null : new String(relayId, StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            log.error("Failed to forward from Redis stream={}, id={}", record.getStream(), record.getId(), e);
+        }
+    }
+
+    /**
+     * Reads the new envelopes of the instance group, the group offset is kept when the read fails, so the reading
+     * resumes where it stopped once Redis is reachable again.
+     */
+    private StreamReadRequest<String> readRequest(String key) {
+        return StreamReadRequest.builder(StreamOffset.create(key, ReadOffset.lastConsumed()))
+                .errorHandler(e -> log.warn("Failed to read stream={}: {}", key, e.getMessage()))
+                .cancelOnError(e -> false)
+                .consumer(Consumer.from(node.getNodeId(), node.getNodeId()))
+                .autoAcknowledge(true)
+                .build();
+    }
+
+    /**
+     * Creates the group at the latest envelope, an existing group of a previous run keeps its offset.
+     */
+    private void createGroup(String key) {
+        try {
+            redisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(key.getBytes(StandardCharsets.UTF_8), node.getNodeId(), ReadOffset.latest(), true));
+        } catch (RedisSystemException e) {
+            if (e.getMostSpecificCause().getMessage() == null
+                || !e.getMostSpecificCause().getMessage().startsWith(BUSY_GROUP)) {
+                throw e;
+            }
+            log.info("Resuming the existing group of nodeId={} on stream={}", node.getNodeId(), key);
+        }
+    }
+
+    static String replayKey(String destination) {
+        return RELAY_PREFIX + "d:{" + destination + "}";
+    }
+
+    private static byte[] bytes(int value) {
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+    }
+}
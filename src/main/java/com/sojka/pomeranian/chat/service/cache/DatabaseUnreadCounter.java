@@ -0,0 +1,47 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.sojka.pomeranian.chat.repository.ConversationsRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * {@link UnreadCounter} reading the counts straight from Postgres, used when Redis is disabled.<br>
+ * The counts are maintained by the conversations upserts, so the writes are no-ops.
+ */
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(
+        prefix = "pomeranian.chat",
+        name = "redis-enabled",
+        havingValue = "false",
+        matchIfMissing = true
+)
+public class DatabaseUnreadCounter implements UnreadCounter {
+
+    private final ConversationsRepository conversationsRepository;
+
+    @Override
+    public Long total(UUID userId) {
+        return conversationsRepository.sumUnreadCountByUserId(userId);
+    }
+
+    @Override
+    public Long room(UUID userId, UUID recipientId) {
+        return conversationsRepository.findUnreadCountByIdUserIdAndIdRecipientId(userId, recipientId);
+    }
+
+    @Override
+    public void message(UUID senderId, UUID recipientId, boolean recipientRead) {
+    }
+
+    @Override
+    public void reset(UUID userId, UUID recipientId) {
+    }
+
+    @Override
+    public void evict(UUID userId) {
+    }
+}
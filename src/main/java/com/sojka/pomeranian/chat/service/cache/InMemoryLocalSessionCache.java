@@ -1,30 +1,42 @@
 package com.sojka.pomeranian.chat.service.cache;
 
+import com.sojka.pomeranian.astra.dto.ResultsPage;
 import com.sojka.pomeranian.chat.dto.StompSubscription;
 import com.sojka.pomeranian.chat.exception.CacheException;
 import com.sojka.pomeranian.chat.model.ActiveUser;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static com.sojka.pomeranian.chat.service.cache.SubscriptionMembers.member;
+import static com.sojka.pomeranian.chat.service.cache.SubscriptionMembers.toSubscriptions;
+import static com.sojka.pomeranian.chat.service.cache.SubscriptionMembers.type;
 import static com.sojka.pomeranian.lib.util.DateTimeUtils.getCurrentInstant;
 
 /**
- * An in-memory implementation of {@link SessionCache} for tracking active chat users.
- * Uses a thread-safe {@link ConcurrentHashMap.KeySetView} to store user IDs.
+ * An in-memory implementation of {@link SessionCache} for tracking active chat users.<br>
+ * Every user is an immutable {@link UserPresence} snapshot replaced atomically with {@link ConcurrentHashMap#compute},
+ * so the reads never see a half-applied change and the writes of the same user are serialized without locks held
+ * across users. The sessions and subscribers indexes are updated after the user compute, so no other bin is locked
+ * inside it: the subscribers counts are deltas, converging whatever order the concurrent changes land in.<br>
  * Suitable for single-instance deployments; not designed for distributed environments.
- * <p>
  */
 @Slf4j
 @Component
@@ -36,86 +48,114 @@ import static com.sojka.pomeranian.lib.util.DateTimeUtils.getCurrentInstant;
 )
 public class InMemoryLocalSessionCache implements SessionCache {
 
-    private final Map<UUID, ActiveUser> users;
-    private final Map<String, UUID> sessions;
+    private final ConcurrentHashMap<UUID, UserPresence> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, UUID> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<UUID, Integer>> subscribers = new ConcurrentHashMap<>();
 
-    /**
-     * Constructs an instance with a provided map of active users.
-     *
-     * @param users The map to store active user IDs.
-     */
-    public InMemoryLocalSessionCache(Map<UUID, ActiveUser> users, Map<String, UUID> sessions) {
-        this.users = users;
-        this.sessions = sessions;
+    @Override
+    public boolean isOnline(UUID userId, StompSubscription subscription) {
+        var presence = users.get(userId);
+        return presence != null && presence.subscriptions().containsKey(member(subscription));
     }
 
-    @Autowired
-    public InMemoryLocalSessionCache() {
-        this.users = new ConcurrentHashMap<>();
-        this.sessions = new ConcurrentHashMap<>();
+    @Override
+    public boolean isOnline(UUID userId, StompSubscription.Type type) {
+        var presence = users.get(userId);
+        if (presence == null) {
+            return false;
+        }
+        return type == StompSubscription.Type.CHAT_NOTIFICATIONS || presence.subscriptions().containsKey(type.name());
     }
 
     @Override
-    public boolean isOnline(UUID userId, StompSubscription subscription) {
-        ActiveUser activeUser = users.get(userId);
-        if (activeUser != null) {
-            return activeUser.isOnline(subscription);
-        }
-        return false;
+    public Map<UUID, Boolean> isOnlineMany(Collection<UUID> userIds, StompSubscription.Type type) {
+        Map<UUID, Boolean> result = HashMap.newHashMap(userIds.size());
+        userIds.forEach(userId -> result.put(userId, isOnline(userId, type)));
+        return result;
     }
 
     @Override
-    public boolean isOnline(UUID userId, StompSubscription.Type type) {
-        ActiveUser activeUser = users.get(userId);
-        if (activeUser != null) {
-            if (type == StompSubscription.Type.CHAT_NOTIFICATIONS) {
-                return true;
-            }
-            return activeUser.isOnline(type);
+    public Set<UUID> findSubscribers(StompSubscription subscription) {
+        var viewers = subscribers.get(member(subscription));
+        if (viewers == null) {
+            return Set.of();
         }
-        return false;
+        Set<UUID> result = new HashSet<>();
+        viewers.forEach((userId, count) -> {
+            if (count > 0) {
+                result.add(userId);
+            }
+        });
+        return result;
     }
 
     @Override
     public Optional<ActiveUser> get(UUID userId) {
-        return Optional.ofNullable(users.get(userId));
+        return Optional.ofNullable(users.get(userId)).map(presence -> presence.toActiveUser(userId));
     }
 
     @Override
-    public List<ActiveUser> getAll() {
-        return new ArrayList<>(users.values());
+    public Map<UUID, ActiveUser> getMany(Collection<UUID> userIds) {
+        Map<UUID, ActiveUser> result = HashMap.newHashMap(userIds.size());
+        for (UUID userId : userIds) {
+            var presence = users.get(userId);
+            if (presence != null) {
+                result.put(userId, presence.toActiveUser(userId));
+            }
+        }
+        return result;
     }
 
+    /**
+     * Returns a page of the online users ordered by their ids, the page state is the last returned user id.
+     */
     @Override
-    public boolean add(UUID userId, String simpSessionId, List<StompSubscription> subscriptions) {
-        ActiveUser activeUser = users.get(userId);
-        if (activeUser == null) {
-            return false;
+    public ResultsPage<ActiveUser> getAll(String pageState, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Invalid pageSize: " + pageSize);
         }
-        boolean result = true;
-
-        for (ActiveUser.Session session : activeUser.getSessions()) {
-            Map<String, List<String>> sessionSubscriptions = session.getSubscriptions();
-
-            if (session.getSimpSessionId().equals(simpSessionId)) {
-                for (StompSubscription subscription : subscriptions) {
-                    if (sessionSubscriptions.containsKey(subscription.type().name())) {
-                        List<String> ids = sessionSubscriptions.get(subscription.type().name());
-                        if (ids.contains(subscription.id())) {
-                            log.error("Subscription already exists: user_id={}, subscription={}", userId, subscription);
-                            result = false;
-                        }
-                        sessionSubscriptions.get(subscription.type().name()).add(subscription.id());
-                    } else {
-                        List<String> ids = new ArrayList<>();
-                        ids.add(subscription.id());
-                        sessionSubscriptions.put(subscription.type().name(), ids);
-                    }
+        UUID after;
+        try {
+            after = pageState == null || pageState.isEmpty() ? null : UUID.fromString(pageState);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid pageState: " + pageState);
+        }
+        List<ActiveUser> page = users.keySet().stream()
+                .filter(userId -> after == null || userId.compareTo(after) > 0)
+                .sorted()
+                .limit(pageSize)
+                .map(userId -> get(userId).orElse(null))
+                .filter(Objects::nonNull)
+                .toList();
+        String nextPageState = page.size() < pageSize ? null : page.getLast().getUserId().toString();
+        return new ResultsPage<>(page, nextPageState);
+    }
+
+    @Override
+    public boolean add(UUID userId, String simpSessionId, List<StompSubscription> subscriptions) {
+        var result = new AtomicBoolean();
+        Set<String> added = new HashSet<>();
+        users.computeIfPresent(userId, (id, presence) -> {
+            added.clear();
+            var session = presence.sessions().get(simpSessionId);
+            if (session == null) {
+                return presence;
+            }
+            for (StompSubscription subscription : subscriptions) {
+                var member = member(subscription);
+                if (!session.members().contains(member)) {
+                    added.add(member);
                 }
-                return result;
             }
-        }
-        return false;
+            if (added.size() < subscriptions.size()) {
+                log.error("Subscription already exists: user_id={}, subscriptions={}", userId, subscriptions);
+            } else {
+                result.set(true);
+            }
+            return presence.withSubscriptions(simpSessionId, added, Set.of());
+        });
+        added.stream().filter(SubscriptionMembers::hasId).forEach(member -> index(member, userId, 1));
+        return result.get();
     }
 
     @Override
@@ -125,20 +165,14 @@ public class InMemoryLocalSessionCache implements SessionCache {
 
     @Override
     public boolean create(UUID userId, String simpSessionId) {
-        ActiveUser activeUser = users.get(userId);
-        var newSession = new ActiveUser.Session(new HashMap<>(), simpSessionId, getCurrentInstant());
-        if (activeUser == null) {
-            users.put(userId, new ActiveUser(userId, new ArrayList<>(List.of(newSession))));
-        } else {
-            for (ActiveUser.Session session : activeUser.getSessions()) {
-                if (session.getSimpSessionId().equals(simpSessionId)) {
-                    throw new CacheException("User=%s, simpSessionId=%s already online".formatted(userId, simpSessionId));
-                }
-            }
-            activeUser.getSessions().add(newSession);
-            users.put(userId, activeUser);
-        }
         sessions.put(simpSessionId, userId);
+        users.compute(userId, (id, presence) -> {
+            if (presence != null && presence.sessions().containsKey(simpSessionId)) {
+                throw new CacheException("User=%s, simpSessionId=%s already online".formatted(userId, simpSessionId));
+            }
+            return (presence == null ? UserPresence.EMPTY : presence)
+                    .withSession(simpSessionId, new Session(getCurrentInstant(), Set.of()));
+        });
         return true;
     }
 
@@ -148,47 +182,46 @@ public class InMemoryLocalSessionCache implements SessionCache {
         if (userId == null) {
             return null;
         }
-        ActiveUser activeUser = users.get(userId);
-        if (activeUser == null) {
+        var removed = new AtomicReference<UserPresence>();
+        users.computeIfPresent(userId, (id, presence) -> {
+            removed.set(presence);
+            return null;
+        });
+        var presence = removed.get();
+        if (presence == null) {
+            sessions.remove(simpSessionId, userId);
             return null;
-        } else {
-            activeUser.getSessions().stream()
-                    .map(ActiveUser.Session::getSimpSessionId)
-                    .forEach(sessions::remove);
-            users.remove(userId);
-            return userId;
         }
+        presence.sessions().keySet().forEach(sessionId -> sessions.remove(sessionId, userId));
+        presence.subscriptions().forEach((member, count) -> {
+            if (SubscriptionMembers.hasId(member)) {
+                index(member, userId, -count);
+            }
+        });
+        return userId;
     }
 
     @Override
     public boolean remove(UUID userId, String simpSessionId, @NonNull StompSubscription subscription) {
-        ActiveUser activeUser = users.get(userId);
-        if (activeUser != null) {
-            for (ActiveUser.Session session : activeUser.getSessions()) {
-                if (session.getSimpSessionId().equals(simpSessionId)) {
-                    if (subscription.id() == null || subscription.id().isBlank()) {
-                        session.getSubscriptions().remove(subscription.type().name());
-                    } else {
-                        var ids = session.getSubscriptions().get(subscription.type().name());
-                        if (ids == null) {
-                            break;
-                        }
-                        ids = ids.stream()
-                                .filter(id -> !id.equals(subscription.id()))
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        session.getSubscriptions().put(subscription.type().name(), ids);
-
-                        if (ids.isEmpty()) {
-                            session.getSubscriptions().remove(subscription.type().name());
-                        }
-                    }
-                    break;
-                }
+        var result = new AtomicBoolean();
+        Set<String> removed = new HashSet<>();
+        users.computeIfPresent(userId, (id, presence) -> {
+            result.set(true);
+            removed.clear();
+            var session = presence.sessions().get(simpSessionId);
+            if (session == null) {
+                return presence;
             }
-            users.put(userId, activeUser);
-            return true;
-        }
-        return false;
+            if (subscription.id() == null || subscription.id().isBlank()) {
+                var prefix = subscription.type().name() + ":";
+                session.members().stream().filter(member -> member.startsWith(prefix)).forEach(removed::add);
+            } else if (session.members().contains(member(subscription))) {
+                removed.add(member(subscription));
+            }
+            return presence.withSubscriptions(simpSessionId, Set.of(), removed);
+        });
+        removed.stream().filter(SubscriptionMembers::hasId).forEach(member -> index(member, userId, -1));
+        return result.get();
     }
 
     /**
@@ -198,5 +231,78 @@ public class InMemoryLocalSessionCache implements SessionCache {
     public void purge() {
         users.clear();
         sessions.clear();
+        subscribers.clear();
+    }
+
+    /**
+     * Changes the count of the user sessions viewing the subscription, dropping the user at zero.<br>
+     * A decrement may land before its increment, the count stays negative until then and the user isn't a viewer.
+     */
+    private void index(String member, UUID userId, int delta) {
+        subscribers.compute(member, (key, viewers) -> {
+            var result = viewers == null ? new ConcurrentHashMap<UUID, Integer>() : viewers;
+            result.compute(userId, (id, count) -> {
+                int next = (count == null ? 0 : count) + delta;
+                return next != 0 ? next : null;
+            });
+            return result.isEmpty() ? null : result;
+        });
+    }
+
+    /**
+     * The immutable user snapshot.
+     *
+     * @param sessions      the user sessions by the simpSessionId
+     * @param subscriptions the sessions count of each subscription member and each subscription type
+     */
+    record UserPresence(Map<String, Session> sessions, Map<String, Integer> subscriptions) {
+
+        static final UserPresence EMPTY = new UserPresence(Map.of(), Map.of());
+
+        UserPresence withSession(String simpSessionId, Session session) {
+            var updated = new HashMap<>(sessions);
+            updated.put(simpSessionId, session);
+            return new UserPresence(Map.copyOf(updated), subscriptions);
+        }
+
+        UserPresence withSubscriptions(String simpSessionId, Set<String> added, Set<String> removed) {
+            if (added.isEmpty() && removed.isEmpty()) {
+                return this;
+            }
+            var session = sessions.get(simpSessionId);
+            var members = new HashSet<>(session.members());
+            members.addAll(added);
+            members.removeAll(removed);
+            var updatedSessions = new HashMap<>(sessions);
+            updatedSessions.put(simpSessionId, new Session(session.createdAt(), Set.copyOf(members)));
+
+            var counts = new HashMap<>(subscriptions);
+            for (String member : added) {
+                counts.merge(member, 1, Integer::sum);
+                counts.merge(type(member), 1, Integer::sum);
+            }
+            for (String member : removed) {
+                counts.computeIfPresent(member, (key, count) -> count > 1 ? count - 1 : null);
+                counts.computeIfPresent(type(member), (key, count) -> count > 1 ? count - 1 : null);
+            }
+            return new UserPresence(Map.copyOf(updatedSessions), Map.copyOf(counts));
+        }
+
+        ActiveUser toActiveUser(UUID userId) {
+            List<ActiveUser.Session> activeSessions = new ArrayList<>(sessions.size());
+            sessions.forEach((simpSessionId, session) -> activeSessions.add(new ActiveUser.Session(
+                    toSubscriptions(session.members()), simpSessionId, session.createdAt()
+            )));
+            activeSessions.sort(Comparator.comparing(ActiveUser.Session::getCreatedAt));
+            return new ActiveUser(userId, activeSessions);
+        }
+    }
+
+    /**
+     * The immutable session snapshot.
+     *
+     * @param members the {@code TYPE:id} subscription members
+     */
+    record Session(Instant createdAt, Set<String> members) {
     }
 }
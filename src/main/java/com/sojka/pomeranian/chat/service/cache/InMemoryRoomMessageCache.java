@@ -0,0 +1,234 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.dto.MessageKey;
+import com.sojka.pomeranian.chat.model.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-memory, LRU implementation of {@link RoomMessageCache} bounded by the estimated size of the cached messages.
+ * <br>
+ * Suitable for single-instance deployments; not designed for distributed environments.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(
+        prefix = "pomeranian.chat",
+        name = "redis-enabled",
+        havingValue = "false",
+        matchIfMissing = true
+)
+public class InMemoryRoomMessageCache implements RoomMessageCache {
+
+    static final Comparator<Message> NEWEST_FIRST = Comparator.comparing(Message::getCreatedAt).reversed()
+            .thenComparing(Message::getProfileId);
+    private static final int VERSION_STRIPES = 1024;
+    private static final int MESSAGE_OVERHEAD_BYTES = 320;
+
+    private final boolean enabled;
+    private final int pageSize;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Room> rooms = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private long bytes;
+
+    public InMemoryRoomMessageCache(ChatConfig config, MeterRegistry meterRegistry) {
+        this.enabled = config.getMessageCache().isEnabled() && config.getMessages().isBucketedReads();
+        this.pageSize = config.getMessageCache().getPageSize();
+        this.maxBytes = config.getMessageCache().getMaxBytes();
+        this.hitCounter = Counter.builder("pomeranian.chat.messages.cache")
+                .description("Room first page lookups")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("pomeranian.chat.messages.cache")
+                .description("Room first page lookups")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("pomeranian.chat.messages.cache.bytes", this, InMemoryRoomMessageCache::getBytes)
+                .description("Estimated size of the cached messages")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Optional<List<Message>> get(String roomId) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        synchronized (this) {
+            var room = rooms.get(roomId);
+            if (room == null) {
+                missCounter.increment();
+                return Optional.empty();
+            }
+            hitCounter.increment();
+            return Optional.of(room.messages().stream().map(InMemoryRoomMessageCache::copy).toList());
+        }
+    }
+
+    @Override
+    public long version(String roomId) {
+        return versions.get(stripe(roomId));
+    }
+
+    @Override
+    public void populate(String roomId, List<Message> messages, long version) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (versions.get(stripe(roomId)) != version || rooms.containsKey(roomId)) {
+                return;
+            }
+            var cached = messages.stream()
+                    .sorted(NEWEST_FIRST)
+                    .limit(pageSize)
+                    .map(InMemoryRoomMessageCache::copy)
+                    .collect(ArrayList<Message>::new, ArrayList::add, ArrayList::addAll);
+            put(roomId, cached);
+        }
+    }
+
+    @Override
+    public void add(Message message) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            versions.incrementAndGet(stripe(message.getRoomId()));
+            var room = rooms.get(message.getRoomId());
+            if (room == null) {
+                return;
+            }
+            var messages = new ArrayList<>(room.messages());
+            int index = 0;
+            while (index < messages.size() && NEWEST_FIRST.compare(messages.get(index), message) < 0) {
+                index++;
+            }
+            if (index >= pageSize) {
+                return;
+            }
+            messages.add(index, copy(message));
+            if (messages.size() > pageSize) {
+                messages.removeLast();
+            }
+            put(message.getRoomId(), messages);
+        }
+    }
+
+    @Override
+    public void markRead(MessageKey key, Instant readAt) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            versions.incrementAndGet(stripe(key.roomId()));
+            var room = rooms.get(key.roomId());
+            if (room == null) {
+                return;
+            }
+            var readUpTo = Collections.max(key.createdAt());
+            room.messages().stream()
+                    .filter(m -> m.getReadAt() == null && key.profileId().equals(m.getProfileId()))
+                    .filter(m -> !m.getCreatedAt().isAfter(readUpTo))
+                    .forEach(m -> m.setReadAt(readAt));
+        }
+    }
+
+    @Override
+    public void update(Message message) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            versions.incrementAndGet(stripe(message.getRoomId()));
+            var room = rooms.get(message.getRoomId());
+            if (room == null) {
+                return;
+            }
+            var messages = room.messages().stream()
+                    .map(m -> m.getCreatedAt().equals(message.getCreatedAt()) && m.getProfileId().equals(message.getProfileId())
+                            ? copy(message)
+                            : m)
+                    .toList();
+            put(message.getRoomId(), messages);
+        }
+    }
+
+    @Override
+    public synchronized void evict(String roomId) {
+        versions.incrementAndGet(stripe(roomId));
+        var removed = rooms.remove(roomId);
+        if (removed != null) {
+            bytes -= removed.bytes();
+        }
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void put(String roomId, List<Message> messages) {
+        long size = messages.stream().mapToLong(InMemoryRoomMessageCache::estimateBytes).sum();
+        var previous = rooms.put(roomId, new Room(messages, size));
+        bytes += size - (previous != null ? previous.bytes() : 0);
+
+        var eldest = rooms.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            var entry = eldest.next();
+            bytes -= entry.getValue().bytes();
+            eldest.remove();
+            log.trace("Evicted room messages: roomId={}", entry.getKey());
+        }
+    }
+
+    private static int stripe(String roomId) {
+        return Math.floorMod(roomId.hashCode(), VERSION_STRIPES);
+    }
+
+    private static long estimateBytes(Message message) {
+        long size = MESSAGE_OVERHEAD_BYTES;
+        size += 2L * length(message.getContent());
+        size += 2L * length(message.getUsername());
+        size += 2L * length(message.getRecipientUsername());
+        if (message.getMetadata() != null) {
+            for (Map.Entry<String, String> entry : message.getMetadata().entrySet()) {
+                size += 64 + 2L * (length(entry.getKey()) + length(entry.getValue()));
+            }
+        }
+        return size;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static Message copy(Message message) {
+        return message.toBuilder()
+                .metadata(message.getMetadata() == null ? null : new HashMap<>(message.getMetadata()))
+                .build();
+    }
+
+    /**
+     * The cached messages of a room, the latest first.
+     */
+    private record Room(List<Message> messages, long bytes) {
+    }
+}
@@ -0,0 +1,68 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-process cache of the values loaded from a shared store, bounded by size and expiring after write.<br>
+ * Backed by Caffeine, so the reads don't block each other. Every key belongs to a version stripe bumped by the key
+ * invalidation, a load racing with an invalidation of its stripe isn't cached, so a stale value can't outlive the
+ * invalidation, while the loads of the other stripes are kept.
+ */
+final class NearCache<K, V> {
+
+    private static final int STRIPES = 4096;
+
+    private final Cache<K, V> values;
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    NearCache(int maxSize, Duration ttl) {
+        this.values = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .build();
+    }
+
+    V getIfPresent(K key) {
+        return values.getIfPresent(key);
+    }
+
+    /**
+     * Returns the key version, to be read before loading the value to {@link #put(Object, Object, long)}.
+     */
+    long version(K key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * Caches the loaded value, unless the key was invalidated since the {@code version} was read.
+     */
+    void put(K key, V value, long version) {
+        int stripe = stripe(key);
+        values.asMap().compute(key, (k, current) -> versions.get(stripe) == version ? value : current);
+    }
+
+    void invalidate(K key) {
+        versions.incrementAndGet(stripe(key));
+        values.invalidate(key);
+    }
+
+    void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
+        values.invalidateAll();
+    }
+
+    long size() {
+        values.cleanUp();
+        return values.estimatedSize();
+    }
+
+    private static int stripe(Object key) {
+        return Math.floorMod(key.hashCode(), STRIPES);
+    }
+}
@@ -0,0 +1,12 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import java.util.Set;
+
+/**
+ * Published by the {@link PresenceNode} when the instance lease expired and its sessions were swept by another
+ * instance, the sessions have to reconnect to be online again.
+ *
+ * @param simpSessionIds the swept local sessions
+ */
+public record PresenceLeaseLostEvent(Set<String> simpSessionIds) {
+}
@@ -0,0 +1,155 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * An in-process near cache of the users presence read from {@link RedisSessionCache}, see {@link NearCache}.<br>
+ * Entries expire after {@code ttl-ms} and are evicted on every presence change, published by the presence scripts on
+ * the {@link #CHANNEL} so all instances drop the user.<br>
+ * A load racing with an invalidation of the user isn't cached, so a stale presence can't outlive the invalidation.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(
+        prefix = "pomeranian.chat",
+        name = "redis-enabled",
+        havingValue = "true"
+)
+public class PresenceNearCache implements MessageListener {
+
+    public static final String CHANNEL = "presence-invalidation";
+    static final String ALL_USERS = "*";
+
+    private final boolean enabled;
+    private final NearCache<UUID, Presence> users;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    public PresenceNearCache(ChatConfig config, MeterRegistry meterRegistry) {
+        this.enabled = config.getPresenceCache().isEnabled();
+        this.users = new NearCache<>(
+                config.getPresenceCache().getMaxSize(), Duration.ofMillis(config.getPresenceCache().getTtlMs())
+        );
+        this.hitCounter = Counter.builder("pomeranian.chat.presence.cache")
+                .description("Presence near cache lookups")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("pomeranian.chat.presence.cache")
+                .description("Presence near cache lookups")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("pomeranian.chat.presence.cache.size", users, NearCache::size)
+                .description("Users in the presence near cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the cached user presence, or loads and caches it.
+     */
+    public Presence get(UUID userId, Function<UUID, Presence> loader) {
+        if (!enabled) {
+            return loader.apply(userId);
+        }
+        var cached = users.getIfPresent(userId);
+        if (cached != null) {
+            hitCounter.increment();
+            return cached;
+        }
+        missCounter.increment();
+        long version = users.version(userId);
+        var presence = loader.apply(userId);
+        users.put(userId, presence, version);
+        return presence;
+    }
+
+    /**
+     * Returns the cached users presence, the missing ones are loaded and cached with a single loader call.
+     *
+     * @param loader loads the presence of all the given users
+     */
+    public Map<UUID, Presence> getAll(Collection<UUID> userIds, Function<List<UUID>, Map<UUID, Presence>> loader) {
+        if (!enabled) {
+            return loader.apply(List.copyOf(userIds));
+        }
+        Map<UUID, Presence> result = HashMap.newHashMap(userIds.size());
+        Map<UUID, Long> missing = new LinkedHashMap<>();
+        for (UUID userId : userIds) {
+            var cached = users.getIfPresent(userId);
+            if (cached != null) {
+                result.put(userId, cached);
+            } else {
+                missing.put(userId, users.version(userId));
+            }
+        }
+        hitCounter.increment(result.size());
+        if (missing.isEmpty()) {
+            return result;
+        }
+        missCounter.increment(missing.size());
+        var loaded = loader.apply(List.copyOf(missing.keySet()));
+        loaded.forEach((userId, presence) -> users.put(userId, presence, missing.get(userId)));
+        result.putAll(loaded);
+        return result;
+    }
+
+    /**
+     * Evicts the user locally, the other instances are notified by the presence scripts.
+     */
+    public void invalidate(UUID userId) {
+        if (!enabled) {
+            return;
+        }
+        users.invalidate(userId);
+    }
+
+    public void invalidateAll() {
+        if (!enabled) {
+            return;
+        }
+        users.invalidateAll();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        var userId = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (ALL_USERS.equals(userId)) {
+                invalidateAll();
+            } else {
+                invalidate(UUID.fromString(userId));
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring invalid presence invalidation: {}", userId);
+        }
+    }
+
+    /**
+     * The user presence.
+     *
+     * @param connected     whether the user has any session
+     * @param subscriptions the subscriptions of all the user sessions, as types and {@code TYPE:id} members
+     */
+    public record Presence(boolean connected, Set<String> subscriptions) {
+
+        public static final Presence OFFLINE = new Presence(false, Set.of());
+    }
+}
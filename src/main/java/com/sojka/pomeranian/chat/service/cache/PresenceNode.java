@@ -0,0 +1,362 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.config.RedisPubSubConfig;
+import com.sojka.pomeranian.chat.service.LoginStateBuffer;
+import com.sojka.pomeranian.chat.service.MessageRelay.Route;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.sojka.pomeranian.chat.service.cache.RedisSessionCache.ONLINE_KEY;
+import static com.sojka.pomeranian.chat.service.cache.RedisSessionCache.PRESENCE_PREFIX;
+import static com.sojka.pomeranian.chat.service.cache.RedisSessionCache.SESSIONS_KEY;
+import static com.sojka.pomeranian.chat.service.cache.RedisSessionCache.nodesKey;
+import static com.sojka.pomeranian.chat.service.cache.RedisSessionCache.sessionKey;
+import static com.sojka.pomeranian.chat.service.cache.RedisSessionCache.sessionSubscriptionsKey;
+import static com.sojka.pomeranian.chat.service.cache.RedisSessionCache.subscriptionsKey;
+import static com.sojka.pomeranian.chat.service.cache.RedisSessionCache.userKey;
+import static com.sojka.pomeranian.lib.util.DateTimeUtils.getCurrentInstant;
+
+/**
+ * The lease of this instance over the Redis presence sessions it created:<pre>
+ * presence:nodes          sorted set of the instances, nodeId -> lease expiry epoch millis
+ * presence:node:{nodeId}  hash of the instance sessions, simpSessionId -> userId
+ * </pre>
+ * The messages for the instance sessions are published on its own {@link #getChannel() channel}, or appended to its
+ * own {@link #getStreamKey() stream} in the {@code streams} relay mode. The streams of the swept instances are
+ * deleted with them, and their groups on the broadcast stream destroyed.<br>
+ * The {@code node-id} is meant to be stable across the restarts of the instance (the pod name), a restarted
+ * instance then renews the lease it held and sweeps the sessions left by its previous run, keeping its streams.
+ * Without it a random id is generated on every start.<br>
+ * The heartbeat runs on its own scheduler thread, so the other scheduled jobs can't delay it past the lease. It renews
+ * the lease every run and the TTL of the keys of the local sessions every third of the TTL, so the users of a crashed
+ * instance expire even when no instance is left to clean them up.<br>
+ * A lease found lost means the instance sessions were swept, they are closed with a {@link PresenceLeaseLostEvent}
+ * and the clients reconnect into fresh sessions.<br>
+ * Every instance sweeps the sessions of the instances with an expired lease, disconnecting them the same way as
+ * the disconnect script and marking the users without sessions left as offline.<br>
+ * An instance paused for longer than the lease gets swept as well, its sessions are then no longer online.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(
+        prefix = "pomeranian.chat",
+        name = "redis-enabled",
+        havingValue = "true"
+)
+public class PresenceNode {
+
+    static final String NODES_KEY = PRESENCE_PREFIX + "nodes";
+    public static final String RELAY_PREFIX = "relay:";
+    public static final String BROADCAST_STREAM_KEY = RELAY_PREFIX + "broadcast";
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> SWEEP = RedisScript.of("""
+            local function decrement(key, field)
+                if redis.call('HINCRBY', key, field, -1) <= 0 then
+                    redis.call('HDEL', key, field)
+                end
+            end
+            local nodeId = string.match(KEYS[1], '{(.-)}')
+            local batch = tonumber(ARGV[1])
+            local result = {0}
+            local cursor = '0'
+            repeat
+                local page = redis.call('HSCAN', KEYS[1], cursor, 'COUNT', batch)
+                cursor = page[1]
+                for i = 1, #page[2], 2 do
+                    local sessionId, userId = page[2][i], page[2][i + 1]
+                    local userKey = 'presence:u:{' .. userId .. '}'
+                    local sessionSubscriptionsKey = userKey .. ':s:{' .. sessionId .. '}'
+                    if redis.call('HDEL', userKey, sessionId) == 1 then
+                        decrement(userKey .. ':nodes', nodeId)
+                        for _, member in ipairs(redis.call('SMEMBERS', sessionSubscriptionsKey)) do
+                            decrement(userKey .. ':subs', member)
+                            decrement(userKey .. ':subs', string.match(member, '^[^:]+'))
+                            if string.sub(member, -1) ~= ':' then
+                                decrement('presence:sub:{' .. member .. '}', userId)
+                            end
+                        end
+                    end
+                    redis.call('DEL', sessionSubscriptionsKey, 'presence:s:{' .. sessionId .. '}')
+                    redis.call('SREM', KEYS[3], sessionId)
+                    redis.call('HDEL', KEYS[1], sessionId)
+                    if redis.call('EXISTS', userKey) == 0 then
+                        redis.call('DEL', userKey .. ':subs', userKey .. ':nodes')
+                        if redis.call('SREM', KEYS[2], userId) == 1 then
+                            table.insert(result, userId)
+                        end
+                    end
+                    redis.call('PUBLISH', 'presence-invalidation', userId)
+                    result[1] = result[1] + 1
+                end
+            until cursor == '0' or result[1] >= batch
+            return result""", List.class);
+    private static final RedisScript<Long> RELEASE_STREAMS = RedisScript.of("""
+            if redis.call('EXISTS', KEYS[2]) == 1 then
+                redis.call('XGROUP', 'DESTROY', KEYS[2], ARGV[1])
+            end
+            return redis.call('DEL', KEYS[1])""", Long.class);
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> ROUTE = RedisScript.of("""
+            local routed = {}
+            local result = {0, 0}
+            for i = 1, #KEYS do
+                for _, nodeId in ipairs(redis.call('HKEYS', KEYS[i])) do
+                    if not routed[nodeId] then
+                        routed[nodeId] = true
+                        if nodeId == ARGV[2] then
+                            result[1] = 1
+                        else
+                            redis.call('PUBLISH', ARGV[3] .. nodeId, ARGV[1])
+                            result[2] = result[2] + 1
+                        end
+                    end
+                end
+            end
+            return result""", List.class);
+
+    private static final byte[] CHANNEL_PREFIX = channel("").getBytes(StandardCharsets.UTF_8);
+
+    @Getter
+    private final String nodeId;
+    private final boolean stableNodeId;
+    private final byte[] nodeIdBytes;
+    private final Map<String, UUID> localSessions = new ConcurrentHashMap<>();
+    private final StringRedisTemplate redisTemplate;
+    private final LoginStateBuffer loginStateBuffer;
+    private final ApplicationEventPublisher eventPublisher;
+    private final long heartbeatIntervalMs;
+    private final long leaseMs;
+    private final Duration userTtl;
+    private final int sweepBatchSize;
+    private final ThreadPoolTaskScheduler heartbeatScheduler = new ThreadPoolTaskScheduler();
+    private volatile boolean leased;
+    private long ttlRenewedAt;
+
+    public PresenceNode(
+            StringRedisTemplate redisTemplate, LoginStateBuffer loginStateBuffer,
+            ApplicationEventPublisher eventPublisher, ChatConfig config
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.loginStateBuffer = loginStateBuffer;
+        this.eventPublisher = eventPublisher;
+        this.stableNodeId = StringUtils.hasText(config.getPresenceLease().getNodeId());
+        this.nodeId = stableNodeId ? config.getPresenceLease().getNodeId() : UUID.randomUUID().toString();
+        this.nodeIdBytes = nodeId.getBytes(StandardCharsets.UTF_8);
+        this.heartbeatIntervalMs = config.getPresenceLease().getHeartbeatIntervalMs();
+        this.leaseMs = config.getPresenceLease().getLeaseMs();
+        this.userTtl = Duration.ofSeconds(config.getPresenceLease().getUserTtlSeconds());
+        this.sweepBatchSize = config.getPresenceLease().getSweepBatchSize();
+        this.heartbeatScheduler.setThreadNamePrefix("presence-heartbeat-");
+    }
+
+    /**
+     * Takes the lease, a stable node id first renews the lease of its previous run, so the other instances don't
+     * sweep its streams, then sweeps the sessions of the previous run, their connections are gone.
+     */
+    @PostConstruct
+    public void start() {
+        heartbeat();
+        if (stableNodeId) {
+            try {
+                sweepSessions(nodeId);
+            } catch (Exception e) {
+                log.warn("Failed to sweep the previous sessions of nodeId={}: {}", nodeId, e.getMessage());
+            }
+        }
+        var interval = Duration.ofMillis(heartbeatIntervalMs);
+        heartbeatScheduler.initialize();
+        heartbeatScheduler.scheduleWithFixedDelay(this::heartbeat, getCurrentInstant().plus(interval), interval);
+    }
+
+    /**
+     * The TTL of the user keys, refreshed by the heartbeat while the user has a session on a live instance.
+     */
+    public String getUserTtlSeconds() {
+        return String.valueOf(userTtl.toSeconds());
+    }
+
+    public String getNodeKey() {
+        return nodeKey(nodeId);
+    }
+
+    public String getChannel() {
+        return channel(nodeId);
+    }
+
+    public String getStreamKey() {
+        return streamKey(nodeId);
+    }
+
+    /**
+     * Publishes the message on the channels of the other instances holding the users sessions.
+     *
+     * @return whether this instance holds any of the users sessions and the number of the other instances
+     */
+    public Route route(Collection<UUID> userIds, byte[] message) {
+        List<?> result = redisTemplate.execute(
+                ROUTE,
+                RedisSerializer.byteArray(),
+                null,
+                userIds.stream().map(RedisSessionCache::nodesKey).toList(),
+                message, nodeIdBytes, CHANNEL_PREFIX
+        );
+        if (result == null || result.size() < 2) {
+            return new Route(false, 0, null);
+        }
+        return new Route((Long) result.get(0) == 1, ((Long) result.get(1)).intValue(), null);
+    }
+
+    void track(String simpSessionId, UUID userId) {
+        localSessions.put(simpSessionId, userId);
+    }
+
+    void untrack(String simpSessionId) {
+        localSessions.remove(simpSessionId);
+    }
+
+    /**
+     * Renews the instance lease, then every third of the users TTL the TTL of the local sessions keys and their users
+     * keys in a single pipeline, the keys of the sessions created in between got their TTL at creation.<br>
+     * The sessions of a lost lease are closed, their presence was swept meanwhile.
+     */
+    public void heartbeat() {
+        try {
+            long now = getCurrentInstant().toEpochMilli();
+            Set<String> swept = Set.copyOf(localSessions.keySet());
+            Boolean registered = redisTemplate.opsForZSet().add(NODES_KEY, nodeId, now + leaseMs);
+            if (leased && Boolean.TRUE.equals(registered)) {
+                log.warn("Lease of nodeId={} was lost, closing its {} swept sessions", nodeId, swept.size());
+                swept.forEach(localSessions::remove);
+                eventPublisher.publishEvent(new PresenceLeaseLostEvent(swept));
+            }
+            leased = true;
+            if (localSessions.isEmpty() || now - ttlRenewedAt < userTtl.toMillis() / 3) {
+                return;
+            }
+            ttlRenewedAt = now;
+            Set<UUID> userIds = new HashSet<>();
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                var stringConnection = (StringRedisConnection) connection;
+                long ttl = userTtl.toSeconds();
+                localSessions.forEach((simpSessionId, userId) -> {
+                    stringConnection.expire(sessionKey(simpSessionId), ttl);
+                    stringConnection.expire(sessionSubscriptionsKey(userId, simpSessionId), ttl);
+                    if (userIds.add(userId)) {
+                        stringConnection.expire(userKey(userId), ttl);
+                        stringConnection.expire(subscriptionsKey(userId), ttl);
+                        stringConnection.expire(nodesKey(userId), ttl);
+                    }
+                });
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Failed to renew the lease of nodeId={}", nodeId, e);
+        }
+    }
+
+    /**
+     * Sweeps the sessions of the instances with an expired lease.
+     */
+    @Scheduled(fixedDelayString = "${pomeranian.chat.presence-lease.heartbeat-interval-ms:10000}")
+    public void sweep() {
+        try {
+            long now = getCurrentInstant().toEpochMilli();
+            var expired = redisTemplate.opsForZSet().rangeByScore(NODES_KEY, 0, now, 0, sweepBatchSize);
+            if (expired == null) {
+                return;
+            }
+            for (String expiredNodeId : expired) {
+                if (!expiredNodeId.equals(nodeId)) {
+                    sweep(expiredNodeId);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to sweep the expired nodes", e);
+        }
+    }
+
+    /**
+     * Releases the sessions of this instance on a graceful shutdown, without waiting for the lease to expire.
+     */
+    @PreDestroy
+    public void release() {
+        heartbeatScheduler.shutdown();
+        try {
+            sweep(nodeId);
+        } catch (Exception e) {
+            log.warn("Failed to release the sessions of nodeId={}: {}", nodeId, e.getMessage());
+        }
+    }
+
+    /**
+     * Disconnects the node sessions, then deletes its stream with its group on the broadcast stream and its lease.
+     */
+    private void sweep(String sweptNodeId) {
+        sweepSessions(sweptNodeId);
+        redisTemplate.execute(RELEASE_STREAMS, List.of(streamKey(sweptNodeId), BROADCAST_STREAM_KEY), sweptNodeId);
+        redisTemplate.opsForZSet().remove(NODES_KEY, sweptNodeId);
+    }
+
+    /**
+     * Disconnects the node sessions in batches, the users left without sessions are marked offline.
+     */
+    private void sweepSessions(String sweptNodeId) {
+        var keys = List.of(nodeKey(sweptNodeId), ONLINE_KEY, SESSIONS_KEY);
+        int sessions = 0;
+        int offline = 0;
+        List<?> result;
+        do {
+            result = redisTemplate.execute(SWEEP, keys, String.valueOf(sweepBatchSize));
+            if (result == null || result.isEmpty()) {
+                break;
+            }
+            sessions += ((Long) result.getFirst()).intValue();
+            for (Object userId : result.subList(1, result.size())) {
+                loginStateBuffer.add(UUID.fromString((String) userId), getCurrentInstant(), false);
+                offline++;
+            }
+        } while ((Long) result.getFirst() > 0);
+        redisTemplate.delete(nodeKey(sweptNodeId));
+        log.info("Swept nodeId={}: sessions={}, offline users={}", sweptNodeId, sessions, offline);
+    }
+
+    static String nodeKey(String nodeId) {
+        return PRESENCE_PREFIX + "node:{" + nodeId + "}";
+    }
+
+    static String channel(String nodeId) {
+        return RedisPubSubConfig.CHANNEL_NAME + ":" + nodeId;
+    }
+
+    /**
+     * The stream of the envelopes routed to the instance sessions in the {@code streams} relay mode.
+     */
+    public static String streamKey(String nodeId) {
+        return RELAY_PREFIX + "node:{" + nodeId + "}";
+    }
+}
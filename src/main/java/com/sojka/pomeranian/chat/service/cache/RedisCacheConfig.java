@@ -3,6 +3,8 @@ package com.sojka.pomeranian.chat.service.cache;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cache.annotation.EnableCaching;
@@ -11,11 +13,13 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.cache.RedisCacheConfiguration;
 import org.springframework.data.redis.cache.RedisCacheManager;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 import java.time.Duration;
+import java.util.Set;
 
 import static com.sojka.pomeranian.security.util.SecurityConstants.USERS_CACHE_VALUE;
 
@@ -29,9 +33,28 @@ import static com.sojka.pomeranian.security.util.SecurityConstants.USERS_CACHE_V
 )
 public class RedisCacheConfig {
 
-    // TODO: move to lib and reuse in main
+    /**
+     * The user details are looked up on every STOMP CONNECT and REST request, they are kept in the in-process level 1
+     * in front of Redis when {@code pomeranian.chat.user-cache.enabled}.
+     */
     @Bean
-    public RedisCacheManager cacheManager(RedisConnectionFactory connectionFactory) {
+    public TwoLevelCacheManager cacheManager(RedisConnectionFactory connectionFactory,
+                                             StringRedisTemplate redisTemplate,
+                                             ChatConfig config,
+                                             MeterRegistry meterRegistry) {
+        var userCache = config.getUserCache();
+        return new TwoLevelCacheManager(
+                redisCacheManager(connectionFactory),
+                userCache.isEnabled() ? Set.of(USERS_CACHE_VALUE) : Set.of(),
+                userCache.getMaxSize(),
+                userCache.getTtlMs(),
+                redisTemplate,
+                meterRegistry
+        );
+    }
+
+    // TODO: move to lib and reuse in main
+    private RedisCacheManager redisCacheManager(RedisConnectionFactory connectionFactory) {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
         objectMapper.activateDefaultTyping(
@@ -48,9 +71,11 @@ public class RedisCacheConfig {
                 .prefixCacheNameWith("pomeranian:")
                 .disableCachingNullValues();
 
-        return RedisCacheManager.builder(connectionFactory)
+        RedisCacheManager cacheManager = RedisCacheManager.builder(connectionFactory)
                 .cacheDefaults(defaultConfig)
                 .withCacheConfiguration(USERS_CACHE_VALUE, defaultConfig.entryTtl(Duration.ofMinutes(15)))
                 .build();
+        cacheManager.afterPropertiesSet();
+        return cacheManager;
     }
 }
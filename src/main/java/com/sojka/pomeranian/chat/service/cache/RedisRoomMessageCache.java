@@ -0,0 +1,279 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.dto.MessageKey;
+import com.sojka.pomeranian.chat.model.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static com.sojka.pomeranian.chat.service.cache.InMemoryRoomMessageCache.NEWEST_FIRST;
+
+/**
+ * Redis implementation of {@link RoomMessageCache}, shares the cached rooms between the instances.<br>
+ * A room is a sorted set of JSON messages scored by their creation time, so a message acknowledged out of order still
+ * lands in its place, expiring after {@code ttl-seconds} of inactivity, along with its version counter. All the
+ * writes are Lua scripts, so they are atomic with the version bump. The mark-read resolves the unread messages first
+ * and marks them by their keys.<br>
+ * Cache failures are logged and treated as misses, the database stays the source of truth.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(
+        prefix = "pomeranian.chat",
+        name = "redis-enabled",
+        havingValue = "true"
+)
+public class RedisRoomMessageCache implements RoomMessageCache {
+
+    /**
+     * The sorted set rooms have their own prefix, the list rooms of the previous version expire on their own.
+     */
+    private static final String KEY_PREFIX = "messages:z:{";
+
+    private static final RedisScript<Long> POPULATE = RedisScript.of("""
+            local current = redis.call('GET', KEYS[2]) or '0'
+            if current ~= ARGV[1] or redis.call('EXISTS', KEYS[1]) == 1 then
+                return 0
+            end
+            redis.call('ZADD', KEYS[1], unpack(ARGV, 3))
+            redis.call('EXPIRE', KEYS[1], ARGV[2])
+            return 1""", Long.class);
+    private static final RedisScript<Long> ADD = RedisScript.of("""
+            redis.call('INCR', KEYS[2])
+            redis.call('EXPIRE', KEYS[2], ARGV[4])
+            if redis.call('EXISTS', KEYS[1]) == 0 then
+                return 0
+            end
+            redis.call('ZADD', KEYS[1], ARGV[1], ARGV[2])
+            redis.call('ZREMRANGEBYRANK', KEYS[1], 0, -tonumber(ARGV[3]) - 1)
+            redis.call('EXPIRE', KEYS[1], ARGV[4])
+            return 1""", Long.class);
+    private static final RedisScript<Long> MARK_READ = RedisScript.of("""
+            redis.call('INCR', KEYS[2])
+            redis.call('EXPIRE', KEYS[2], ARGV[3])
+            local targets = {}
+            for i = 4, #ARGV do
+                targets[ARGV[i]] = true
+            end
+            local updated = 0
+            local items = redis.call('ZRANGE', KEYS[1], 0, -1, 'WITHSCORES')
+            for i = 1, #items, 2 do
+                local message = cjson.decode(items[i])
+                if message.profileId == ARGV[1] and targets[message.createdAt] and message.readAt == cjson.null then
+                    message.readAt = ARGV[2]
+                    redis.call('ZREM', KEYS[1], items[i])
+                    redis.call('ZADD', KEYS[1], items[i + 1], cjson.encode(message))
+                    updated = updated + 1
+                end
+            end
+            return updated""", Long.class);
+    private static final RedisScript<Long> UPDATE = RedisScript.of("""
+            redis.call('INCR', KEYS[2])
+            redis.call('EXPIRE', KEYS[2], ARGV[3])
+            local items = redis.call('ZRANGE', KEYS[1], 0, -1, 'WITHSCORES')
+            for i = 1, #items, 2 do
+                local message = cjson.decode(items[i])
+                if message.createdAt == ARGV[1] and message.profileId == ARGV[2] then
+                    redis.call('ZREM', KEYS[1], items[i])
+                    redis.call('ZADD', KEYS[1], items[i + 1], ARGV[4])
+                    return 1
+                end
+            end
+            return 0""", Long.class);
+    private static final RedisScript<Long> EVICT = RedisScript.of("""
+            redis.call('DEL', KEYS[1])
+            redis.call('INCR', KEYS[2])
+            redis.call('EXPIRE', KEYS[2], ARGV[1])
+            return 1""", Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final ObjectMapper mapper;
+    private final boolean enabled;
+    private final int pageSize;
+    private final String ttlSeconds;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    public RedisRoomMessageCache(
+            StringRedisTemplate redisTemplate, ObjectMapper mapper, ChatConfig config, MeterRegistry meterRegistry
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.mapper = mapper;
+        this.enabled = config.getMessageCache().isEnabled() && config.getMessages().isBucketedReads();
+        this.pageSize = config.getMessageCache().getPageSize();
+        this.ttlSeconds = String.valueOf(config.getMessageCache().getTtlSeconds());
+        this.hitCounter = Counter.builder("pomeranian.chat.messages.cache")
+                .description("Room first page lookups")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("pomeranian.chat.messages.cache")
+                .description("Room first page lookups")
+                .tag("result", "miss")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Optional<List<Message>> get(String roomId) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        try {
+            var messages = read(roomId);
+            if (messages.isEmpty()) {
+                missCounter.increment();
+                return Optional.empty();
+            }
+            hitCounter.increment();
+            return Optional.of(messages);
+        } catch (Exception e) {
+            log.warn("Failed to read cached messages of room_id={}: {}", roomId, e.getMessage());
+            missCounter.increment();
+            return Optional.empty();
+        }
+    }
+
+    private List<Message> read(String roomId) throws JsonProcessingException {
+        var items = redisTemplate.opsForZSet().reverseRange(roomKey(roomId), 0, -1);
+        if (items == null || items.isEmpty()) {
+            return List.of();
+        }
+        List<Message> messages = new ArrayList<>(items.size());
+        for (String item : items) {
+            messages.add(mapper.readValue(item, Message.class));
+        }
+        messages.sort(NEWEST_FIRST);
+        return messages;
+    }
+
+    @Override
+    public long version(String roomId) {
+        if (!enabled) {
+            return 0;
+        }
+        try {
+            var version = redisTemplate.opsForValue().get(versionKey(roomId));
+            return version == null ? 0 : Long.parseLong(version);
+        } catch (Exception e) {
+            log.warn("Failed to read version of room_id={}: {}", roomId, e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    public void populate(String roomId, List<Message> messages, long version) {
+        if (!enabled || messages.isEmpty() || version < 0) {
+            return;
+        }
+        List<Object> args = new ArrayList<>(2 * messages.size() + 2);
+        args.add(String.valueOf(version));
+        args.add(ttlSeconds);
+        try {
+            for (Message message : messages.stream().sorted(NEWEST_FIRST).limit(pageSize).toList()) {
+                args.add(score(message));
+                args.add(toJson(message));
+            }
+            execute(POPULATE, roomId, args.toArray());
+        } catch (Exception e) {
+            log.warn("Failed to cache messages of room_id={}: {}", roomId, e.getMessage());
+        }
+    }
+
+    @Override
+    public void add(Message message) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            execute(ADD, message.getRoomId(), score(message), toJson(message), String.valueOf(pageSize), ttlSeconds);
+        } catch (Exception e) {
+            log.warn("Failed to cache message of room_id={}, evicting: {}", message.getRoomId(), e.getMessage());
+            evict(message.getRoomId());
+        }
+    }
+
+    @Override
+    public void markRead(MessageKey key, Instant readAt) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            var readUpTo = Collections.max(key.createdAt());
+            var unread = read(key.roomId()).stream()
+                    .filter(m -> m.getReadAt() == null && key.profileId().equals(m.getProfileId()))
+                    .filter(m -> !m.getCreatedAt().isAfter(readUpTo))
+                    .toList();
+            List<Object> args = new ArrayList<>(unread.size() + 3);
+            args.add(key.profileId().toString());
+            args.add(readAt.toString());
+            args.add(ttlSeconds);
+            unread.forEach(m -> args.add(m.getCreatedAt().toString()));
+            execute(MARK_READ, key.roomId(), args.toArray());
+        } catch (Exception e) {
+            log.warn("Failed to mark cached messages read of room_id={}, evicting: {}", key.roomId(), e.getMessage());
+            evict(key.roomId());
+        }
+    }
+
+    @Override
+    public void update(Message message) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            execute(UPDATE, message.getRoomId(), message.getCreatedAt().toString(), message.getProfileId().toString(),
+                    ttlSeconds, toJson(message));
+        } catch (Exception e) {
+            log.warn("Failed to update cached message of room_id={}, evicting: {}", message.getRoomId(), e.getMessage());
+            evict(message.getRoomId());
+        }
+    }
+
+    @Override
+    public void evict(String roomId) {
+        try {
+            execute(EVICT, roomId, ttlSeconds);
+        } catch (Exception e) {
+            log.error("Failed to evict cached messages of room_id={}", roomId, e);
+        }
+    }
+
+    private void execute(RedisScript<Long> script, String roomId, Object... args) {
+        redisTemplate.execute(script, List.of(roomKey(roomId), versionKey(roomId)), args);
+    }
+
+    /**
+     * The creation time in microseconds, exact within the double precision of the sorted set scores.
+     */
+    private static String score(Message message) {
+        var createdAt = message.getCreatedAt();
+        return String.valueOf(createdAt.getEpochSecond() * 1_000_000 + createdAt.getNano() / 1_000);
+    }
+
+    private String toJson(Message message) throws JsonProcessingException {
+        return mapper.writeValueAsString(message);
+    }
+
+    /**
+     * The room keys share the hash tag, so the scripts touch a single Redis Cluster slot.
+     */
+    private static String roomKey(String roomId) {
+        return KEY_PREFIX + roomId + "}";
+    }
+
+    private static String versionKey(String roomId) {
+        return KEY_PREFIX + roomId + "}:v";
+    }
+}
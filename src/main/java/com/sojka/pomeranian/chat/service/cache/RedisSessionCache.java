@@ -1,5 +1,6 @@
 package com.sojka.pomeranian.chat.service.cache;
 
+import com.sojka.pomeranian.astra.dto.ResultsPage;
 import com.sojka.pomeranian.chat.dto.StompSubscription;
 import com.sojka.pomeranian.chat.exception.CacheException;
 import com.sojka.pomeranian.chat.model.ActiveUser;
@@ -7,13 +8,19 @@ import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.data.redis.core.Cursor;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.core.RedisCallback;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -23,9 +30,36 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
-import static com.sojka.pomeranian.chat.config.cache.RedisConfig.ACTIVE_USER_PREFIX;
+import static com.sojka.pomeranian.chat.service.cache.SubscriptionMembers.member;
+import static com.sojka.pomeranian.chat.service.cache.SubscriptionMembers.toSubscriptions;
 import static com.sojka.pomeranian.lib.util.DateTimeUtils.getCurrentInstant;
 
+/**
+ * Redis implementation of {@link SessionCache}, the presence is kept in per-user hashes and sets:<pre>
+ * presence:u:{userId}          hash of the user sessions, simpSessionId -> created at epoch millis
+ * presence:u:{userId}:subs     hash of the subscriptions counts, TYPE -> count and TYPE:id -> count
+ * presence:u:{userId}:s:{sid}  set of the session subscriptions, TYPE:id members
+ * presence:u:{userId}:nodes    hash of the instances holding the user sessions, nodeId -> sessions count
+ * presence:s:{sid}             the session user id
+ * presence:online              set of the online users ids
+ * presence:sessions            set of the live sessions ids
+ * presence:sub:{TYPE:id}       hash of the subscription viewers, userId -> sessions count, only the members with an id
+ * </pre>
+ * The sessions are owned by the {@link PresenceNode} that created them, the user keys expire unless the owning
+ * instances keep refreshing them and the sessions of the crashed instances are swept by the live ones.<br>
+ * The user nodes hash is the routing registry of the {@link com.sojka.pomeranian.chat.service.RedisWebSocketService},
+ * the user messages are published only to the instances holding the user sessions.<br>
+ * Every mutation is a single Lua script, so concurrent subscribes of the user's sessions don't overwrite each other,
+ * and the presence checks are a single {@code HEXISTS} without reading the whole user.<br>
+ * The online users and sessions sets are indexes maintained by the same scripts, listing and purging the users walks
+ * them with {@code SSCAN} pages instead of scanning the whole keyspace.<br>
+ * Every presence change is published on the {@link PresenceNearCache#CHANNEL} by the same script, the presence checks
+ * are answered from the {@link PresenceNearCache}.<br>
+ * The disconnect script removes the session the same way as the {@link PresenceNode} sweep, the user goes offline
+ * with the last session.<br>
+ * The scripts derive the subscription viewers keys and the disconnect script the user keys, so they require
+ * a non-clustered Redis.
+ */
 @Slf4j
 @Component
 @RequiredArgsConstructor
@@ -36,72 +70,291 @@ import static com.sojka.pomeranian.lib.util.DateTimeUtils.getCurrentInstant;
 )
 public class RedisSessionCache implements SessionCache {
 
-    private final RedisTemplate<UUID, ActiveUser> users;
-    private final RedisTemplate<String, UUID> sessions;
+    static final String PRESENCE_PREFIX = "presence:";
+    static final String ONLINE_KEY = PRESENCE_PREFIX + "online";
+    static final String SESSIONS_KEY = PRESENCE_PREFIX + "sessions";
+    private static final int PURGE_PAGE_SIZE = 500;
+    private static final String LEGACY_PREFIX = "active:";
+    private static final String LEGACY_PURGED_KEY = PRESENCE_PREFIX + "legacy-purged";
+    /**
+     * The prefix of the disconnect script result of a user with sessions left.
+     */
+    private static final String ONLINE_MARKER = "+";
+
+    private static final RedisScript<Long> CREATE = RedisScript.of("""
+            if redis.call('HEXISTS', KEYS[1], ARGV[1]) == 1 then
+                return 0
+            end
+            redis.call('HSET', KEYS[1], ARGV[1], ARGV[3])
+            redis.call('EXPIRE', KEYS[1], ARGV[4])
+            redis.call('EXPIRE', KEYS[1] .. ':subs', ARGV[4])
+            redis.call('HINCRBY', KEYS[1] .. ':nodes', string.match(KEYS[5], '{(.-)}'), 1)
+            redis.call('EXPIRE', KEYS[1] .. ':nodes', ARGV[4])
+            redis.call('SET', KEYS[2], ARGV[2], 'EX', ARGV[4])
+            redis.call('SADD', KEYS[3], ARGV[2])
+            redis.call('SADD', KEYS[4], ARGV[1])
+            redis.call('HSET', KEYS[5], ARGV[1], ARGV[2])
+            redis.call('PUBLISH', 'presence-invalidation', ARGV[2])
+            return 1""", Long.class);
+    private static final RedisScript<Long> SUBSCRIBE = RedisScript.of("""
+            if redis.call('HEXISTS', KEYS[1], ARGV[1]) == 0 then
+                return -1
+            end
+            local userId = string.match(KEYS[1], '{(.-)}')
+            local added = 0
+            for i = 2, #ARGV do
+                if redis.call('SADD', KEYS[3], ARGV[i]) == 1 then
+                    redis.call('HINCRBY', KEYS[2], ARGV[i], 1)
+                    redis.call('HINCRBY', KEYS[2], string.match(ARGV[i], '^[^:]+'), 1)
+                    if string.sub(ARGV[i], -1) ~= ':' then
+                        redis.call('HINCRBY', 'presence:sub:{' .. ARGV[i] .. '}', userId, 1)
+                    end
+                    added = added + 1
+                end
+            end
+            if added > 0 then
+                local ttl = redis.call('TTL', KEYS[1])
+                if ttl > 0 then
+                    redis.call('EXPIRE', KEYS[2], ttl)
+                    redis.call('EXPIRE', KEYS[3], ttl)
+                end
+                redis.call('PUBLISH', 'presence-invalidation', userId)
+            end
+            return added""", Long.class);
+    private static final RedisScript<Long> UNSUBSCRIBE = RedisScript.of("""
+            local function decrement(key, field)
+                if redis.call('HINCRBY', key, field, -1) <= 0 then
+                    redis.call('HDEL', key, field)
+                end
+            end
+            if redis.call('HEXISTS', KEYS[1], ARGV[1]) == 0 then
+                return -1
+            end
+            local prefix = ARGV[2] .. ':'
+            local removed = {}
+            if ARGV[3] == '' then
+                for _, member in ipairs(redis.call('SMEMBERS', KEYS[3])) do
+                    if string.sub(member, 1, #prefix) == prefix then
+                        table.insert(removed, member)
+                    end
+                end
+            elseif redis.call('SISMEMBER', KEYS[3], prefix .. ARGV[3]) == 1 then
+                table.insert(removed, prefix .. ARGV[3])
+            end
+            local userId = string.match(KEYS[1], '{(.-)}')
+            for _, member in ipairs(removed) do
+                redis.call('SREM', KEYS[3], member)
+                decrement(KEYS[2], member)
+                decrement(KEYS[2], ARGV[2])
+                if string.sub(member, -1) ~= ':' then
+                    decrement('presence:sub:{' .. member .. '}', userId)
+                end
+            end
+            if #removed > 0 then
+                redis.call('PUBLISH', 'presence-invalidation', userId)
+            end
+            return #removed""", Long.class);
+    private static final RedisScript<String> DISCONNECT = RedisScript.of("""
+            local function decrement(key, field)
+                if redis.call('HINCRBY', key, field, -1) <= 0 then
+                    redis.call('HDEL', key, field)
+                end
+            end
+            redis.call('HDEL', KEYS[4], ARGV[1])
+            redis.call('SREM', KEYS[3], ARGV[1])
+            local userId = redis.call('GET', KEYS[1])
+            if not userId then
+                return nil
+            end
+            local userKey = 'presence:u:{' .. userId .. '}'
+            local sessionSubscriptionsKey = userKey .. ':s:{' .. ARGV[1] .. '}'
+            if redis.call('HDEL', userKey, ARGV[1]) == 1 then
+                decrement(userKey .. ':nodes', string.match(KEYS[4], '{(.-)}'))
+                for _, member in ipairs(redis.call('SMEMBERS', sessionSubscriptionsKey)) do
+                    decrement(userKey .. ':subs', member)
+                    decrement(userKey .. ':subs', string.match(member, '^[^:]+'))
+                    if string.sub(member, -1) ~= ':' then
+                        decrement('presence:sub:{' .. member .. '}', userId)
+                    end
+                end
+            end
+            redis.call('DEL', KEYS[1], sessionSubscriptionsKey)
+            redis.call('PUBLISH', 'presence-invalidation', userId)
+            if redis.call('EXISTS', userKey) == 1 then
+                return '+' .. userId
+            end
+            redis.call('DEL', userKey .. ':subs', userKey .. ':nodes')
+            redis.call('SREM', KEYS[2], userId)
+            return userId""", String.class);
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> PAGE = RedisScript.of("""
+            return redis.call('SSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2])""", List.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final PresenceNearCache nearCache;
+    private final PresenceNode node;
 
     @Override
     public boolean isOnline(UUID userId, StompSubscription subscription) {
-        ActiveUser activeUser = users.opsForValue().get(userId);
-        if (activeUser != null) {
-            return activeUser.isOnline(subscription);
-        }
-        return false;
+        return nearCache.get(userId, this::loadPresence).subscriptions().contains(member(subscription));
     }
 
     @Override
     public boolean isOnline(UUID userId, StompSubscription.Type type) {
-        ActiveUser activeUser = users.opsForValue().get(userId);
-        if (activeUser != null) {
-            if (type == StompSubscription.Type.CHAT_NOTIFICATIONS) {
-                return true;
+        var presence = nearCache.get(userId, this::loadPresence);
+        if (type == StompSubscription.Type.CHAT_NOTIFICATIONS) {
+            return presence.connected();
+        }
+        return presence.subscriptions().contains(type.name());
+    }
+
+    @Override
+    public Map<UUID, Boolean> isOnlineMany(Collection<UUID> userIds, StompSubscription.Type type) {
+        var presences = nearCache.getAll(userIds, this::loadPresences);
+        Map<UUID, Boolean> result = HashMap.newHashMap(userIds.size());
+        presences.forEach((userId, presence) -> result.put(userId, type == StompSubscription.Type.CHAT_NOTIFICATIONS
+                ? presence.connected()
+                : presence.subscriptions().contains(type.name())));
+        return result;
+    }
+
+    @Override
+    public Set<UUID> findSubscribers(StompSubscription subscription) {
+        var userIds = redisTemplate.<String, String>opsForHash().keys(subscribersKey(member(subscription)));
+        return userIds.stream().map(UUID::fromString).collect(Collectors.toSet());
+    }
+
+    private PresenceNearCache.Presence loadPresence(UUID userId) {
+        return loadPresences(List.of(userId)).get(userId);
+    }
+
+    /**
+     * Reads the users sessions existence and the subscriptions counts fields in a single pipeline.
+     */
+    private Map<UUID, PresenceNearCache.Presence> loadPresences(List<UUID> userIds) {
+        if (userIds.isEmpty()) {
+            return Map.of();
+        }
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            var stringConnection = (StringRedisConnection) connection;
+            userIds.forEach(userId -> {
+                stringConnection.exists(userKey(userId));
+                stringConnection.hKeys(subscriptionsKey(userId));
+            });
+            return null;
+        });
+        Map<UUID, PresenceNearCache.Presence> presences = HashMap.newHashMap(userIds.size());
+        for (int i = 0; i < userIds.size(); i++) {
+            if (!Boolean.TRUE.equals(results.get(2 * i))) {
+                presences.put(userIds.get(i), PresenceNearCache.Presence.OFFLINE);
+                continue;
             }
-            return activeUser.isOnline(type);
+            @SuppressWarnings("unchecked")
+            var subscriptions = (Set<String>) results.get(2 * i + 1);
+            presences.put(userIds.get(i), new PresenceNearCache.Presence(
+                    true, subscriptions == null ? Set.of() : Set.copyOf(subscriptions)
+            ));
         }
-        return false;
+        return presences;
     }
 
     @Override
     public Optional<ActiveUser> get(UUID userId) {
-        return Optional.ofNullable(users.opsForValue().get(userId));
+        return load(List.of(userId)).stream().findFirst();
+    }
+
+    @Override
+    public Map<UUID, ActiveUser> getMany(Collection<UUID> userIds) {
+        Map<UUID, ActiveUser> result = HashMap.newHashMap(userIds.size());
+        load(List.copyOf(new HashSet<>(userIds))).forEach(activeUser -> result.put(activeUser.getUserId(), activeUser));
+        return result;
     }
 
+    /**
+     * Returns a page of the online users, walking the online users index with {@code SSCAN}.<br>
+     * The page state is the scan cursor, so the page size is a hint and a user connecting in the meantime might be
+     * returned twice or not at all, which is fine for the admin listing.
+     */
     @Override
-    public List<ActiveUser> getAll() {
-        Set<UUID> allKeys = getAllKeys(users, ACTIVE_USER_PREFIX + "*");
-        return users.opsForValue().multiGet(allKeys);
+    public ResultsPage<ActiveUser> getAll(String pageState, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Invalid pageSize: " + pageSize);
+        }
+        var page = scanPage(ONLINE_KEY, pageState, pageSize);
+        var activeUsers = load(page.getResults().stream().map(UUID::fromString).toList());
+        return new ResultsPage<>(activeUsers, page.getNextPageState());
+    }
+
+    /**
+     * Reads the users with two pipelines, the sessions hashes and then the sessions subscriptions sets.
+     *
+     * @return the online users only, in the order of the ids
+     */
+    private List<ActiveUser> load(List<UUID> userIds) {
+        if (userIds.isEmpty()) {
+            return List.of();
+        }
+        List<Object> userSessions = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            var stringConnection = (StringRedisConnection) connection;
+            userIds.forEach(userId -> stringConnection.hGetAll(userKey(userId)));
+            return null;
+        });
+        List<String> sessionKeys = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            @SuppressWarnings("unchecked")
+            var sessions = (Map<String, String>) userSessions.get(i);
+            for (String sessionId : sessions.keySet()) {
+                sessionKeys.add(sessionSubscriptionsKey(userIds.get(i), sessionId));
+            }
+        }
+        if (sessionKeys.isEmpty()) {
+            return List.of();
+        }
+        List<Object> members = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            var stringConnection = (StringRedisConnection) connection;
+            sessionKeys.forEach(stringConnection::sMembers);
+            return null;
+        });
+
+        List<ActiveUser> activeUsers = new ArrayList<>(userIds.size());
+        int member = 0;
+        for (int i = 0; i < userIds.size(); i++) {
+            @SuppressWarnings("unchecked")
+            var userSessionsMap = (Map<String, String>) userSessions.get(i);
+            if (userSessionsMap.isEmpty()) {
+                continue;
+            }
+            List<ActiveUser.Session> sessions = new ArrayList<>(userSessionsMap.size());
+            for (var session : userSessionsMap.entrySet()) {
+                @SuppressWarnings("unchecked")
+                var sessionMembers = (Set<String>) members.get(member++);
+                sessions.add(new ActiveUser.Session(
+                        toSubscriptions(sessionMembers),
+                        session.getKey(),
+                        Instant.ofEpochMilli(Long.parseLong(session.getValue()))
+                ));
+            }
+            activeUsers.add(new ActiveUser(userIds.get(i), sessions));
+        }
+        return activeUsers;
     }
 
     @Override
     public boolean add(UUID userId, String simpSessionId, List<StompSubscription> subscriptions) {
-        ActiveUser activeUser = users.opsForValue().get(userId);
-        if (activeUser == null) {
+        List<String> args = new ArrayList<>(subscriptions.size() + 1);
+        args.add(simpSessionId);
+        subscriptions.forEach(subscription -> args.add(member(subscription)));
+
+        Long added = redisTemplate.execute(SUBSCRIBE, userKeys(userId, simpSessionId), args.toArray());
+        nearCache.invalidate(userId);
+        if (added == null || added < 0) {
             return false;
         }
-        boolean result = true;
-
-        for (ActiveUser.Session session : activeUser.getSessions()) {
-            Map<String, List<String>> sessionSubscriptions = session.getSubscriptions();
-
-            if (session.getSimpSessionId().equals(simpSessionId)) {
-                for (StompSubscription subscription : subscriptions) {
-                    if (sessionSubscriptions.containsKey(subscription.type().name())) {
-                        List<String> ids = sessionSubscriptions.get(subscription.type().name());
-                        if (ids.contains(subscription.id())) {
-                            log.error("Subscription already exists: user_id={}, subscription={}", userId, subscription);
-                            result = false;
-                        }
-                        sessionSubscriptions.get(subscription.type().name()).add(subscription.id());
-                    } else {
-                        List<String> ids = new ArrayList<>();
-                        ids.add(subscription.id());
-                        sessionSubscriptions.put(subscription.type().name(), ids);
-                    }
-                }
-                users.opsForValue().set(userId, activeUser);
-                return result;
-            }
+        if (added < subscriptions.size()) {
+            log.error("Subscription already exists: user_id={}, subscriptions={}", userId, subscriptions);
+            return false;
         }
-        return false;
+        return true;
     }
 
     @Override
@@ -111,93 +364,198 @@ public class RedisSessionCache implements SessionCache {
 
     @Override
     public boolean create(UUID userId, String simpSessionId) {
-        ActiveUser activeUser = users.opsForValue().get(userId);
-        var newSession = new ActiveUser.Session(new HashMap<>(), simpSessionId, getCurrentInstant());
-        if (activeUser == null) {
-            users.opsForValue().set(userId, new ActiveUser(userId, new ArrayList<>(List.of(newSession))));
-        } else {
-            for (ActiveUser.Session session : activeUser.getSessions()) {
-                if (session.getSimpSessionId().equals(simpSessionId)) {
-                    throw new CacheException("User=%s, simpSessionId=%s already online".formatted(userId, simpSessionId));
-                }
-            }
-            activeUser.getSessions().add(newSession);
-            users.opsForValue().set(userId, activeUser);
+        Long created = redisTemplate.execute(
+                CREATE,
+                List.of(userKey(userId), sessionKey(simpSessionId), ONLINE_KEY, SESSIONS_KEY, node.getNodeKey()),
+                simpSessionId, userId.toString(), String.valueOf(getCurrentInstant().toEpochMilli()),
+                node.getUserTtlSeconds()
+        );
+        nearCache.invalidate(userId);
+        if (created == null || created == 0) {
+            throw new CacheException("User=%s, simpSessionId=%s already online".formatted(userId, simpSessionId));
         }
-        sessions.opsForValue().set(simpSessionId, userId);
+        node.track(simpSessionId, userId);
         return true;
     }
 
+    /**
+     * Disconnects the session only, the other sessions of the user, on this or the other instances, stay online.
+     *
+     * @return the user id if it was the last session of the user, null otherwise
+     */
     @Override
     public UUID remove(String simpSessionId) {
-        UUID userId = sessions.opsForValue().get(simpSessionId);
+        node.untrack(simpSessionId);
+        String userId = redisTemplate.execute(
+                DISCONNECT,
+                List.of(sessionKey(simpSessionId), ONLINE_KEY, SESSIONS_KEY, node.getNodeKey()),
+                simpSessionId
+        );
         if (userId == null) {
             return null;
         }
-        ActiveUser activeUser = users.opsForValue().get(userId);
-        if (activeUser == null) {
+        if (userId.startsWith(ONLINE_MARKER)) {
+            nearCache.invalidate(UUID.fromString(userId.substring(ONLINE_MARKER.length())));
             return null;
-        } else {
-            List<String> allSessionIds = activeUser.getSessions().stream().map(ActiveUser.Session::getSimpSessionId).toList();
-            sessions.delete(allSessionIds);
-            users.delete(userId);
-            return userId;
         }
+        nearCache.invalidate(UUID.fromString(userId));
+        return UUID.fromString(userId);
     }
 
     @Override
     public boolean remove(UUID userId, String simpSessionId, @NonNull StompSubscription subscription) {
-        ActiveUser activeUser = users.opsForValue().get(userId);
-        if (activeUser != null) {
-            for (ActiveUser.Session session : activeUser.getSessions()) {
-                if (session.getSimpSessionId().equals(simpSessionId)) {
-                    if (subscription.id() == null || subscription.id().isBlank()) {
-                        session.getSubscriptions().remove(subscription.type().name());
-                    } else {
-                        var ids = session.getSubscriptions().get(subscription.type().name());
-                        if (ids == null) {
-                            break;
-                        }
-                        ids = ids.stream()
-                                .filter(id -> !id.equals(subscription.id()))
-                                .collect(Collectors.toCollection(ArrayList::new));
-                        session.getSubscriptions().put(subscription.type().name(), ids);
-
-                        if (ids.isEmpty()) {
-                            session.getSubscriptions().remove(subscription.type().name());
-                        }
-                    }
-                    break;
-                }
-            }
-            users.opsForValue().set(userId, activeUser);
-            return true;
-        }
-        return false;
+        Long removed = redisTemplate.execute(
+                UNSUBSCRIBE,
+                userKeys(userId, simpSessionId),
+                simpSessionId, subscription.type().name(), subscription.id() == null ? "" : subscription.id()
+        );
+        nearCache.invalidate(userId);
+        return removed != null && removed >= 0;
     }
 
     /**
-     * Clears all users from the active users set, effectively marking all users as offline.
+     * Clears all the presence keys, effectively marking all users as offline.<br>
+     * Walks the indexes in pages, the users keys first, then the sessions keys and the indexes themselves.
      */
     @Override
     public void purge() {
-        users.delete(getAllKeys(users, ACTIVE_USER_PREFIX + "*"));
-        sessions.delete(getAllKeys(sessions, ACTIVE_USER_PREFIX + "*"));
+        String pageState = null;
+        do {
+            var page = scanPage(ONLINE_KEY, pageState, PURGE_PAGE_SIZE);
+            deleteUsers(page.getResults());
+            pageState = page.getNextPageState();
+        } while (pageState != null);
+        do {
+            var page = scanPage(SESSIONS_KEY, pageState, PURGE_PAGE_SIZE);
+            if (!page.getResults().isEmpty()) {
+                redisTemplate.delete(page.getResults().stream().map(RedisSessionCache::sessionKey).toList());
+            }
+            pageState = page.getNextPageState();
+        } while (pageState != null);
+        redisTemplate.delete(List.of(ONLINE_KEY, SESSIONS_KEY));
+        nearCache.invalidateAll();
+        redisTemplate.convertAndSend(PresenceNearCache.CHANNEL, PresenceNearCache.ALL_USERS);
     }
 
-    private <T> Set<T> getAllKeys(RedisTemplate<T, ?> cache, String pattern) {
-        Set<T> allKeys = new HashSet<>();
-        cache.execute((RedisCallback<Void>) connection -> {
-            ScanOptions options = ScanOptions.scanOptions().match(pattern).count(100).build();
-            try (Cursor<byte[]> cursor = connection.keyCommands().scan(options)) {
+    /**
+     * Removes the keys of the former serialized users layout, once per Redis: the marker key skips the keyspace scan
+     * on the later startups.<br>
+     * The subscribers of the subscriptions without an id, indexed by the previous versions, are removed on every
+     * startup.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void purgeLegacyKeys() {
+        try {
+            unlink(Arrays.stream(StompSubscription.Type.values())
+                    .map(type -> subscribersKey(type.name() + ":"))
+                    .toList());
+            if (Boolean.TRUE.equals(redisTemplate.hasKey(LEGACY_PURGED_KEY))) {
+                return;
+            }
+            long purged = 0;
+            List<String> batch = new ArrayList<>(PURGE_PAGE_SIZE);
+            var options = ScanOptions.scanOptions().match(LEGACY_PREFIX + "*").count(PURGE_PAGE_SIZE).build();
+            try (var cursor = redisTemplate.scan(options)) {
                 while (cursor.hasNext()) {
-                    byte[] keyBytes = cursor.next();
-                    T key = (T) cache.getKeySerializer().deserialize(keyBytes);
-                    allKeys.add(key);
+                    batch.add(cursor.next());
+                    if (batch.size() >= PURGE_PAGE_SIZE) {
+                        purged += unlink(batch);
+                    }
                 }
             }
+            purged += unlink(batch);
+            redisTemplate.opsForValue().set(LEGACY_PURGED_KEY, getCurrentInstant().toString());
+            log.info("Purged {} legacy presence keys", purged);
+        } catch (Exception e) {
+            log.warn("Failed to purge the legacy presence keys, retrying on the next startup: {}", e.getMessage());
+        }
+    }
+
+    private long unlink(List<String> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        Long unlinked = redisTemplate.unlink(List.copyOf(keys));
+        keys.clear();
+        return unlinked == null ? 0 : unlinked;
+    }
+
+    private void deleteUsers(List<String> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        List<Object> fields = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            var stringConnection = (StringRedisConnection) connection;
+            userIds.forEach(userId -> {
+                stringConnection.hKeys(userKey(UUID.fromString(userId)));
+                stringConnection.hKeys(subscriptionsKey(UUID.fromString(userId)));
+            });
             return null;
         });
-        return allKeys;
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            var userId = UUID.fromString(userIds.get(i));
+            keys.add(userKey(userId));
+            keys.add(subscriptionsKey(userId));
+            keys.add(nodesKey(userId));
+            @SuppressWarnings("unchecked")
+            var userSessionIds = (Set<String>) fields.get(2 * i);
+            userSessionIds.forEach(sessionId -> keys.add(sessionSubscriptionsKey(userId, sessionId)));
+            @SuppressWarnings("unchecked")
+            var subscriptions = (Set<String>) fields.get(2 * i + 1);
+            subscriptions.stream()
+                    .filter(SubscriptionMembers::hasId)
+                    .forEach(member -> keys.add(subscribersKey(member)));
+        }
+        redisTemplate.delete(keys);
+    }
+
+    /**
+     * Reads a page of the index set.
+     *
+     * @param pageState the {@code SSCAN} cursor, null for the first page
+     * @return the page members, with the next cursor as the page state or null if the scan completed
+     */
+    @SuppressWarnings("unchecked")
+    private ResultsPage<String> scanPage(String key, String pageState, int pageSize) {
+        if (pageState != null && !pageState.chars().allMatch(Character::isDigit)) {
+            throw new IllegalArgumentException("Invalid pageState: " + pageState);
+        }
+        List<Object> page = redisTemplate.execute(
+                PAGE, List.of(key), pageState == null ? "0" : pageState, String.valueOf(pageSize)
+        );
+        var cursor = (String) page.getFirst();
+        return new ResultsPage<>((List<String>) page.getLast(), "0".equals(cursor) ? null : cursor);
+    }
+
+    private static List<String> userKeys(UUID userId, String simpSessionId) {
+        return List.of(userKey(userId), subscriptionsKey(userId), sessionSubscriptionsKey(userId, simpSessionId));
+    }
+
+    static String userKey(UUID userId) {
+        return PRESENCE_PREFIX + "u:{" + userId + "}";
+    }
+
+    static String subscriptionsKey(UUID userId) {
+        return userKey(userId) + ":subs";
+    }
+
+    /**
+     * The routing registry of the user, the ids of the instances holding the user sessions.
+     */
+    public static String nodesKey(UUID userId) {
+        return userKey(userId) + ":nodes";
+    }
+
+    static String sessionSubscriptionsKey(UUID userId, String simpSessionId) {
+        return userKey(userId) + ":s:{" + simpSessionId + "}";
+    }
+
+    static String subscribersKey(String member) {
+        return PRESENCE_PREFIX + "sub:{" + member + "}";
+    }
+
+    static String sessionKey(String simpSessionId) {
+        return PRESENCE_PREFIX + "s:{" + simpSessionId + "}";
     }
 }
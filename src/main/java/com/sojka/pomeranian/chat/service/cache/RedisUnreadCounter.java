@@ -0,0 +1,263 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.repository.ConversationsRepository;
+import com.sojka.pomeranian.chat.repository.projection.UnreadCountProjection;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.sojka.pomeranian.lib.util.DateTimeUtils.getCurrentInstant;
+
+/**
+ * Redis implementation of {@link UnreadCounter}, turns the unread counts reads into a single hash lookup.<br>
+ * The user counters are a hash of the per-recipient counts along with their {@code total}, loaded from Postgres on
+ * the first read and expiring after {@code ttl-seconds}. Increments and resets are Lua scripts, so the room count and
+ * the total change atomically, and they are skipped when the user counters aren't loaded. The changes of a message
+ * are sent in a single pipeline.<br>
+ * Every change marks the user as dirty in one of the {@code dirty-shards} sorted sets, the dirty users are
+ * periodically reloaded from Postgres once the grace period passed, which repairs the counters loaded concurrently
+ * with a change.<br>
+ * Redis failures are logged and the counts are read from Postgres.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(
+        prefix = "pomeranian.chat",
+        name = "redis-enabled",
+        havingValue = "true"
+)
+public class RedisUnreadCounter implements UnreadCounter {
+
+    private static final String KEY_PREFIX = "unread:{";
+    private static final String DIRTY_KEY_PREFIX = "unread:dirty:{";
+    private static final String LEGACY_DIRTY_KEY = "unread:dirty";
+    private static final String TOTAL = "total";
+
+    private static final RedisScript<Long> LOAD = RedisScript.of("""
+            if ARGV[2] == '1' and redis.call('EXISTS', KEYS[1]) == 0 then
+                return -1
+            end
+            redis.call('DEL', KEYS[1])
+            local total = 0
+            for i = 3, #ARGV, 2 do
+                redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+                total = total + tonumber(ARGV[i + 1])
+            end
+            redis.call('HSET', KEYS[1], 'total', total)
+            redis.call('EXPIRE', KEYS[1], ARGV[1])
+            return total""", Long.class);
+    private static final byte[] INCREMENT = bytes("""
+            if redis.call('EXISTS', KEYS[1]) == 0 then
+                return 0
+            end
+            redis.call('HINCRBY', KEYS[1], ARGV[1], 1)
+            redis.call('HINCRBY', KEYS[1], 'total', 1)
+            return 1""");
+    private static final byte[] RESET = bytes("""
+            local count = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0')
+            if count > 0 then
+                redis.call('HDEL', KEYS[1], ARGV[1])
+                redis.call('HINCRBY', KEYS[1], 'total', -count)
+            end
+            return count""");
+
+    private final StringRedisTemplate redisTemplate;
+    private final ConversationsRepository conversationsRepository;
+    private final String ttlSeconds;
+    private final long reconcileGraceMs;
+    private final int reconcileBatchSize;
+    private final int dirtyShards;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private final Counter reconciledCounter;
+
+    public RedisUnreadCounter(
+            StringRedisTemplate redisTemplate,
+            ConversationsRepository conversationsRepository,
+            ChatConfig config,
+            MeterRegistry meterRegistry
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.conversationsRepository = conversationsRepository;
+        this.ttlSeconds = String.valueOf(config.getUnreadCounters().getTtlSeconds());
+        this.reconcileGraceMs = config.getUnreadCounters().getReconcileGraceMs();
+        this.reconcileBatchSize = config.getUnreadCounters().getReconcileBatchSize();
+        this.dirtyShards = config.getUnreadCounters().getDirtyShards();
+        this.hitCounter = Counter.builder("pomeranian.chat.unread.cache")
+                .description("Unread counters lookups")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("pomeranian.chat.unread.cache")
+                .description("Unread counters lookups")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.reconciledCounter = Counter.builder("pomeranian.chat.unread.reconciled")
+                .description("Users counters reloaded from Postgres by the reconciliation")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Long total(UUID userId) {
+        return read(userId, TOTAL);
+    }
+
+    @Override
+    public Long room(UUID userId, UUID recipientId) {
+        return read(userId, recipientId.toString());
+    }
+
+    private Long read(UUID userId, String field) {
+        try {
+            var values = redisTemplate.<String, String>opsForHash().multiGet(userKey(userId), List.of(TOTAL, field));
+            if (values.getFirst() != null) {
+                hitCounter.increment();
+                return values.getLast() == null ? 0L : Long.parseLong(values.getLast());
+            }
+            missCounter.increment();
+            long total = load(userId, false);
+            if (TOTAL.equals(field)) {
+                return total;
+            }
+            var count = redisTemplate.<String, String>opsForHash().get(userKey(userId), field);
+            return count == null ? 0L : Long.parseLong(count);
+        } catch (Exception e) {
+            log.warn("Failed to read unread counters of userId={}: {}", userId, e.getMessage());
+            return TOTAL.equals(field)
+                    ? conversationsRepository.sumUnreadCountByUserId(userId)
+                    : conversationsRepository.findUnreadCountByIdUserIdAndIdRecipientId(userId, UUID.fromString(field));
+        }
+    }
+
+    @Override
+    public void message(UUID senderId, UUID recipientId, boolean recipientRead) {
+        try {
+            long now = getCurrentInstant().toEpochMilli();
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                change(connection, senderId, RESET, recipientId, now);
+                change(connection, recipientId, recipientRead ? RESET : INCREMENT, senderId, now);
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("Failed to count message of senderId={} to recipientId={}, evicting: {}",
+                    senderId, recipientId, e.getMessage());
+            evict(senderId);
+            evict(recipientId);
+        }
+    }
+
+    @Override
+    public void reset(UUID userId, UUID recipientId) {
+        try {
+            long now = getCurrentInstant().toEpochMilli();
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                change(connection, userId, RESET, recipientId, now);
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("Failed to update unread counters of userId={}, evicting: {}", userId, e.getMessage());
+            evict(userId);
+        }
+    }
+
+    /**
+     * Queues the counters script and the dirty mark of the user on the pipelined connection.
+     */
+    private void change(RedisConnection connection, UUID userId, byte[] script, UUID recipientId, long now) {
+        connection.scriptingCommands().eval(script, ReturnType.INTEGER, 1, bytes(userKey(userId)), bytes(recipientId.toString()));
+        connection.zSetCommands().zAdd(bytes(dirtyKey(userId)), now, bytes(userId.toString()));
+    }
+
+    @Override
+    public void evict(UUID userId) {
+        try {
+            redisTemplate.delete(userKey(userId));
+        } catch (Exception e) {
+            log.error("Failed to evict unread counters of userId={}", userId, e);
+        }
+    }
+
+    /**
+     * Reloads the counters of the users changed before the grace period from Postgres.<br>
+     * Only the loaded counters are rewritten, users without them get loaded on their next read anyway.
+     */
+    @Scheduled(fixedDelayString = "${pomeranian.chat.unread-counters.reconcile-interval-ms:60000}")
+    public void reconcile() {
+        long maxScore = getCurrentInstant().toEpochMilli() - reconcileGraceMs;
+        for (int shard = 0; shard < dirtyShards; shard++) {
+            try {
+                reconcile(dirtyKey(shard), maxScore);
+            } catch (Exception e) {
+                log.error("Failed to reconcile unread counters of shard={}", shard, e);
+            }
+        }
+        try {
+            // Drains the single dirty set of the previous version
+            reconcile(LEGACY_DIRTY_KEY, maxScore);
+        } catch (Exception e) {
+            log.error("Failed to reconcile unread counters of the legacy dirty set", e);
+        }
+    }
+
+    private void reconcile(String dirtyKey, long maxScore) {
+        var dirty = redisTemplate.opsForZSet().rangeByScore(dirtyKey, 0, maxScore, 0, reconcileBatchSize);
+        while (dirty != null && !dirty.isEmpty()) {
+            redisTemplate.opsForZSet().remove(dirtyKey, dirty.toArray());
+            for (String userId : dirty) {
+                load(UUID.fromString(userId), true);
+            }
+            reconciledCounter.increment(dirty.size());
+            log.debug("Reconciled unread counters of {} users", dirty.size());
+            dirty = dirty.size() < reconcileBatchSize
+                    ? null
+                    : redisTemplate.opsForZSet().rangeByScore(dirtyKey, 0, maxScore, 0, reconcileBatchSize);
+        }
+    }
+
+    /**
+     * Writes the user counters from Postgres.
+     *
+     * @return the total count, or -1 if {@code onlyIfLoaded} and the counters weren't loaded
+     */
+    private long load(UUID userId, boolean onlyIfLoaded) {
+        var counts = conversationsRepository.findUnreadCountsByUserId(userId);
+        List<String> args = new ArrayList<>(2 + 2 * counts.size());
+        args.add(ttlSeconds);
+        args.add(onlyIfLoaded ? "1" : "0");
+        for (UnreadCountProjection count : counts) {
+            args.add(count.getRecipientId().toString());
+            args.add(String.valueOf(count.getUnreadCount()));
+        }
+        Long total = redisTemplate.execute(LOAD, List.of(userKey(userId)), args.toArray());
+        return total == null ? 0 : total;
+    }
+
+    private static String userKey(UUID userId) {
+        return KEY_PREFIX + userId + "}";
+    }
+
+    private String dirtyKey(UUID userId) {
+        return dirtyKey(Math.floorMod(userId.hashCode(), dirtyShards));
+    }
+
+    private static String dirtyKey(int shard) {
+        return DIRTY_KEY_PREFIX + shard + "}";
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
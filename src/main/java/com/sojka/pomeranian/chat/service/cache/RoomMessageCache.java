@@ -0,0 +1,50 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.sojka.pomeranian.chat.dto.MessageKey;
+import com.sojka.pomeranian.chat.model.Message;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Cache of the newest messages per room, serves the first page of the room history.<br>
+ * A room is cached once its first page is read, afterwards the cached messages follow the room writes. Every write
+ * bumps the room version, so a page read from the database before the write is never cached over it.
+ */
+public interface RoomMessageCache {
+
+    /**
+     * Returns the newest room messages, the latest first.
+     *
+     * @return the cached messages or empty if the room isn't cached
+     */
+    Optional<List<Message>> get(String roomId);
+
+    /**
+     * Returns the current room version, to be read before loading the page to {@link #populate(String, List, long)}.
+     */
+    long version(String roomId);
+
+    /**
+     * Caches the first page of the room, unless the room was written since the {@code version} was read.
+     */
+    void populate(String roomId, List<Message> messages, long version);
+
+    /**
+     * Adds the new message to the cached room.
+     */
+    void add(Message message);
+
+    /**
+     * Sets the read time of the unread cached messages of the key sender, up to the latest key message.
+     */
+    void markRead(MessageKey key, Instant readAt);
+
+    /**
+     * Replaces the cached message with its updated version.
+     */
+    void update(Message message);
+
+    void evict(String roomId);
+}
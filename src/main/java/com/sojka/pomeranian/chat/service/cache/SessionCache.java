@@ -1,10 +1,14 @@
 package com.sojka.pomeranian.chat.service.cache;
 
+import com.sojka.pomeranian.astra.dto.ResultsPage;
 import com.sojka.pomeranian.chat.dto.StompSubscription;
 import com.sojka.pomeranian.chat.model.ActiveUser;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 
@@ -29,6 +33,21 @@ public interface SessionCache {
      */
     boolean isOnline(UUID userId, StompSubscription.Type type);
 
+    /**
+     * Checks if the users are online, the bulk form of {@link #isOnline(UUID, StompSubscription.Type)}.
+     *
+     * @param userIds The IDs of the users to check.
+     * @return the online flag of every given user
+     */
+    Map<UUID, Boolean> isOnlineMany(Collection<UUID> userIds, StompSubscription.Type type);
+
+    /**
+     * Finds the users viewing the subscription, e.g. with the room or the post comments open.
+     *
+     * @return the ids of the users with at least one session subscribed, empty if nobody is
+     */
+    Set<UUID> findSubscribers(StompSubscription subscription);
+
     /**
      * Get cache entry
      *
@@ -37,7 +56,21 @@ public interface SessionCache {
      */
     Optional<ActiveUser> get(UUID userId);
 
-    List<ActiveUser> getAll();
+    /**
+     * Get cache entries, the bulk form of {@link #get(UUID)}.
+     *
+     * @return Cached {@link ActiveUser} data of the online users only
+     */
+    Map<UUID, ActiveUser> getMany(Collection<UUID> userIds);
+
+    /**
+     * Returns a page of the online users.
+     *
+     * @param pageState the page state of the previous page, null for the first page
+     * @param pageSize  the expected page size, implementations might treat it as a hint
+     * @return the online users page, with null page state once there are no more users
+     */
+    ResultsPage<ActiveUser> getAll(String pageState, int pageSize);
 
     /**
      * Adds another subscription for the online user.
@@ -61,9 +94,10 @@ public interface SessionCache {
     boolean create(UUID userId, String simpSessionId);
 
     /**
-     * Removes a user from the active users cache, marking them as offline.
+     * Removes the session from the active users cache, marking the user as offline with the last session.
      *
-     * @return {@code userId} if successfully removed, {@code null} if user already not online.
+     * @return {@code userId} if the user went offline, {@code null} if the user has sessions left or already not
+     * online.
      * @throws NullPointerException if user don't exists
      */
     UUID remove(String simpSessionId) throws NullPointerException;
@@ -0,0 +1,50 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import com.sojka.pomeranian.chat.dto.StompSubscription;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact form of the session subscriptions shared by the {@link SessionCache} implementations.<br>
+ * A subscription is a single {@code TYPE:id} member, the missing id is kept as an empty one.<br>
+ * Only the members with an id are indexed by their subscribers, a member without one would gather every user.
+ */
+final class SubscriptionMembers {
+
+    private SubscriptionMembers() {
+    }
+
+    static String member(StompSubscription subscription) {
+        return subscription.type().name() + ":" + (subscription.id() == null ? "" : subscription.id());
+    }
+
+    static String type(String member) {
+        return member.substring(0, member.indexOf(':'));
+    }
+
+    static boolean hasId(String field) {
+        int separator = field.indexOf(':');
+        return separator > 0 && separator < field.length() - 1;
+    }
+
+    /**
+     * Converts the members to the {@link com.sojka.pomeranian.chat.model.ActiveUser.Session} subscriptions.
+     */
+    static Map<String, List<String>> toSubscriptions(Collection<String> members) {
+        Map<String, List<String>> subscriptions = new HashMap<>();
+        if (members == null) {
+            return subscriptions;
+        }
+        for (String member : members) {
+            int separator = member.indexOf(':');
+            String id = member.substring(separator + 1);
+            subscriptions.computeIfAbsent(member.substring(0, separator), type -> new ArrayList<>())
+                    .add(id.isEmpty() ? null : id);
+        }
+        return subscriptions;
+    }
+}
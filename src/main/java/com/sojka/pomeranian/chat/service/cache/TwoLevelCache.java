@@ -0,0 +1,154 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A {@link Cache} with an in-process {@link NearCache} level 1 in front of the shared level 2 cache.<br>
+ * The level 1 entries expire after {@code ttl-ms}, the evictions go to both levels and are announced with
+ * {@code onEvict}, so the other instances drop their level 1 entry as well.<br>
+ * A level 2 load racing with an eviction of the key isn't kept in the level 1.
+ */
+class TwoLevelCache implements Cache {
+
+    static final String ALL_KEYS = "*";
+
+    private final Cache l2;
+    private final Consumer<String> onEvict;
+    private final NearCache<Object, Object> l1;
+    private final Counter l1HitCounter;
+    private final Counter l2HitCounter;
+    private final Counter missCounter;
+
+    TwoLevelCache(Cache l2, int maxSize, int ttlMs, Consumer<String> onEvict, MeterRegistry meterRegistry) {
+        this.l2 = l2;
+        this.onEvict = onEvict;
+        this.l1 = new NearCache<>(maxSize, Duration.ofMillis(ttlMs));
+        this.l1HitCounter = counter(meterRegistry, l2.getName(), "l1_hit");
+        this.l2HitCounter = counter(meterRegistry, l2.getName(), "l2_hit");
+        this.missCounter = counter(meterRegistry, l2.getName(), "miss");
+    }
+
+    @Override
+    public String getName() {
+        return l2.getName();
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return l2.getNativeCache();
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        var cached = getL1(key);
+        if (cached != null) {
+            return cached;
+        }
+        long version = l1.version(key);
+        var value = l2.get(key);
+        if (value == null) {
+            missCounter.increment();
+            return null;
+        }
+        l2HitCounter.increment();
+        putL1(key, value.get(), version);
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        var value = get(key);
+        if (value == null) {
+            return null;
+        }
+        if (type != null && value.get() != null && !type.isInstance(value.get())) {
+            throw new IllegalStateException("Cached value is not of required type [" + type.getName() + "]: " + value.get());
+        }
+        return (T) value.get();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        var cached = getL1(key);
+        if (cached != null) {
+            return (T) cached.get();
+        }
+        long version = l1.version(key);
+        var loaded = new AtomicBoolean();
+        T value = l2.get(key, () -> {
+            loaded.set(true);
+            return valueLoader.call();
+        });
+        (loaded.get() ? missCounter : l2HitCounter).increment();
+        putL1(key, value, version);
+        return value;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        l2.put(key, value);
+        putL1(key, value, l1.version(key));
+    }
+
+    @Override
+    public void evict(Object key) {
+        l2.evict(key);
+        invalidate(key);
+        onEvict.accept(String.valueOf(key));
+    }
+
+    @Override
+    public void clear() {
+        l2.clear();
+        invalidateAll();
+        onEvict.accept(ALL_KEYS);
+    }
+
+    /**
+     * Drops the level 1 entry only, the level 2 is evicted by the instance announcing the eviction.
+     */
+    void invalidate(Object key) {
+        l1.invalidate(key);
+    }
+
+    void invalidateAll() {
+        l1.invalidateAll();
+    }
+
+    long size() {
+        return l1.size();
+    }
+
+    private ValueWrapper getL1(Object key) {
+        var value = l1.getIfPresent(key);
+        if (value == null) {
+            return null;
+        }
+        l1HitCounter.increment();
+        return new SimpleValueWrapper(value);
+    }
+
+    private void putL1(Object key, Object value, long version) {
+        if (value != null) {
+            l1.put(key, value, version);
+        }
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String name, String result) {
+        return Counter.builder("pomeranian.chat.users.cache")
+                .description("Two-level cache lookups")
+                .tag("cache", name)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
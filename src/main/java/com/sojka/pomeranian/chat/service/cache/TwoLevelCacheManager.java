@@ -0,0 +1,101 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Puts a {@link TwoLevelCache} in front of the given caches of the level 2 {@link CacheManager}, the other caches
+ * are served by the level 2 directly.<br>
+ * The evictions are published on the {@link #CHANNEL} as {@code cacheName:key} ({@code cacheName:*} for clear),
+ * the services changing the users (bans, role changes, deactivations) publish the same after evicting the Redis
+ * entry, so every instance drops its level 1 entry right away.
+ */
+@Slf4j
+public class TwoLevelCacheManager implements CacheManager, MessageListener {
+
+    public static final String CHANNEL = "cache-invalidation";
+
+    private final CacheManager l2;
+    private final Set<String> l1CacheNames;
+    private final int maxSize;
+    private final int ttlMs;
+    private final StringRedisTemplate redisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, TwoLevelCache> caches = new ConcurrentHashMap<>();
+
+    public TwoLevelCacheManager(
+            CacheManager l2,
+            Set<String> l1CacheNames,
+            int maxSize,
+            int ttlMs,
+            StringRedisTemplate redisTemplate,
+            MeterRegistry meterRegistry
+    ) {
+        this.l2 = l2;
+        this.l1CacheNames = l1CacheNames;
+        this.maxSize = maxSize;
+        this.ttlMs = ttlMs;
+        this.redisTemplate = redisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        if (!l1CacheNames.contains(name)) {
+            return l2.getCache(name);
+        }
+        return caches.computeIfAbsent(name, this::createCache);
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return l2.getCacheNames();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        var body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int separator = body.indexOf(':');
+        var cache = separator > 0 ? caches.get(body.substring(0, separator)) : null;
+        if (cache == null) {
+            log.trace("Ignoring cache invalidation: {}", body);
+            return;
+        }
+        var key = body.substring(separator + 1);
+        if (TwoLevelCache.ALL_KEYS.equals(key)) {
+            cache.invalidateAll();
+        } else {
+            cache.invalidate(key);
+        }
+    }
+
+    private TwoLevelCache createCache(String name) {
+        var cache = new TwoLevelCache(l2.getCache(name), maxSize, ttlMs, key -> publish(name, key), meterRegistry);
+        Gauge.builder("pomeranian.chat.users.cache.size", cache, TwoLevelCache::size)
+                .description("Entries in the level 1 cache")
+                .tag("cache", name)
+                .register(meterRegistry);
+        return cache;
+    }
+
+    private void publish(String name, String key) {
+        try {
+            redisTemplate.convertAndSend(CHANNEL, name + ":" + key);
+        } catch (Exception e) {
+            log.warn("Failed to publish the eviction of {}:{}, other instances keep it for up to {} ms",
+                    name, key, ttlMs, e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.sojka.pomeranian.chat.service.cache;
+
+import java.util.UUID;
+
+/**
+ * Unread messages counters of the user, in total and per conversation.<br>
+ * Mirrors the {@code conversations.unread_count}, which stays the source of truth.
+ */
+public interface UnreadCounter {
+
+    /**
+     * Returns the unread messages count of all the user conversations.
+     */
+    Long total(UUID userId);
+
+    /**
+     * Returns the unread messages count of the user conversation with the recipient.
+     */
+    Long room(UUID userId, UUID recipientId);
+
+    /**
+     * Counts the message of the sender: the sender conversation is read and the recipient conversation gets a new
+     * unread message, unless the recipient has read it already.
+     */
+    void message(UUID senderId, UUID recipientId, boolean recipientRead);
+
+    /**
+     * Marks the user conversation with the recipient as read.
+     */
+    void reset(UUID userId, UUID recipientId);
+
+    /**
+     * Drops the user counters, e.g. once the user conversations are removed.
+     */
+    void evict(UUID userId);
+}
@@ -0,0 +1,41 @@
+package com.sojka.pomeranian.chat.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Runs the stages of the same key one after another, in their submission order, on the shared executor.<br>
+ * The keys are hashed into a fixed number of stripes, so unrelated keys may share a stripe, but a key never holds
+ * more than one thread of the executor.
+ */
+public class StripedExecutor {
+
+    private final Executor executor;
+    private final AtomicReferenceArray<CompletableFuture<Void>> tails;
+
+    public StripedExecutor(Executor executor, int stripes) {
+        this.executor = executor;
+        this.tails = new AtomicReferenceArray<>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            tails.set(i, CompletableFuture.completedFuture(null));
+        }
+    }
+
+    /**
+     * Applies the function to the stage result once the previously submitted stages of the key stripe are done,
+     * whether they succeeded or not.<br>
+     * The returned stage fails without applying the function if the given stage fails.
+     */
+    public <T, R> CompletableFuture<R> thenApplyInOrder(
+            Object key, CompletionStage<T> stage, Function<? super T, ? extends R> function
+    ) {
+        var done = new CompletableFuture<Void>();
+        var previous = tails.getAndSet(Math.floorMod(key.hashCode(), tails.length()), done);
+        CompletableFuture<R> next = previous.thenCombineAsync(stage, (ignored, result) -> function.apply(result), executor);
+        next.whenComplete((result, e) -> done.complete(null));
+        return next;
+    }
+}
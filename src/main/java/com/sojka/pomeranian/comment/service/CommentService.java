@@ -1,5 +1,6 @@
 package com.sojka.pomeranian.comment.service;
 
+import com.sojka.pomeranian.chat.dto.StompSubscription;
 import com.sojka.pomeranian.chat.service.cache.SessionCache;
 import com.sojka.pomeranian.chat.util.mapper.NotificationMapper;
 import com.sojka.pomeranian.lib.dto.CommentStompRequest;
@@ -33,9 +34,12 @@ public class CommentService {
         // comments section update
         messagingTemplate.convertAndSendToUser(
                 dto.getElement().getId() + "", COMMENTS_DESTINATION, CommentResponse.from(dto));
-        // TODO: should check instead if given StompSubscription (POST_COMMENTS + postId) is online
-        if (dto.isPublishNotification() && !cache.isOnline(dto.getElement().getOwner().getId(), POST_COMMENTS)) {
-            notificationService.process(NotificationMapper.toNotification(dto));
+        // the owner watching the post comments sees the comment already
+        if (dto.isPublishNotification()) {
+            var postComments = new StompSubscription(POST_COMMENTS, dto.getElement().getId() + "");
+            if (!cache.isOnline(dto.getElement().getOwner().getId(), postComments)) {
+                notificationService.process(NotificationMapper.toNotification(dto));
+            }
         }
     }
 
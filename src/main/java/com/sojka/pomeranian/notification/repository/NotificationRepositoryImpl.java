@@ -2,16 +2,18 @@ package com.sojka.pomeranian.notification.repository;
 
 import com.datastax.oss.driver.api.core.cql.BatchStatement;
 import com.datastax.oss.driver.api.core.cql.BatchType;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.ResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
-import com.datastax.oss.driver.api.core.cql.SimpleStatement;
 import com.sojka.pomeranian.astra.connection.Connector;
 import com.sojka.pomeranian.astra.dto.ResultsPage;
 import com.sojka.pomeranian.astra.repository.AstraPageableRepository;
 import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.repository.PreparedStatementRegistry;
 import com.sojka.pomeranian.lib.dto.Notification;
 import com.sojka.pomeranian.notification.model.NotificationModel;
 import com.sojka.pomeranian.notification.util.NotificationMapper;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -38,7 +40,7 @@ public class NotificationRepositoryImpl extends AstraPageableRepository implemen
                profile_id, created_at, type, body,
                sender_id, sender_username, sender_image_192, sender_gender, sender_role
             ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
-            USING TTL %s""".formatted(NOTIFICATIONS_KEYSPACE, NOTIFICATIONS_TABLE, "%s");
+            USING TTL ?""".formatted(NOTIFICATIONS_KEYSPACE, NOTIFICATIONS_TABLE);
     private static final String SELECT_BY_PRIMARY_KEY = """
             SELECT * FROM %s.%s \
             WHERE profile_id = ? \
@@ -58,6 +60,12 @@ public class NotificationRepositoryImpl extends AstraPageableRepository implemen
 
     private final Connector connector;
     private final ChatConfig config;
+    private final PreparedStatementRegistry statements;
+
+    @PostConstruct
+    void registerStatements() {
+        statements.register(INSERT, SELECT_BY_PROFILE_ID, DELETE_BY, COUNT_BY_PROFILE_ID, DELETE_BY_PROFILE_ID);
+    }
 
     @Override
     protected Logger getLogger() {
@@ -68,15 +76,12 @@ public class NotificationRepositoryImpl extends AstraPageableRepository implemen
     public NotificationModel save(NotificationModel notification) {
         var ttl = config.getNotification().getUnread().getTtl();
         return handle(() -> {
-            String dml = INSERT.formatted(ttl);
-            var statement = SimpleStatement.builder(dml)
-                    .addPositionalValues(
-                            notification.getProfileId(), notification.getCreatedAt(),
-                            notification.getType().name(), notification.getBody(),
-                            notification.getSenderId(), notification.getSenderUsername(),
-                            notification.getSenderImage192(), notification.getSenderGender(),
-                            getNameOrNull(notification.getSenderRole()))
-                    .build();
+            var statement = statements.bind(INSERT,
+                    notification.getProfileId(), notification.getCreatedAt(),
+                    notification.getType().name(), notification.getBody(),
+                    notification.getSenderId(), notification.getSenderUsername(),
+                    notification.getSenderImage192(), notification.getSenderGender(),
+                    getNameOrNull(notification.getSenderRole()), ttl);
 
             var session = connector.getSession();
             session.execute(statement);
@@ -95,11 +100,9 @@ public class NotificationRepositoryImpl extends AstraPageableRepository implemen
         return handle(() -> {
             ByteBuffer pagingStateBuffer = decodePageState(pageState);
 
-            var statement = SimpleStatement.builder(SELECT_BY_PROFILE_ID)
-                    .addPositionalValues(profileId)
+            var statement = statements.bind(SELECT_BY_PROFILE_ID, profileId)
                     .setPageSize(pageSize)
-                    .setPagingState(pagingStateBuffer)
-                    .build();
+                    .setPagingState(pagingStateBuffer);
 
             var session = connector.getSession();
             ResultSet resultSet = session.execute(statement);
@@ -111,10 +114,9 @@ public class NotificationRepositoryImpl extends AstraPageableRepository implemen
     @Override
     public void deleteAll(List<Notification<Object>> notifications) {
         handle(() -> {
-            List<SimpleStatement> deleteStatements = notifications.stream()
-                    .map(n -> SimpleStatement.builder(DELETE_BY)
-                            .addPositionalValues(n.getProfileId(), toInstant(n.getCreatedAt()), getNameOrNull(n.getType()))
-                            .build())
+            List<BoundStatement> deleteStatements = notifications.stream()
+                    .map(n -> statements.bind(DELETE_BY,
+                            n.getProfileId(), toInstant(n.getCreatedAt()), getNameOrNull(n.getType())))
                     .toList();
 
             var statement = BatchStatement.builder(BatchType.LOGGED)
@@ -131,7 +133,7 @@ public class NotificationRepositoryImpl extends AstraPageableRepository implemen
     @Override
     public Optional<Long> countByIdProfileId(UUID profileId) {
         return handle(() -> {
-            var statement = SimpleStatement.builder(COUNT_BY_PROFILE_ID).addPositionalValues(profileId).build();
+            var statement = statements.bind(COUNT_BY_PROFILE_ID, profileId);
 
             var session = connector.getSession();
             Row row = session.execute(statement).one();
@@ -144,7 +146,7 @@ public class NotificationRepositoryImpl extends AstraPageableRepository implemen
     public void deleteAllByIdProfileId(UUID profileId) {
         log.trace("deleteAllByIdProfileId input: profileId={}", profileId);
         handle(() -> {
-            var statement = SimpleStatement.builder(DELETE_BY_PROFILE_ID).addPositionalValues(profileId).build();
+            var statement = statements.bind(DELETE_BY_PROFILE_ID, profileId);
 
             var session = connector.getSession();
             session.execute(statement);
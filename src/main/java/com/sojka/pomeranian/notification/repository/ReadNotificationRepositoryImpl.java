@@ -4,14 +4,15 @@ import com.datastax.oss.driver.api.core.cql.BatchStatement;
 import com.datastax.oss.driver.api.core.cql.BatchType;
 import com.datastax.oss.driver.api.core.cql.ResultSet;
 import com.datastax.oss.driver.api.core.cql.Row;
-import com.datastax.oss.driver.api.core.cql.SimpleStatement;
 import com.sojka.pomeranian.astra.connection.Connector;
 import com.sojka.pomeranian.astra.dto.ResultsPage;
 import com.sojka.pomeranian.astra.repository.AstraPageableRepository;
 import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.repository.PreparedStatementRegistry;
 import com.sojka.pomeranian.lib.dto.Notification;
 import com.sojka.pomeranian.notification.model.ReadNotification;
 import com.sojka.pomeranian.notification.util.ReadNotificationMapper;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -38,7 +39,7 @@ public class ReadNotificationRepositoryImpl extends AstraPageableRepository impl
                profile_id, created_at, type, read_at, body,
                sender_id, sender_username, sender_image_192, sender_gender, sender_role
             ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-            USING TTL %s""".formatted(NOTIFICATIONS_KEYSPACE, READ_NOTIFICATIONS_TABLE, "%s");
+            USING TTL ?""".formatted(NOTIFICATIONS_KEYSPACE, READ_NOTIFICATIONS_TABLE);
     private static final String SELECT_ALL = QueryConstants.SELECT_ALL_BY_PROFILE_ID
             .formatted(NOTIFICATIONS_KEYSPACE, READ_NOTIFICATIONS_TABLE);
     private static final String COUNT_BY_PROFILE_ID = """
@@ -48,6 +49,12 @@ public class ReadNotificationRepositoryImpl extends AstraPageableRepository impl
 
     private final Connector connector;
     private final ChatConfig config;
+    private final PreparedStatementRegistry statements;
+
+    @PostConstruct
+    void registerStatements() {
+        statements.register(INSERT, SELECT_ALL, COUNT_BY_PROFILE_ID, DELETE_BY_PROFILE_ID);
+    }
 
     @Override
     protected Logger getLogger() {
@@ -58,14 +65,12 @@ public class ReadNotificationRepositoryImpl extends AstraPageableRepository impl
     public ReadNotification save(ReadNotification notification) {
         int ttl = config.getNotification().getRead().getTtl();
         return handle(() -> {
-            String dml = INSERT.formatted(ttl);
-            var statement = SimpleStatement.builder(dml)
-                    .addPositionalValues(notification.getProfileId(), notification.getCreatedAt(),
-                            notification.getType().name(), notification.getReadAt(), notification.getBody(),
-                            notification.getSenderId(), notification.getSenderUsername(),
-                            notification.getSenderImage192(), notification.getSenderGender(),
-                            getNameOrNull(notification.getSenderRole()))
-                    .build();
+            var statement = statements.bind(INSERT,
+                    notification.getProfileId(), notification.getCreatedAt(),
+                    notification.getType().name(), notification.getReadAt(), notification.getBody(),
+                    notification.getSenderId(), notification.getSenderUsername(),
+                    notification.getSenderImage192(), notification.getSenderGender(),
+                    getNameOrNull(notification.getSenderRole()), ttl);
 
             var session = connector.getSession();
             ResultSet executed = session.execute(statement);
@@ -79,13 +84,12 @@ public class ReadNotificationRepositoryImpl extends AstraPageableRepository impl
         int ttl = config.getNotification().getRead().getTtl();
         return handle(() -> {
             var list = notifications.stream()
-                    .map(n -> SimpleStatement.builder(INSERT.formatted(ttl))
-                            .addPositionalValues(n.getProfileId(), n.getCreatedAt(),
-                                    n.getType().name(), n.getReadAt(), n.getBody(),
-                                    n.getSenderId(), n.getSenderUsername(),
-                                    n.getSenderImage192(), n.getSenderGender(),
-                                    getNameOrNull(n.getSenderRole()))
-                            .build())
+                    .map(n -> statements.bind(INSERT,
+                            n.getProfileId(), n.getCreatedAt(),
+                            n.getType().name(), n.getReadAt(), n.getBody(),
+                            n.getSenderId(), n.getSenderUsername(),
+                            n.getSenderImage192(), n.getSenderGender(),
+                            getNameOrNull(n.getSenderRole()), ttl))
                     .toList();
 
             var statement = BatchStatement.builder(BatchType.LOGGED)
@@ -106,11 +110,9 @@ public class ReadNotificationRepositoryImpl extends AstraPageableRepository impl
         return handle(() -> {
             ByteBuffer pagingStateBuffer = decodePageState(pageState);
 
-            var statement = SimpleStatement.builder(SELECT_ALL)
-                    .addPositionalValues(profileId)
+            var statement = statements.bind(SELECT_ALL, profileId)
                     .setPageSize(pageSize)
-                    .setPagingState(pagingStateBuffer)
-                    .build();
+                    .setPagingState(pagingStateBuffer);
 
             var session = connector.getSession();
             ResultSet resultSet = session.execute(statement);
@@ -127,7 +129,7 @@ public class ReadNotificationRepositoryImpl extends AstraPageableRepository impl
     @Override
     public Optional<Long> countByIdProfileId(UUID profileId) {
         return handle(() -> {
-            var statement = SimpleStatement.builder(COUNT_BY_PROFILE_ID).addPositionalValues(profileId).build();
+            var statement = statements.bind(COUNT_BY_PROFILE_ID, profileId);
 
             var session = connector.getSession();
             Row row = session.execute(statement).one();
@@ -140,7 +142,7 @@ public class ReadNotificationRepositoryImpl extends AstraPageableRepository impl
     public void deleteAllByIdProfileId(UUID profileId) {
         log.trace("deleteAllByIdProfileId input: profileId={}", profileId);
         handle(() -> {
-            var statement = SimpleStatement.builder(DELETE_BY_PROFILE_ID).addPositionalValues(profileId).build();
+            var statement = statements.bind(DELETE_BY_PROFILE_ID, profileId);
 
             var session = connector.getSession();
             session.execute(statement);
@@ -0,0 +1,62 @@
+package com.sojka.pomeranian.pubsub;
+
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+import com.sojka.pomeranian.chat.dto.ProfileUpdateRequest;
+import com.sojka.pomeranian.chat.service.ChatService;
+import com.sojka.pomeranian.lib.util.JsonUtils;
+import com.sojka.pomeranian.pubsub.config.GcpConfig;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the conversation headers recipient snapshots up to date with the profile changes.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ProfileUpdateSubscriber {
+
+    private final GcpConfig gcpConfig;
+    private final ChatService chatService;
+
+    Subscriber subscriber;
+
+    public Subscriber subscribeAsync() {
+        ProjectSubscriptionName subscriptionName =
+                ProjectSubscriptionName.of(gcpConfig.getProjectId(), gcpConfig.getProfileUpdateConfig().getSubscriptionName());
+
+        MessageReceiver receiver =
+                (PubsubMessage message, AckReplyConsumer consumer) -> {
+                    ProfileUpdateRequest request;
+                    try {
+                        request = JsonUtils.readObject(message.getData().toByteArray(), ProfileUpdateRequest.class);
+                        log.trace("Received {}", request);
+                    } catch (Exception e) {
+                        // Redelivery won't make it readable
+                        log.error("Dropping unreadable profile update, messageId={}", message.getMessageId(), e);
+                        consumer.ack();
+                        return;
+                    }
+
+                    try {
+                        chatService.refreshConversationProfile(request.profileId());
+                        consumer.ack();
+                    } catch (Exception e) {
+                        log.error("Failed to refresh conversation profile={}", request.profileId(), e);
+                        consumer.nack();
+                    }
+                };
+
+        subscriber = Subscriber.newBuilder(subscriptionName, receiver).build();
+
+        subscriber.startAsync().awaitRunning();
+        log.info("Listening for messages on {}", subscriptionName);
+
+        return subscriber;
+    }
+}
@@ -19,6 +19,7 @@ public class GcpConfig {
     DeleteAccountConfig deleteAccountConfig;
     ChatResourcesConfig chatResourcesConfig;
     BlockUserConfig blockUserConfig;
+    ProfileUpdateConfig profileUpdateConfig;
     UserPresenceConfig userPresenceConfig;
 
     public GcpConfig(
@@ -29,6 +30,7 @@ public class GcpConfig {
             DeleteAccountConfig deleteAccountConfig,
             ChatResourcesConfig chatResourcesConfig,
             BlockUserConfig blockUserConfig,
+            ProfileUpdateConfig profileUpdateConfig,
             UserPresenceConfig userPresenceConfig
     ) {
         this.projectId = projectId;
@@ -38,6 +40,7 @@ public class GcpConfig {
         this.deleteAccountConfig = deleteAccountConfig;
         this.chatResourcesConfig = chatResourcesConfig;
         this.blockUserConfig = blockUserConfig;
+        this.profileUpdateConfig = profileUpdateConfig;
         this.userPresenceConfig = userPresenceConfig;
     }
 
@@ -96,6 +99,17 @@ public class GcpConfig {
         String subscriptionName;
     }
 
+    @Data
+    @Builder
+    @AllArgsConstructor
+    @NoArgsConstructor
+    @Component
+    @ConfigurationProperties("gcp.pubsub.profile-update.subscriber")
+    public static class ProfileUpdateConfig {
+
+        String subscriptionName;
+    }
+
     @Data
     @Builder
     @AllArgsConstructor
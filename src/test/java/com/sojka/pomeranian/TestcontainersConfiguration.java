@@ -3,6 +3,7 @@ package com.sojka.pomeranian;
 import com.sojka.pomeranian.pubsub.CommentsSubscriber;
 import com.sojka.pomeranian.pubsub.DeleteAccountSubscriber;
 import com.sojka.pomeranian.pubsub.NotificationSubscriber;
+import com.sojka.pomeranian.pubsub.ProfileUpdateSubscriber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.test.context.TestConfiguration;
@@ -62,4 +63,10 @@ public class TestcontainersConfiguration {
         return mock(DeleteAccountSubscriber.class);
     }
 
+    @Bean
+    @Primary
+    ProfileUpdateSubscriber profileUpdateSubscriber() {
+        return mock(ProfileUpdateSubscriber.class);
+    }
+
 }
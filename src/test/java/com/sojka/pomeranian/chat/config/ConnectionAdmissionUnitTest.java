@@ -0,0 +1,64 @@
+package com.sojka.pomeranian.chat.config;
+
+import com.sojka.pomeranian.chat.config.ConnectionAdmission.Rejection;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConnectionAdmissionUnitTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void admitHandshake_ipBurstExceeded_rejected() {
+        var admission = admission(config -> config.setIpBurst(2));
+
+        assertThat(admission.admitHandshake("10.0.0.1")).isNull();
+        assertThat(admission.admitHandshake("10.0.0.1")).isNull();
+        assertThat(admission.admitHandshake("10.0.0.1")).isEqualTo(Rejection.IP_RATE);
+        assertThat(admission.admitHandshake("10.0.0.2")).isNull();
+        assertThat(meterRegistry.get("pomeranian.chat.admission")
+                .tags("stage", "handshake", "result", "ip_rate").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void admitConnect_noPermitLeft_rejectedUntilReleased() {
+        var admission = admission(config -> config.setMaxConcurrentConnects(1));
+
+        assertThat(admission.admitConnect()).isNull();
+        assertThat(admission.admitConnect()).isEqualTo(Rejection.BUSY);
+        admission.releaseConnect();
+        assertThat(admission.admitConnect()).isNull();
+    }
+
+    @Test
+    void admitUser_userBurstExceeded_rejected() {
+        var admission = admission(config -> config.setUserBurst(1));
+        UUID userId = UUID.randomUUID();
+
+        assertThat(admission.admitUser(userId)).isNull();
+        assertThat(admission.admitUser(userId)).isEqualTo(Rejection.USER_RATE);
+        assertThat(admission.admitUser(UUID.randomUUID())).isNull();
+    }
+
+    @Test
+    void admitHandshake_disabled_alwaysAdmitted() {
+        var admission = admission(config -> {
+            config.setEnabled(false);
+            config.setIpBurst(0);
+        });
+
+        assertThat(admission.admitHandshake("10.0.0.1")).isNull();
+        assertThat(admission.admitUser(UUID.randomUUID())).isNull();
+    }
+
+    private ConnectionAdmission admission(Consumer<ChatConfig.Admission> customizer) {
+        var config = new ChatConfig();
+        customizer.accept(config.getAdmission());
+        return new ConnectionAdmission(config, meterRegistry);
+    }
+}
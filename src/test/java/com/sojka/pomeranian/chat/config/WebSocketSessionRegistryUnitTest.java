@@ -0,0 +1,109 @@
+package com.sojka.pomeranian.chat.config;
+
+import com.sojka.pomeranian.chat.service.cache.PresenceLeaseLostEvent;
+import com.sojka.pomeranian.security.model.Role;
+import com.sojka.pomeranian.security.model.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.sojka.pomeranian.chat.config.StompRequestAuthenticator.JWT_ATTRIBUTE;
+import static com.sojka.pomeranian.chat.config.StompRequestAuthenticator.USER_ATTRIBUTE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class WebSocketSessionRegistryUnitTest {
+
+    private final StompRequestAuthenticator authenticator = mock(StompRequestAuthenticator.class);
+    private final WebSocketSessionRegistry registry = new WebSocketSessionRegistry(authenticator, Runnable::run);
+    private final WebSocketHandler handler = registry.decorate(mock(WebSocketHandler.class));
+
+    @Test
+    void revalidate_validToken_userReloaded() throws Exception {
+        var user = mock(User.class);
+        doReturn(user).when(authenticator).revalidate("valid");
+        var session1 = session("1", "valid");
+        var session2 = session("2", "valid");
+
+        registry.revalidate();
+
+        assertThat(session1.getAttributes()).containsEntry(USER_ATTRIBUTE, user);
+        assertThat(session2.getAttributes()).containsEntry(USER_ATTRIBUTE, user);
+        verify(authenticator, times(1)).revalidate("valid");
+        verify(session1, never()).close(any(CloseStatus.class));
+    }
+
+    @Test
+    void revalidate_expiredToken_sessionClosed() throws Exception {
+        doThrow(new SecurityException("expired")).when(authenticator).revalidate("expired");
+        var session = session("1", "expired");
+
+        registry.revalidate();
+
+        verify(session).close(any(CloseStatus.class));
+    }
+
+    @Test
+    void revalidate_bannedUser_sessionClosed() throws Exception {
+        var user = mock(User.class);
+        doReturn(Role.PomeranianRole.HARD_BAN).when(user).getRole();
+        doReturn(user).when(authenticator).revalidate("banned");
+        var session = session("1", "banned");
+
+        registry.revalidate();
+
+        verify(session).close(any(CloseStatus.class));
+        assertThat(session.getAttributes()).doesNotContainKey(USER_ATTRIBUTE);
+    }
+
+    @Test
+    void revalidate_userLoadFailure_sessionKeptOpen() throws Exception {
+        doThrow(new IllegalStateException("db down")).when(authenticator).revalidate("valid");
+        var session = session("1", "valid");
+
+        registry.revalidate();
+
+        verify(session, never()).close(any(CloseStatus.class));
+    }
+
+    @Test
+    void onPresenceLeaseLost_sweptSessions_closed() throws Exception {
+        var swept = session("1", "valid");
+        var kept = session("2", "valid");
+
+        registry.onPresenceLeaseLost(new PresenceLeaseLostEvent(Set.of("1", "unknown")));
+
+        verify(swept).close(any(CloseStatus.class));
+        verify(kept, never()).close(any(CloseStatus.class));
+    }
+
+    @Test
+    void afterConnectionClosed_sessionClosed_untracked() throws Exception {
+        var session = session("1", "valid");
+
+        handler.afterConnectionClosed(session, CloseStatus.NORMAL);
+
+        assertThat(registry.size()).isZero();
+    }
+
+    private WebSocketSession session(String id, String authJwt) throws Exception {
+        var session = mock(WebSocketSession.class);
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(JWT_ATTRIBUTE, authJwt);
+        doReturn(id).when(session).getId();
+        doReturn(attributes).when(session).getAttributes();
+        handler.afterConnectionEstablished(session);
+        return session;
+    }
+}
@@ -1,21 +1,40 @@
 package com.sojka.pomeranian.chat.repository;
 
 import com.datastax.oss.driver.api.core.CqlSession;
-import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
 import com.sojka.pomeranian.astra.connection.Connector;
 import com.sojka.pomeranian.astra.exception.AstraException;
+import com.sojka.pomeranian.chat.config.ChatConfig;
 import com.sojka.pomeranian.chat.model.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Instant;
+
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_SELF;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 class MessageRepositoryImplUnitTest {
 
     CqlSession mockedSession = mock(CqlSession.class);
-    MessageRepository repository = new MessageRepository(new AstraDummyConnector(mockedSession));
+    PreparedStatement preparedStatement = mock(PreparedStatement.class);
+    BoundStatement boundStatement = mock(BoundStatement.class, RETURNS_SELF);
+    AstraDummyConnector connector = new AstraDummyConnector(mockedSession);
+    MessageRepository repository = new MessageRepository(
+            connector, new PreparedStatementRegistry(connector, new SimpleMeterRegistry()), bucketedConfig()
+    );
+
+    @BeforeEach
+    void setUp() {
+        when(mockedSession.prepare(anyString())).thenReturn(preparedStatement);
+        when(preparedStatement.bind(any(Object[].class))).thenReturn(boundStatement);
+    }
 
     @Test
     void findByRoomId_invalidPageState_throwIllegalArgumentException() {
@@ -28,7 +47,7 @@ class MessageRepositoryImplUnitTest {
 
     @Test
     void findByRoomId_sessionNotInitialized_throwIllegalStateException() {
-        when(mockedSession.execute(any(SimpleStatement.class))).thenThrow(new IllegalStateException("session error"));
+        when(mockedSession.execute(any(BoundStatement.class))).thenThrow(new IllegalStateException("session error"));
         assertThatThrownBy(() -> repository.findByRoomId("dummyRoomId", null, 10))
                 .isExactlyInstanceOf(AstraException.class)
                 .hasMessage("Cassandra session not initialized, id=RoomIdState[roomId=dummyRoomId, pageState=null, pageSize=10]")
@@ -38,7 +57,7 @@ class MessageRepositoryImplUnitTest {
 
     @Test
     void findByRoomId_unexpectedException_throwRuntimeException() {
-        when(mockedSession.execute(any(SimpleStatement.class))).thenThrow(new RuntimeException("unexpected error"));
+        when(mockedSession.execute(any(BoundStatement.class))).thenThrow(new RuntimeException("unexpected error"));
         assertThatThrownBy(() -> repository.findByRoomId("dummyRoomId", null, 10))
                 .isExactlyInstanceOf(AstraException.class)
                 .hasMessage("Failed to execute findByRoomId, for: RoomIdState[roomId=dummyRoomId, pageState=null, pageSize=10]")
@@ -48,14 +67,22 @@ class MessageRepositoryImplUnitTest {
 
     @Test
     void save_unexpectedException_throwRuntimeException() {
-        when(mockedSession.execute(any(SimpleStatement.class))).thenThrow(new RuntimeException("unexpected error"));
-        assertThatThrownBy(() -> repository.save(Message.builder().roomId("user1:user2").content("dummy").username("dummy").build()))
+        when(mockedSession.execute(any(BoundStatement.class))).thenThrow(new RuntimeException("unexpected error"));
+        assertThatThrownBy(() -> repository.save(Message.builder().roomId("user1:user2").createdAt(Instant.parse("2025-01-01T00:00:00Z"))
+                .content("dummy").username("dummy").build()))
                 .isExactlyInstanceOf(AstraException.class)
-                .hasMessage("Failed to execute save, for: Message(roomId=user1:user2, createdAt=null, profileId=null, username=dummy, recipientProfileId=null, recipientUsername=null, content=dummy, resourceId=null, resourceType=null, thumbnailId=null, editedAt=null, readAt=null, metadata=null)")
+                .hasMessage("Failed to execute save, for: Message(roomId=user1:user2, createdAt=2025-01-01T00:00:00Z, profileId=null, username=dummy, recipientProfileId=null, recipientUsername=null, content=dummy, resourceId=null, resourceType=null, thumbnailId=null, editedAt=null, readAt=null, metadata=null)")
                 .hasCauseExactlyInstanceOf(RuntimeException.class)
                 .hasRootCauseMessage("unexpected error");
     }
 
+    static ChatConfig bucketedConfig() {
+        var config = new ChatConfig();
+        config.getMessages().setBucketedReads(true);
+        config.getMessages().setLegacyWrites(false);
+        return config;
+    }
+
     public static class AstraDummyConnector extends Connector {
 
         private final CqlSession cqlSession;
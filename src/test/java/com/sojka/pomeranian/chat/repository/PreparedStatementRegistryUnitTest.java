@@ -0,0 +1,47 @@
+package com.sojka.pomeranian.chat.repository;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.sojka.pomeranian.chat.repository.MessageRepositoryImplUnitTest.AstraDummyConnector;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PreparedStatementRegistryUnitTest {
+
+    CqlSession mockedSession = mock(CqlSession.class);
+    PreparedStatement preparedStatement = mock(PreparedStatement.class);
+    PreparedStatementRegistry registry = new PreparedStatementRegistry(
+            new AstraDummyConnector(mockedSession), new SimpleMeterRegistry()
+    );
+
+    @Test
+    void prepareAll_oneQueryFails_prepareOthersAndThrow() {
+        when(mockedSession.prepare("SELECT 1")).thenThrow(new IllegalStateException("syntax error"));
+        when(mockedSession.prepare("SELECT 2")).thenReturn(preparedStatement);
+        when(mockedSession.prepare("SELECT 3")).thenReturn(preparedStatement);
+        registry.register("SELECT 1", "SELECT 2", "SELECT 3");
+
+        assertThatThrownBy(registry::prepareAll)
+                .isExactlyInstanceOf(IllegalStateException.class)
+                .hasMessage("Failed to prepare 1 of 3 CQL statements");
+        verify(mockedSession).prepare("SELECT 2");
+        verify(mockedSession).prepare("SELECT 3");
+        assertThat(registry.get("SELECT 2")).isSameAs(preparedStatement);
+    }
+
+    @Test
+    void prepareAll_allPrepared_cacheStatements() {
+        when(mockedSession.prepare("SELECT 1")).thenReturn(preparedStatement);
+        registry.register("SELECT 1");
+
+        registry.prepareAll();
+
+        assertThat(registry.get("SELECT 1")).isSameAs(preparedStatement);
+    }
+}
@@ -10,6 +10,8 @@ import com.sojka.pomeranian.chat.dto.ChatMessagePersisted;
 import com.sojka.pomeranian.chat.dto.MessageKey;
 import com.sojka.pomeranian.chat.model.Conversation;
 import com.sojka.pomeranian.chat.model.Message;
+import com.sojka.pomeranian.chat.repository.ConversationsBatchRepository;
+import com.sojka.pomeranian.chat.repository.ConversationsBatchRepository.HeaderUpdate;
 import com.sojka.pomeranian.chat.repository.ConversationsRepository;
 import com.sojka.pomeranian.chat.repository.MessageRepository;
 import com.sojka.pomeranian.chat.util.CommonUtils;
@@ -22,23 +24,37 @@ import org.assertj.core.api.recursive.comparison.RecursiveComparisonConfiguratio
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import static com.sojka.pomeranian.chat.config.AsyncConfig.MESSAGE_PIPELINE_EXECUTOR;
 import static com.sojka.pomeranian.chat.model.Conversation.ContentType.MESSAGE;
+import static com.sojka.pomeranian.chat.repository.MessagePageState.bucketOf;
 import static com.sojka.pomeranian.chat.util.TestUtils.createChatMessage;
 import static com.sojka.pomeranian.lib.dto.ConversationFlag.NORMAL;
 import static com.sojka.pomeranian.lib.util.CommonUtils.generateRoomId;
+import static com.sojka.pomeranian.lib.util.DateTimeUtils.toDateString;
 import static com.sojka.pomeranian.lib.util.DateTimeUtils.toInstant;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
 
@@ -56,6 +72,19 @@ class ChatServiceIntegrationTest {
     AstraTestcontainersConnector connector;
     @Autowired
     ConversationsRepository conversationsRepository;
+    @Autowired
+    ConversationsBatchRepository conversationsBatchRepository;
+    @Autowired
+    ConversationsSchemaMigration conversationsSchemaMigration;
+    @Autowired
+    MessageBucketMigration messageBucketMigration;
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    @Qualifier(MESSAGE_PIPELINE_EXECUTOR)
+    ThreadPoolTaskExecutor pipelineExecutor;
+
+    static final int OPPOSITE_DIRECTION_ROUNDS = 50;
 
     CqlSession session;
 
@@ -74,13 +103,17 @@ class ChatServiceIntegrationTest {
     void setUp() {
         session = connector.connect();
         session.execute("TRUNCATE messages.messages");
+        session.execute("TRUNCATE messages.room_messages");
+        session.execute("TRUNCATE messages.room_buckets");
+        session.execute("TRUNCATE messages.read_watermarks");
         userRepository.deleteAll();
         conversationsRepository.deleteAll();
+        jdbcTemplate.update("DELETE FROM conversation_profiles");
         userRepository.deleteAll();
     }
 
     @Test
-    void processMessage_message_savedWithBothConversations() {
+    void processMessageAsync_message_savedWithBothConversations() {
         String content = "Hello, World!";
         UUID user1Id = UUID.randomUUID();
         UUID user2Id = UUID.randomUUID();
@@ -91,12 +124,12 @@ class ChatServiceIntegrationTest {
                 .build();
         String roomId = CommonUtils.generateRoomId(chatMessage);
 
-        String createdAt = chatService.processMessage(chatMessage, roomId, false);
+        String createdAt = processMessage(chatMessage, roomId, false);
 
         // Verify message in messages table
         SimpleStatement selectMessage = SimpleStatement.newInstance(
-                "SELECT * FROM messages.messages WHERE room_id = ? AND created_at = ? AND profile_id = ?",
-                roomId, toInstant(createdAt), user1Id
+                "SELECT * FROM messages.room_messages WHERE room_id = ? AND bucket = ? AND created_at = ? AND profile_id = ?",
+                roomId, bucketOf(toInstant(createdAt)), toInstant(createdAt), user1Id
         );
         var row = connector.getSession()
                 .execute(selectMessage)
@@ -132,6 +165,38 @@ class ChatServiceIntegrationTest {
         assertThat(conversationsRepository.findAll()).containsExactly(readConversation, unreadConversation);
     }
 
+    @Test
+    void processMessageAsync_message_savedOnceStageCompletes() {
+        String content = "Hello, async!";
+        ChatMessage chatMessage = ChatMessage.basicBuilder()
+                .content(content)
+                .sender(new UserData(user1Id, user1Id + "-username", null))
+                .recipient(new UserData(user2Id, user2Id + "-username", null))
+                .build();
+        String roomId = CommonUtils.generateRoomId(chatMessage);
+
+        String createdAt = chatService.processMessageAsync(chatMessage, roomId, false).toCompletableFuture().join();
+
+        var saved = messageRepository.findById(roomId, createdAt, user1Id);
+        assertThat(saved).isPresent();
+        assertThat(saved.get().getContent()).isEqualTo(content);
+        assertThat(saved.get().getReadAt()).isNull();
+    }
+
+    @Test
+    void processMessageAsync_noContent_failedStage() {
+        ChatMessage chatMessage = ChatMessage.basicBuilder()
+                .content("")
+                .sender(new UserData(user1Id, user1Id + "-username", null))
+                .recipient(new UserData(user2Id, user2Id + "-username", null))
+                .build();
+        String roomId = CommonUtils.generateRoomId(chatMessage);
+
+        var stage = chatService.processMessageAsync(chatMessage, roomId, false).toCompletableFuture();
+
+        assertThatThrownBy(stage::join).hasCauseExactlyInstanceOf(IllegalArgumentException.class);
+    }
+
     @Test
     void getConversationMessages_fewMessages_sameMessagesInDescOrder() {
         Message message1 = createChatMessage(roomIdXY, "Message 1", userX, userY, Instant.now().minusSeconds(10));
@@ -277,7 +342,7 @@ class ChatServiceIntegrationTest {
 //    }
 
     @Test
-    void processMessage_offlineRecipient_savedWithConversation() {
+    void processMessageAsync_offlineRecipient_savedWithConversation() {
         String content = "Hey, you there?";
         ChatMessage chatMessage = ChatMessage.basicBuilder()
                 .content(content)
@@ -286,12 +351,12 @@ class ChatServiceIntegrationTest {
                 .build();
         String roomId = CommonUtils.generateRoomId(chatMessage);
 
-        String createdAt = chatService.processMessage(chatMessage, roomId, false);
+        String createdAt = processMessage(chatMessage, roomId, false);
 
         // Verify message in messages table
         SimpleStatement selectMessage = SimpleStatement.newInstance(
-                "SELECT * FROM messages.messages WHERE room_id = ? AND created_at = ? AND profile_id = ?",
-                roomId, toInstant(createdAt), user1Id
+                "SELECT * FROM messages.room_messages WHERE room_id = ? AND bucket = ? AND created_at = ? AND profile_id = ?",
+                roomId, bucketOf(toInstant(createdAt)), toInstant(createdAt), user1Id
         );
         var row = connector.getSession()
                 .execute(selectMessage)
@@ -328,6 +393,63 @@ class ChatServiceIntegrationTest {
         assertThat(conversationsRepository.findAll()).containsExactlyInAnyOrder(readConversation, unreadConversation);
     }
 
+    @Test
+    void processMessageAsync_consecutiveMessagesToOfflineRecipient_unreadCountIncremented() {
+        ChatMessage chatMessage = ChatMessage.basicBuilder()
+                .content("Hi!")
+                .sender(new UserData(user1Id, user1Id + "-username", null))
+                .recipient(new UserData(user2Id, user2Id + "-username", null))
+                .build();
+        String roomId = CommonUtils.generateRoomId(chatMessage);
+
+        processMessage(chatMessage, roomId, false);
+        chatMessage.setContent("Are you there?");
+        String createdAt = processMessage(chatMessage, roomId, false);
+
+        var senderConversation = conversationsRepository.findById(new Conversation.Id(user1Id, user2Id)).orElseThrow();
+        var recipientConversation = conversationsRepository.findById(new Conversation.Id(user2Id, user1Id)).orElseThrow();
+        assertThat(senderConversation.getUnreadCount()).isZero();
+        assertThat(senderConversation.getIsLastMessageFromUser()).isTrue();
+        assertThat(recipientConversation.getUnreadCount()).isEqualTo(2);
+        assertThat(recipientConversation.getIsLastMessageFromUser()).isFalse();
+        assertThat(recipientConversation.getContent()).isEqualTo("Are you there?");
+        assertThat(recipientConversation.getLastMessageAt()).isEqualTo(toInstant(createdAt));
+    }
+
+    @Test
+    void upsertConversations_concurrentOppositeDirections_bothCommitted() throws Exception {
+        var start = new CountDownLatch(1);
+        try (var executor = Executors.newFixedThreadPool(2)) {
+            var xToY = executor.submit(() -> upsertRepeatedly(start, userX, userY));
+            var yToX = executor.submit(() -> upsertRepeatedly(start, userY, userX));
+            start.countDown();
+
+            xToY.get(60, TimeUnit.SECONDS);
+            yToX.get(60, TimeUnit.SECONDS);
+        }
+
+        assertThat(conversationsRepository.findById(new Conversation.Id(userX, userY))).isPresent();
+        assertThat(conversationsRepository.findById(new Conversation.Id(userY, userX))).isPresent();
+    }
+
+    @Test
+    void upsertAll_concurrentOppositeOrderBatches_bothCommitted() throws Exception {
+        var start = new CountDownLatch(1);
+        var xy = new HeaderUpdate(new Conversation.Id(userX, userY), Instant.now(), "Hi", "MESSAGE", true, true, 0);
+        var yx = new HeaderUpdate(new Conversation.Id(userY, userX), Instant.now(), "Hi", "MESSAGE", false, false, 1);
+        try (var executor = Executors.newFixedThreadPool(2)) {
+            var forward = executor.submit(() -> upsertAllRepeatedly(start, List.of(xy, yx)));
+            var backward = executor.submit(() -> upsertAllRepeatedly(start, List.of(yx, xy)));
+            start.countDown();
+
+            forward.get(60, TimeUnit.SECONDS);
+            backward.get(60, TimeUnit.SECONDS);
+        }
+
+        assertThat(conversationsRepository.findById(new Conversation.Id(userY, userX)).orElseThrow().getUnreadCount())
+                .isEqualTo(2 * OPPOSITE_DIRECTION_ROUNDS);
+    }
+
     @Test
     void markRead_messageExists_readAtUpdatedAndConversationUpdated() {
         String roomId = user1Id + ":" + user2Id;
@@ -340,8 +462,8 @@ class ChatServiceIntegrationTest {
         Instant readAt = chatService.markRead(key);
 
         // Verify message readAt updated
-        var row = connector.getSession().execute(selectMessage(roomId, message.getCreatedAt(), user1Id)).one();
-        assertThat(row.getInstant("read_at")).isEqualTo(readAt);
+        var read = messageRepository.findById(roomId, toDateString(message.getCreatedAt()), user1Id).orElseThrow();
+        assertThat(read.getReadAt()).isEqualTo(readAt);
         // Verify notification deleted
         assertThat(conversationsRepository.findById(new Conversation.Id(user2Id, user1Id)).get().getUnreadCount()).isZero();
     }
@@ -367,7 +489,7 @@ class ChatServiceIntegrationTest {
     }
 
     @Test
-    void markRead_messagesPartiallyExists_partiallyUpdated() {
+    void markRead_messagesPartiallyExists_readUpToLatestKeyWithoutNewRows() {
         String roomId = user1Id + ":" + user2Id;
         Message message = createChatMessage(roomId, "Hello!", user1Id, user2Id, Instant.now());
         messageRepository.save(message);
@@ -376,17 +498,33 @@ class ChatServiceIntegrationTest {
 
         Instant notExistingKey = Instant.now();
         MessageKey key = new MessageKey(roomId, List.of(message.getCreatedAt(), notExistingKey), user1Id);
-        chatService.markRead(key);
+        Instant readAt = chatService.markRead(key);
 
-        // Verify message readAt not updated and empty message not created
-        var existingMessage = connector.getSession().execute(selectMessage(roomId, message.getCreatedAt(), user1Id)).one();
-        assertThat(existingMessage.getInstant("read_at")).isNull();
+        // Verify message read by the watermark and empty message not created
+        var read = messageRepository.findById(roomId, toDateString(message.getCreatedAt()), user1Id).orElseThrow();
+        assertThat(read.getReadAt()).isEqualTo(readAt);
         var updatedKeyMessage = connector.getSession().execute(selectMessage(roomId, notExistingKey, user1Id)).one();
         assertThat(updatedKeyMessage).isNull();
         // Verify notification deleted
         assertThat(conversationsRepository.findById(new Conversation.Id(user2Id, user1Id)).get().getUnreadCount()).isZero();
     }
 
+    @Test
+    void markRead_olderKeyAfterNewer_watermarkNotMovedBack() {
+        String roomId = user1Id + ":" + user2Id;
+        Instant now = Instant.now();
+        Message older = createChatMessage(roomId, "Older", user1Id, user2Id, now.minusSeconds(10));
+        Message newer = createChatMessage(roomId, "Newer", user1Id, user2Id, now);
+        messageRepository.save(older);
+        messageRepository.save(newer);
+
+        Instant readAt = chatService.markRead(new MessageKey(roomId, List.of(newer.getCreatedAt()), user1Id));
+        chatService.markRead(new MessageKey(roomId, List.of(older.getCreatedAt()), user1Id));
+
+        var messages = messageRepository.findByRoomId(roomId, null, 10).getResults();
+        assertThat(messages).extracting(Message::getReadAt).containsOnly(readAt);
+    }
+
     @Test
     void countNotifications_multipleNotifications_correctCount() {
         Instant now = Instant.now();
@@ -415,6 +553,25 @@ class ChatServiceIntegrationTest {
         assertNull(response.getNextPageState());
     }
 
+    @Test
+    void getConversationMessages_activeRoom_servedFromCache() {
+        messageRepository.save(createChatMessage(roomIdXY, "Message 1", userX, userY, Instant.now().minusSeconds(5)));
+        chatService.getConversationMessages(userX, userY, null);
+        var chatMessage = ChatMessage.basicBuilder()
+                .content("Message 2")
+                .sender(new UserData(userY, userY + "-username", null))
+                .recipient(new UserData(userX, userX + "-username", null))
+                .build();
+        processMessage(chatMessage, roomIdXY, false);
+        session.execute("TRUNCATE messages.room_messages");
+
+        var response = chatService.getConversationMessages(userX, userY, null);
+
+        assertThat(response.getResults()).extracting(ChatMessagePersisted::getContent)
+                .containsExactly("Message 1", "Message 2");
+        assertNull(response.getNextPageState());
+    }
+
     @Test
     void getConversationMessages_manyMessages_twoPagedResults() {
         List<Message> messages = new ArrayList<>();
@@ -438,6 +595,42 @@ class ChatServiceIntegrationTest {
         assertNull(response2.getNextPageState());
     }
 
+    @Test
+    void getConversationMessages_messagesInManyBuckets_pagedAcrossBuckets() {
+        var now = Instant.parse("2025-03-15T12:00:00Z");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 1; i <= 25; i++) {
+            // every 5 messages go to the previous month
+            messages.add(createChatMessage(roomIdXY, "Message " + i, userX, userY, now.minus(Duration.ofDays(32L * ((25 - i) / 5))).plusSeconds(i)));
+        }
+        messages.forEach(messageRepository::save);
+
+        var response1 = chatService.getConversationMessages(userX, userY, null);
+        var response2 = chatService.getConversationMessages(userX, userY, response1.getNextPageState());
+
+        assertThat(response1.getResults()).extracting(ChatMessagePersisted::getContent)
+                .containsExactlyElementsOf(messages.subList(5, 25).stream().map(Message::getContent).toList());
+        assertThat(response2.getResults()).extracting(ChatMessagePersisted::getContent)
+                .containsExactlyElementsOf(messages.subList(0, 5).stream().map(Message::getContent).toList());
+        assertNull(response2.getNextPageState());
+    }
+
+    @Test
+    void migrate_legacyMessages_readableFromBuckets() {
+        var createdAt = Instant.parse("2024-12-31T23:59:59Z");
+        session.execute(SimpleStatement.newInstance(
+                "INSERT INTO messages.messages (room_id, created_at, profile_id, username, content) VALUES (?, ?, ?, ?, ?)",
+                roomIdXY, createdAt, userX, "x", "legacy"
+        ));
+
+        var result = messageBucketMigration.migrate();
+
+        assertThat(result).isEqualTo(new MessageBucketMigration.MigrationResult(1, 1));
+        assertThat(messageRepository.findByRoomId(roomIdXY, null, 10).getResults())
+                .extracting(Message::getContent, Message::getCreatedAt)
+                .containsExactly(tuple("legacy", createdAt));
+    }
+
     @Test
     void deleteUserInactiveRooms_noRooms_emptySet() {
         Set<String> removed = chatService.deleteUserInactiveRooms(user1Id);
@@ -455,8 +648,8 @@ class ChatServiceIntegrationTest {
         String room12 = generateRoomId(user1Id, user2Id);
         String room13 = generateRoomId(user1Id, user3Id);
 
-        chatService.processMessage(MessageMapper.toDto(createChatMessage(room12, "hi2", user2Id, user1Id, Instant.now())), room12, false);
-        chatService.processMessage(MessageMapper.toDto(createChatMessage(room13, "hi", user1Id, user3Id, Instant.now())), room13, false);
+        processMessage(MessageMapper.toDto(createChatMessage(room12, "hi2", user2Id, user1Id, Instant.now())), room12, false);
+        processMessage(MessageMapper.toDto(createChatMessage(room13, "hi", user1Id, user3Id, Instant.now())), room13, false);
 
         Set<String> removed = chatService.deleteUserInactiveRooms(user1Id);
 
@@ -471,9 +664,9 @@ class ChatServiceIntegrationTest {
         String room12 = generateRoomId(user1Id, user2Id);
         String room13 = generateRoomId(user1Id, user3Id);
 
-        chatService.processMessage(MessageMapper.toDto(createChatMessage(room12, "hi1", user1Id, user2Id, Instant.now().minusSeconds(10))), room12, false);
-        chatService.processMessage(MessageMapper.toDto(createChatMessage(room12, "hi2", user2Id, user1Id, Instant.now())), room12, false);
-        chatService.processMessage(MessageMapper.toDto(createChatMessage(room13, "hi", user1Id, user3Id, Instant.now())), room13, false);
+        processMessage(MessageMapper.toDto(createChatMessage(room12, "hi1", user1Id, user2Id, Instant.now().minusSeconds(10))), room12, false);
+        processMessage(MessageMapper.toDto(createChatMessage(room12, "hi2", user2Id, user1Id, Instant.now())), room12, false);
+        processMessage(MessageMapper.toDto(createChatMessage(room13, "hi", user1Id, user3Id, Instant.now())), room13, false);
 
         Set<String> removed = chatService.deleteUserInactiveRooms(user1Id);
 
@@ -492,9 +685,9 @@ class ChatServiceIntegrationTest {
         String room13 = generateRoomId(user1Id, user3Id);
         String room14 = generateRoomId(user1Id, user4Id);
 
-        chatService.processMessage(MessageMapper.toDto(createChatMessage(room12, "hi", user1Id, user2Id, Instant.now())), room12, false);
-        chatService.processMessage(MessageMapper.toDto(createChatMessage(room13, "hi", user1Id, user3Id, Instant.now())), room13, false);
-        chatService.processMessage(MessageMapper.toDto(createChatMessage(room14, "hi", user1Id, user4Id, Instant.now())), room14, false);
+        processMessage(MessageMapper.toDto(createChatMessage(room12, "hi", user1Id, user2Id, Instant.now())), room12, false);
+        processMessage(MessageMapper.toDto(createChatMessage(room13, "hi", user1Id, user3Id, Instant.now())), room13, false);
+        processMessage(MessageMapper.toDto(createChatMessage(room14, "hi", user1Id, user4Id, Instant.now())), room14, false);
 
         Set<String> removed = chatService.deleteUserInactiveRooms(user1Id);
 
@@ -505,6 +698,84 @@ class ChatServiceIntegrationTest {
         assertThat(messageRepository.findByRoomId(room14, null, 10).getResults()).isEmpty();
     }
 
+    @Test
+    void getConversations_recipientWithoutSnapshot_snapshotBuiltAndRead() {
+        insertProfile(userX, "userX");
+        insertProfile(userY, "userY");
+        conversationsRepository.save(createUnreadConversation(new Conversation.Id(userX, userY), Instant.now(), "Hi"));
+
+        var conversations = chatService.getConversations(userX, NORMAL, null, 10).getResults();
+
+        assertThat(conversations).hasSize(1);
+        var header = conversations.getFirst();
+        assertThat(header.getRecipient().getId()).isEqualTo(userY);
+        assertThat(header.getRecipient().getUsername()).isEqualTo("userY");
+        assertThat(header.getRecipient().getGender()).containsExactly("MALE");
+        assertThat(header.getAge()).containsExactly(30);
+        assertThat(header.getValidationStatus()).isEqualTo("RAW");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM conversation_profiles", Long.class)).isOne();
+    }
+
+    @Test
+    void getConversations_recipientProfileChanged_refreshedSnapshotRead() {
+        insertProfile(userX, "userX");
+        insertProfile(userY, "userY");
+        conversationsRepository.save(createUnreadConversation(new Conversation.Id(userX, userY), Instant.now(), "Hi"));
+        chatService.getConversations(userX, NORMAL, null, 10).getResults();
+        jdbcTemplate.update("UPDATE profiles SET validation_status = 'VALIDATED' WHERE id = ?", userY);
+
+        var staleConversations = chatService.getConversations(userX, NORMAL, null, 10).getResults();
+        chatService.refreshConversationProfile(userY);
+        var conversations = chatService.getConversations(userX, NORMAL, null, 10).getResults();
+
+        assertThat(staleConversations.getFirst().getValidationStatus()).isEqualTo("RAW");
+        assertThat(conversations.getFirst().getValidationStatus()).isEqualTo("VALIDATED");
+    }
+
+    @Test
+    void getConversations_manyConversationsWithSameTimestamp_pagedWithoutGapsOrDuplicates() {
+        var now = Instant.parse("2025-01-01T00:00:00.123456Z");
+        List<UUID> recipients = new ArrayList<>();
+        insertProfile(userX, "userX");
+        for (int i = 0; i < 5; i++) {
+            var recipientId = UUID.randomUUID();
+            insertProfile(recipientId, "user" + i);
+            conversationsRepository.save(createReadConversation(new Conversation.Id(userX, recipientId), now, "Hi"));
+            recipients.add(recipientId);
+        }
+
+        List<UUID> paged = new ArrayList<>();
+        String pageState = null;
+        int pages = 0;
+        do {
+            var page = chatService.getConversations(userX, NORMAL, pageState, 2);
+            page.getResults().forEach(header -> paged.add(header.getRecipient().getId()));
+            pageState = page.getNextPageState();
+            pages++;
+        } while (pageState != null);
+
+        assertThat(pages).isEqualTo(3);
+        assertThat(paged).containsExactlyElementsOf(recipients.stream().sorted(Comparator.comparing(UUID::toString).reversed()).toList());
+    }
+
+    @Test
+    void migrateConversationsSchema_afterStartup_lastMessageAtNotNullAndIndexed() throws InterruptedException {
+        var deadline = Instant.now().plusSeconds(60);
+        while (!conversationsSchemaMigration.migrate()) {
+            assertThat(Instant.now()).isBefore(deadline);
+            Thread.sleep(100);
+        }
+
+        assertThat(jdbcTemplate.queryForObject("""
+                SELECT is_nullable FROM information_schema.columns
+                WHERE table_name = 'conversations' AND column_name = 'last_message_at'""", String.class))
+                .isEqualTo("NO");
+        assertThat(jdbcTemplate.queryForObject("""
+                SELECT i.indisvalid FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid
+                WHERE c.relname = 'idx_conversations_user_last_message'""", Boolean.class))
+                .isTrue();
+    }
+
     @Test
     void getRoomUnreadMessagesCount() {
         var conversation1 = createConversation(new Conversation.Id(userX, userY), Instant.now(), "dummy", 2);
@@ -515,13 +786,55 @@ class ChatServiceIntegrationTest {
     }
 
 
+    Void upsertRepeatedly(CountDownLatch start, UUID senderId, UUID recipientId) throws InterruptedException {
+        start.await();
+        for (int i = 0; i < OPPOSITE_DIRECTION_ROUNDS; i++) {
+            conversationsRepository.upsertConversations(senderId, recipientId, Instant.now(), "Hi", "MESSAGE", 1);
+        }
+        return null;
+    }
+
+    Void upsertAllRepeatedly(CountDownLatch start, List<HeaderUpdate> updates) throws InterruptedException {
+        start.await();
+        for (int i = 0; i < OPPOSITE_DIRECTION_ROUNDS; i++) {
+            conversationsBatchRepository.upsertAll(updates);
+        }
+        return null;
+    }
+
+    /**
+     * Sends the message through the asynchronous pipeline and waits for its conversations headers update.
+     */
+    String processMessage(ChatMessage chatMessage, String roomId, boolean isRecipientOnline) {
+        String createdAt = chatService.processMessageAsync(chatMessage, roomId, isRecipientOnline)
+                .toCompletableFuture()
+                .join();
+        // The headers update is submitted to the pipeline executor before the stage completes
+        var deadline = Instant.now().plusSeconds(10);
+        var executor = pipelineExecutor.getThreadPoolExecutor();
+        while (executor.getCompletedTaskCount() < executor.getTaskCount()) {
+            assertThat(Instant.now()).isBefore(deadline);
+            Thread.onSpinWait();
+        }
+        return createdAt;
+    }
+
     SimpleStatement selectMessage(String roomId, Instant createdAt, UUID userId) {
         return SimpleStatement.newInstance(
-                "SELECT read_at FROM messages.messages WHERE room_id = ? AND created_at = ? AND profile_id = ?",
-                roomId, createdAt, userId
+                "SELECT read_at FROM messages.room_messages WHERE room_id = ? AND bucket = ? AND created_at = ? AND profile_id = ?",
+                roomId, bucketOf(createdAt), createdAt, userId
         );
     }
 
+    void insertProfile(UUID id, String username) {
+        jdbcTemplate.update("INSERT INTO users (id, username, email, password, _2fa, enabled) VALUES (?, ?, ?, 'pass', 'NONE', TRUE)",
+                id, username, username + "@mail.com");
+        jdbcTemplate.update("INSERT INTO profiles (id, username, created_at) VALUES (?, ?, NOW())", id, username);
+        jdbcTemplate.update("INSERT INTO personal (id, profile_id, pair_order, gender, birthdate) VALUES (?, ?, 0, 'MALE', ?)",
+                UUID.randomUUID(), id, LocalDate.now().minusYears(30).minusDays(1));
+        jdbcTemplate.update("INSERT INTO user_roles (user_id, role_id) VALUES (?, 1)", id);
+    }
+
     Conversation createUnreadConversation(Conversation.Id id, Instant lastMessageAt, String content) {
         return createConversation(id, lastMessageAt, content, 1);
     }
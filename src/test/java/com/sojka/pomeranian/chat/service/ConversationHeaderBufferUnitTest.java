@@ -0,0 +1,179 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.model.Conversation;
+import com.sojka.pomeranian.chat.repository.ConversationsBatchRepository;
+import com.sojka.pomeranian.chat.repository.ConversationsBatchRepository.HeaderUpdate;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class ConversationHeaderBufferUnitTest {
+
+    private final ConversationsBatchRepository repository = mock(ConversationsBatchRepository.class);
+    private final Conversation.Id id = new Conversation.Id(UUID.randomUUID(), UUID.randomUUID());
+    private final Instant now = Instant.now();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void add_sameConversationManyTimes_flushedOnceWithSummedUnread() {
+        var buffer = createBuffer(10, 10);
+
+        buffer.add(new HeaderUpdate(id, now.minusSeconds(2), "first", "MESSAGE", false, false, 1));
+        buffer.add(new HeaderUpdate(id, now.minusSeconds(1), "second", "MESSAGE", false, false, 1));
+        buffer.add(new HeaderUpdate(id, now, "third", "MESSAGE", false, false, 1));
+        verifyNoInteractions(repository);
+
+        buffer.flush();
+
+        assertThat(flushed()).containsExactly(new HeaderUpdate(id, now, "third", "MESSAGE", false, false, 3));
+    }
+
+    @Test
+    void add_olderMessageAfterNewer_latestContentKept() {
+        var buffer = createBuffer(10, 10);
+
+        buffer.add(new HeaderUpdate(id, now, "newer", "MESSAGE", false, false, 1));
+        buffer.add(new HeaderUpdate(id, now.minusSeconds(1), "older", "MESSAGE", false, false, 1));
+        buffer.flush();
+
+        assertThat(flushed()).containsExactly(new HeaderUpdate(id, now, "newer", "MESSAGE", false, false, 2));
+    }
+
+    @Test
+    void resetUnread_pendingIncrements_flushedAsReset() {
+        var buffer = createBuffer(10, 10);
+
+        buffer.add(new HeaderUpdate(id, now, "unread", "MESSAGE", false, false, 2));
+        buffer.resetUnread(id);
+        buffer.add(new HeaderUpdate(id, now.plusSeconds(1), "new unread", "MESSAGE", false, false, 1));
+        buffer.flush();
+
+        assertThat(flushed()).containsExactly(new HeaderUpdate(id, now.plusSeconds(1), "new unread", "MESSAGE", false, true, 1));
+    }
+
+    @Test
+    void add_batchSizeReached_flushed() {
+        var buffer = createBuffer(2, 10);
+        var otherId = new Conversation.Id(id.getRecipientId(), id.getUserId());
+
+        buffer.add(new HeaderUpdate(id, now, "content", "MESSAGE", true, true, 0));
+        buffer.add(new HeaderUpdate(otherId, now, "content", "MESSAGE", false, false, 1));
+
+        assertThat(flushed()).hasSize(2);
+    }
+
+    @Test
+    void add_bufferFull_writtenThrough() {
+        var buffer = createBuffer(10, 1);
+        var otherId = new Conversation.Id(id.getRecipientId(), id.getUserId());
+        var overflow = new HeaderUpdate(otherId, now, "content", "MESSAGE", false, false, 1);
+
+        buffer.add(new HeaderUpdate(id, now, "content", "MESSAGE", true, true, 0));
+        buffer.add(overflow);
+
+        assertThat(flushed()).containsExactly(overflow);
+    }
+
+    @Test
+    void flush_repositoryFailure_updatesRetriedWithNextFlush() {
+        var buffer = createBuffer(10, 10);
+        buffer.add(new HeaderUpdate(id, now, "content", "MESSAGE", false, false, 1));
+        doThrow(new RuntimeException("db down")).when(repository).upsertAll(anyList());
+
+        buffer.flush();
+        reset(repository);
+        buffer.flush();
+
+        assertThat(flushed()).containsExactly(new HeaderUpdate(id, now, "content", "MESSAGE", false, false, 1));
+    }
+
+    @Test
+    void flush_poisonHeaderFailingEveryAttempt_othersWrittenAndPoisonDropped() {
+        var buffer = createBuffer(10, 10);
+        var poisonId = new Conversation.Id(id.getRecipientId(), id.getUserId());
+        var healthy = new HeaderUpdate(id, now, "content", "MESSAGE", false, false, 1);
+        var poison = new HeaderUpdate(poisonId, now, "content", "MESSAGE", true, true, 0);
+        buffer.add(healthy);
+        buffer.add(poison);
+        doAnswer(invocation -> {
+            List<HeaderUpdate> updates = invocation.getArgument(0);
+            if (updates.contains(poison)) {
+                throw new RuntimeException("violates foreign key constraint");
+            }
+            return null;
+        }).when(repository).upsertAll(anyList());
+
+        for (int i = 0; i < 5; i++) {
+            buffer.flush();
+        }
+        buffer.flush();
+
+        verify(repository, times(7)).upsertAll(anyList());
+        verify(repository, times(6)).upsertAll(argThat(updates -> updates.contains(poison)));
+        verify(repository).upsertAll(List.of(healthy));
+        assertThat(meterRegistry.get("pomeranian.chat.conversations.buffer.dropped").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void resetUnread_duringBatchWrite_resetAfterBatch() {
+        var buffer = createBuffer(10, 10);
+        buffer.add(new HeaderUpdate(id, now, "unread", "MESSAGE", false, false, 1));
+        doAnswer(invocation -> {
+            buffer.resetUnread(id);
+            return null;
+        }).when(repository).upsertAll(anyList());
+
+        buffer.flush();
+
+        verify(repository).resetUnreadAll(List.of(id));
+    }
+
+    @Test
+    void resetUnread_duringFailedBatchWrite_retriedAsReset() {
+        var buffer = createBuffer(10, 10);
+        buffer.add(new HeaderUpdate(id, now, "unread", "MESSAGE", false, false, 1));
+        doAnswer(invocation -> {
+            buffer.resetUnread(id);
+            throw new RuntimeException("db down");
+        }).when(repository).upsertAll(anyList());
+
+        buffer.flush();
+        reset(repository);
+        buffer.flush();
+
+        assertThat(flushed()).containsExactly(new HeaderUpdate(id, now, "unread", "MESSAGE", false, true, 0));
+        verify(repository, never()).resetUnreadAll(anyList());
+    }
+
+    ConversationHeaderBuffer createBuffer(int batchSize, int capacity) {
+        var config = new ChatConfig();
+        config.getConversationBuffer().setEnabled(true);
+        config.getConversationBuffer().setBatchSize(batchSize);
+        config.getConversationBuffer().setCapacity(capacity);
+        return new ConversationHeaderBuffer(repository, Runnable::run, config, meterRegistry);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<HeaderUpdate> flushed() {
+        ArgumentCaptor<List<HeaderUpdate>> captor = ArgumentCaptor.forClass(List.class);
+        verify(repository, times(1)).upsertAll(captor.capture());
+        return captor.getValue();
+    }
+}
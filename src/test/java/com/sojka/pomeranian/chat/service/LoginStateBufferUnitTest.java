@@ -0,0 +1,140 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.repository.ProfilesBatchRepository;
+import com.sojka.pomeranian.chat.repository.ProfilesBatchRepository.LoginUpdate;
+import com.sojka.pomeranian.security.repository.UserRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class LoginStateBufferUnitTest {
+
+    private final ProfilesBatchRepository repository = mock(ProfilesBatchRepository.class);
+    private final UserRepository userRepository = mock(UserRepository.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final UUID userId = UUID.randomUUID();
+    private final Instant now = Instant.now();
+
+    @Test
+    void add_reconnects_flushedOnceWithLatestState() {
+        var buffer = createBuffer(true, 10, 10);
+
+        buffer.add(userId, now.minusSeconds(2), true);
+        buffer.add(userId, now.minusSeconds(1), false);
+        buffer.add(userId, now, true);
+        verifyNoInteractions(repository);
+
+        buffer.flush();
+
+        assertThat(flushed()).containsExactly(new LoginUpdate(userId, now, true));
+    }
+
+    @Test
+    void add_olderStateAfterNewer_newerKept() {
+        var buffer = createBuffer(true, 10, 10);
+
+        buffer.add(userId, now, false);
+        buffer.add(userId, now.minusSeconds(1), true);
+        buffer.flush();
+
+        assertThat(flushed()).containsExactly(new LoginUpdate(userId, now, false));
+    }
+
+    @Test
+    void add_batchSizeReached_flushedByFlusher() {
+        var buffer = createBuffer(true, 2, 10);
+        buffer.start();
+
+        buffer.add(userId, now, true);
+        buffer.add(UUID.randomUUID(), now, true);
+
+        verify(repository, timeout(5000)).updateLoginAll(argThat(updates -> updates.size() == 2));
+        buffer.flushOnShutdown();
+    }
+
+    @Test
+    void add_bufferFull_writtenThrough() {
+        var buffer = createBuffer(true, 10, 1);
+        UUID userId2 = UUID.randomUUID();
+
+        buffer.add(userId, now, true);
+        buffer.add(userId2, now, true);
+
+        verify(userRepository).updateLastLoginAtAndIsOnline(userId2, now, true);
+        verifyNoInteractions(repository);
+    }
+
+    @Test
+    void add_disabled_writtenThrough() {
+        var buffer = createBuffer(false, 10, 10);
+
+        buffer.add(userId, now, false);
+
+        verify(userRepository).updateLastLoginAtAndIsOnline(userId, now, false);
+    }
+
+    @Test
+    void flush_repositoryFailure_updatesRetriedWithNextFlush() {
+        var buffer = createBuffer(true, 10, 10);
+        buffer.add(userId, now, true);
+        doThrow(new RuntimeException("db down")).when(repository).updateLoginAll(anyList());
+
+        buffer.flush();
+        reset(repository);
+        buffer.flush();
+
+        assertThat(flushed()).containsExactly(new LoginUpdate(userId, now, true));
+        assertThat(meterRegistry.get("pomeranian.chat.login.buffer.lag").gauge().value()).isZero();
+    }
+
+    @Test
+    void flush_batchFailingMaxAttempts_writtenOneByOneAndFailingRowsDropped() {
+        var buffer = createBuffer(true, 10, 10);
+        UUID userId2 = UUID.randomUUID();
+        buffer.add(userId, now, true);
+        buffer.add(userId2, now, false);
+        doThrow(new RuntimeException("poison")).when(repository).updateLoginAll(anyList());
+        doThrow(new RuntimeException("poison")).when(userRepository).updateLastLoginAtAndIsOnline(userId2, now, false);
+
+        buffer.flush();
+        verifyNoInteractions(userRepository);
+        buffer.flush();
+
+        verify(userRepository).updateLastLoginAtAndIsOnline(userId, now, true);
+        assertThat(meterRegistry.get("pomeranian.chat.login.buffer.dropped").counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("pomeranian.chat.login.buffer.pending").gauge().value()).isZero();
+    }
+
+    LoginStateBuffer createBuffer(boolean enabled, int batchSize, int capacity) {
+        var config = new ChatConfig();
+        config.getLoginBuffer().setEnabled(enabled);
+        config.getLoginBuffer().setFlushIntervalMs(60_000);
+        config.getLoginBuffer().setBatchSize(batchSize);
+        config.getLoginBuffer().setCapacity(capacity);
+        config.getLoginBuffer().setMaxFlushAttempts(2);
+        return new LoginStateBuffer(repository, userRepository, config, meterRegistry);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<LoginUpdate> flushed() {
+        ArgumentCaptor<List<LoginUpdate>> captor = ArgumentCaptor.forClass(List.class);
+        verify(repository, times(1)).updateLoginAll(captor.capture());
+        return captor.getValue();
+    }
+}
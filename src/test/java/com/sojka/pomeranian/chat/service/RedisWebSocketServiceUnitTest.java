@@ -0,0 +1,110 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.dto.StompSubscription;
+import com.sojka.pomeranian.chat.service.cache.SessionCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class RedisWebSocketServiceUnitTest {
+
+    private final MessageRelay relay = mock(MessageRelay.class);
+    private final SimpMessagingTemplate localTemplate = mock(SimpMessagingTemplate.class);
+    private final SessionCache cache = mock(SessionCache.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RedisWebSocketService service = new RedisWebSocketService(relay, localTemplate, cache, meterRegistry);
+    private final UUID userId = UUID.randomUUID();
+
+    @BeforeEach
+    void setUp() {
+        doReturn(new MappingJackson2MessageConverter()).when(localTemplate).getMessageConverter();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void convertAndSendToUser_localSession_convertedBodyDeliveredLocally() {
+        var envelope = ArgumentCaptor.forClass(RelayEnvelope.class);
+        doReturn(new MessageRelay.Route(true, 0, "1-0")).when(relay).route(eq(Set.of(userId)), envelope.capture());
+
+        service.convertAndSendToUser(userId.toString(), "/queue/notification", "payload");
+
+        var message = ArgumentCaptor.forClass(Message.class);
+        verify(localTemplate).send(eq("/user/" + userId + "/queue/notification"), message.capture());
+        assertThat(new String((byte[]) message.getValue().getPayload(), StandardCharsets.UTF_8))
+                .isEqualTo("\"payload\"");
+        assertThat(envelope.getValue().body()).isSameAs(message.getValue().getPayload());
+        assertThat(SimpMessageHeaderAccessor.wrap(message.getValue()).getFirstNativeHeader("relay-id")).isEqualTo("1-0");
+        verify(relay, never()).broadcast(any());
+        assertThat(counter("local")).isEqualTo(1);
+    }
+
+    @Test
+    void convertAndSendToUser_roomOfRemoteUsers_routedToBothUsersNodes() {
+        UUID userId2 = UUID.randomUUID();
+        doReturn(new MessageRelay.Route(false, 2, null)).when(relay).route(eq(Set.of(userId, userId2)), any());
+
+        service.convertAndSendToUser(userId + ":" + userId2, "/queue/private", "payload");
+
+        verify(localTemplate, never()).send(anyString(), any(Message.class));
+        verify(relay, never()).broadcast(any());
+        assertThat(counter("routed")).isEqualTo(2);
+    }
+
+    @Test
+    void convertAndSendToUser_offlineUser_dropped() {
+        doReturn(new MessageRelay.Route(false, 0, null)).when(relay).route(eq(Set.of(userId)), any());
+
+        service.convertAndSendToUser(userId.toString(), "/queue/notification", "payload");
+
+        verify(localTemplate, never()).send(anyString(), any(Message.class));
+        verify(relay, never()).broadcast(any());
+        assertThat(counter("unrouted")).isEqualTo(1);
+    }
+
+    @Test
+    void convertAndSendToUser_onlineUserWithoutNodes_broadcast() {
+        doReturn(new MessageRelay.Route(false, 0, null)).when(relay).route(eq(Set.of(userId)), any());
+        doReturn(Map.of(userId, true)).when(cache)
+                .isOnlineMany(Set.of(userId), StompSubscription.Type.CHAT_NOTIFICATIONS);
+
+        service.convertAndSendToUser(userId.toString(), "/queue/notification", "payload");
+
+        verify(relay).broadcast(any());
+        assertThat(counter("fallback_broadcast")).isEqualTo(1);
+        assertThat(counter("unrouted")).isZero();
+    }
+
+    @Test
+    void convertAndSendToUser_noUserId_broadcast() {
+        service.convertAndSendToUser("admins", "/queue/notification", "payload");
+
+        var envelope = ArgumentCaptor.forClass(RelayEnvelope.class);
+        verify(relay).broadcast(envelope.capture());
+        assertThat(envelope.getValue().destination()).isEqualTo("/user/admins/queue/notification");
+        verify(relay, never()).route(any(), any());
+        assertThat(counter("broadcast")).isEqualTo(1);
+    }
+
+    private double counter(String route) {
+        return meterRegistry.get("pomeranian.chat.relay").tag("route", route).counter().count();
+    }
+}
@@ -0,0 +1,67 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.util.MimeTypeUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RelayEnvelopeUnitTest {
+
+    private final byte[] body = "{\"content\":\"zażółć\"}".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void decode_encodedEnvelope_sameEnvelope() {
+        var envelope = new RelayEnvelope("/user/ąę/queue/private", "application/json", body);
+
+        var result = RelayEnvelope.decode(envelope.encode());
+
+        assertThat(result.destination()).isEqualTo("/user/ąę/queue/private");
+        assertThat(result.contentType()).isEqualTo("application/json");
+        assertThat(result.body()).isEqualTo(body);
+    }
+
+    @Test
+    void encodeJson_jsonBody_readableAsLegacyMessage() throws Exception {
+        var mapper = new ObjectMapper();
+        var envelope = new RelayEnvelope("/user/ąę/queue/private", "application/json", body);
+
+        var result = mapper.readValue(envelope.encodeJson(mapper), WebSocketMessage.class);
+
+        assertThat(RelayEnvelope.isEnvelope(envelope.encodeJson(mapper))).isFalse();
+        assertThat(result.destination()).isEqualTo("/user/ąę/queue/private");
+        assertThat(result.payload()).isEqualTo(Map.of("content", "zażółć"));
+    }
+
+    @Test
+    void decode_nullContentTypeAndEmptyBody_sameEnvelope() {
+        var result = RelayEnvelope.decode(new RelayEnvelope("/queue/x", null, new byte[0]).encode());
+
+        assertThat(result.contentType()).isNull();
+        assertThat(result.body()).isEmpty();
+    }
+
+    @Test
+    void isEnvelope_legacyJson_false() {
+        byte[] json = "{\"destination\":\"/queue/x\",\"payload\":1}".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(RelayEnvelope.isEnvelope(json)).isFalse();
+        assertThatThrownBy(() -> RelayEnvelope.decode(json)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void toMessage_envelope_bodyAndContentTypeKept() {
+        var message = new RelayEnvelope("/queue/x", "application/json", body).toMessage("17-0");
+
+        assertThat(message.getPayload()).isSameAs(body);
+        assertThat(message.getHeaders().get(MessageHeaders.CONTENT_TYPE)).isEqualTo(MimeTypeUtils.APPLICATION_JSON);
+        assertThat(SimpMessageHeaderAccessor.wrap(message).getFirstNativeHeader(RelayEnvelope.RELAY_ID_HEADER))
+                .isEqualTo("17-0");
+    }
+}
@@ -0,0 +1,150 @@
+package com.sojka.pomeranian.chat.service;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.config.StompRequestAuthenticator;
+import com.sojka.pomeranian.chat.service.cache.PresenceNode;
+import com.sojka.pomeranian.security.model.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class StreamMessageRelayUnitTest {
+
+    private static final UUID USER_ID = UUID.randomUUID();
+    private static final String DESTINATION = "/user/" + USER_ID + ":" + UUID.randomUUID() + "/queue/private";
+
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    private final PresenceNode node = mock(PresenceNode.class);
+    private final MessageChannel clientOutboundChannel = mock(MessageChannel.class);
+    private final StompRequestAuthenticator authenticator = mock(StompRequestAuthenticator.class);
+    private final User user = mock(User.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final byte[] body = "{\"content\":\"hi\"}".getBytes(StandardCharsets.UTF_8);
+    private final StreamMessageRelay relay;
+
+    StreamMessageRelayUnitTest() {
+        doReturn("node1").when(node).getNodeId();
+        doReturn(USER_ID).when(user).getId();
+        doReturn(user).when(authenticator).getUser(any(SessionSubscribeEvent.class), any(StompHeaderAccessor.class));
+        relay = new StreamMessageRelay(redisTemplate, mock(RedisConnectionFactory.class), node,
+                mock(SimpMessagingTemplate.class), clientOutboundChannel, authenticator, Runnable::run,
+                new ChatConfig(), meterRegistry);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void route_usersOnNodes_relayIdOfKeptEnvelopeReturned() {
+        UUID userId = UUID.randomUUID();
+        var keys = ArgumentCaptor.forClass(List.class);
+        doReturn(List.of(1L, 1L, "1700000000000-0".getBytes(StandardCharsets.UTF_8))).when(redisTemplate).execute(
+                any(RedisScript.class), any(RedisSerializer.class), isNull(), keys.capture(), any(Object[].class)
+        );
+
+        var route = relay.route(List.of(userId), new RelayEnvelope(DESTINATION, "application/json", body));
+
+        assertThat(route).isEqualTo(new MessageRelay.Route(true, 1, "1700000000000-0"));
+        assertThat(keys.getValue()).containsExactly("presence:u:{" + userId + "}:nodes", "relay:d:{" + DESTINATION + "}");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void handleSessionSubscribe_relaySince_newerEnvelopesSentToSessionOnly() {
+        var frame = new RelayEnvelope(DESTINATION, "application/json", body).encode();
+        var records = List.of(
+                record("1700000000001-0", frame),
+                record("1700000000002-0", frame)
+        );
+        doReturn(records).when(redisTemplate).execute(any(RedisCallback.class));
+
+        relay.handleSessionSubscribe(subscribeEvent(DESTINATION, "1700000000000-0"));
+
+        var messages = ArgumentCaptor.forClass(Message.class);
+        verify(clientOutboundChannel, times(2)).send(messages.capture());
+        var accessor = SimpMessageHeaderAccessor.wrap(messages.getAllValues().getFirst());
+        assertThat(accessor.getSessionId()).isEqualTo("session1");
+        assertThat(accessor.getSubscriptionId()).isEqualTo("sub1");
+        assertThat(accessor.getDestination()).isEqualTo(DESTINATION);
+        assertThat(accessor.getFirstNativeHeader(RelayEnvelope.RELAY_ID_HEADER)).isEqualTo("1700000000001-0");
+        assertThat(messages.getAllValues().getFirst().getPayload()).isEqualTo(body);
+        assertThat(meterRegistry.get("pomeranian.chat.relay.replayed").counter().count()).isEqualTo(2);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void handleSessionSubscribe_invalidRelaySince_nothingReplayed() {
+        relay.handleSessionSubscribe(subscribeEvent(DESTINATION, "0 + COUNT 1"));
+
+        verify(redisTemplate, never()).execute(any(RedisCallback.class));
+        verify(clientOutboundChannel, never()).send(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void handleSessionSubscribe_foreignDestination_nothingReplayed() {
+        var foreign = "/user/" + UUID.randomUUID() + ":" + UUID.randomUUID() + "/queue/private";
+
+        relay.handleSessionSubscribe(subscribeEvent(foreign, "1700000000000-0"));
+
+        verify(redisTemplate, never()).execute(any(RedisCallback.class));
+        verify(clientOutboundChannel, never()).send(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void handleSessionSubscribe_unauthenticatedSession_nothingReplayed() {
+        doThrow(new SecurityException("no user")).when(authenticator)
+                .getUser(any(SessionSubscribeEvent.class), any(StompHeaderAccessor.class));
+
+        relay.handleSessionSubscribe(subscribeEvent(DESTINATION, "1700000000000-0"));
+
+        verify(redisTemplate, never()).execute(any(RedisCallback.class));
+    }
+
+    private static ByteRecord record(String id, byte[] frame) {
+        return StreamRecords.newRecord()
+                .in(("relay:d:{" + DESTINATION + "}").getBytes(StandardCharsets.UTF_8))
+                .withId(RecordId.of(id))
+                .ofBytes(Map.of("f".getBytes(StandardCharsets.UTF_8), frame));
+    }
+
+    private static SessionSubscribeEvent subscribeEvent(String destination, String relaySince) {
+        var accessor = StompHeaderAccessor.create(StompCommand.SUBSCRIBE);
+        accessor.setSessionId("session1");
+        accessor.setSubscriptionId("sub1");
+        accessor.setDestination(destination);
+        accessor.setNativeHeader(StreamMessageRelay.RELAY_SINCE_HEADER, relaySince);
+        var message = MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+        return new SessionSubscribeEvent(new Object(), message);
+    }
+}
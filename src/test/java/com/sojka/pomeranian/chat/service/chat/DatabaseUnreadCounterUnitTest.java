@@ -0,0 +1,44 @@
+package com.sojka.pomeranian.chat.service.chat;
+
+import com.sojka.pomeranian.chat.repository.ConversationsRepository;
+import com.sojka.pomeranian.chat.service.cache.DatabaseUnreadCounter;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class DatabaseUnreadCounterUnitTest {
+
+    private final ConversationsRepository conversationsRepository = mock(ConversationsRepository.class);
+    private final DatabaseUnreadCounter counter = new DatabaseUnreadCounter(conversationsRepository);
+
+    private final UUID userId = UUID.randomUUID();
+    private final UUID recipientId = UUID.randomUUID();
+
+    @Test
+    void total_countsInDatabase_sumOfUserConversations() {
+        when(conversationsRepository.sumUnreadCountByUserId(userId)).thenReturn(5L);
+
+        assertThat(counter.total(userId)).isEqualTo(5L);
+    }
+
+    @Test
+    void room_countInDatabase_conversationCount() {
+        when(conversationsRepository.findUnreadCountByIdUserIdAndIdRecipientId(userId, recipientId)).thenReturn(2L);
+
+        assertThat(counter.room(userId, recipientId)).isEqualTo(2L);
+    }
+
+    @Test
+    void messageAndReset_countsKeptByUpserts_noDatabaseWrites() {
+        counter.message(userId, recipientId, false);
+        counter.reset(recipientId, userId);
+        counter.evict(userId);
+
+        verifyNoInteractions(conversationsRepository);
+    }
+}
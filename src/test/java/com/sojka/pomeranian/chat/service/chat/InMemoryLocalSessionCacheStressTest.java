@@ -0,0 +1,190 @@
+package com.sojka.pomeranian.chat.service.chat;
+
+import com.sojka.pomeranian.chat.dto.StompSubscription;
+import com.sojka.pomeranian.chat.model.ActiveUser;
+import com.sojka.pomeranian.chat.service.cache.InMemoryLocalSessionCache;
+import org.junit.jupiter.api.RepeatedTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Reconnect storm against the shared users: every thread connects a session of each user, subscribes and
+ * unsubscribes concurrently with the others, while a reader keeps reading the same users.<br>
+ * The disconnects interleaved with the connects check the subscribers index against the users snapshots.
+ */
+class InMemoryLocalSessionCacheStressTest {
+
+    private static final int THREADS = 8;
+    private static final int USERS = 200;
+    private static final int ROOMS = 10;
+
+    private final InMemoryLocalSessionCache cache = new InMemoryLocalSessionCache();
+    private final List<UUID> userIds = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+
+    @RepeatedTest(5)
+    void concurrentReconnects_consistentSnapshotsAndIndexes() throws InterruptedException {
+        for (int i = 0; i < USERS; i++) {
+            userIds.add(UUID.randomUUID());
+        }
+        var running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        executor.submit(() -> read(running));
+
+        runConcurrently(executor, thread -> {
+            for (int i = 0; i < USERS; i++) {
+                UUID userId = userIds.get(i);
+                String sessionId = thread + "-" + i;
+                cache.create(userId, sessionId);
+                cache.add(userId, sessionId, List.of(
+                        room(i), new StompSubscription(StompSubscription.Type.CHAT_NOTIFICATIONS, null)
+                ));
+                cache.add(userId, sessionId, new StompSubscription(StompSubscription.Type.POST_COMMENTS, "post"));
+                cache.remove(userId, sessionId, new StompSubscription(StompSubscription.Type.POST_COMMENTS, "post"));
+            }
+        });
+
+        for (int i = 0; i < USERS; i++) {
+            UUID userId = userIds.get(i);
+            ActiveUser activeUser = cache.get(userId).orElseThrow();
+            assertThat(activeUser.getSessions()).hasSize(THREADS);
+            for (ActiveUser.Session session : activeUser.getSessions()) {
+                assertThat(session.getSubscriptions()).containsOnlyKeys("CHAT", "CHAT_NOTIFICATIONS");
+                assertThat(session.getSubscriptions().get("CHAT")).containsExactly(room(i).id());
+            }
+            assertThat(cache.isOnline(userId, room(i))).isTrue();
+            assertThat(cache.isOnline(userId, StompSubscription.Type.POST_COMMENTS)).isFalse();
+        }
+        for (int room = 0; room < ROOMS; room++) {
+            var expected = new ArrayList<UUID>();
+            for (int i = room; i < USERS; i += ROOMS) {
+                expected.add(userIds.get(i));
+            }
+            assertThat(cache.findSubscribers(room(room))).containsExactlyInAnyOrderElementsOf(expected);
+        }
+
+        runConcurrently(executor, thread -> {
+            for (int i = 0; i < USERS; i++) {
+                cache.remove(thread + "-" + i);
+            }
+        });
+        running.set(false);
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(errors).isEmpty();
+        assertThat(cache.getAll(null, USERS).getResults()).isEmpty();
+        for (int room = 0; room < ROOMS; room++) {
+            assertThat(cache.findSubscribers(room(room))).isEmpty();
+        }
+    }
+
+    @RepeatedTest(5)
+    void interleavedConnectsAndDisconnects_indexesMatchSnapshots() throws InterruptedException {
+        for (int i = 0; i < USERS; i++) {
+            userIds.add(UUID.randomUUID());
+        }
+        var running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        executor.submit(() -> read(running));
+
+        runConcurrently(executor, thread -> {
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < USERS; i++) {
+                    UUID userId = userIds.get(i);
+                    String sessionId = thread + "-" + round + "-" + i;
+                    cache.create(userId, sessionId);
+                    cache.add(userId, sessionId, room(i));
+                    if ((i + thread + round) % 3 == 0) {
+                        cache.remove(sessionId);
+                    } else if ((i + thread + round) % 3 == 1) {
+                        cache.remove(userId, sessionId, room(i));
+                    }
+                }
+            }
+        });
+        running.set(false);
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(errors).isEmpty();
+        for (int room = 0; room < ROOMS; room++) {
+            var expected = new ArrayList<UUID>();
+            for (int i = room; i < USERS; i += ROOMS) {
+                if (cache.isOnline(userIds.get(i), room(i))) {
+                    expected.add(userIds.get(i));
+                }
+            }
+            assertThat(cache.findSubscribers(room(room))).containsExactlyInAnyOrderElementsOf(expected);
+        }
+
+        for (UUID userId : userIds) {
+            cache.get(userId).ifPresent(activeUser -> cache.remove(activeUser.getSessions().getFirst().getSimpSessionId()));
+        }
+        assertThat(cache.getAll(null, USERS).getResults()).isEmpty();
+        for (int room = 0; room < ROOMS; room++) {
+            assertThat(cache.findSubscribers(room(room))).isEmpty();
+        }
+    }
+
+    private void runConcurrently(ExecutorService executor, ThreadTask task) throws InterruptedException {
+        var start = new CountDownLatch(1);
+        var done = new CountDownLatch(THREADS);
+        for (int thread = 0; thread < THREADS; thread++) {
+            int threadId = thread;
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    task.run(threadId);
+                } catch (Throwable e) {
+                    errors.add(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertThat(done.await(30, TimeUnit.SECONDS)).isTrue();
+        assertThat(errors).isEmpty();
+    }
+
+    private void read(AtomicBoolean running) {
+        try {
+            while (running.get()) {
+                for (int i = 0; i < USERS; i++) {
+                    cache.get(userIds.get(i)).ifPresent(activeUser -> {
+                        for (ActiveUser.Session session : activeUser.getSessions()) {
+                            for (Map.Entry<String, List<String>> subscription : session.getSubscriptions().entrySet()) {
+                                assertThat(subscription.getValue()).isNotEmpty();
+                            }
+                        }
+                    });
+                    cache.isOnline(userIds.get(i), room(i));
+                }
+                cache.getAll(null, USERS);
+            }
+        } catch (Throwable e) {
+            errors.add(e);
+        }
+    }
+
+    private static StompSubscription room(int user) {
+        return new StompSubscription(StompSubscription.Type.CHAT, "room-" + user % ROOMS);
+    }
+
+    @FunctionalInterface
+    private interface ThreadTask {
+        void run(int thread) throws Exception;
+    }
+}
@@ -5,13 +5,13 @@ import com.sojka.pomeranian.chat.exception.CacheException;
 import com.sojka.pomeranian.chat.model.ActiveUser;
 import com.sojka.pomeranian.chat.service.cache.InMemoryLocalSessionCache;
 import com.sojka.pomeranian.chat.service.cache.SessionCache;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -22,15 +22,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class InMemoryLocalSessionCacheUnitTest {
 
-    Map<UUID, ActiveUser> db = new HashMap<>();
-    Map<String, UUID> sessions = new HashMap<>();
-    SessionCache cache = new InMemoryLocalSessionCache(db, sessions);
-
-    @BeforeEach
-    void setUp() {
-        db.clear();
-        sessions.clear();
-    }
+    SessionCache cache = new InMemoryLocalSessionCache();
 
     UUID userId = UUID.randomUUID();
 
@@ -42,7 +34,7 @@ class InMemoryLocalSessionCacheUnitTest {
         StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, userId.toString());
 
         assertTrue(cache.add(userId, simpSessionId, subscription));
-        assertTrue(db.containsKey(userId));
+        assertTrue(cache.get(userId).isPresent());
     }
 
     @Test
@@ -54,7 +46,7 @@ class InMemoryLocalSessionCacheUnitTest {
         cache.add(userId, simpSessionId, subscription);
 
         assertFalse(cache.add(userId, simpSessionId, subscription));
-        assertTrue(db.containsKey(userId));
+        assertTrue(cache.get(userId).isPresent());
     }
 
     @Test
@@ -79,7 +71,7 @@ class InMemoryLocalSessionCacheUnitTest {
         cache.create(userId, simpSessionId);
 
         assertNotNull(cache.remove(simpSessionId));
-        assertFalse(db.containsKey(userId));
+        assertFalse(cache.get(userId).isPresent());
     }
 
     @Test
@@ -99,13 +91,13 @@ class InMemoryLocalSessionCacheUnitTest {
         cache.create(userId2, simpSessionId2);
 
         cache.purge();
-        assertTrue(db.isEmpty());
+        assertTrue(cache.getAll(null, 100).getResults().isEmpty());
     }
 
     @Test
     void purge_emptyCache_noEffect() {
         cache.purge();
-        assertTrue(db.isEmpty());
+        assertTrue(cache.getAll(null, 100).getResults().isEmpty());
     }
 
     @Test
@@ -145,11 +137,20 @@ class InMemoryLocalSessionCacheUnitTest {
 
     @Test
     void getAll_emptyCache_returnsEmptyList() {
-        List<ActiveUser> result = cache.getAll();
+        List<ActiveUser> result = cache.getAll(null, 100).getResults();
 
         assertTrue(result.isEmpty());
     }
 
+    @Test
+    void getAll_zeroPageSize_throwIllegalArgumentException() {
+        cache.create(userId, "session1");
+
+        assertThatThrownBy(() -> cache.getAll(null, 0))
+                .isExactlyInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Invalid pageSize: 0");
+    }
+
     @Test
     void getAll_multipleUsers_returnsAllUsers() {
         String simpSessionId1 = "session1";
@@ -159,11 +160,50 @@ class InMemoryLocalSessionCacheUnitTest {
         String simpSessionId2 = "session2";
         cache.create(userId2, simpSessionId2);
 
-        List<ActiveUser> result = cache.getAll();
+        List<ActiveUser> result = cache.getAll(null, 100).getResults();
 
         assertEquals(2, result.size());
     }
 
+    @Test
+    void getAll_morePagesOfUsers_eachUserReturnedOnce() {
+        List<UUID> userIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            userIds.add(UUID.randomUUID());
+            cache.create(userIds.getLast(), "session" + i);
+        }
+
+        var firstPage = cache.getAll(null, 2);
+        var secondPage = cache.getAll(firstPage.getNextPageState(), 2);
+        var lastPage = cache.getAll(secondPage.getNextPageState(), 2);
+
+        assertThat(lastPage.getNextPageState()).isNull();
+        assertThat(Stream.of(firstPage, secondPage, lastPage).flatMap(page -> page.getResults().stream()))
+                .extracting(ActiveUser::getUserId)
+                .containsExactlyInAnyOrderElementsOf(userIds);
+    }
+
+    @Test
+    void isOnlineMany_someUsersOnline_flagOfEachUser() {
+        UUID userId2 = UUID.randomUUID();
+        cache.create(userId, "session1");
+
+        var result = cache.isOnlineMany(List.of(userId, userId2), StompSubscription.Type.CHAT_NOTIFICATIONS);
+
+        assertThat(result).containsExactlyInAnyOrderEntriesOf(Map.of(userId, true, userId2, false));
+    }
+
+    @Test
+    void getMany_someUsersOnline_onlineUsersOnly() {
+        cache.create(userId, "session1");
+
+        var result = cache.getMany(List.of(userId, UUID.randomUUID()));
+
+        assertThat(result).containsOnlyKeys(userId);
+        assertThat(result.get(userId).getSessions()).extracting(ActiveUser.Session::getSimpSessionId)
+                .containsExactly("session1");
+    }
+
     @Test
     void add_userAbsent_false() {
         StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
@@ -186,7 +226,7 @@ class InMemoryLocalSessionCacheUnitTest {
         String sessionId = "session1";
 
         assertTrue(cache.create(userId, sessionId));
-        assertTrue(db.containsKey(userId));
+        assertTrue(cache.get(userId).isPresent());
     }
 
     @Test
@@ -197,7 +237,7 @@ class InMemoryLocalSessionCacheUnitTest {
         String sessionId2 = "session2";
 
         assertTrue(cache.create(userId, sessionId2));
-        assertEquals(2, db.get(userId).getSessions().size());
+        assertEquals(2, cache.get(userId).orElseThrow().getSessions().size());
     }
 
     @Test
@@ -230,6 +270,56 @@ class InMemoryLocalSessionCacheUnitTest {
         cache.create(userId, sessionId2);
 
         assertNotNull(cache.remove(sessionId1));
-        assertFalse(db.containsKey(userId));
+        assertFalse(cache.get(userId).isPresent());
+    }
+
+    @Test
+    void findSubscribers_usersViewingSubscription_returnsUsers() {
+        UUID userId2 = UUID.randomUUID();
+        StompSubscription room = new StompSubscription(StompSubscription.Type.CHAT, "room1");
+        cache.create(userId, "session1");
+        cache.create(userId, "session2");
+        cache.create(userId2, "session3");
+        cache.add(userId, "session1", room);
+        cache.add(userId, "session2", room);
+        cache.add(userId2, "session3", new StompSubscription(StompSubscription.Type.CHAT, "room2"));
+
+        assertThat(cache.findSubscribers(room)).containsExactly(userId);
+    }
+
+    @Test
+    void findSubscribers_oneOfSessionsUnsubscribed_userStillSubscribed() {
+        StompSubscription room = new StompSubscription(StompSubscription.Type.CHAT, "room1");
+        cache.create(userId, "session1");
+        cache.create(userId, "session2");
+        cache.add(userId, "session1", room);
+        cache.add(userId, "session2", room);
+
+        cache.remove(userId, "session1", room);
+        assertThat(cache.findSubscribers(room)).containsExactly(userId);
+
+        cache.remove(userId, "session2", new StompSubscription(StompSubscription.Type.CHAT, null));
+        assertThat(cache.findSubscribers(room)).isEmpty();
+    }
+
+    @Test
+    void findSubscribers_userDisconnected_empty() {
+        StompSubscription room = new StompSubscription(StompSubscription.Type.CHAT, "room1");
+        cache.create(userId, "session1");
+        cache.add(userId, "session1", room);
+
+        cache.remove("session1");
+
+        assertThat(cache.findSubscribers(room)).isEmpty();
+    }
+
+    @Test
+    void findSubscribers_subscriptionWithoutId_notIndexed() {
+        StompSubscription notifications = new StompSubscription(StompSubscription.Type.CHAT_NOTIFICATIONS, null);
+        cache.create(userId, "session1");
+        cache.add(userId, "session1", notifications);
+
+        assertThat(cache.findSubscribers(notifications)).isEmpty();
+        assertTrue(cache.isOnline(userId, notifications));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+package com.sojka.pomeranian.chat.service.chat;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.dto.MessageKey;
+import com.sojka.pomeranian.chat.model.Message;
+import com.sojka.pomeranian.chat.service.cache.InMemoryRoomMessageCache;
+import com.sojka.pomeranian.chat.service.cache.RoomMessageCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static com.sojka.pomeranian.chat.util.TestUtils.createChatMessage;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InMemoryRoomMessageCacheUnitTest {
+
+    UUID userX = UUID.randomUUID();
+    UUID userY = UUID.randomUUID();
+    String roomId = "room";
+    Instant now = Instant.parse("2025-01-01T12:00:00Z");
+
+    @Test
+    void get_notPopulated_empty() {
+        var cache = createCache(3, 1024 * 1024);
+
+        cache.add(message("first", 0));
+
+        assertThat(cache.get(roomId)).isEmpty();
+    }
+
+    @Test
+    void add_populatedRoom_newestKeptWithinPageSize() {
+        var cache = createCache(3, 1024 * 1024);
+        cache.populate(roomId, List.of(message("1", 1), message("2", 2), message("3", 3)), cache.version(roomId));
+
+        cache.add(message("4", 4));
+
+        assertThat(cache.get(roomId).orElseThrow()).extracting(Message::getContent).containsExactly("4", "3", "2");
+    }
+
+    @Test
+    void populate_roomWrittenAfterVersionRead_notCached() {
+        var cache = createCache(3, 1024 * 1024);
+        long version = cache.version(roomId);
+        cache.add(message("written meanwhile", 2));
+
+        cache.populate(roomId, List.of(message("stale", 1)), version);
+
+        assertThat(cache.get(roomId)).isEmpty();
+    }
+
+    @Test
+    void markRead_cachedMessages_readAtSet() {
+        var cache = createCache(3, 1024 * 1024);
+        var message = message("unread", 1);
+        cache.populate(roomId, List.of(message), cache.version(roomId));
+        var readAt = now.plusSeconds(10);
+
+        cache.markRead(new MessageKey(roomId, List.of(message.getCreatedAt()), userX), readAt);
+
+        assertThat(cache.get(roomId).orElseThrow().getFirst().getReadAt()).isEqualTo(readAt);
+    }
+
+    @Test
+    void update_cachedMessage_replaced() {
+        var cache = createCache(3, 1024 * 1024);
+        var message = message("original", 1);
+        cache.populate(roomId, List.of(message), cache.version(roomId));
+        var updated = message.toBuilder().content("updated").build();
+
+        cache.update(updated);
+
+        assertThat(cache.get(roomId).orElseThrow().getFirst().getContent()).isEqualTo("updated");
+    }
+
+    @Test
+    void populate_overMemoryBudget_leastRecentlyUsedEvicted() {
+        var cache = createCache(3, 1500);
+        cache.populate("room1", List.of(createChatMessage("room1", "a".repeat(100), userX, userY, now)), 0);
+        cache.populate("room2", List.of(createChatMessage("room2", "b".repeat(100), userX, userY, now)), 0);
+        cache.get("room1");
+
+        cache.populate("room3", List.of(createChatMessage("room3", "c".repeat(100), userX, userY, now)), 0);
+
+        assertThat(cache.get("room1")).isPresent();
+        assertThat(cache.get("room2")).isEmpty();
+        assertThat(cache.get("room3")).isPresent();
+    }
+
+    @Test
+    void get_cachedMessageMutated_cacheUnchanged() {
+        var cache = createCache(3, 1024 * 1024);
+        cache.populate(roomId, List.of(message("original", 1)), cache.version(roomId));
+
+        cache.get(roomId).orElseThrow().getFirst().setContent("mutated");
+
+        assertThat(cache.get(roomId).orElseThrow().getFirst().getContent()).isEqualTo("original");
+    }
+
+    RoomMessageCache createCache(int pageSize, long maxBytes) {
+        var config = new ChatConfig();
+        config.getMessages().setBucketedReads(true);
+        config.getMessageCache().setPageSize(pageSize);
+        config.getMessageCache().setMaxBytes(maxBytes);
+        return new InMemoryRoomMessageCache(config, new SimpleMeterRegistry());
+    }
+
+    Message message(String content, int secondsAfter) {
+        return createChatMessage(roomId, content, userX, userY, now.plusSeconds(secondsAfter));
+    }
+}
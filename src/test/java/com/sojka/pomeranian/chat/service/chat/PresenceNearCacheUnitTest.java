@@ -0,0 +1,172 @@
+package com.sojka.pomeranian.chat.service.chat;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.service.cache.PresenceNearCache;
+import com.sojka.pomeranian.chat.service.cache.PresenceNearCache.Presence;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PresenceNearCacheUnitTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final UUID userId = UUID.randomUUID();
+    private final Presence online = new Presence(true, Set.of("CHAT", "CHAT:sub1"));
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    void get_cachedUser_loadedOnce() {
+        var cache = cache(100, 60_000);
+
+        cache.get(userId, this::load);
+        var result = cache.get(userId, this::load);
+
+        assertThat(result).isEqualTo(online);
+        assertThat(loads).hasValue(1);
+        assertThat(meterRegistry.get("pomeranian.chat.presence.cache").tag("result", "hit").counter().count())
+                .isEqualTo(1);
+        assertThat(meterRegistry.get("pomeranian.chat.presence.cache").tag("result", "miss").counter().count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void get_expiredEntry_reloaded() {
+        var cache = cache(100, 0);
+
+        cache.get(userId, this::load);
+        cache.get(userId, this::load);
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void get_moreUsersThanMaxSize_sizeBounded() {
+        var cache = cache(2, 60_000);
+
+        for (int i = 0; i < 10; i++) {
+            cache.get(UUID.randomUUID(), this::load);
+        }
+
+        assertThat(meterRegistry.get("pomeranian.chat.presence.cache.size").gauge().value()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    void onMessage_userInvalidation_userReloaded() {
+        var cache = cache(100, 60_000);
+        cache.get(userId, this::load);
+
+        cache.onMessage(message(userId.toString()), null);
+        cache.get(userId, this::load);
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void onMessage_allUsersInvalidation_cacheCleared() {
+        var cache = cache(100, 60_000);
+        UUID userId2 = UUID.randomUUID();
+        cache.get(userId, this::load);
+        cache.get(userId2, this::load);
+
+        cache.onMessage(message("*"), null);
+        cache.get(userId, this::load);
+        cache.get(userId2, this::load);
+
+        assertThat(loads).hasValue(4);
+    }
+
+    @Test
+    void onMessage_invalidPayload_ignored() {
+        var cache = cache(100, 60_000);
+        cache.get(userId, this::load);
+
+        cache.onMessage(message("not-a-uuid"), null);
+        cache.get(userId, this::load);
+
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void get_invalidatedDuringLoad_notCached() {
+        var cache = cache(100, 60_000);
+
+        cache.get(userId, id -> {
+            cache.invalidate(id);
+            return load(id);
+        });
+        cache.get(userId, this::load);
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void get_otherUserInvalidatedDuringLoad_cached() {
+        var cache = cache(100, 60_000);
+        UUID userId1 = new UUID(0, 1);
+        UUID userId2 = new UUID(0, 2);
+
+        cache.get(userId1, id -> {
+            cache.invalidate(userId2);
+            return load(id);
+        });
+        cache.get(userId1, this::load);
+
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void getAll_invalidatedDuringLoad_onlyInvalidatedNotCached() {
+        var cache = cache(100, 60_000);
+        UUID userId1 = new UUID(0, 1);
+        UUID userId2 = new UUID(0, 2);
+
+        cache.getAll(List.of(userId1, userId2), ids -> {
+            cache.invalidate(userId2);
+            ids.forEach(this::load);
+            return Map.of(userId1, online, userId2, online);
+        });
+        cache.get(userId1, this::load);
+        cache.get(userId2, this::load);
+
+        assertThat(loads).hasValue(3);
+    }
+
+    @Test
+    void get_disabled_alwaysLoaded() {
+        var config = new ChatConfig();
+        config.getPresenceCache().setEnabled(false);
+        var cache = new PresenceNearCache(config, meterRegistry);
+
+        cache.get(userId, this::load);
+        cache.get(userId, this::load);
+
+        assertThat(loads).hasValue(2);
+    }
+
+    private PresenceNearCache cache(int maxSize, int ttlMs) {
+        var config = new ChatConfig();
+        config.getPresenceCache().setMaxSize(maxSize);
+        config.getPresenceCache().setTtlMs(ttlMs);
+        return new PresenceNearCache(config, meterRegistry);
+    }
+
+    private Presence load(UUID userId) {
+        loads.incrementAndGet();
+        return online;
+    }
+
+    private static DefaultMessage message(String body) {
+        return new DefaultMessage(
+                PresenceNearCache.CHANNEL.getBytes(StandardCharsets.UTF_8), body.getBytes(StandardCharsets.UTF_8)
+        );
+    }
+}
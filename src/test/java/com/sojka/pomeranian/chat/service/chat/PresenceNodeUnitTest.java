@@ -0,0 +1,123 @@
+package com.sojka.pomeranian.chat.service.chat;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.service.LoginStateBuffer;
+import com.sojka.pomeranian.chat.service.MessageRelay;
+import com.sojka.pomeranian.chat.service.cache.PresenceLeaseLostEvent;
+import com.sojka.pomeranian.chat.service.cache.PresenceNode;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class PresenceNodeUnitTest {
+
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final ZSetOperations<String, String> zSetOperations = mock(ZSetOperations.class);
+    private final LoginStateBuffer loginStateBuffer = mock(LoginStateBuffer.class);
+    private final ApplicationEventPublisher eventPublisher = mock(ApplicationEventPublisher.class);
+    private final PresenceNode node = new PresenceNode(redisTemplate, loginStateBuffer, eventPublisher, new ChatConfig());
+
+    @Test
+    void heartbeat_noLocalSessions_onlyLeaseRenewed() {
+        doReturn(zSetOperations).when(redisTemplate).opsForZSet();
+
+        node.heartbeat();
+
+        verify(zSetOperations).add(eq("presence:nodes"), eq(node.getNodeId()), anyDouble());
+        verify(redisTemplate, never()).executePipelined(any(RedisCallback.class));
+    }
+
+    @Test
+    void heartbeat_leaseRenewed_noLeaseLostEvent() {
+        doReturn(zSetOperations).when(redisTemplate).opsForZSet();
+        doReturn(true, false).when(zSetOperations).add(eq("presence:nodes"), eq(node.getNodeId()), anyDouble());
+
+        node.heartbeat();
+        node.heartbeat();
+
+        verify(eventPublisher, never()).publishEvent(any(PresenceLeaseLostEvent.class));
+    }
+
+    @Test
+    void heartbeat_leaseLost_leaseLostEventPublished() {
+        doReturn(zSetOperations).when(redisTemplate).opsForZSet();
+        doReturn(true, true).when(zSetOperations).add(eq("presence:nodes"), eq(node.getNodeId()), anyDouble());
+
+        node.heartbeat();
+        node.heartbeat();
+
+        verify(eventPublisher).publishEvent(any(PresenceLeaseLostEvent.class));
+    }
+
+    @Test
+    void sweep_expiredNode_sessionsSweptAndOfflineUsersUpdated() {
+        UUID userId = UUID.randomUUID();
+        var expired = new LinkedHashSet<>(List.of("dead", node.getNodeId()));
+        doReturn(zSetOperations).when(redisTemplate).opsForZSet();
+        doReturn(expired).when(zSetOperations)
+                .rangeByScore(eq("presence:nodes"), eq(0d), anyDouble(), eq(0L), anyLong());
+        var keys = List.of("presence:node:{dead}", "presence:online", "presence:sessions");
+        doReturn(List.of(2L, userId.toString()), List.of(0L))
+                .when(redisTemplate).execute(any(RedisScript.class), eq(keys), eq("500"));
+
+        node.sweep();
+
+        verify(loginStateBuffer).add(eq(userId), any(), eq(false));
+        verify(redisTemplate).delete("presence:node:{dead}");
+        verify(redisTemplate).execute(
+                any(RedisScript.class), eq(List.of("relay:node:{dead}", "relay:broadcast")), eq("dead")
+        );
+        verify(zSetOperations).remove("presence:nodes", "dead");
+        verify(redisTemplate, never()).delete("presence:node:{" + node.getNodeId() + "}");
+    }
+
+    @Test
+    void release_ownSessionsSwept() {
+        doReturn(zSetOperations).when(redisTemplate).opsForZSet();
+        doReturn(List.of(0L)).when(redisTemplate).execute(any(RedisScript.class), any(List.class), anyString());
+
+        node.release();
+
+        verify(redisTemplate).delete("presence:node:{" + node.getNodeId() + "}");
+        verify(zSetOperations).remove("presence:nodes", node.getNodeId());
+    }
+
+    @Test
+    void route_usersOnLocalAndRemoteNodes_routeReturned() {
+        UUID userId1 = UUID.randomUUID();
+        UUID userId2 = UUID.randomUUID();
+        var keys = List.of("presence:u:{" + userId1 + "}:nodes", "presence:u:{" + userId2 + "}:nodes");
+        byte[] message = {1, 2, 3};
+        doReturn(List.of(1L, 2L)).when(redisTemplate).execute(
+                any(RedisScript.class), any(RedisSerializer.class), isNull(), eq(keys), eq(message),
+                eq(node.getNodeId().getBytes(StandardCharsets.UTF_8)),
+                eq("websocket-channel:".getBytes(StandardCharsets.UTF_8))
+        );
+
+        var route = node.route(List.of(userId1, userId2), message);
+
+        assertThat(route).isEqualTo(new MessageRelay.Route(true, 2, null));
+    }
+}
@@ -0,0 +1,170 @@
+package com.sojka.pomeranian.chat.service.chat;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.dto.StompSubscription;
+import com.sojka.pomeranian.chat.service.LoginStateBuffer;
+import com.sojka.pomeranian.chat.service.MessageRelay;
+import com.sojka.pomeranian.chat.service.cache.PresenceNearCache;
+import com.sojka.pomeranian.chat.service.cache.PresenceNode;
+import com.sojka.pomeranian.chat.service.cache.RedisSessionCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.sojka.pomeranian.chat.service.cache.PresenceNode.BROADCAST_STREAM_KEY;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runs the presence scripts against a Redis container, two caches with their own {@link PresenceNode} stand for two
+ * instances.
+ */
+class RedisSessionCacheIntegrationTest {
+
+    @SuppressWarnings("resource")
+    private static final GenericContainer<?> REDIS = new GenericContainer<>(DockerImageName.parse("redis:7.4-alpine"))
+            .withExposedPorts(6379);
+    private static LettuceConnectionFactory connectionFactory;
+    private static StringRedisTemplate redisTemplate;
+
+    private final PresenceNode node1 = node();
+    private final PresenceNode node2 = node();
+    private final RedisSessionCache cache1 = cache(node1);
+    private final RedisSessionCache cache2 = cache(node2);
+    private final UUID userId = UUID.randomUUID();
+    private final byte[] message = "message".getBytes(StandardCharsets.UTF_8);
+
+    @BeforeAll
+    static void startRedis() {
+        REDIS.start();
+        connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration(REDIS.getHost(), REDIS.getMappedPort(6379))
+        );
+        connectionFactory.afterPropertiesSet();
+        connectionFactory.start();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterAll
+    static void stopRedis() {
+        connectionFactory.destroy();
+        REDIS.stop();
+    }
+
+    @Test
+    void remove_sessionsOnTwoNodes_otherSessionStillRouted() {
+        var room = new StompSubscription(StompSubscription.Type.CHAT, "room-" + userId);
+        var notifications = new StompSubscription(StompSubscription.Type.CHAT_NOTIFICATIONS, null);
+        cache1.create(userId, "session1-" + userId);
+        cache1.add(userId, "session1-" + userId, List.of(room, notifications));
+        cache2.create(userId, "session2-" + userId);
+        cache2.add(userId, "session2-" + userId, List.of(room, notifications));
+
+        assertThat(cache1.remove("session1-" + userId)).isNull();
+
+        assertThat(node1.route(List.of(userId), message)).isEqualTo(new MessageRelay.Route(false, 1, null));
+        assertThat(node2.route(List.of(userId), message)).isEqualTo(new MessageRelay.Route(true, 0, null));
+        assertTrue(cache1.isOnline(userId, StompSubscription.Type.CHAT_NOTIFICATIONS));
+        assertTrue(cache1.isOnline(userId, room));
+        assertThat(cache1.findSubscribers(room)).containsExactly(userId);
+        assertThat(cache1.get(userId)).hasValueSatisfying(activeUser ->
+                assertThat(activeUser.getSessions()).singleElement()
+                        .satisfies(session -> assertThat(session.getSimpSessionId()).isEqualTo("session2-" + userId)));
+        assertTrue(cache2.add(userId, "session2-" + userId,
+                new StompSubscription(StompSubscription.Type.CHAT, "other-" + userId)));
+    }
+
+    @Test
+    void remove_lastSession_userOffline() {
+        var room = new StompSubscription(StompSubscription.Type.CHAT, "room-" + userId);
+        cache1.create(userId, "session1-" + userId);
+        cache2.create(userId, "session2-" + userId);
+        cache2.add(userId, "session2-" + userId, room);
+
+        assertThat(cache1.remove("session1-" + userId)).isNull();
+        assertThat(cache2.remove("session2-" + userId)).isEqualTo(userId);
+
+        assertThat(node1.route(List.of(userId), message)).isEqualTo(new MessageRelay.Route(false, 0, null));
+        assertFalse(cache1.isOnline(userId, StompSubscription.Type.CHAT_NOTIFICATIONS));
+        assertThat(cache1.findSubscribers(room)).isEmpty();
+        assertThat(redisTemplate.opsForSet().isMember("presence:online", userId.toString())).isFalse();
+        assertThat(redisTemplate.keys("presence:u:{" + userId + "}*")).isEqualTo(Set.of());
+    }
+
+    @Test
+    void start_restartedWithStableNodeId_previousSessionsSweptAndGroupKept() {
+        var config = new ChatConfig();
+        config.getPresenceLease().setNodeId("pod-" + userId);
+        var previousRun = node(config);
+        cache(previousRun).create(userId, "session1-" + userId);
+        createGroup(BROADCAST_STREAM_KEY, previousRun.getNodeId());
+
+        var restarted = node(config);
+        restarted.start();
+        try {
+            assertThat(restarted.getNodeId()).isEqualTo("pod-" + userId);
+            assertThat(cache1.get(userId)).isEmpty();
+            assertThat(redisTemplate.opsForSet().isMember("presence:online", userId.toString())).isFalse();
+            assertThat(groups(BROADCAST_STREAM_KEY)).contains("pod-" + userId);
+        } finally {
+            restarted.release();
+        }
+    }
+
+    @Test
+    void sweep_expiredNode_streamAndBroadcastGroupDeleted() {
+        cache1.create(userId, "session1-" + userId);
+        createGroup(node1.getStreamKey(), node1.getNodeId());
+        createGroup(BROADCAST_STREAM_KEY, node1.getNodeId());
+        redisTemplate.opsForZSet().add("presence:nodes", node1.getNodeId(), 0);
+
+        node2.sweep();
+
+        assertThat(cache2.get(userId)).isEmpty();
+        assertThat(redisTemplate.hasKey(node1.getStreamKey())).isFalse();
+        assertThat(groups(BROADCAST_STREAM_KEY)).doesNotContain(node1.getNodeId());
+        assertThat(redisTemplate.opsForZSet().score("presence:nodes", node1.getNodeId())).isNull();
+    }
+
+    private static void createGroup(String key, String group) {
+        redisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                .xGroupCreate(key.getBytes(StandardCharsets.UTF_8), group, ReadOffset.latest(), true));
+    }
+
+    private static List<String> groups(String key) {
+        return redisTemplate.opsForStream().groups(key).stream().map(StreamInfo.XInfoGroup::groupName).toList();
+    }
+
+    private static PresenceNode node() {
+        return node(new ChatConfig());
+    }
+
+    private static PresenceNode node(ChatConfig config) {
+        return new PresenceNode(
+                redisTemplate, mock(LoginStateBuffer.class), mock(ApplicationEventPublisher.class), config
+        );
+    }
+
+    private static RedisSessionCache cache(PresenceNode node) {
+        var config = new ChatConfig();
+        config.getPresenceCache().setEnabled(false);
+        return new RedisSessionCache(redisTemplate, new PresenceNearCache(config, new SimpleMeterRegistry()), node);
+    }
+}
@@ -1,21 +1,32 @@
 package com.sojka.pomeranian.chat.service.chat;
 
+import com.sojka.pomeranian.astra.dto.ResultsPage;
+import com.sojka.pomeranian.chat.config.ChatConfig;
 import com.sojka.pomeranian.chat.dto.StompSubscription;
 import com.sojka.pomeranian.chat.exception.CacheException;
 import com.sojka.pomeranian.chat.model.ActiveUser;
+import com.sojka.pomeranian.chat.service.LoginStateBuffer;
+import com.sojka.pomeranian.chat.service.cache.PresenceNearCache;
+import com.sojka.pomeranian.chat.service.cache.PresenceNode;
 import com.sojka.pomeranian.chat.service.cache.RedisSessionCache;
-import org.junit.jupiter.api.BeforeEach;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Test;
-import org.mockito.ArgumentCaptor;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
 
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -24,186 +35,263 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class RedisSessionCacheUnitTest {
 
-    private final ValueOperations<UUID, ActiveUser> usersOps = mock(ValueOperations.class);
-    private final ValueOperations<String, UUID> sessionsOps = mock(ValueOperations.class);
-    private final RedisTemplate<UUID, ActiveUser> users = mock(RedisTemplate.class);
-    private final RedisTemplate<String, UUID> sessions = mock(RedisTemplate.class);
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
 
-    private final RedisSessionCache cache = new RedisSessionCache(users, sessions);
+    private final PresenceNode node = new PresenceNode(
+            redisTemplate, mock(LoginStateBuffer.class), mock(ApplicationEventPublisher.class), new ChatConfig()
+    );
+    private final RedisSessionCache cache = new RedisSessionCache(redisTemplate, nearCache(false), node);
 
     private final UUID userId = UUID.randomUUID();
-
-    @BeforeEach
-    void setUp() {
-        doReturn(usersOps).when(users).opsForValue();
-        doReturn(sessionsOps).when(sessions).opsForValue();
-    }
+    private final String userKey = "presence:u:{" + userId + "}";
+    private final String subscriptionsKey = userKey + ":subs";
+    private final String nodeKey = "presence:node:{" + node.getNodeId() + "}";
+    private final List<String> createKeys = List.of(
+            userKey, "presence:s:{session1}", "presence:online", "presence:sessions", nodeKey
+    );
+    private final List<String> disconnectKeys = List.of(
+            "presence:s:{session1}", "presence:online", "presence:sessions", nodeKey
+    );
 
     @Test
-    void isOnline_userPresent_true() {
-        ActiveUser activeUser = mock(ActiveUser.class);
-        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, userId.toString());
-        doReturn(activeUser).when(usersOps).get(userId);
-        doReturn(true).when(activeUser).isOnline(subscription);
+    void isOnline_subscriptionPresent_true() {
+        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
+        doReturn(Arrays.asList(true, Set.of("CHAT", "CHAT:sub1")))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
         assertTrue(cache.isOnline(userId, subscription));
     }
 
     @Test
-    void isOnline_userAbsent_false() {
-        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, userId.toString());
-        doReturn(null).when(usersOps).get(userId);
+    void isOnline_subscriptionAbsent_false() {
+        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
+        doReturn(Arrays.asList(true, Set.of("CHAT", "CHAT:sub2")))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
         assertFalse(cache.isOnline(userId, subscription));
     }
 
     @Test
-    void isOnlineType_userPresent_true() {
-        ActiveUser activeUser = mock(ActiveUser.class);
-        StompSubscription.Type type = StompSubscription.Type.CHAT;
-        doReturn(activeUser).when(usersOps).get(userId);
-        doReturn(true).when(activeUser).isOnline(type);
+    void isOnlineType_typePresent_true() {
+        doReturn(Arrays.asList(true, Set.of("CHAT", "CHAT:sub1")))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
-        assertTrue(cache.isOnline(userId, type));
+        assertTrue(cache.isOnline(userId, StompSubscription.Type.CHAT));
     }
 
     @Test
-    void isOnlineType_userAbsent_false() {
-        StompSubscription.Type type = StompSubscription.Type.CHAT;
-        doReturn(null).when(usersOps).get(userId);
+    void isOnlineType_typeAbsent_false() {
+        doReturn(Arrays.asList(true, Set.of()))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
-        assertFalse(cache.isOnline(userId, type));
+        assertFalse(cache.isOnline(userId, StompSubscription.Type.CHAT));
     }
 
     @Test
-    void get_userPresent_returnsUser() {
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>());
-        doReturn(activeUser).when(usersOps).get(userId);
+    void isOnlineType_notificationsOfConnectedUser_true() {
+        doReturn(Arrays.asList(true, Set.of()))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
-        Optional<ActiveUser> result = cache.get(userId);
+        assertTrue(cache.isOnline(userId, StompSubscription.Type.CHAT_NOTIFICATIONS));
+    }
 
-        assertTrue(result.isPresent());
-        assertEquals(activeUser, result.get());
+    @Test
+    void isOnlineType_notificationsOfOfflineUser_false() {
+        doReturn(Arrays.asList(false, Set.of()))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
+
+        assertFalse(cache.isOnline(userId, StompSubscription.Type.CHAT_NOTIFICATIONS));
     }
 
     @Test
-    void get_userAbsent_returnsEmpty() {
-        doReturn(null).when(usersOps).get(userId);
+    void isOnline_nearCacheEnabled_presenceReadOnceUntilChanged() {
+        var cachedCache = new RedisSessionCache(redisTemplate, nearCache(true), node);
+        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
+        doReturn(Arrays.asList(true, Set.of("CHAT", "CHAT:sub1")))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
-        Optional<ActiveUser> result = cache.get(userId);
+        assertTrue(cachedCache.isOnline(userId, subscription));
+        assertTrue(cachedCache.isOnline(userId, StompSubscription.Type.CHAT));
+        verify(redisTemplate, times(1)).executePipelined(any(RedisCallback.class));
 
-        assertFalse(result.isPresent());
+        cachedCache.remove(userId, "session1", subscription);
+        doReturn(Arrays.asList(true, Set.of())).when(redisTemplate).executePipelined(any(RedisCallback.class));
+
+        assertFalse(cachedCache.isOnline(userId, subscription));
+    }
+
+    @Test
+    void findSubscribers_roomViewers_returnsUserIds() {
+        HashOperations<String, Object, Object> hashOps = mock(HashOperations.class);
+        doReturn(hashOps).when(redisTemplate).opsForHash();
+        doReturn(Set.of(userId.toString())).when(hashOps).keys("presence:sub:{CHAT:room1}");
+
+        var result = cache.findSubscribers(new StompSubscription(StompSubscription.Type.CHAT, "room1"));
+
+        assertThat(result).containsExactly(userId);
     }
 
     @Test
-    void getAll_multipleUsers_returnsAllUsers() {
+    void isOnlineMany_someUsersOnline_singlePipeline() {
         UUID userId2 = UUID.randomUUID();
-        ActiveUser user1 = new ActiveUser(userId, new ArrayList<>());
-        ActiveUser user2 = new ActiveUser(userId2, new ArrayList<>());
-        List<ActiveUser> users = List.of(user1, user2);
+        doReturn(Arrays.asList(true, Set.of("CHAT", "CHAT:sub1"), false, Set.of()))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
-        doReturn(users).when(usersOps).multiGet(any());
+        var result = cache.isOnlineMany(List.of(userId, userId2), StompSubscription.Type.CHAT);
 
-        List<ActiveUser> result = cache.getAll();
+        assertThat(result).containsExactlyInAnyOrderEntriesOf(Map.of(userId, true, userId2, false));
+        verify(redisTemplate, times(1)).executePipelined(any(RedisCallback.class));
+    }
 
-        assertEquals(2, result.size());
-        assertTrue(result.containsAll(users));
+    @Test
+    void isOnlineMany_nearCacheEnabled_onlyMissingUsersLoaded() {
+        var cachedCache = new RedisSessionCache(redisTemplate, nearCache(true), node);
+        UUID userId2 = UUID.randomUUID();
+        doReturn(Arrays.asList(true, Set.of("CHAT")))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
+        cachedCache.isOnline(userId, StompSubscription.Type.CHAT);
+        doReturn(Arrays.asList(false, Set.of()))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
+
+        var result = cachedCache.isOnlineMany(List.of(userId, userId2), StompSubscription.Type.CHAT_NOTIFICATIONS);
+
+        assertThat(result).containsExactlyInAnyOrderEntriesOf(Map.of(userId, true, userId2, false));
+        verify(redisTemplate, times(2)).executePipelined(any(RedisCallback.class));
     }
 
     @Test
-    void getAll_empty_returnsEmptyList() {
-        List<ActiveUser> result = cache.getAll();
+    void get_userPresent_returnsUser() {
+        Instant createdAt = Instant.ofEpochMilli(1_700_000_000_000L);
+        Map<Object, Object> sessions = new LinkedHashMap<>();
+        sessions.put("session1", String.valueOf(createdAt.toEpochMilli()));
+        sessions.put("session2", String.valueOf(createdAt.toEpochMilli()));
+        doReturn(List.of(sessions), List.of(Set.of("CHAT:sub1", "CHAT:sub2", "CHAT_NOTIFICATIONS:"), Set.of()))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
-        assertTrue(result.isEmpty());
+        Optional<ActiveUser> result = cache.get(userId);
+
+        assertTrue(result.isPresent());
+        assertEquals(userId, result.get().getUserId());
+        assertThat(result.get().getSessions()).hasSize(2);
+        ActiveUser.Session session1 = result.get().getSessions().getFirst();
+        assertEquals("session1", session1.getSimpSessionId());
+        assertEquals(createdAt, session1.getCreatedAt());
+        assertThat(session1.getSubscriptions().get("CHAT")).containsExactlyInAnyOrder("sub1", "sub2");
+        assertThat(session1.getSubscriptions().get("CHAT_NOTIFICATIONS")).containsExactly((String) null);
+        assertThat(result.get().getSessions().getLast().getSubscriptions()).isEmpty();
     }
 
     @Test
-    void add_newEntry_true() {
-        String simpSessionId = "session1";
-        ActiveUser.Session session = new ActiveUser.Session(new HashMap<>(), simpSessionId, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session)));
-        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
+    void get_userAbsent_returnsEmpty() {
+        doReturn(List.of(Map.of())).when(redisTemplate).executePipelined(any(RedisCallback.class));
 
-        doReturn(activeUser).when(usersOps).get(userId);
-        doReturn(true).when(usersOps).setIfPresent(eq(userId), any(ActiveUser.class));
+        Optional<ActiveUser> result = cache.get(userId);
 
-        assertTrue(cache.add(userId, simpSessionId, subscription));
+        assertFalse(result.isPresent());
+        verify(redisTemplate, times(1)).executePipelined(any(RedisCallback.class));
     }
 
     @Test
-    void add_existingEntry_false() {
-        String simpSessionId = "session1";
-        Map<String, List<String>> subs = new HashMap<>();
-        subs.put(StompSubscription.Type.CHAT.name(), new ArrayList<>(List.of("sub1")));
-        ActiveUser.Session session = new ActiveUser.Session(subs, simpSessionId, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session)));
-        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
+    void getAll_multipleUsers_returnsUsersPage() {
+        UUID userId2 = UUID.randomUUID();
+        UUID offlineUserId = UUID.randomUUID();
+        doReturn(List.of("17", List.of(userId.toString(), offlineUserId.toString(), userId2.toString())))
+                .when(redisTemplate).execute(any(RedisScript.class), eq(List.of("presence:online")), eq("0"), eq("100"));
+        doReturn(List.of(Map.of("session1", "0"), Map.of(), Map.of("session2", "0")), List.of(Set.of(), Set.of()))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
 
-        doReturn(activeUser).when(usersOps).get(userId);
+        ResultsPage<ActiveUser> result = cache.getAll(null, 100);
 
-        assertFalse(cache.add(userId, simpSessionId, subscription));
+        assertThat(result.getResults()).extracting(ActiveUser::getUserId).containsExactly(userId, userId2);
+        assertEquals("17", result.getNextPageState());
     }
 
     @Test
-    void add_userAbsent_false() {
-        String simpSessionId = "session1";
-        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
-        doReturn(null).when(usersOps).get(userId);
+    void getAll_lastPage_nullPageState() {
+        doReturn(List.of("0", List.of()))
+                .when(redisTemplate).execute(any(RedisScript.class), eq(List.of("presence:online")), eq("17"), eq("100"));
 
-        assertThat(cache.add(userId, simpSessionId, subscription)).isFalse();
+        ResultsPage<ActiveUser> result = cache.getAll("17", 100);
+
+        assertTrue(result.getResults().isEmpty());
+        assertThat(result.getNextPageState()).isNull();
+        verify(redisTemplate, never()).executePipelined(any(RedisCallback.class));
     }
 
     @Test
-    void add_nonExistingSession_false() {
-        String simpSessionId = "session1";
-        String wrongSimpSessionId = "wrong";
-        ActiveUser.Session session = new ActiveUser.Session(new HashMap<>(), simpSessionId, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session)));
+    void getAll_invalidPageState_throws() {
+        assertThatThrownBy(() -> cache.getAll("abc", 100))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void add_newEntry_true() {
         StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
+        doReturn(1L).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(keys("session1")), eq("session1"), eq("CHAT:sub1"));
 
-        doReturn(activeUser).when(usersOps).get(userId);
+        assertTrue(cache.add(userId, "session1", subscription));
+    }
 
-        assertThat(cache.add(userId, wrongSimpSessionId, subscription)).isFalse();
+    @Test
+    void add_multipleSubscriptions_singleScriptCall() {
+        List<StompSubscription> subscriptions = List.of(
+                new StompSubscription(StompSubscription.Type.CHAT, "sub1"),
+                new StompSubscription(StompSubscription.Type.CHAT_NOTIFICATIONS, null)
+        );
+        doReturn(2L).when(redisTemplate).execute(
+                any(RedisScript.class), eq(keys("session1")), eq("session1"), eq("CHAT:sub1"), eq("CHAT_NOTIFICATIONS:")
+        );
+
+        assertTrue(cache.add(userId, "session1", subscriptions));
     }
 
     @Test
-    void create_newUser_true() {
-        String simpSessionId = "session1";
-        doReturn(null).when(usersOps).get(userId);
+    void add_existingEntry_false() {
+        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
+        doReturn(0L).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(keys("session1")), eq("session1"), eq("CHAT:sub1"));
 
-        assertTrue(cache.create(userId, simpSessionId));
-        verify(usersOps).set(eq(userId), any(ActiveUser.class));
-        verify(sessionsOps).set(simpSessionId, userId);
+        assertFalse(cache.add(userId, "session1", subscription));
     }
 
     @Test
-    void create_existingUser_addsSession_true() {
-        String simpSessionId1 = "session1";
-        ActiveUser.Session session1 = new ActiveUser.Session(new HashMap<>(), simpSessionId1, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session1)));
-        String simpSessionId2 = "session2";
+    void add_nonExistingSession_false() {
+        StompSubscription subscription = new StompSubscription(StompSubscription.Type.CHAT, "sub1");
+        doReturn(-1L).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(keys("wrong")), eq("wrong"), eq("CHAT:sub1"));
+
+        assertThat(cache.add(userId, "wrong", subscription)).isFalse();
+    }
 
-        doReturn(activeUser).when(usersOps).get(userId);
+    @Test
+    void create_newSession_true() {
+        doReturn(1L).when(redisTemplate).execute(
+                any(RedisScript.class), eq(createKeys),
+                eq("session1"), eq(userId.toString()), anyString(), eq("120")
+        );
 
-        assertTrue(cache.create(userId, simpSessionId2));
-        verify(usersOps).set(eq(userId), any(ActiveUser.class));
-        verify(sessionsOps).set(simpSessionId2, userId);
+        assertTrue(cache.create(userId, "session1"));
     }
 
     @Test
     void create_duplicateSession_throws() {
         String simpSessionId = "session1";
-        ActiveUser.Session session = new ActiveUser.Session(new HashMap<>(), simpSessionId, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session)));
-
-        doReturn(activeUser).when(usersOps).get(userId);
+        doReturn(0L).when(redisTemplate).execute(
+                any(RedisScript.class), eq(createKeys),
+                eq("session1"), eq(userId.toString()), anyString(), eq("120")
+        );
 
         assertThatThrownBy(() -> cache.create(userId, simpSessionId))
                 .isInstanceOf(CacheException.class)
@@ -212,117 +300,115 @@ class RedisSessionCacheUnitTest {
 
     @Test
     void remove_existingSession_returnsUserId() {
-        String simpSessionId1 = "session1";
-        String simpSessionId2 = "session2";
-        ActiveUser.Session session1 = new ActiveUser.Session(new HashMap<>(), simpSessionId1, Instant.now());
-        ActiveUser.Session session2 = new ActiveUser.Session(new HashMap<>(), simpSessionId2, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session1, session2)));
+        doReturn(userId.toString()).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(disconnectKeys), eq("session1"));
 
-        doReturn(userId).when(sessionsOps).get(simpSessionId1);
-        doReturn(activeUser).when(usersOps).get(userId);
-
-        UUID result = cache.remove(simpSessionId1);
+        UUID result = cache.remove("session1");
 
         assertEquals(userId, result);
-        verify(sessions).delete(List.of(simpSessionId1, simpSessionId2));
-        verify(users).delete(userId);
     }
 
     @Test
-    void remove_nonExistingSession_null() {
-        String simpSessionId = "session1";
-        doReturn(null).when(sessionsOps).get(simpSessionId);
+    void remove_userWithSessionsLeft_null() {
+        doReturn("+" + userId).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(disconnectKeys), eq("session1"));
 
-        assertThat(cache.remove(simpSessionId)).isNull();
+        assertThat(cache.remove("session1")).isNull();
     }
 
     @Test
-    void remove_userNotOnline_false() {
-        String simpSessionId = "session1";
-        doReturn(userId).when(sessionsOps).get(simpSessionId);
-        doReturn(null).when(usersOps).get(userId);
+    void remove_nonExistingSession_null() {
+        doReturn(null).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(disconnectKeys), eq("session1"));
 
-        assertThat(cache.remove(simpSessionId)).isNull();
+        assertThat(cache.remove("session1")).isNull();
     }
 
     @Test
     void removeSubscriptions_nullSubscriptionId_removesType() {
-        String simpSessionId = "session1";
-        Map<String, List<String>> subs = new HashMap<>();
-        subs.put(StompSubscription.Type.CHAT.name(), new ArrayList<>(List.of("sub1", "sub2")));
-        ActiveUser.Session session = new ActiveUser.Session(subs, simpSessionId, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session)));
+        doReturn(2L).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(keys("session1")), eq("session1"), eq("CHAT"), eq(""));
 
-        doReturn(activeUser).when(usersOps).get(userId);
+        assertTrue(cache.remove(userId, "session1", new StompSubscription(StompSubscription.Type.CHAT, null)));
+    }
 
-        assertTrue(cache.remove(userId, simpSessionId, new StompSubscription(StompSubscription.Type.CHAT, null)));
+    @Test
+    void removeSubscriptions_validSubscriptionId_removesId() {
+        doReturn(1L).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(keys("session1")), eq("session1"), eq("CHAT"), eq("sub1"));
 
-        ArgumentCaptor<ActiveUser> captor = ArgumentCaptor.forClass(ActiveUser.class);
-        verify(usersOps).set(eq(userId), captor.capture());
-        ActiveUser updated = captor.getValue();
-        assertFalse(updated.getSessions().get(0).getSubscriptions().containsKey(StompSubscription.Type.CHAT.name()));
+        assertTrue(cache.remove(userId, "session1", new StompSubscription(StompSubscription.Type.CHAT, "sub1")));
     }
 
     @Test
-    void removeSubscriptions_blankSubscriptionId_removesType() {
-        String simpSessionId = "session1";
-        Map<String, List<String>> subs = new HashMap<>();
-        subs.put(StompSubscription.Type.CHAT.name(), new ArrayList<>(List.of("sub1", "sub2")));
-        ActiveUser.Session session = new ActiveUser.Session(subs, simpSessionId, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session)));
+    void removeSubscriptions_sessionAbsent_false() {
+        doReturn(-1L).when(redisTemplate)
+                .execute(any(RedisScript.class), eq(keys("session1")), eq("session1"), eq("CHAT"), eq("sub1"));
 
-        doReturn(activeUser).when(usersOps).get(userId);
-
-        assertTrue(cache.remove(userId, simpSessionId, new StompSubscription(StompSubscription.Type.CHAT, "")));
+        assertThat(cache.remove(userId, "session1", new StompSubscription(StompSubscription.Type.CHAT, "sub1"))).isFalse();
+    }
 
-        ArgumentCaptor<ActiveUser> captor = ArgumentCaptor.forClass(ActiveUser.class);
-        verify(usersOps).set(eq(userId), captor.capture());
-        ActiveUser updated = captor.getValue();
-        assertFalse(updated.getSessions().get(0).getSubscriptions().containsKey(StompSubscription.Type.CHAT.name()));
+    @Test
+    void purge_onlineUsers_deletesUsersSessionsAndIndexes() {
+        doReturn(List.of("0", List.of(userId.toString())))
+                .when(redisTemplate).execute(any(RedisScript.class), eq(List.of("presence:online")), eq("0"), eq("500"));
+        doReturn(List.of("0", List.of("session1")))
+                .when(redisTemplate).execute(any(RedisScript.class), eq(List.of("presence:sessions")), eq("0"), eq("500"));
+        doReturn(List.of(Set.of("session1"), Set.of("CHAT", "CHAT:room1")))
+                .when(redisTemplate).executePipelined(any(RedisCallback.class));
+
+        cache.purge();
+
+        verify(redisTemplate).delete(Set.of(
+                userKey, subscriptionsKey, userKey + ":nodes", userKey + ":s:{session1}", "presence:sub:{CHAT:room1}"
+        ));
+        verify(redisTemplate).delete(List.of("presence:s:{session1}"));
+        verify(redisTemplate).delete(List.of("presence:online", "presence:sessions"));
     }
 
     @Test
-    void removeSubscriptions_validSubscriptionId_removesId() {
-        String simpSessionId = "session1";
-        Map<String, List<String>> subs = new HashMap<>();
-        subs.put(StompSubscription.Type.CHAT.name(), new ArrayList<>(List.of("sub1", "sub2")));
-        ActiveUser.Session session = new ActiveUser.Session(subs, simpSessionId, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session)));
+    @SuppressWarnings("unchecked")
+    void purgeLegacyKeys_notPurgedYet_unlinksLegacyKeysAndMarksPurged() {
+        Cursor<String> cursor = mock(Cursor.class);
+        when(cursor.hasNext()).thenReturn(true, true, false);
+        when(cursor.next()).thenReturn("active:1", "active:2");
+        when(redisTemplate.hasKey("presence:legacy-purged")).thenReturn(false);
+        when(redisTemplate.scan(any(ScanOptions.class))).thenReturn(cursor);
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+
+        cache.purgeLegacyKeys();
+
+        verify(redisTemplate).unlink(List.of("active:1", "active:2"));
+        verify(valueOperations).set(eq("presence:legacy-purged"), anyString());
+    }
 
-        doReturn(activeUser).when(usersOps).get(userId);
+    @Test
+    void purgeLegacyKeys_alreadyPurged_noScan() {
+        when(redisTemplate.hasKey("presence:legacy-purged")).thenReturn(true);
 
-        assertTrue(cache.remove(userId, simpSessionId, new StompSubscription(StompSubscription.Type.CHAT, "sub1")));
+        cache.purgeLegacyKeys();
 
-        ArgumentCaptor<ActiveUser> captor = ArgumentCaptor.forClass(ActiveUser.class);
-        verify(usersOps).set(eq(userId), captor.capture());
-        ActiveUser updated = captor.getValue();
-        assertTrue(updated.getSessions().get(0).getSubscriptions().containsKey(StompSubscription.Type.CHAT.name()));
-        assertEquals(List.of("sub2"), updated.getSessions().get(0).getSubscriptions().get(StompSubscription.Type.CHAT.name()));
+        verify(redisTemplate, never()).scan(any(ScanOptions.class));
     }
 
     @Test
-    void removeSubscriptions_lastSubscriptionId_removesType() {
-        String simpSessionId = "session1";
-        Map<String, List<String>> subs = new HashMap<>();
-        subs.put(StompSubscription.Type.CHAT.name(), new ArrayList<>(List.of("sub1")));
-        ActiveUser.Session session = new ActiveUser.Session(subs, simpSessionId, Instant.now());
-        ActiveUser activeUser = new ActiveUser(userId, new ArrayList<>(List.of(session)));
-
-        doReturn(activeUser).when(usersOps).get(userId);
+    void purgeLegacyKeys_alreadyPurged_unlinksSubscribersWithoutId() {
+        when(redisTemplate.hasKey("presence:legacy-purged")).thenReturn(true);
 
-        assertTrue(cache.remove(userId, simpSessionId, new StompSubscription(StompSubscription.Type.CHAT, "sub1")));
+        cache.purgeLegacyKeys();
 
-        ArgumentCaptor<ActiveUser> captor = ArgumentCaptor.forClass(ActiveUser.class);
-        verify(usersOps).set(eq(userId), captor.capture());
-        ActiveUser updated = captor.getValue();
-        assertFalse(updated.getSessions().get(0).getSubscriptions().containsKey(StompSubscription.Type.CHAT.name()));
+        verify(redisTemplate).unlink(List.of(
+                "presence:sub:{CHAT:}", "presence:sub:{CHAT_NOTIFICATIONS:}", "presence:sub:{POST_COMMENTS:}"));
     }
 
-    @Test
-    void removeSubscriptions_userAbsent_false() {
-        String simpSessionId = "session1";
-        doReturn(null).when(usersOps).get(userId);
+    private static PresenceNearCache nearCache(boolean enabled) {
+        var config = new ChatConfig();
+        config.getPresenceCache().setEnabled(enabled);
+        return new PresenceNearCache(config, new SimpleMeterRegistry());
+    }
 
-        assertThat(cache.remove(userId, simpSessionId, new StompSubscription(StompSubscription.Type.CHAT, "sub1"))).isFalse();
+    private List<String> keys(String simpSessionId) {
+        return List.of(userKey, subscriptionsKey, userKey + ":s:{" + simpSessionId + "}");
     }
 }
@@ -0,0 +1,160 @@
+package com.sojka.pomeranian.chat.service.chat;
+
+import com.sojka.pomeranian.chat.config.ChatConfig;
+import com.sojka.pomeranian.chat.repository.ConversationsRepository;
+import com.sojka.pomeranian.chat.repository.projection.UnreadCountProjection;
+import com.sojka.pomeranian.chat.service.cache.RedisUnreadCounter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisScriptingCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RedisUnreadCounterUnitTest {
+
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    private final ConversationsRepository conversationsRepository = mock(ConversationsRepository.class);
+    private final RedisConnection connection = mock(RedisConnection.class);
+    private final RedisScriptingCommands scripting = mock(RedisScriptingCommands.class);
+    private final RedisZSetCommands zSets = mock(RedisZSetCommands.class);
+    private final RedisUnreadCounter counter = new RedisUnreadCounter(
+            redisTemplate, conversationsRepository, new ChatConfig(), new SimpleMeterRegistry()
+    );
+
+    private final UUID senderId = UUID.randomUUID();
+    private final UUID recipientId = UUID.randomUUID();
+
+    @Test
+    void message_recipientNotRead_resetSenderAndIncrementRecipientInOnePipeline() {
+        runPipeline(() -> counter.message(senderId, recipientId, false));
+
+        var scripts = ArgumentCaptor.forClass(byte[].class);
+        verify(scripting, times(2)).eval(scripts.capture(), eq(ReturnType.INTEGER), eq(1), any(byte[].class), any(byte[].class));
+        assertThat(new String(scripts.getAllValues().get(0), StandardCharsets.UTF_8)).contains("HDEL");
+        assertThat(new String(scripts.getAllValues().get(1), StandardCharsets.UTF_8)).contains("HINCRBY', KEYS[1], ARGV[1], 1");
+        verify(scripting).eval(any(byte[].class), eq(ReturnType.INTEGER), eq(1),
+                eq(bytes("unread:{" + senderId + "}")), eq(bytes(recipientId.toString())));
+        verify(scripting).eval(any(byte[].class), eq(ReturnType.INTEGER), eq(1),
+                eq(bytes("unread:{" + recipientId + "}")), eq(bytes(senderId.toString())));
+        verify(zSets).zAdd(eq(bytes(dirtyKey(senderId))), anyDouble(), eq(bytes(senderId.toString())));
+        verify(zSets).zAdd(eq(bytes(dirtyKey(recipientId))), anyDouble(), eq(bytes(recipientId.toString())));
+    }
+
+    @Test
+    void message_recipientRead_resetBoth() {
+        runPipeline(() -> counter.message(senderId, recipientId, true));
+
+        var scripts = ArgumentCaptor.forClass(byte[].class);
+        verify(scripting, times(2)).eval(scripts.capture(), eq(ReturnType.INTEGER), eq(1), any(byte[].class), any(byte[].class));
+        assertThat(scripts.getAllValues()).allSatisfy(script ->
+                assertThat(new String(script, StandardCharsets.UTF_8)).contains("HDEL"));
+    }
+
+    @Test
+    void message_redisFailure_evictBoth() {
+        doThrow(new IllegalStateException("redis down")).when(redisTemplate).executePipelined(any(RedisCallback.class));
+
+        counter.message(senderId, recipientId, false);
+
+        verify(redisTemplate).delete("unread:{" + senderId + "}");
+        verify(redisTemplate).delete("unread:{" + recipientId + "}");
+    }
+
+    @Test
+    void reset_loadedCounters_resetInPipeline() {
+        runPipeline(() -> counter.reset(senderId, recipientId));
+
+        verify(scripting).eval(any(byte[].class), eq(ReturnType.INTEGER), eq(1),
+                eq(bytes("unread:{" + senderId + "}")), eq(bytes(recipientId.toString())));
+        verify(zSets).zAdd(eq(bytes(dirtyKey(senderId))), anyDouble(), eq(bytes(senderId.toString())));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void reconcile_dirtyUser_reloadedFromDatabase() {
+        ZSetOperations<String, String> zSetOperations = mock(ZSetOperations.class);
+        when(redisTemplate.opsForZSet()).thenReturn(zSetOperations);
+        when(zSetOperations.rangeByScore(eq(dirtyKey(senderId)), eq(0.0), anyDouble(), eq(0L), anyLong()))
+                .thenReturn(Set.of(senderId.toString()));
+        when(conversationsRepository.findUnreadCountsByUserId(senderId)).thenReturn(List.of(count(recipientId, 3)));
+
+        counter.reconcile();
+
+        verify(zSetOperations).remove(dirtyKey(senderId), senderId.toString());
+        verify(redisTemplate).execute(any(RedisScript.class), eq(List.of("unread:{" + senderId + "}")),
+                eq("3600"), eq("1"), eq(recipientId.toString()), eq("3"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void reconcile_shardFails_otherShardsReconciled() {
+        ZSetOperations<String, String> zSetOperations = mock(ZSetOperations.class);
+        when(redisTemplate.opsForZSet()).thenReturn(zSetOperations);
+        when(zSetOperations.rangeByScore(anyString(), eq(0.0), anyDouble(), eq(0L), anyLong()))
+                .thenThrow(new IllegalStateException("redis down"));
+
+        counter.reconcile();
+
+        // 16 shards and the legacy set
+        verify(zSetOperations, times(17)).rangeByScore(anyString(), eq(0.0), anyDouble(), eq(0L), anyLong());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runPipeline(Runnable action) {
+        when(connection.scriptingCommands()).thenReturn(scripting);
+        when(connection.zSetCommands()).thenReturn(zSets);
+        doReturn(List.of()).when(redisTemplate).executePipelined(any(RedisCallback.class));
+
+        action.run();
+
+        var callback = ArgumentCaptor.forClass(RedisCallback.class);
+        verify(redisTemplate).executePipelined(callback.capture());
+        callback.getValue().doInRedis(connection);
+    }
+
+    private static String dirtyKey(UUID userId) {
+        return "unread:dirty:{" + Math.floorMod(userId.hashCode(), 16) + "}";
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static UnreadCountProjection count(UUID recipientId, int unreadCount) {
+        return new UnreadCountProjection() {
+            @Override
+            public UUID getRecipientId() {
+                return recipientId;
+            }
+
+            @Override
+            public Integer getUnreadCount() {
+                return unreadCount;
+            }
+        };
+    }
+}
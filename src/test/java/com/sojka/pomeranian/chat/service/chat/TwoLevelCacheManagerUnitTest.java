@@ -0,0 +1,121 @@
+package com.sojka.pomeranian.chat.service.chat;
+
+import com.sojka.pomeranian.chat.service.cache.TwoLevelCacheManager;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class TwoLevelCacheManagerUnitTest {
+
+    private static final String USERS = "users";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    private final ConcurrentMapCacheManager l2 = new ConcurrentMapCacheManager(USERS, "other");
+    private final TwoLevelCacheManager cacheManager =
+            new TwoLevelCacheManager(l2, Set.of(USERS), 100, 60_000, redisTemplate, meterRegistry);
+
+    @Test
+    void get_cachedInL2_servedFromL1Afterwards() {
+        l2.getCache(USERS).put("john", "details");
+        Cache cache = cacheManager.getCache(USERS);
+
+        cache.get("john");
+        l2.getCache(USERS).put("john", "changed");
+        var result = cache.get("john");
+
+        assertThat(result.get()).isEqualTo("details");
+        assertThat(counter("l2_hit")).isEqualTo(1);
+        assertThat(counter("l1_hit")).isEqualTo(1);
+    }
+
+    @Test
+    void get_notCached_miss() {
+        var result = cacheManager.getCache(USERS).get("john");
+
+        assertThat(result).isNull();
+        assertThat(counter("miss")).isEqualTo(1);
+    }
+
+    @Test
+    void getWithLoader_missThenL1Hit_countersIncremented() {
+        Cache cache = cacheManager.getCache(USERS);
+
+        assertThat(cache.get("john", () -> "loaded")).isEqualTo("loaded");
+        assertThat(cache.get("john", () -> "reloaded")).isEqualTo("loaded");
+
+        assertThat(counter("miss")).isEqualTo(1);
+        assertThat(counter("l1_hit")).isEqualTo(1);
+    }
+
+    @Test
+    void getWithLoader_cachedInL2_l2Hit() {
+        l2.getCache(USERS).put("john", "details");
+
+        var result = cacheManager.getCache(USERS).get("john", () -> "loaded");
+
+        assertThat(result).isEqualTo("details");
+        assertThat(counter("l2_hit")).isEqualTo(1);
+        assertThat(counter("miss")).isZero();
+    }
+
+    @Test
+    void evict_cachedUser_evictedFromBothLevelsAndPublished() {
+        Cache cache = cacheManager.getCache(USERS);
+        cache.put("john", "details");
+
+        cache.evict("john");
+
+        assertThat(cache.get("john")).isNull();
+        assertThat(l2.getCache(USERS).get("john")).isNull();
+        verify(redisTemplate).convertAndSend(TwoLevelCacheManager.CHANNEL, USERS + ":john");
+    }
+
+    @Test
+    void onMessage_evictedOnOtherInstance_l1Dropped() {
+        Cache cache = cacheManager.getCache(USERS);
+        cache.put("john", "details");
+        l2.getCache(USERS).evict("john");
+
+        cacheManager.onMessage(message(USERS + ":john"), null);
+
+        assertThat(cache.get("john")).isNull();
+    }
+
+    @Test
+    void onMessage_clearedOnOtherInstance_allL1Dropped() {
+        Cache cache = cacheManager.getCache(USERS);
+        cache.put("john", "details");
+        cache.put("jane", "details");
+        l2.getCache(USERS).clear();
+
+        cacheManager.onMessage(message(USERS + ":*"), null);
+
+        assertThat(cache.get("john")).isNull();
+        assertThat(cache.get("jane")).isNull();
+    }
+
+    @Test
+    void getCache_notTwoLevel_l2Returned() {
+        assertThat(cacheManager.getCache("other")).isSameAs(l2.getCache("other"));
+    }
+
+    private double counter(String result) {
+        return meterRegistry.get("pomeranian.chat.users.cache").tag("result", result).counter().count();
+    }
+
+    private DefaultMessage message(String body) {
+        return new DefaultMessage(TwoLevelCacheManager.CHANNEL.getBytes(StandardCharsets.UTF_8),
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,40 @@
+package com.sojka.pomeranian.chat.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StripedExecutorUnitTest {
+
+    StripedExecutor executor = new StripedExecutor(Executors.newFixedThreadPool(4), 16);
+
+    @Test
+    void thenApplyInOrder_laterStageCompletesFirst_applyInSubmissionOrder() {
+        List<String> applied = new CopyOnWriteArrayList<>();
+        var first = new CompletableFuture<String>();
+        var second = new CompletableFuture<String>();
+
+        var firstResult = executor.thenApplyInOrder("room", first, applied::add);
+        var secondResult = executor.thenApplyInOrder("room", second, applied::add);
+        second.complete("second");
+        first.complete("first");
+
+        CompletableFuture.allOf(firstResult, secondResult).join();
+        assertThat(applied).containsExactly("first", "second");
+    }
+
+    @Test
+    void thenApplyInOrder_previousStageFailed_applyNext() {
+        var failed = executor.thenApplyInOrder("room", CompletableFuture.failedFuture(new IllegalStateException()), r -> r);
+        var next = executor.thenApplyInOrder("room", CompletableFuture.completedFuture("next"), r -> r);
+
+        assertThatThrownBy(failed::join).hasCauseExactlyInstanceOf(IllegalStateException.class);
+        assertThat(next.join()).isEqualTo("next");
+    }
+}
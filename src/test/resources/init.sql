@@ -228,6 +228,20 @@ CREATE TABLE IF NOT EXISTS conversations (
     PRIMARY KEY (user_id, recipient_id)
 );
 
+-- Read model of the conversation recipients, refreshed by the profile update events
+CREATE TABLE IF NOT EXISTS conversation_profiles (
+    profile_id UUID PRIMARY KEY,
+    username VARCHAR(50) NOT NULL,
+    image_192 UUID,
+    genders VARCHAR(50)[],
+    birthdates DATE[],
+    city_name TEXT,
+    country TEXT,
+    role_id INT,
+    validation_status VARCHAR,
+    refreshed_at TIMESTAMP NOT NULL DEFAULT NOW()
+);
+
 CREATE TABLE IF NOT EXISTS osmcities (
     id UUID PRIMARY KEY,
     geom GEOMETRY,